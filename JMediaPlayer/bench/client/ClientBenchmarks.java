@@ -0,0 +1,342 @@
+package client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import client.messages.UserListSyncMessage;
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.ProtocolVersion;
+import protocol.bench.Benchmark;
+import protocol.bench.BenchmarkRunner;
+
+/**
+ * Benchmarks of the client's hot paths, run by a
+ * <code>BenchmarkRunner</code>:
+ * <ul>
+ * <li><code>header</code> - looking up a header by its V1 code and V2 type
+ * 	code</li>
+ * <li><code>read</code> - a <code>ClientReader</code> reading the headers
+ * 	and fields of the messages the server sends most from an in-memory
+ * 	stream, as its handlers do before acting on them</li>
+ * </ul>
+ * Each reading benchmark is run with both wire formats, with the V2
+ * messages compressed as the server compresses them by default. Run from
+ * the client's compiled classes with
+ * <code>java client.ClientBenchmarks [options]</code>, taking the options of
+ * <code>BenchmarkRunner</code>, such as <code>-rff results.json</code>.
+ *
+ * @author Andrzej Brynczka
+ */
+public class ClientBenchmarks {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Messages read per call of a benchmark */
+	private static final int BATCH = 256;
+
+	/** Users in the user lists read */
+	private static final int USERS = 100;
+
+	/** The server's default size of the smallest V2 frame it compresses */
+	private static final int COMPRESS_THRESHOLD = 128;
+
+	/** The channel the channel chat is sent to */
+	private static final String CHANNEL = "bench";
+
+	/** Text of the chat messages, about the length of a typical line */
+	private static final String TEXT =
+			"Has anyone listened to the new album yet? It is great";
+
+	/** Flags of the user list page read, one of several pages */
+	private static final byte PAGE_FLAGS = UserListSyncMessage.MORE;
+
+	/**
+	 * The messages the server sends most, written as the server writes
+	 * them and read as the reader's handlers read them.
+	 */
+	private enum Traffic {
+		CHAT( MessageHeader.REG_SendChatMess ) {
+			@Override
+			void write(MessageWriter a_writer, int a_index){
+				a_writer.writeString( "user" + a_index );
+				a_writer.writeString( TEXT );
+			}
+
+			@Override
+			Object read(ClientReader a_reader) throws IOException{
+				return a_reader.readRegularChatMessage();
+			}
+		},
+		PRIVATE( MessageHeader.PRIV_SendChatMess ) {
+			@Override
+			void write(MessageWriter a_writer, int a_index){
+				a_writer.writeString( "user" + a_index );
+				a_writer.writeString( "user1" );
+				a_writer.writeString( TEXT );
+			}
+
+			@Override
+			Object read(ClientReader a_reader) throws IOException{
+				return a_reader.readPrivateMessage();
+			}
+		},
+		CHANNEL_CHAT( MessageHeader.CHANNEL_SendChatMess ) {
+			@Override
+			void write(MessageWriter a_writer, int a_index){
+				a_writer.writeString( CHANNEL );
+				a_writer.writeString( "user" + a_index );
+				a_writer.writeString( TEXT );
+			}
+
+			@Override
+			Object read(ClientReader a_reader) throws IOException{
+				return a_reader.readChannelChatMessage();
+			}
+		},
+		USER_LIST( MessageHeader.SERVER_UserList ) {
+			@Override
+			void write(MessageWriter a_writer, int a_index){
+				a_writer.writeInt( USERS );
+				for( String name : names( USERS ) ){
+					a_writer.writeString( name );
+				}
+			}
+
+			@Override
+			Object read(ClientReader a_reader) throws IOException{
+				return a_reader.readUserList();
+			}
+		},
+		USER_LIST_SYNC( MessageHeader.SERVER_UserListSync ) {
+			@Override
+			void write(MessageWriter a_writer, int a_index){
+				a_writer.writeInt( 1 );
+				a_writer.writeInt( 42 );
+				a_writer.writeByte( PAGE_FLAGS );
+				writeNames( a_writer, names( USERS ) );
+				writeNames( a_writer, names( 0 ) );
+			}
+
+			@Override
+			Object read(ClientReader a_reader) throws IOException{
+				a_reader.readInt( a_reader.getMessageStream() );
+				a_reader.readInt( a_reader.getMessageStream() );
+				a_reader.getMessageStream().read();
+				List<String> added = a_reader.readNames();
+				List<String> removed = a_reader.readNames();
+				return added.size() + removed.size();
+			}
+		},
+		PRESENCE( MessageHeader.SERVER_Presence ) {
+			@Override
+			void write(MessageWriter a_writer, int a_index){
+				writeNames( a_writer, names( 10 ) );
+				writeNames( a_writer, names( 5 ) );
+			}
+
+			@Override
+			Object read(ClientReader a_reader) throws IOException{
+				List<String> joined = a_reader.readNames();
+				List<String> left = a_reader.readNames();
+				return joined.size() + left.size();
+			}
+		};
+
+		/** The messages' header */
+		private final MessageHeader m_header;
+
+		/**
+		 * Create the kind of message with the given header.
+		 * @param a_header <code>MessageHeader</code>, the messages' header
+		 */
+		private Traffic(MessageHeader a_header){
+			m_header = a_header;
+		}
+
+		/**
+		 * Get the messages' header.
+		 * @return <code>MessageHeader</code>, the header
+		 */
+		MessageHeader getHeader(){
+			return m_header;
+		}
+
+		/**
+		 * Write a message's fields as the server does, after its header.
+		 * @param a_writer <code>MessageWriter</code>, the writer
+		 * @param a_index <code>int</code>, the message's index in its batch
+		 */
+		abstract void write(MessageWriter a_writer, int a_index);
+
+		/**
+		 * Read a message's fields, after its header.
+		 * @param a_reader <code>ClientReader</code>, the reader
+		 * @return <code>Object</code>, what was read
+		 * @throws IOException if the message cannot be read
+		 */
+		abstract Object read(ClientReader a_reader) throws IOException;
+	}
+
+	/**
+	 * A <code>ClientReader</code> reading a stream of messages of one kind.
+	 */
+	private static final class ReadBenchmark extends Benchmark {
+		/** The kind of messages read */
+		private final Traffic m_traffic;
+
+		/** The wire format of the messages */
+		private final ProtocolVersion m_protocol;
+
+		/** The messages read by each call, read again from the start */
+		private ByteArrayInputStream m_input;
+
+		/** The reader, reading without a client */
+		private ClientReader m_reader;
+
+		/** Hashes of what was read, so that none of it goes unused */
+		private long m_sink;
+
+		/**
+		 * Create the benchmark.
+		 * @param a_traffic <code>Traffic</code>, the kind of messages read
+		 * @param a_protocol <code>ProtocolVersion</code>, the wire format
+		 */
+		ReadBenchmark(Traffic a_traffic, ProtocolVersion a_protocol){
+			super("read." + a_traffic.name().toLowerCase(), "protocol",
+					a_protocol.name());
+			m_traffic = a_traffic;
+			m_protocol = a_protocol;
+		}
+
+		@Override
+		protected void setUp() throws Exception{
+			ByteArrayOutputStream input = new ByteArrayOutputStream();
+			for( int i = 0; i < BATCH; i++ ){
+				MessageWriter writer = new MessageWriter( m_protocol );
+				writer.writeHeader( m_traffic.getHeader() );
+				m_traffic.write( writer, i );
+				if( m_protocol == ProtocolVersion.V2 ){
+					writer.writeCompressedTo( input, COMPRESS_THRESHOLD );
+				}
+				else{
+					writer.writeTo( input );
+				}
+			}
+			m_input = new ByteArrayInputStream( input.toByteArray() );
+			m_reader = new ClientReader( m_input, m_protocol );
+		}
+
+		@Override
+		protected int run() throws Exception{
+			m_input.reset();
+			for( int i = 0; i < BATCH; i++ ){
+				MessageHeader header = m_reader.readHeader();
+				if( header != m_traffic.getHeader() ){
+					throw new IOException("Read " + header + " instead of "
+							+ m_traffic.getHeader());
+				}
+				m_sink += m_traffic.read( m_reader ).hashCode();
+			}
+			if( m_input.available() > 0 ){
+				throw new IOException("Reader stopped reading");
+			}
+			return BATCH;
+		}
+	}
+
+	// *********************************************************
+	// ******************** Main *******************************
+	// *********************************************************
+	/**
+	 * Run every benchmark passing the options' filter, and exit with
+	 * status 1 if any fails.
+	 * @param a_args <code>String[]</code>, the options of
+	 * 	<code>BenchmarkRunner</code>
+	 * @throws Exception if the results file cannot be written
+	 */
+	public static void main(String[] a_args) throws Exception{
+		BenchmarkRunner runner = new BenchmarkRunner( a_args );
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		addHeaderBenchmarks( benchmarks );
+		for( Traffic traffic : Traffic.values() ){
+			for( ProtocolVersion protocol : ProtocolVersion.values() ){
+				benchmarks.add( new ReadBenchmark( traffic, protocol ) );
+			}
+		}
+
+		System.exit( runner.run( benchmarks ) ? 0 : 1 );
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Add the benchmarks of the header lookups.
+	 * @param a_benchmarks <code>List&lt;Benchmark&gt;</code>, the list to
+	 * 	add to
+	 */
+	private static void addHeaderBenchmarks(List<Benchmark> a_benchmarks){
+		final List<String> codes = new ArrayList<String>();
+		final List<Byte> types = new ArrayList<Byte>();
+		for( MessageHeader header : MessageHeader.values() ){
+			if( header != MessageHeader.INVALID ){
+				codes.add( header.getHeaderCode() );
+				types.add( header.getTypeCode() );
+			}
+		}
+
+		a_benchmarks.add( new Benchmark( "header.fromString" ){
+			private long m_sink;
+
+			@Override
+			protected int run(){
+				for( String code : codes ){
+					m_sink += MessageHeader.fromString( code ).ordinal();
+				}
+				return codes.size();
+			}
+		});
+		a_benchmarks.add( new Benchmark( "header.fromTypeCode" ){
+			private long m_sink;
+
+			@Override
+			protected int run(){
+				for( Byte type : types ){
+					m_sink += MessageHeader.fromTypeCode( type ).ordinal();
+				}
+				return types.size();
+			}
+		});
+	}
+
+	/**
+	 * Write a count of names followed by the names.
+	 * @param a_writer <code>MessageWriter</code>, the writer
+	 * @param a_names <code>List&lt;String&gt;</code>, the names
+	 */
+	private static void writeNames(MessageWriter a_writer,
+			List<String> a_names){
+		a_writer.writeLength( a_names.size() );
+		for( String name : a_names ){
+			a_writer.writeString( name );
+		}
+	}
+
+	/**
+	 * Create a list of user names.
+	 * @param a_count <code>int</code>, the number of names
+	 * @return <code>List&lt;String&gt;</code>, the names
+	 */
+	private static List<String> names(int a_count){
+		List<String> names = new ArrayList<String>( a_count );
+		for( int i = 0; i < a_count; i++ ){
+			names.add( "user" + i );
+		}
+		return names;
+	}
+}
@@ -3,9 +3,13 @@ package client;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 import javafx.application.Platform;
 import javafx.beans.property.SimpleBooleanProperty;
@@ -20,14 +24,21 @@ import client.messages.AdminPunishListMessage;
 import client.messages.AdminPunishMessage;
 import client.messages.PunishmentInfo;
 import client.messages.PunishmentInfo.Direction;
-import client.messages.ChatMessage;
+import client.messages.FileTransCreditMessage;
 import client.messages.FileTransRequestMessage;
 import client.messages.FileTransResponseMessage;
+import client.messages.FileTransResumeMessage;
 import client.messages.FileTransferMessage.TransferStage;
-import client.messages.Message;
-import client.messages.Message.MessageHeader;
-import client.messages.Message.MessageResponse;
-import client.messages.PrivateChatMessage;
+import client.messages.UserListSyncMessage;
+import protocol.LargeFiles;
+import protocol.MessageHeader;
+import protocol.ProtocolVersion;
+import protocol.messages.ChannelChatMessage;
+import protocol.messages.ChannelMessage;
+import protocol.messages.ChatMessage;
+import protocol.messages.Message;
+import protocol.messages.Message.MessageResponse;
+import protocol.messages.PrivateChatMessage;
 
 
 /**
@@ -85,6 +96,24 @@ public class Client {
 	 */
 	private String m_serverPass;
 	
+	/**
+	 * The wire format used with the server: V2, unless the server has
+	 * shown that it only understands V1
+	 */
+	private volatile ProtocolVersion m_protocol;
+	
+	/**
+	 * Size from which frames sent to the server are compressed, as given
+	 * by the server at login, or 0 if they are not compressed
+	 */
+	private volatile int m_compressThreshold;
+	
+	/**
+	 * Indication of whether the server passes on files of 2GB and over,
+	 * as given by the server at login
+	 */
+	private volatile boolean m_largeFilesAllowed;
+	
 	/**
 	 * Reference to the ClientWriter thread that sends messages to the
 	 * server
@@ -106,6 +135,15 @@ public class Client {
 	 */
 	private Hashtable<Integer, FileSender> m_fileSenderTable;
 	
+	/**
+	 * Table of DirectReceiver threads, that receive individual files
+	 * streamed straight from their senders.
+	 * 
+	 * The Integer key is equal to the file transfer id of the
+	 * file being received by the DirectReceiver
+	 */
+	private Hashtable<Integer, DirectReceiver> m_directReceiverTable;
+	
 	
 	/**
 	 * Indicator of whether or not the client is logged into the server.
@@ -151,11 +189,41 @@ public class Client {
 	 */
 	private ObservableList<String> m_userList;
 	
+	/**
+	 * The names within the user list, to find them without searching it
+	 */
+	private Set<String> m_userNames;
+	
+	/**
+	 * The server roster the user list was last synced to, or 0 if none.
+	 * 
+	 * Kept across connections, so that reconnecting to the same server
+	 * only needs the changes made to its roster since.
+	 */
+	private int m_rosterID;
+	
+	/**
+	 * The version of the server roster the user list was last synced to
+	 */
+	private int m_rosterVersion;
+	
+	/**
+	 * The names confirmed to be connected while the user list is fetched 
+	 * in full, or null if it is not being fetched. Other names in the list
+	 * are removed once its last page arrives.
+	 */
+	private Set<String> m_rosterSyncNames;
+	
 	/**
 	 * List of users being ignored by this client
 	 */
 	private ObservableList<String> m_ignoreList;
 	
+	/**
+	 * List of the chat channels this client is a member of
+	 */
+	private ObservableList<String> m_channelList;
+	
 	/**
 	 * List of chat messages received from the server
 	 */
@@ -228,6 +296,9 @@ public class Client {
 		m_serverIP = null;
 		m_port = 0;
 		m_serverPass = null;
+		m_protocol = ProtocolVersion.V2;
+		m_compressThreshold = 0;
+		m_largeFilesAllowed = false;
 		m_socket = null;
 		m_writerThread = null;
 		m_readerThread = null;
@@ -238,7 +309,12 @@ public class Client {
 		m_terminating = false;
 		
 		m_userList = FXCollections.observableArrayList();
+		m_userNames = new HashSet<String>();
+		m_rosterID = 0;
+		m_rosterVersion = 0;
+		m_rosterSyncNames = null;
 		m_ignoreList = FXCollections.observableArrayList();
+		m_channelList = FXCollections.observableArrayList();
 		
 		m_chatMessages = FXCollections.observableArrayList();
 		m_privateMessages = FXCollections.observableArrayList();
@@ -249,6 +325,7 @@ public class Client {
 		m_fileTicketPendingTable = new Hashtable<Integer, FileTransferTicket>();
 		m_fileSenderTable = new Hashtable<Integer, FileSender>( 
 				MAX_CONCURRENT_FILE_SENDS );
+		m_directReceiverTable = new Hashtable<Integer, DirectReceiver>();
 		
 		m_sentTickets = FXCollections.observableArrayList();
 		m_receivedTickets = FXCollections.observableArrayList();
@@ -343,6 +420,16 @@ public class Client {
 		return m_ignoreList.contains( a_user );
 	}
 	
+	/**
+	 * Get the ObservableList containing the names of the chat channels
+	 * 	this client is a member of
+	 * 
+	 * @return ObservableList of the channels' names
+	 */
+	public ObservableList<String> getChannelList(){
+		return m_channelList;
+	}
+	
 	
 	/**
 	 * Get the ObservableList that contains the FileTransferTickets
@@ -462,6 +549,55 @@ public class Client {
 	public Socket getSocket(){
 		return m_socket;
 	}
+	
+	/**
+	 * Get the wire format used with the server
+	 * 
+	 * @return ProtocolVersion, the wire format
+	 */
+	public ProtocolVersion getProtocol(){
+		return m_protocol;
+	}
+	
+	/**
+	 * Get the size from which frames sent to the server are compressed
+	 * 
+	 * @return int, the size in bytes, or 0 if frames are not compressed
+	 */
+	public int getCompressThreshold(){
+		return m_compressThreshold;
+	}
+	
+	/**
+	 * Set the size from which frames sent to the server are compressed,
+	 * 	as given by the server in its login response
+	 * 
+	 * @param a_threshold int, the size in bytes, or 0 to send frames as
+	 * 	they are
+	 */
+	public void setCompressThreshold(int a_threshold){
+		m_compressThreshold = a_threshold;
+	}
+	
+	/**
+	 * Check whether the server passes on files of 2GB and over
+	 * 
+	 * @return boolean, true if such files may be requested
+	 * @see LargeFiles
+	 */
+	public boolean isLargeFilesAllowed(){
+		return m_largeFilesAllowed;
+	}
+	
+	/**
+	 * Set whether the server passes on files of 2GB and over, as
+	 * 	given by the server in its login response
+	 * 
+	 * @param a_allowed boolean, true if such files may be requested
+	 */
+	public void setLargeFilesAllowed(boolean a_allowed){
+		m_largeFilesAllowed = a_allowed;
+	}
 		
 	/**
 	 * Get the name of the user who most recently private
@@ -556,6 +692,9 @@ public class Client {
 		m_serverIP = a_serverIP;
 		m_port = a_port;
 		m_serverPass = a_serverPass;
+		
+		//a new server may understand V2
+		m_protocol = ProtocolVersion.V2;
 	}
 	
 	/**
@@ -664,7 +803,113 @@ public class Client {
 	 *  to be connected 
 	 */
 	public void setUserList(Collection<String> a_userList){
-		m_userList.setAll( a_userList );
+		m_userNames.clear();
+		m_userNames.addAll( a_userList );
+		m_userList.setAll( m_userNames );
+	}
+	
+	/**
+	 * Apply a page of the server's roster, or the changes made to it since
+	 * the version last synced to, to the user list. Further pages are
+	 * requested until the last one arrives.
+	 * 
+	 * @param a_rosterID int, the server's roster
+	 * @param a_version int, the roster's version
+	 * @param a_flags byte, the RESET and MORE flags of the page
+	 * @param a_added List, the names in the page, or added since the version
+	 * @param a_removed Collection, the names removed since the version
+	 */
+	public void applyUserListSync(int a_rosterID, int a_version, 
+			byte a_flags, List<String> a_added, Collection<String> a_removed){
+		if( ( a_flags & UserListSyncMessage.RESET ) != 0 ){
+			//a full list, starting over from this version
+			m_rosterSyncNames = new HashSet<String>();
+			m_rosterID = a_rosterID;
+			m_rosterVersion = a_version;
+		}
+		else if( m_rosterSyncNames == null ){
+			//the changes since the version last synced to
+			m_rosterVersion = a_version;
+		}
+		
+		updateUserList( a_added, a_removed );
+		
+		if( ( a_flags & UserListSyncMessage.MORE ) != 0 && 
+				!a_added.isEmpty() ){
+			//continue after the last name of this page
+			requestUserList( a_added.get( a_added.size() - 1 ) );
+			return;
+		}
+		
+		if( m_rosterSyncNames != null ){
+			//the full list has arrived, remove those no longer connected
+			List<String> stale = new ArrayList<String>();
+			for( String name : m_userNames ){
+				if( !m_rosterSyncNames.contains( name ) ){
+					stale.add( name );
+				}
+			}
+			m_rosterSyncNames = null;
+			updateUserList( new ArrayList<String>( 0 ), stale );
+		}
+	}
+	
+	/**
+	 * Apply the users that logged in and out of the server, announced 
+	 * together by the server, to the user list in a single update.
+	 * 
+	 * @param a_joined Collection, the names of the users that logged in
+	 * @param a_left Collection, the names of the users that logged out
+	 */
+	public void applyPresence(Collection<String> a_joined, 
+			Collection<String> a_left){
+		updateUserList( a_joined, a_left );
+	}
+	
+	/**
+	 * Add and remove users from the user list, replacing its contents in a
+	 * single change so that its views are updated once. Removed users are
+	 * no longer ignored.
+	 * 
+	 * @param a_added Collection, the names of the users to add
+	 * @param a_removed Collection, the names of the users to remove
+	 */
+	private void updateUserList(Collection<String> a_added, 
+			Collection<String> a_removed){
+		if( m_rosterSyncNames != null ){
+			m_rosterSyncNames.removeAll( a_removed );
+			m_rosterSyncNames.addAll( a_added );
+		}
+		
+		Set<String> removed = new HashSet<String>();
+		for( String name : a_removed ){
+			if( m_userNames.remove( name ) ){
+				removed.add( name );
+			}
+		}
+		List<String> added = new ArrayList<String>();
+		for( String name : a_added ){
+			if( m_userNames.add( name ) ){
+				added.add( name );
+			}
+		}
+		if( removed.isEmpty() && added.isEmpty() ){
+			return;
+		}
+		
+		List<String> users = 
+				new ArrayList<String>( m_userList.size() + added.size() );
+		for( String name : m_userList ){
+			if( !removed.contains( name ) ){
+				users.add( name );
+			}
+		}
+		users.addAll( added );
+		m_userList.setAll( users );
+		
+		if( !removed.isEmpty() ){
+			m_ignoreList.removeAll( removed );
+		}
 	}
 	
 	
@@ -672,9 +917,16 @@ public class Client {
 	 * Add a user to the user list
 	 * 
 	 * @param a_name String, the name of the user to add
-	 * @return true if the user is added
+	 * @return true if the user is added, false if already in the list
 	 */
 	public boolean addToUserList(String a_name){
+		if( m_rosterSyncNames != null ){
+			m_rosterSyncNames.add( a_name );
+		}
+		
+		if( !m_userNames.add( a_name ) ){
+			return false;
+		}
 		return m_userList.add( a_name );
 	}
 	
@@ -843,6 +1095,17 @@ public class Client {
 		m_fileSenderTable.remove( a_transferID );
 	}
 	
+	/**
+	 * Remove a direct receiver from the DirectReceiver table held by the
+	 * 	client.
+	 * 
+	 * @param a_transferID int, key associated to the DirectReceiver within
+	 * 	the table
+	 */
+	public void removeDirectReceiver(int a_transferID){
+		m_directReceiverTable.remove( a_transferID );
+	}
+	
 	
 	/**
 	 * Remove a file transfer ticket with data on a transfer
@@ -867,6 +1130,13 @@ public class Client {
 	 * @return true if the user was removed, false otherwise
 	 */
 	public boolean removeFromUserList(String a_name){
+		if( m_rosterSyncNames != null ){
+			m_rosterSyncNames.remove( a_name );
+		}
+		
+		if( !m_userNames.remove( a_name ) ){
+			return false;
+		}
 		return m_userList.remove( a_name );
 	}
 		
@@ -921,6 +1191,12 @@ public class Client {
 	public void requestFileTransfer( String a_filePath, 
 			String a_fileName, long a_fileSize, String a_receiver ){
 		System.out.println("Sending file request");
+		if( LargeFiles.isLarge( a_fileSize ) && !m_largeFilesAllowed ){
+			//TODO let user know the server cannot pass on the file
+			System.out.println("file too big for this server");
+			return;
+		}
+		
 		try{
 			//create the file ticket for record keeping
 			FileTransRequestMessage ftrMsg = new FileTransRequestMessage(
@@ -932,12 +1208,22 @@ public class Client {
 					a_fileName, 
 					a_fileSize);
 			
+			//stream the file straight to the receiver, if the server 
+			//brokers it
+			ftrMsg.setDirect( true );
+			
+			//and ask the receiver for credits, rather than pacing blindly
+			ftrMsg.setCredits( true );
+			
+			//and let it resume a transfer of the file cut short before
+			ftrMsg.setResume( true );
+			
 			//create the request message to be sent to the server
 			FileTransferTicket pendingTicket = new FileTransferTicket(
 					0, //transferID will be acquired from server 
 					TransferStage.STAGE1_RequestFromSender, 
 					a_fileName, 
-					(int) a_fileSize, 
+					a_fileSize, 
 					getUserName(), 
 					a_receiver, 
 					false);
@@ -986,21 +1272,38 @@ public class Client {
 				getUserName(), a_ticket.getSenderName(), 
 				a_ticket.getFileName(), a_response);
 		
+		boolean resume = false;
 		if( a_response == MessageResponse.Success && 
 				a_ticket.getTransferStage() == 
 					TransferStage.STAGE2_ResponseToRequest){
 			try {
 				//client wishes to engage in the transfer...
 				
-				//update the new stage in the ticket and create the new file
+				//update the new stage in the ticket and create the new file,
+				//or open the part of it received before
 				a_ticket.setTransferStage( 
 						TransferStage.STAGE3_DataTransmission );
+				endStaleReceive( a_ticket );
 				a_ticket.createNewFile();
 				
 				//add the ticket to the client's records
 				addFileTicketToTransferTable( a_ticket );
 				addToReceivedTicketsList( a_ticket );
 				
+				//ask for only the segments missing, if the sender can resume
+				resume = a_ticket.isResumeOffered() 
+						&& a_ticket.hasCheckpointedData();
+				ftrMsg.setResume( resume );
+				
+				//accept the direct transfer offered with the request, unless
+				//resuming, which is relayed
+				if( a_ticket.getDirectToken() != null && !resume ){
+					beginDirectReceive( a_ticket, ftrMsg );
+				}
+				
+				//grant the credits the sender asked for, if relayed
+				ftrMsg.setCreditWindow( a_ticket.getCreditWindow() );
+				
 			} catch (IOException e) {
 				//failed to create the new file, 
 				//send message response indicating failure
@@ -1010,11 +1313,108 @@ public class Client {
 				System.out.println("Declining request.");
 				
 				ftrMsg.setResponse( MessageResponse.Failure );
+				ftrMsg.setResume( false );
+				resume = false;
 			}
 		}
 		
 		System.out.println("Sent file response: " + ftrMsg.getResponse());
 		m_writerThread.addMessage( ftrMsg );
+		
+		//follow the acceptance with the segments missing
+		if( resume ){
+			m_writerThread.addMessage( new FileTransResumeMessage(
+					MessageHeader.FILE_Transfer, a_ticket.getTransferID(), 
+					TransferStage.STAGE2_ResumeRequest, 
+					getUserName(), a_ticket.getSenderName(), 
+					a_ticket.getFileName(), a_ticket.getMissingSegments()) );
+		}
+	}
+	
+	/**
+	 * End the reception of the same file, from the same sender, as the 
+	 * 	given ticket's, which was cut short before and has not yet ended,
+	 * 	so that the file is only written by the new transfer.
+	 * 
+	 * @param a_ticket FileTransferTicket, the ticket of the file about to
+	 * 	be received
+	 */
+	private void endStaleReceive(FileTransferTicket a_ticket){
+		List<FileTransferTicket> stale = new ArrayList<FileTransferTicket>();
+		for( FileTransferTicket ticket : m_fileTicketTable.values() ){
+			if( ticket != a_ticket 
+					&& ticket.getReceiverName().equals( getUserName() )
+					&& ticket.getSenderName().equals( a_ticket.getSenderName() )
+					&& ticket.getFileName().equals( a_ticket.getFileName() ) ){
+				stale.add( ticket );
+			}
+		}
+		
+		for( FileTransferTicket ticket : stale ){
+			endTransfer( ticket );
+		}
+	}
+	
+	/**
+	 * End the unfinished transfers with the given user, who left the 
+	 * 	server without ending them, such as when its connection dropped.
+	 * 	The part of a file received so far is kept, with its checkpoint,
+	 * 	for the transfer to be resumed.
+	 * 
+	 * @param a_userName String, the name of the user who left
+	 */
+	public void endTransfersWith(String a_userName){
+		List<FileTransferTicket> ended = new ArrayList<FileTransferTicket>();
+		for( FileTransferTicket ticket : m_fileTicketTable.values() ){
+			if( ticket.getTransferStage() != TransferStage.STAGE5_Done 
+					&& ( ticket.getSenderName().equals( a_userName )
+						|| ticket.getReceiverName().equals( a_userName ) ) ){
+				ended.add( ticket );
+			}
+		}
+		
+		for( FileTransferTicket ticket : ended ){
+			endTransfer( ticket );
+			if( ticket.getSenderName().equals( a_userName ) 
+					&& !ticket.hasCheckpointedData() ){
+				ticket.deleteFile();
+			}
+		}
+	}
+	
+	/**
+	 * End the given transfer without a word to the other user, closing
+	 * 	its file and stopping any sending or direct reception of it.
+	 * 
+	 * @param a_ticket FileTransferTicket, the transfer's ticket
+	 */
+	private void endTransfer(FileTransferTicket a_ticket){
+		a_ticket.setTransferStage( TransferStage.STAGE5_Done );
+		closeDirectReceive( a_ticket.getTransferID() );
+		killFileDataSend( a_ticket.getTransferID() );
+		try {
+			a_ticket.closeFileWriteStream();
+		} catch (IOException e) {
+			System.out.println("Error closing " + a_ticket.getFileName() 
+					+ ": " + e.getMessage() );
+		}
+		m_fileTicketTable.remove( a_ticket.getTransferID() );
+	}
+	
+	/**
+	 * Grant the sender of the file specified in the given 
+	 * 	FileTransferTicket credits to send further data segments
+	 * 
+	 * @param a_ticket FileTransferTicket, the ticket of the file being 
+	 * 	received
+	 * @param a_credits int, the number of credits to grant
+	 */
+	public void sendFileCredits(FileTransferTicket a_ticket, int a_credits){
+		m_writerThread.addMessage( new FileTransCreditMessage(
+				MessageHeader.FILE_Transfer, a_ticket.getTransferID(), 
+				TransferStage.STAGE3_DataCredit, 
+				getUserName(), a_ticket.getSenderName(), 
+				a_ticket.getFileName(), a_credits) );
 	}
 	
 	/**
@@ -1029,7 +1429,38 @@ public class Client {
 		}
 		
 		Message msg;
-		if( a_message.startsWith("@") == true ){
+		if( a_message.startsWith("/join ") || a_message.startsWith("/leave ") ){
+			//join or leave the named channel
+			String channel = a_message.substring( 
+					a_message.indexOf(" ") + 1 ).trim();
+			if( channel.startsWith("#") ){
+				channel = channel.substring(1);
+			}
+			
+			if( a_message.startsWith("/join ") ){
+				joinChannel( channel );
+			}
+			else{
+				leaveChannel( channel );
+			}
+			return;
+		}
+		else if( a_message.startsWith("#") == true ){
+			//send a message to the members of a channel
+			int messageSeperator = a_message.indexOf(" ");
+			
+			if( messageSeperator == -1 ){
+				return;
+			}
+			
+			//separate the message from the channel's name
+			String channel = a_message.substring(1, messageSeperator);
+			String message = a_message.substring(messageSeperator+1);
+			
+			msg = new ChannelChatMessage(MessageHeader.CHANNEL_SendChatMess,
+					channel, message, getUserName());
+		}
+		else if( a_message.startsWith("@") == true ){
 			//send a private message
 			int messageSeperator = a_message.indexOf(" ");
 			
@@ -1131,6 +1562,85 @@ public class Client {
 		m_writerThread.addMessage( aplMsg );
 	}
 	
+	/**
+	 * Send a message asking to join a chat channel, creating it on the
+	 * 	server if it has no members.
+	 * 
+	 * @param a_channel String, the channel's name
+	 */
+	public void joinChannel(String a_channel){
+		if( m_writerThread == null ){
+			return;
+		}
+		
+		m_writerThread.addMessage( new ChannelMessage( 
+				MessageHeader.CHANNEL_Join, a_channel, getUserName() ) );
+	}
+	
+	/**
+	 * Send a message asking to leave a chat channel.
+	 * 
+	 * @param a_channel String, the channel's name
+	 */
+	public void leaveChannel(String a_channel){
+		if( m_writerThread == null ){
+			return;
+		}
+		
+		m_writerThread.addMessage( new ChannelMessage( 
+				MessageHeader.CHANNEL_Leave, a_channel, getUserName() ) );
+	}
+	
+	/**
+	 * Apply a member joining or leaving a channel this client is in, 
+	 * 	adding the channel to, or removing it from, the channel list if 
+	 * 	the member is this client, and display the change.
+	 * 
+	 * @param a_message ChannelMessage, the join or leave
+	 */
+	public void applyChannelMessage(ChannelMessage a_message){
+		if( a_message.getUserName().equals( getUserName() ) ){
+			if( a_message.getHeader() == MessageHeader.CHANNEL_Join ){
+				if( !m_channelList.contains( a_message.getChannel() ) ){
+					m_channelList.add( a_message.getChannel() );
+				}
+			}
+			else{
+				m_channelList.remove( a_message.getChannel() );
+			}
+		}
+		
+		addChatMessageToList( a_message );
+	}
+	
+	/**
+	 * Send a message requesting the user list from the server: the changes
+	 * since the version last synced to, or a page of the list if the server
+	 * cannot provide them.
+	 * 
+	 * @param a_after String, the last name of the previous page, or an
+	 * 	empty string for the changes since the version last synced to
+	 */
+	public void requestUserList(String a_after){
+		if( m_writerThread == null ){
+			return;
+		}
+		
+		if( a_after.isEmpty() && m_rosterSyncNames != null ){
+			//a full list was cut short by a disconnection, start it over
+			m_rosterSyncNames = null;
+			m_rosterID = 0;
+		}
+		
+		UserListSyncMessage ulsMsg = new UserListSyncMessage(
+				MessageHeader.SERVER_UserListSync, 
+				m_rosterID, 
+				m_rosterVersion, 
+				a_after );
+		
+		m_writerThread.addMessage( ulsMsg );
+	}
+	
 	// *********************************************************
 	// *******************Utility Functions*********************
 	// *********************************************************
@@ -1185,6 +1695,19 @@ public class Client {
 					m_writerThread.addMessage( ftrMsg );
 					System.out.println("sending fileEnd ticket to " 
 							+ receiver);
+					
+					//keep the part of a file received so far, and its
+					//checkpoint, for the transfer to be resumed
+					if( receiver.equals( currentTicket.getSenderName() ) ){
+						closeDirectReceive( currentTicket.getTransferID() );
+						try {
+							currentTicket.closeFileWriteStream();
+						} catch (IOException e) {
+							System.out.println("Error closing " 
+									+ currentTicket.getFileName() + ": " 
+									+ e.getMessage() );
+						}
+					}
 				}	
 			}
 			
@@ -1213,6 +1736,19 @@ public class Client {
 			
 			m_fileSenderTable.clear();
 		}
+		
+		//stop receiving files streamed straight from their senders
+		if( m_directReceiverTable.size() > 0 ){
+			Collection<DirectReceiver> receiverSet = 
+					new ArrayList<DirectReceiver>( 
+							m_directReceiverTable.values() );
+			
+			for( DirectReceiver currentReceiver : receiverSet ){
+				currentReceiver.close();
+			}
+			
+			m_directReceiverTable.clear();
+		}
 	
 		//close the socket connection
 		try {
@@ -1256,6 +1792,7 @@ public class Client {
 			
 			m_chatMessages.clear();
 			m_privateMessages.clear();
+			m_channelList.clear();
 			m_fileSenderTable.clear();
 			m_fileTicketTable.clear();
 			m_fileTicketPendingTable.clear();
@@ -1276,6 +1813,8 @@ public class Client {
 	 */
 	public void connectToServer() throws UnknownHostException, IOException{
 		m_socket = new Socket( m_serverIP, m_port );
+		m_compressThreshold = 0;
+		m_largeFilesAllowed = false;
 		m_writerThread = new ClientWriter(this);
 		m_readerThread = new ClientReader(this);
 		
@@ -1283,6 +1822,25 @@ public class Client {
 		m_readerThread.start();		
 	}
 	
+	/**
+	 * Connect to the server again using the original V1 wire format,
+	 * 	after it answered the V2 login as a server that only
+	 * 	understands V1 would.
+	 * 
+	 * @author Andrzej Brynczka
+	 */
+	public void reconnectUsingV1(){
+		m_protocol = ProtocolVersion.V1;
+		terminateConnection();
+		
+		try {
+			connectToServer();
+		} catch (IOException e) {
+			setFailedLoginFeedback( "ERROR: Unable to reconnect to the "
+					+ "server: " + e.getMessage() );
+		}
+	}
+	
 
 	/**
 	 * Attempt to begin a file data transfer sequence
@@ -1300,14 +1858,59 @@ public class Client {
 		FileSender fileSenderThread = 
 				new FileSender( a_ticket, m_writerThread, this);
 	
-		//start the file sender thread and save it in a table to keep
-		//track of its activity
-		fileSenderThread.start();
+		//save the file sender thread in a table to keep track of its 
+		//activity, before the credits for its segments arrive, and start it
 		m_fileSenderTable.put( a_ticket.getTransferID(), fileSenderThread );
+		fileSenderThread.start();
 		
 		return true;
 	}
 	
+	/**
+	 * Listen for the sender of a direct transfer, and tell the sender the
+	 * 	port listened on through the given response. The file is relayed
+	 * 	through the server if no port can be listened on.
+	 * 
+	 * @param a_ticket FileTransferTicket, containing information on the 
+	 * 	file to receive, and the transfer's token
+	 * @param a_response FileTransResponseMessage, the acceptance of the 
+	 * 	transfer to send to the server
+	 */
+	private void beginDirectReceive(FileTransferTicket a_ticket, 
+			FileTransResponseMessage a_response){
+		try {
+			DirectReceiver directReceiverThread = 
+					new DirectReceiver( a_ticket, this );
+			
+			//start the direct receiver thread and save it in a table to keep
+			//track of its activity
+			m_directReceiverTable.put( a_ticket.getTransferID(), 
+					directReceiverThread );
+			directReceiverThread.start();
+			a_response.setDirectPort( directReceiverThread.getPort() );
+		} catch (IOException e) {
+			System.out.println("Unable to listen for " 
+					+ a_ticket.getFileName() + ", relaying it instead. \n" 
+					+ e.getMessage() );
+		}
+	}
+	
+	/**
+	 * Stop receiving a file streamed straight from its sender, once it is 
+	 * 	relayed through the server instead or its transfer has ended.
+	 * 
+	 * @param a_transferID int, the transfer id whose direct reception is
+	 * 	to be closed
+	 */
+	public void closeDirectReceive(int a_transferID){
+		DirectReceiver directReceiverThread = 
+				m_directReceiverTable.remove( a_transferID );
+		
+		if( directReceiverThread != null ){
+			directReceiverThread.close();
+		}
+	}
+	
 	/**
 	 * Kill a file data transmission with the given transfer id
 	 * 
@@ -1326,6 +1929,20 @@ public class Client {
 		
 	}
 	
+	/**
+	 * Pass the credits granted by a file's receiver to the file's sender
+	 * 
+	 * @param a_transferID int, the transfer id of the file being sent
+	 * @param a_credits int, the number of credits granted
+	 */
+	public void grantFileCredits(int a_transferID, int a_credits){
+		FileSender fileSenderThread = m_fileSenderTable.get( a_transferID );
+		
+		if( fileSenderThread != null ){
+			fileSenderThread.grantCredits( a_credits );
+		}
+	}
+	
 	
 	
 }
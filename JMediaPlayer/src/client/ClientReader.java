@@ -1,30 +1,45 @@
 package client;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
+import java.util.zip.Inflater;
 
 import javafx.application.Platform;
 
 
 import client.messages.AdminLoginMessage;
 import client.messages.AdminPunishMessage;
+import client.messages.FileTransDataMessage;
 import client.messages.FileTransResponseMessage;
 import client.messages.LoginMessage;
 import client.messages.LoginMessage.LoginCondition;
 import client.messages.PunishmentInfo;
 import client.messages.PunishmentInfo.Direction;
 import client.messages.PunishmentInfo.Punishment;
-import client.messages.ChatMessage;
-import client.messages.Message;
 import client.messages.ServerMessage;
-import client.messages.Message.MessageHeader;
-import client.messages.Message.MessageResponse;
-import client.messages.PrivateChatMessage;
+import client.messages.UserListSyncMessage;
 import client.messages.FileTransferMessage.TransferStage;
+import protocol.DirectTransfer;
+import protocol.FrameCompression;
+import protocol.HeaderTable;
+import protocol.LargeFiles;
+import protocol.MessageHeader;
+import protocol.ProtocolVersion;
+import protocol.TransferCredits;
+import protocol.TransferResume;
+import protocol.messages.ChannelChatMessage;
+import protocol.messages.ChannelMessage;
+import protocol.messages.ChatMessage;
+import protocol.messages.Message;
+import protocol.messages.Message.MessageResponse;
+import protocol.messages.PrivateChatMessage;
 
 /**
  * Class that handles the process of receiving messages from the
@@ -33,15 +48,171 @@ import client.messages.FileTransferMessage.TransferStage;
  *
  */
 public class ClientReader extends Thread{
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/**
+	 * Handler of the remainder of a server message with a given header,
+	 * 	reading it and acting on it.
+	 */
+	private interface MessageHandler{
+		/**
+		 * Read the remainder of a message and act on it.
+		 * @param a_reader ClientReader, the reader the message arrived at
+		 * @param a_header MessageHeader, the message's header
+		 * @throws IOException if the message could not be read
+		 */
+		void handle(ClientReader a_reader, MessageHeader a_header) 
+				throws IOException;
+	}
+	
+	/** 
+	 * The handlers of the messages the server sends, by header, null for
+	 * 	headers the server does not send
+	 */
+	private static final HeaderTable<MessageHandler> HANDLERS = 
+			new HeaderTable<MessageHandler>( null );
+	
+	static{
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handleLogin();
+			}
+		}, MessageHeader.LOGIN );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handleRegularChatMessage();
+			}
+		}, MessageHeader.REG_SendChatMess );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handlePrivateMessage();
+			}
+		}, MessageHeader.PRIV_SendChatMess );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handleChannelMessage( a_header );
+			}
+		}, MessageHeader.CHANNEL_Join, MessageHeader.CHANNEL_Leave );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handleChannelChatMessage();
+			}
+		}, MessageHeader.CHANNEL_SendChatMess );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handleFileTransferMessage();
+			}
+		}, MessageHeader.FILE_Transfer );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handleAdminLoginMessage();
+			}
+		}, MessageHeader.ADMIN_Login );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handleAdminPunishListMessage();
+			}
+		}, MessageHeader.ADMIN_PunishList );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handleAdminPunishMessage( a_header );
+			}
+		}, MessageHeader.ADMIN_PunishUser, 
+				MessageHeader.ADMIN_RemovePunishment );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handleUserList();
+			}
+		}, MessageHeader.SERVER_UserList );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handleAddUser();
+			}
+		}, MessageHeader.SERVER_AddNewUser );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handleRemoveUser();
+			}
+		}, MessageHeader.SERVER_RemoveUser );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handleUserListSync();
+			}
+		}, MessageHeader.SERVER_UserListSync );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handlePresence();
+			}
+		}, MessageHeader.SERVER_Presence );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handleServerErrorMessage();
+			}
+		}, MessageHeader.SERVER_Error );
+		HANDLERS.put( new MessageHandler(){
+			@Override
+			public void handle(ClientReader a_reader, MessageHeader a_header)
+					throws IOException{
+				a_reader.handleServerKickedMessage();
+			}
+		}, MessageHeader.SERVER_Kicked );
+	}
+	
 	// *********************************************************
 	// ******************** Class Variables ********************
 	// *********************************************************
 	/** Reference to the main client object */
 	private Client m_client;
 	
-	/** Input stream from which messages from the server are read */
+	/** Input stream from the socket connected to the server */
+	private InputStream m_socketStream;
+	
+	/** 
+	 * Input stream from which the current message's fields are read: the
+	 * socket's stream in V1, or the message's frame in V2
+	 */
 	private InputStream m_inStream;
 	
+	/** The wire format in which messages are read from the server */
+	private final ProtocolVersion m_protocol;
+	
+	/** Set until the first message from the server has been read */
+	private boolean m_awaitingLogin;
+	
+	/** Decompressor of compressed frames, created on first use */
+	private Inflater m_inflater;
+	
 	// *********************************************************
 	// ******************** Constructor ************************
 	// *********************************************************
@@ -54,7 +225,27 @@ public class ClientReader extends Thread{
 	 */
 	ClientReader(Client a_client) throws IOException{
 		m_client = a_client;
-		m_inStream = a_client.getSocket().getInputStream();
+		m_socketStream = a_client.getSocket().getInputStream();
+		m_inStream = m_socketStream;
+		m_protocol = a_client.getProtocol();
+		m_awaitingLogin = true;
+		m_inflater = null;
+	}
+	
+	/**
+	 * Constructs a ClientReader reading messages from the given stream
+	 * 	without a client to act on them, as the benchmarks do. Only the
+	 * 	read methods may be used.
+	 * @param a_stream InputStream, the stream of messages from the server
+	 * @param a_protocol ProtocolVersion, the wire format of the messages
+	 */
+	ClientReader(InputStream a_stream, ProtocolVersion a_protocol){
+		m_client = null;
+		m_socketStream = a_stream;
+		m_inStream = m_socketStream;
+		m_protocol = a_protocol;
+		m_awaitingLogin = false;
+		m_inflater = null;
 	}
 
 	/**
@@ -67,58 +258,29 @@ public class ClientReader extends Thread{
 	public void run(){
 
 		//read messages from server	
-		String headerCode;
 		MessageHeader header;
 		while( !isInterrupted() ){
 			try{
-				//read the header first
-				headerCode = readString( m_inStream, 4 );
-				header = MessageHeader.fromString( headerCode );
-				System.out.println(" got a message: " + headerCode );
+				header = readHeader();
+				if( header == null ){
+					//the server only understands V1, try again using it
+					Platform.runLater( new Runnable() {
+						@Override
+						public void run(){
+							m_client.reconnectUsingV1();
+						}
+					});
+					return;
+				}
+				System.out.println(" got a message: " + header );
 				
 				//read the message based on the header code
-				switch( header ){
-				case LOGIN:
-					handleLogin();
-					break;
-				case REG_SendChatMess:
-					handleRegularChatMessage();
-					break;
-				case PRIV_SendChatMess:
-					handlePrivateMessage();
-					break;
-				case FILE_Transfer:
-					handleFileTransferMessage();
-					break;
-				case ADMIN_Login:
-					handleAdminLoginMessage();//response to admin login request
-					break;
-				case ADMIN_PunishList:
-					handleAdminPunishListMessage();
-					break;
-				case ADMIN_PunishUser:
-				case ADMIN_RemovePunishment:
-					handleAdminPunishMessage( header );
-					break;
-				case SERVER_UserList:
-					handleUserList();
-					break;
-				case SERVER_AddNewUser:
-					handleAddUser();
-					break;
-				case SERVER_RemoveUser:
-					handleRemoveUser();
-					break;
-				case SERVER_Error:
-					handleServerErrorMessage();
-					break;
-				case SERVER_Kicked:
-					handleServerKickedMessage();
-					break;
-				default:
+				MessageHandler handler = HANDLERS.get( header );
+				if( handler == null ){
 					System.out.println("Bad header from server");
-					break;
+					continue;
 				}
+				handler.handle( this, header );
 			}
 			catch(IOException e){
 				System.out.println("Error reading stream in client reader: " 
@@ -128,6 +290,9 @@ public class ClientReader extends Thread{
 		}
 		
 		//server disconnect or error, done reading
+		if( m_inflater != null ){
+			m_inflater.end();
+		}
 		System.out.println("Exited clientreader");
 		m_client.terminateConnection();
 	}
@@ -160,6 +325,19 @@ public class ClientReader extends Thread{
 		LoginCondition condition = LoginCondition.fromByte( 
 				(byte) m_inStream.read() );
 		
+		//a V2 server may follow with the size from which frames are
+		//compressed, 0 if it does not compress them
+		if( m_protocol == ProtocolVersion.V2 && m_inStream.available() > 0 ){
+			m_client.setCompressThreshold( readLength( m_inStream ) );
+		}
+		
+		//and then with its own capabilities
+		if( m_protocol == ProtocolVersion.V2 && m_inStream.available() > 0 ){
+			int capabilities = readLength( m_inStream );
+			m_client.setLargeFilesAllowed( 
+					( capabilities & LargeFiles.CAPABILITY ) != 0 );
+		}
+		
 		//declare variables for use in several cases
 		final LoginMessage loginMsg = 
 				new LoginMessage(MessageHeader.LOGIN, condition);		
@@ -175,6 +353,7 @@ public class ClientReader extends Thread{
 				public void run(){
 					m_client.setLoggedIn( true );
 					m_client.setMute( true );
+					requestUserList();
 					
 					System.out.println("Logged into server, but are muted!");
 				}
@@ -189,7 +368,8 @@ public class ClientReader extends Thread{
 			Platform.runLater( new Runnable() {
 				@Override
 				public void run(){
-					m_client.setLoggedIn( true );			
+					m_client.setLoggedIn( true );
+					requestUserList();
 					System.out.println("Logged into server! \n Welcome");
 
 				}
@@ -240,32 +420,109 @@ public class ClientReader extends Thread{
 	 * @author Andrzej Brynczka
 	 */
 	private void handleRegularChatMessage() throws IOException{
+		ChatMessage chatMsg = readRegularChatMessage();
+		
+		//dispose of the message if the client decided to
+		//ignore the sender
+		if( m_client.isIgnoring( chatMsg.getSenderName() ) ){
+			return;
+		}
+	
+		addChatMessageToClient( chatMsg );	
+	}
+	
+	/**
+	 * Reads a regular chat message's fields from the current message.
+	 * 
+	 * @return ChatMessage, the message read
+	 * @throws IOException if an error occurs when reading from
+	 * 	the socket's input stream
+	 */
+	ChatMessage readRegularChatMessage() throws IOException{
 		//read the sender name
-		int sizeOfSenderName = readInt( m_inStream );
+		int sizeOfSenderName = readLength( m_inStream );
 		String sender = readString( m_inStream, sizeOfSenderName );
 		
 		//read the int that specifies the size of the message
-		int sizeOfMessage = readInt( m_inStream );
+		int sizeOfMessage = readLength( m_inStream );
 		
 		//read the chat message
 		String message = readString( m_inStream, sizeOfMessage );
 		
+		return new ChatMessage( MessageHeader.REG_SendChatMess, 
+				message, sender );
+	}
+
+	/**
+	 * Processes a member joining or leaving a channel this client is in,
+	 * 	or this client itself joining or leaving a channel.
+	 * 
+	 * @param a_header MessageHeader, the message's header, indicating
+	 * 	whether the channel was joined or left
+	 * @throws IOException if the message could not be read
+	 */
+	private void handleChannelMessage(MessageHeader a_header) 
+			throws IOException{
+		//read the channel's name
+		int size = readLength( m_inStream );
+		String channel = readString( m_inStream, size );
+		
+		//read the member's name
+		size = readLength( m_inStream );
+		String user = readString( m_inStream, size );
+		
+		final ChannelMessage chanMsg = new ChannelMessage( a_header, 
+				channel, user );
+		
+		Platform.runLater( new Runnable() {
+			@Override
+			public void run(){
+				m_client.applyChannelMessage( chanMsg );
+			}
+		});
+	}
+	
+	/**
+	 * Processes chat messages sent to a channel this client is in, and
+	 * 	notifies the client of the message.
+	 * 
+	 * @throws IOException if the message could not be read
+	 */
+	private void handleChannelChatMessage() throws IOException{
+		ChannelChatMessage chanMsg = readChannelChatMessage();
+		
 		//dispose of the message if the client decided to
 		//ignore the sender
-		if( m_client.isIgnoring( sender ) ){
+		if( m_client.isIgnoring( chanMsg.getSenderName() ) ){
 			return;
 		}
 		
-		//create the new message and provide it to the 
-		//dispatcher to send to others
-		final ChatMessage chatMsg = new ChatMessage(
-				Message.MessageHeader.REG_SendChatMess, 
-				message, 
-				sender);
+		addChatMessageToClient( chanMsg );
+	}
 	
-		addChatMessageToClient( chatMsg );	
+	/**
+	 * Reads a channel chat message's fields from the current message.
+	 * 
+	 * @return ChannelChatMessage, the message read
+	 * @throws IOException if the message could not be read
+	 */
+	ChannelChatMessage readChannelChatMessage() throws IOException{
+		//read the channel's name
+		int size = readLength( m_inStream );
+		String channel = readString( m_inStream, size );
+		
+		//read the sender name
+		size = readLength( m_inStream );
+		String sender = readString( m_inStream, size );
+		
+		//get the message
+		size = readLength( m_inStream );
+		String message = readString( m_inStream, size );
+		
+		return new ChannelChatMessage( MessageHeader.CHANNEL_SendChatMess, 
+				channel, message, sender );
 	}
-
+	
 	/**
 	 * Processes private messages sent from the server.
 	 * 	Organizes the private message data and notifies the client
@@ -276,28 +533,13 @@ public class ClientReader extends Thread{
 	 * @author Andrzej Brynczka
 	 */
 	private void handlePrivateMessage() throws IOException{
-		//read the sender name
-		int size = readInt( m_inStream );
-		String sender = readString( m_inStream, size );
-		
-		//get receiver name(this client)
-		size = readInt( m_inStream );
-		String receiver = readString( m_inStream, size );
+		final PrivateChatMessage pMsg = readPrivateMessage();
 		
-		//get the message
-		size = readInt( m_inStream );
-		String message = readString( m_inStream, size );
-		
-		if( m_client.isIgnorePM() || m_client.isIgnoring( sender ) ){
+		if( m_client.isIgnorePM() 
+				|| m_client.isIgnoring( pMsg.getSenderName() ) ){
 			return;
 		}
 		
-		final PrivateChatMessage pMsg = new PrivateChatMessage(
-				Message.MessageHeader.PRIV_SendChatMess, 
-				message, 
-				sender, 
-				receiver);
-		
 		Platform.runLater( new Runnable() {
 			@Override
 			public void run(){
@@ -308,6 +550,30 @@ public class ClientReader extends Thread{
 		
 	}
 	
+	/**
+	 * Reads a private message's fields from the current message.
+	 * 
+	 * @return PrivateChatMessage, the message read
+	 * @throws IOException if an error occurs when reading from the
+	 * 	socket input stream
+	 */
+	PrivateChatMessage readPrivateMessage() throws IOException{
+		//read the sender name
+		int size = readLength( m_inStream );
+		String sender = readString( m_inStream, size );
+		
+		//get receiver name(this client)
+		size = readLength( m_inStream );
+		String receiver = readString( m_inStream, size );
+		
+		//get the message
+		size = readLength( m_inStream );
+		String message = readString( m_inStream, size );
+		
+		return new PrivateChatMessage( MessageHeader.PRIV_SendChatMess, 
+				message, sender, receiver );
+	}
+	
 	/**
 	 * Distributes the file transfer messages to more specific
 	 * 	helper functions based upon the messages' TransferStages.
@@ -338,6 +604,12 @@ public class ClientReader extends Thread{
 			case STAGE3_DataTransmission:
 				_FileTransData( transID );
 				break;
+			case STAGE3_DataCredit:
+				_FileTransCredit( transID );
+				break;
+			case STAGE2_ResumeRequest:
+				_FileTransResume( transID );
+				break;
 			default:
 				break;
 		}
@@ -352,21 +624,46 @@ public class ClientReader extends Thread{
 	 */
 	private void _FileTranRequest( int a_transID ) throws IOException{	
 		//get the sender's username
-		int size = readInt( m_inStream );
+		int size = readLength( m_inStream );
 		String sender = readString( m_inStream, size );
 		
 		//get the file name
-		size = readInt( m_inStream );
+		size = readLength( m_inStream );
 		String fileName = readString( m_inStream, size );
 		
 		//get the file size
-		int fileSize = readInt( m_inStream );
+		long fileSize = readInt( m_inStream );
+		
+		//a V2 server may offer a direct transfer, with its token, pass
+		//on the sender's asking for credits, and follow with the size
+		//of a file too large for the int
+		byte[] directToken = null;
+		int options = 0;
+		if( m_protocol == ProtocolVersion.V2 && m_inStream.available() > 0 ){
+			options = m_inStream.read();
+			if( ( options & DirectTransfer.DIRECT ) != 0 ){
+				size = readLength( m_inStream );
+				byte[] token = readBytes( m_inStream, size, size );
+				if( size == DirectTransfer.TOKEN_SIZE ){
+					directToken = token;
+				}
+			}
+			if( ( options & LargeFiles.LARGE ) != 0 ){
+				fileSize = readLong( m_inStream );
+			}
+		}
 		
 		//create a new file ticket to keep track of this file's series of
 		//transfer messages
 		final FileTransferTicket fileTicket = new FileTransferTicket(a_transID, 
 				TransferStage.STAGE1_RequestFromSender, fileName, 
 				fileSize, sender, m_client.getUserName(), true);
+		fileTicket.setDirectToken( directToken );
+		if( ( options & TransferCredits.CREDITS ) != 0 ){
+			fileTicket.setCreditWindow( TransferCredits.WINDOW );
+		}
+		fileTicket.setResumeOffered( 
+				( options & TransferResume.RESUME ) != 0 );
 		
 		//check if the client is accepting file requests
 		if( m_client.isIgnoreFileRequests() || m_client.isIgnoring( sender ) ){
@@ -404,13 +701,13 @@ public class ClientReader extends Thread{
 		System.out.println("got a response message");
 		
 		//get the sender's username
-		int size = readInt( m_inStream );
+		int size = readLength( m_inStream );
 		System.out.println(" size " + size );
 		final String sender = readString( m_inStream, size );
 		System.out.println("sender " + sender);
 		
 		//get the file name
-		size = readInt( m_inStream );
+		size = readLength( m_inStream );
 		System.out.println(" size " + size );
 		final String fileName = readString( m_inStream, size );
 		System.out.println("filename " + fileName);
@@ -421,6 +718,30 @@ public class ClientReader extends Thread{
 		
 		System.out.println(" got response " + response.toString() );
 		
+		//a V2 server may follow an acceptance with where to stream the file,
+		//the window of credits granted, and the receiver's resuming
+		String directHost = null;
+		int directPort = 0;
+		byte[] directToken = null;
+		int creditWindow = 0;
+		boolean resume = false;
+		if( m_protocol == ProtocolVersion.V2 && m_inStream.available() > 0 ){
+			int options = m_inStream.read();
+			if( ( options & DirectTransfer.DIRECT ) != 0 ){
+				size = readLength( m_inStream );
+				directHost = readString( m_inStream, size );
+				directPort = readInt( m_inStream );
+				size = readLength( m_inStream );
+				if( size == DirectTransfer.TOKEN_SIZE ){
+					directToken = readBytes( m_inStream, size, size );
+				}
+			}
+			if( ( options & TransferCredits.CREDITS ) != 0 ){
+				creditWindow = readInt( m_inStream );
+			}
+			resume = ( options & TransferResume.RESUME ) != 0;
+		}
+		
 		if( response == MessageResponse.Failure ){
 			//Request for a transfer was denied, or an error data 
 			//transmission. End the series of transfers for this file.
@@ -446,9 +767,18 @@ public class ClientReader extends Thread{
 						m_client.getFileTicketFromTransferTable( a_transID );
 				ticket.setTransferStage( TransferStage.STAGE5_Done );
 				
-				//delete the unfinished file, if applicable
+				//stop receiving the file directly, if applicable, before
+				//deleting the unfinished file, unless some of it was 
+				//received, and kept for the transfer to be resumed
+				m_client.closeDirectReceive( a_transID );
 				ticket.closeFileWriteStream();
-				ticket.deleteFile();
+				if( ticket.hasCheckpointedData() ){
+					System.out.println("kept " + ticket.getFileName() 
+							+ " to be resumed");
+				}
+				else{
+					ticket.deleteFile();
+				}
 				
 				//kill the sending of the file, if applicable
 				Platform.runLater( new Runnable() {
@@ -476,6 +806,14 @@ public class ClientReader extends Thread{
 				//modify the file's ticket to signal next stage 
 				ticket.setTransferStage(TransferStage.STAGE3_DataTransmission);
 				ticket.setTransferID( a_transID );
+				if( directToken != null && directPort > 0 ){
+					ticket.setDirectEndpoint( directHost, directPort, 
+							directToken );
+				}
+				ticket.setCreditWindow( creditWindow );
+				
+				//a resuming receiver follows with the segments it is missing
+				ticket.setAwaitingResume( resume );
 				
 				//remove the ticket from the pending table and add it to the 
 				//main ticket table
@@ -492,7 +830,9 @@ public class ClientReader extends Thread{
 							
 							//notify the user that the request was accepted
 							m_client.addToSentTicketsList( ticket );
-							m_client.beginFileDataSend( ticket );
+							if( !ticket.isAwaitingResume() ){
+								m_client.beginFileDataSend( ticket );
+							}
 						} catch (FileNotFoundException e) {
 							System.out.println(ticket.getFileName() 
 									+ " not found.");
@@ -513,6 +853,7 @@ public class ClientReader extends Thread{
 				FileTransferTicket ticket = 
 						m_client.getFileTicketFromTransferTable( a_transID );
 				ticket.setTransferStage( TransferStage.STAGE5_Done );
+				m_client.closeDirectReceive( a_transID );
 				
 				try{
 					ticket.closeFileWriteStream();
@@ -521,6 +862,9 @@ public class ClientReader extends Thread{
 					System.out.println("Error on file close.");
 				}
 				
+				//the whole file is received, so there is nothing to resume
+				ticket.deleteCheckpoint();
+				
 				System.out.println("completed file download");
 				m_client.deleteFileTicketFromTransferTable( a_transID );
 			}
@@ -547,11 +891,11 @@ public class ClientReader extends Thread{
 	private void _FileTransData(int a_transID) throws IOException{	
 		System.out.println("got a data message");
 		//get the sender's username
-		int size = readInt( m_inStream );
+		int size = readLength( m_inStream );
 		String sender = readString( m_inStream, size );
 		
 		//get the file name
-		size = readInt( m_inStream );
+		size = readLength( m_inStream );
 		String fileName = readString( m_inStream, size );
 		
 		//get the current data segment #
@@ -561,7 +905,7 @@ public class ClientReader extends Thread{
 		final int totalSegments = readInt( m_inStream );
 		
 		//get the size of the current segment
-		int sizeOfCurrenSeg = readInt( m_inStream );
+		int sizeOfCurrenSeg = readLength( m_inStream );
 		
 		
 		//get the file data segment
@@ -575,15 +919,102 @@ public class ClientReader extends Thread{
 		if( ticket == null ){
 			return;
 		}
+		
+		//the sender could not reach this client, and relays the file instead
+		m_client.closeDirectReceive( a_transID );
 		ticket.setTotalDataSeg( totalSegments );
 		ticket.setCurrentDataSegNum( currentDataSegment );
-		ticket.writeData( sizeOfCurrenSeg , data );
+		
+		//a segment's number gives its offset in the file
+		long offset = (long) ( currentDataSegment - 1 ) 
+				* FileTransDataMessage.MAX_SEGMENT_SIZE;
+		if( currentDataSegment < 1 || 
+				!ticket.writeData( offset, sizeOfCurrenSeg, data ) ){
+			System.out.println("Ignored segment " + currentDataSegment 
+					+ " of " + ticket.getFileName() );
+			return;
+		}
+		
+		//grant the sender room for the segments written, if it asked
+		int credits = ticket.countWrittenSegment();
+		if( credits > 0 ){
+			m_client.sendFileCredits( ticket, credits );
+		}
 
 
 		System.out.println("wrote to file segment " + currentDataSegment 
 				+ " of" + totalSegments);
 	}
 	
+	/**
+	 * Processes the FileTransCredit messages, holding the credits granted
+	 * 	by the receiver of a file this client sends.
+	 * 
+	 * @param a_transID int, the message's unique transfer id
+	 * @throws IOException if an error occurs when reading from the
+	 * 	socket's input stream
+	 * @see TransferCredits
+	 */
+	private void _FileTransCredit(int a_transID) throws IOException{
+		//get the receiver's username
+		int size = readLength( m_inStream );
+		readString( m_inStream, size );
+		
+		//get the file name
+		size = readLength( m_inStream );
+		readString( m_inStream, size );
+		
+		//let the file's sender send the granted segments
+		m_client.grantFileCredits( a_transID, readInt( m_inStream ) );
+	}
+	
+	/**
+	 * Processes the FileTransResume messages, holding the segments the
+	 * 	receiver of a file this client sends is missing, and starts
+	 * 	sending only those.
+	 * 
+	 * @param a_transID int, the message's unique transfer id
+	 * @throws IOException if an error occurs when reading from the
+	 * 	socket's input stream
+	 */
+	private void _FileTransResume(final int a_transID) throws IOException{
+		//get the receiver's username
+		int size = readLength( m_inStream );
+		readString( m_inStream, size );
+		
+		//get the file name
+		size = readLength( m_inStream );
+		readString( m_inStream, size );
+		
+		//get the ranges of missing segments
+		int count = readLength( m_inStream );
+		if( count > TransferResume.MAX_RANGES ){
+			throw new IOException("Too many resume ranges: " + count);
+		}
+		final List<int[]> ranges = new ArrayList<int[]>( count );
+		for( int i = 0; i < count; i++ ){
+			int first = readInt( m_inStream );
+			int last = readInt( m_inStream );
+			ranges.add( new int[]{ first, last } );
+		}
+		
+		//start sending once the acceptance has been acted on
+		Platform.runLater( new Runnable() {
+			@Override
+			public void run(){
+				FileTransferTicket ticket = 
+						m_client.getFileTicketFromTransferTable( a_transID );
+				if( ticket == null || !ticket.isAwaitingResume() ){
+					return;
+				}
+				
+				ticket.setSegmentsToSend( ranges );
+				ticket.setAwaitingResume( false );
+				m_client.beginFileDataSend( ticket );
+			}
+		});
+	}
+	
 	/**
 	 * Process user list messages, which carry the names of the
 	 * 	users connected to the server.
@@ -593,25 +1024,105 @@ public class ClientReader extends Thread{
 	 * @author Andrzej Brynczka
 	 */
 	private void handleUserList() throws IOException{
+		final Vector<String> users = readUserList();
+		
+		System.out.println("got new user list from server: " + users.size());
+		
+		//send the list to the main client thread
+		Platform.runLater( new Runnable() {
+			@Override
+			public void run(){
+				m_client.setUserList( users );
+			}
+		});
+	}
+	
+	/**
+	 * Reads the names of a user list message from the current message.
+	 * 
+	 * @return Vector&lt;String&gt;, the names of the connected users
+	 * @throws IOException if an error occurs when reading from the
+	 * 	socket input stream
+	 */
+	Vector<String> readUserList() throws IOException{
 		//get the number of users
 		int numOfUsers = readInt( m_inStream );
 
 		//get the usernames
-		final Vector<String> users = new Vector<String>( numOfUsers );
+		Vector<String> users = new Vector<String>( numOfUsers );
 		
 		for( int i = 0; i < numOfUsers; i++ ){
-			int sizeOfName = readInt( m_inStream );
+			int sizeOfName = readLength( m_inStream );
 			String userName = readString( m_inStream, sizeOfName );
 			users.add( userName );
 		}
+		return users;
+	}
+	
+	/**
+	 * Ask a V2 server for the user list, as it only sends the list at login
+	 * to clients that do not fetch it in pages.
+	 */
+	private void requestUserList(){
+		if( m_protocol == ProtocolVersion.V2 ){
+			m_client.requestUserList( "" );
+		}
+	}
+	
+	/**
+	 * Process user list sync messages, which carry a page of the names of
+	 * 	the users connected to the server, or the names that connected and
+	 * 	disconnected since the roster version last synced to.
+	 * 
+	 * @throws IOException if an error occurs when reading from the
+	 * 	socket input stream;
+	 * @author Andrzej Brynczka
+	 */
+	private void handleUserListSync() throws IOException{
+		//get the roster the names belong to
+		final int rosterID = readInt( m_inStream );
+		final int version = readInt( m_inStream );
+		final byte flags = (byte) m_inStream.read();
 		
-		System.out.println("got new user list from server: " + numOfUsers);
+		//get the names in the page, or added since the version
+		final List<String> added = readNames();
 		
-		//send the list to the main client thread
+		//get the names removed since the version
+		final List<String> removed = readNames();
+		
+		System.out.println("got user list sync from server: " 
+				+ added.size() + " added, " + removed.size() + " removed");
+		
+		//apply the names to the list in the main client thread
 		Platform.runLater( new Runnable() {
 			@Override
 			public void run(){
-				m_client.setUserList( users );
+				m_client.applyUserListSync( rosterID, version, flags, 
+						added, removed );
+			}
+		});
+	}
+	
+	/**
+	 * Process presence messages, which carry the names of every user that
+	 * 	connected or disconnected over a short window.
+	 * 
+	 * @throws IOException if an error occurs when reading from the
+	 * 	socket input stream;
+	 * @author Andrzej Brynczka
+	 */
+	private void handlePresence() throws IOException{
+		//get the names of the users that connected
+		final List<String> joined = readNames();
+		
+		//get the names of the users that disconnected
+		final List<String> left = readNames();
+		
+		//apply the changes to the list in the main client thread
+		Platform.runLater( new Runnable() {
+			@Override
+			public void run(){
+				m_client.applyPresence( joined, left );
 			}
 		});
 	}
@@ -626,7 +1137,7 @@ public class ClientReader extends Thread{
 	 */
 	private void handleAddUser() throws IOException{
 		//get the user's name
-		int sizeOfName = readInt( m_inStream );
+		int sizeOfName = readLength( m_inStream );
 		final String name = readString( m_inStream, sizeOfName );
 		
 		Platform.runLater( new Runnable() {
@@ -648,7 +1159,7 @@ public class ClientReader extends Thread{
 	 */
 	private void handleRemoveUser() throws IOException{
 		//get the user's name
-		int sizeOfName = readInt( m_inStream );
+		int sizeOfName = readLength( m_inStream );
 		final String name = readString( m_inStream, sizeOfName );
 		
 		Platform.runLater( new Runnable() {
@@ -656,6 +1167,9 @@ public class ClientReader extends Thread{
 			public void run(){
 				m_client.removeFromUserList( name );
 				m_client.removeFromIgnoreList( name );
+				
+				//end the transfers the user left in the middle of
+				m_client.endTransfersWith( name );
 			}
 		});
 	}
@@ -715,17 +1229,17 @@ public class ClientReader extends Thread{
 		byte directionCode = (byte) m_inStream.read();
 		
 		//get the name of the name of the admin that requested the punishment
-		int size = readInt( m_inStream );
+		int size = readLength( m_inStream );
 		String adminName = readString( m_inStream, size );
 		
 		//get the name of the target
-		size = readInt( m_inStream );
+		size = readLength( m_inStream );
 		String targetName = readString( m_inStream, size );
 		
 		//get the target's IP if applicable
 		String targetIP = null;
 		if( a_header == MessageHeader.ADMIN_RemovePunishment ){
-			size = readInt( m_inStream );
+			size = readLength( m_inStream );
 			targetIP = readString( m_inStream, size );
 			
 		}
@@ -810,11 +1324,11 @@ public class ClientReader extends Thread{
 		for( int i = 0; i < numOfUsers; i++ ){
 			
 			//get the name
-			size = readInt( m_inStream );
+			size = readLength( m_inStream );
 			name = readString( m_inStream, size );
 			
 			//get the IP
-			size = readInt( m_inStream );
+			size = readLength( m_inStream );
 			IP = readString( m_inStream, size );
 			
 			//get the punishment code
@@ -847,7 +1361,7 @@ public class ClientReader extends Thread{
 	 */
 	public void handleServerErrorMessage() throws IOException{
 		//read the message and pass it to the client
-		int size = readInt( m_inStream );
+		int size = readLength( m_inStream );
 		String message = readString( m_inStream, size );
 		
 		ServerMessage servMsg = new ServerMessage(MessageHeader.SERVER_Error);
@@ -866,7 +1380,7 @@ public class ClientReader extends Thread{
 	 */
 	public void handleServerKickedMessage() throws IOException{
 		//read the message and pass it to the client
-		int size = readInt( m_inStream );
+		int size = readLength( m_inStream );
 		String message = readString( m_inStream, size );
 		
 		ServerMessage servMsg = new ServerMessage(MessageHeader.SERVER_Kicked);
@@ -878,6 +1392,19 @@ public class ClientReader extends Thread{
 		m_client.terminateConnection();
 	}
 	
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Gets the stream from which the current message's fields are read.
+	 * 
+	 * @return <code>InputStream</code>, the socket's stream in V1, or the
+	 * 	message's frame in V2
+	 */
+	InputStream getMessageStream(){
+		return m_inStream;
+	}
+	
 	// *********************************************************
 	// ******************** Utility Methods ********************
 	// *********************************************************
@@ -888,17 +1415,143 @@ public class ClientReader extends Thread{
 	 * @return <code>int</code>, an int read from the stream
 	 * @throws IOException if an error occurs when reading from the stream
 	 */
-	private int readInt(InputStream a_stream) throws IOException{
+	int readInt(InputStream a_stream) throws IOException{
+		if( m_protocol == ProtocolVersion.V2 ){
+			return ProtocolVersion.fromZigZag( 
+					ProtocolVersion.readVarInt( a_stream ) );
+		}
+		
 		DataInputStream inData = new DataInputStream( a_stream );
 		
 		return inData.readInt();
 	}
 	
+	/**
+	 * Reads a long, as 8 bytes, from the given stream. 
+	 * 
+	 * @param a_stream <code>InputStream</code>, the stream to read from
+	 * @return <code>long</code>, a long read from the stream
+	 * @throws IOException if an error occurs when reading from the stream
+	 */
+	long readLong(InputStream a_stream) throws IOException{
+		DataInputStream inData = new DataInputStream( a_stream );
+		
+		return inData.readLong();
+	}
+	
+	/**
+	 * Reads the length of the bytes or items that follow from the given
+	 * stream. 
+	 * 
+	 * @param a_stream <code>InputStream</code>, the stream to read from
+	 * @return <code>int</code>, the length read from the stream
+	 * @throws IOException if an error occurs when reading from the stream
+	 */
+	private int readLength(InputStream a_stream) throws IOException{
+		if( m_protocol == ProtocolVersion.V2 ){
+			return ProtocolVersion.readVarInt( a_stream );
+		}
+		
+		return readInt( a_stream );
+	}
+	
+	/**
+	 * Reads the next message's header from the server, along with the
+	 * 	whole message in V2.
+	 * 
+	 * @return <code>MessageHeader</code>, the message's header, or 
+	 * 	<code>null</code> if the server answered the V2 login as a V1 server
+	 * @throws IOException if an error occurs when reading from the stream
+	 */
+	MessageHeader readHeader() throws IOException{
+		if( m_protocol == ProtocolVersion.V2 ){
+			//read the whole frame, holding the header and message
+			return readFrame();
+		}
+		
+		//read the header first
+		String headerCode = readString( m_inStream, 4 );
+		return MessageHeader.fromString( headerCode );
+	}
+	
+	/**
+	 * Reads a count of names followed by the names from the current 
+	 * message.
+	 * 
+	 * @return <code>List&lt;String&gt;</code>, the names read
+	 * @throws IOException if an error occurs when reading from the stream
+	 */
+	List<String> readNames() throws IOException{
+		int numOfNames = readLength( m_inStream );
+		List<String> names = new ArrayList<String>( numOfNames );
+		for( int i = 0; i < numOfNames; i++ ){
+			int sizeOfName = readLength( m_inStream );
+			names.add( readString( m_inStream, sizeOfName ) );
+		}
+		return names;
+	}
+	
+	/**
+	 * Reads the next V2 frame from the server, making it the stream from
+	 * which the message's fields are read. A compressed frame is 
+	 * decompressed first.
+	 * <p>
+	 * A server that only understands V1 answers the V2 login with a V1
+	 * login response, whose header starts with "00". No V2 frame sent 
+	 * before the login response starts with these bytes, as type code 
+	 * '0' belongs to file transfers.
+	 * 
+	 * @return <code>MessageHeader</code>, the frame's header, or 
+	 * 	<code>null</code> if the server answered the login as a V1 server
+	 * @throws IOException if an error occurs when reading from the stream,
+	 * 	or the frame's length is invalid
+	 */
+	private MessageHeader readFrame() throws IOException{
+		int length = ProtocolVersion.readVarInt( m_socketStream );
+		if( length < 1 || length > ProtocolVersion.MAX_FRAME_SIZE ){
+			throw new IOException("Invalid frame length: " + length);
+		}
+		
+		int type = m_socketStream.read();
+		if( type == -1 ){
+			throw new EOFException("Input stream was closed with EOF");
+		}
+		
+		if( m_awaitingLogin && length == '0' && type == '0' ){
+			return null;
+		}
+		m_awaitingLogin = false;
+		
+		byte[] content = readBytes( m_socketStream, length - 1, length - 1 );
+		if( type != ( FrameCompression.DEFLATED_TYPE & 0xFF ) ){
+			m_inStream = new ByteArrayInputStream( content );
+			return MessageHeader.fromTypeCode( (byte) type );
+		}
+		
+		//read the message from its decompressed bytes instead
+		ByteArrayInputStream compressed = new ByteArrayInputStream( content );
+		int size = ProtocolVersion.readVarInt( compressed );
+		if( size < 1 || size > ProtocolVersion.MAX_FRAME_SIZE ){
+			throw new IOException("Invalid decompressed length: " + size);
+		}
+		if( m_inflater == null ){
+			m_inflater = new Inflater();
+		}
+		
+		byte[] inflated = new byte[size];
+		int offset = content.length - compressed.available();
+		FrameCompression.inflate( m_inflater, content, offset, 
+				content.length - offset, inflated, size );
+		
+		m_inStream = new ByteArrayInputStream( inflated, 1, size - 1 );
+		return MessageHeader.fromTypeCode( inflated[0] );
+	}
+	
 	/**
 	 * Reads a string from the input stream. 
 	 * 
 	 * @param a_stream <code>InputStream</code>, the stream to read from
-	 * @param a_sizeOfString <code>int</code>, the length(# of chars) of 
+	 * @param a_sizeOfString <code>int</code>, the length(# of bytes) of 
 	 * 	the string
 	 * @return <code>String</code>, the string read from the stream
 	 * @throws IOException if the stream is closed when attempting to read 
@@ -909,7 +1562,7 @@ public class ClientReader extends Thread{
 		
 		byte[] readData = readBytes( a_stream, a_sizeOfString, a_sizeOfString);
 		
-		String readString = new String( readData );
+		String readString = new String( readData, m_protocol.getCharset() );
 		return readString;
 	}
 	
@@ -1,6 +1,7 @@
 package client;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -8,7 +9,13 @@ import java.io.OutputStream;
 import java.util.LinkedList;
 import java.util.Queue;
 
-import client.messages.Message;
+import client.messages.UserListSyncMessage;
+import protocol.FrameCompression;
+import protocol.LargeFiles;
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.ProtocolVersion;
+import protocol.messages.Message;
 
 /**
  * Class that handles writing of messages to the server for the client.
@@ -28,6 +35,9 @@ public class ClientWriter extends Thread{
 	 */
 	private OutputStream m_outStream;
 	
+	/** The wire format in which messages are sent to the server */
+	private final ProtocolVersion m_protocol;
+	
 	/** Messages to be sent to the server */
 	private Queue<Message> m_messagesToSend;
 	
@@ -51,6 +61,7 @@ public class ClientWriter extends Thread{
 		m_messagesToSend = new LinkedList<Message>();
 		m_client = a_client;
 		m_outStream = a_client.getSocket().getOutputStream();	
+		m_protocol = a_client.getProtocol();
 		
 		m_continueSendingMessages = true;
 	}
@@ -75,7 +86,11 @@ public class ClientWriter extends Thread{
 	 * @return <code>Message</code>, the retrieved message
 	 */
 	private synchronized Message getFirstMessage(){
-		return m_messagesToSend.poll();
+		Message msg = m_messagesToSend.poll();
+		
+		//let senders waiting for room in the queue know of it
+		notifyAll();
+		return msg;
 	}
 	
 	
@@ -94,7 +109,7 @@ public class ClientWriter extends Thread{
 	public synchronized void continueSendingMessages( boolean a_continue ){
 		m_continueSendingMessages = a_continue;
 		if( a_continue == false ){
-			notify();
+			notifyAll();
 		}
 	}
 	
@@ -109,11 +124,28 @@ public class ClientWriter extends Thread{
 	 */
 	public synchronized void addMessage(Message a_message){
 		if( m_continueSendingMessages == false ){
-			notify();//let the know writer know its time to stop
+			notifyAll();//let the know writer know its time to stop
 			return;
 		}
 		m_messagesToSend.add( a_message );
-		notify();
+		notifyAll();
+	}
+	
+	/**
+	 * Wait until fewer than the given number of messages are queued, so
+	 * 	that a sender of many messages, such as a file's data, does not 
+	 * 	hold back the others' messages for long.
+	 * 
+	 * @param a_limit <code>int</code>, the number of queued messages to 
+	 * 	wait to fall below
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void awaitQueueBelow(int a_limit) 
+			throws InterruptedException{
+		while( m_messagesToSend.size() >= a_limit 
+				&& m_continueSendingMessages ){
+			wait();
+		}
 	}
 		
 	// *********************************************************
@@ -127,7 +159,8 @@ public class ClientWriter extends Thread{
 	 */
 	private void sendMessage(Message a_message) throws IOException{
 		if( a_message != null ){
-			a_message.sendMessage( m_outStream );
+			a_message.sendMessage( m_outStream, m_protocol, 
+					m_client.getCompressThreshold() );
 		}
 	}
 	
@@ -141,19 +174,30 @@ public class ClientWriter extends Thread{
 	@Override
 	public void run(){
 		//send login message first, the simply continue
-		DataOutputStream outData = new DataOutputStream( m_outStream );
 		System.out.println("sending data");
 		try{
-			//send username size and the username
-			outData.writeInt( m_client.getUserName().length() );
-			outData.flush();
-			m_outStream.write( m_client.getUserName().getBytes() );
-			m_outStream.flush();
+			ByteArrayOutputStream loginData = new ByteArrayOutputStream();
+			MessageWriter login = new MessageWriter( m_protocol );
+			if( m_protocol == ProtocolVersion.V2 ){
+				//ask for V2, then log in with a V2 frame
+				new DataOutputStream( loginData ).writeInt( 
+						ProtocolVersion.V2_MAGIC );
+				login.writeHeader( MessageHeader.LOGIN );
+			}
+			
+			//send the username and the server password
+			login.writeString( m_client.getUserName() );
+			login.writeString( m_client.getServerPassword() );
+			if( m_protocol == ProtocolVersion.V2 ){
+				//followed by the capabilities this client supports
+				login.writeLength( FrameCompression.DEFLATE 
+						| UserListSyncMessage.PAGED 
+						| UserListSyncMessage.PRESENCE 
+						| LargeFiles.CAPABILITY );
+			}
+			login.writeTo( loginData );
 			
-			//send server password size and the password
-			outData.writeInt( m_client.getServerPassword().length() );
-			outData.flush();
-			m_outStream.write( m_client.getServerPassword().getBytes() );
+			loginData.writeTo( m_outStream );
 			m_outStream.flush();
 		}
 		catch(IOException e){
@@ -0,0 +1,174 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import client.messages.FileTransDataMessage;
+import protocol.DirectTransfer;
+
+/**
+ * Thread meant to receive a file streamed straight from its sender,
+ * 	in a direct transfer brokered by the server.
+ *
+ * The thread listens on a port of its own, told to the sender through
+ * the server, and accepts a single connection. Once the sender presents
+ * the transfer's token, the file's data is written to the ticket's file
+ * as it arrives, and the sender is told once all of it is written. The
+ * transfer then ends through the server, as a relayed transfer does.
+ * @author Andrzej Brynczka
+ *
+ */
+public class DirectReceiver extends Thread{
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/**
+	 * The file information ticket for the file being received
+	 */
+	private FileTransferTicket m_fileTicketToReceive;
+
+	/**
+	 * Reference to the main client object
+	 */
+	private Client m_client;
+
+	/**
+	 * The socket listening for the sender's connection
+	 */
+	private ServerSocket m_listener;
+
+	/**
+	 * The sender's connection, once accepted
+	 */
+	private volatile Socket m_socket;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Constructs the DirectReceiver thread, listening on a free port
+	 * 	until it is run.
+	 *
+	 * @param a_ticket	FileTransferTicket, the ticket containing
+	 * 	information on the file to be received, and the transfer's token
+	 * @param a_client  Client, the reference to the main client
+	 * @throws IOException if no port can be listened on
+	 */
+	public DirectReceiver(FileTransferTicket a_ticket, Client a_client)
+			throws IOException{
+		super("DirectReceiver-" + a_ticket.getTransferID());
+		m_fileTicketToReceive = a_ticket;
+		m_client = a_client;
+		m_socket = null;
+
+		m_listener = new ServerSocket( 0 );
+		m_listener.setSoTimeout( DirectTransfer.ACCEPT_TIMEOUT );
+		setDaemon( true );
+	}
+
+	/**
+	 * Get the port listened on for the sender.
+	 *
+	 * @return int, the port
+	 */
+	public int getPort(){
+		return m_listener.getLocalPort();
+	}
+
+	/**
+	 * Stop listening for the sender, and end a transmission in progress.
+	 * 	Used once the file is relayed through the server instead, or the
+	 * 	transfer has ended.
+	 */
+	public void close(){
+		closeQuietly( m_listener );
+		Socket socket = m_socket;
+		if( socket != null ){
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//closing anyway
+			}
+		}
+	}
+
+	/**
+	 * Accept the sender's connection and write the file's data it sends.
+	 */
+	@Override
+	public void run() {
+		try {
+			//the token is good for a single connection only
+			m_socket = m_listener.accept();
+			closeQuietly( m_listener );
+			m_socket.setSoTimeout( DirectTransfer.CONNECT_TIMEOUT );
+
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream( m_socket.getInputStream() ) );
+			DataOutputStream out =
+					new DataOutputStream( m_socket.getOutputStream() );
+			if( !DirectTransfer.readHello( in,
+					m_fileTicketToReceive.getTransferID(),
+					m_fileTicketToReceive.getDirectToken() ) ){
+				System.out.println("Refused direct connection for "
+						+ m_fileTicketToReceive.getFileName());
+				return;
+			}
+			out.writeByte( DirectTransfer.OK );
+			out.flush();
+
+			//the data arrives in segments' worth, so the progress is kept
+			//as for a relayed file
+			m_socket.setSoTimeout( DirectTransfer.ACCEPT_TIMEOUT );
+			long fileSize = m_fileTicketToReceive.getFileSize();
+			m_fileTicketToReceive.setTotalDataSeg( (int) Math.ceil(
+					(double) fileSize / FileTransDataMessage.MAX_SEGMENT_SIZE ));
+
+			byte[] data = new byte[ FileTransDataMessage.MAX_SEGMENT_SIZE ];
+			long received = 0;
+			int segIndex = 1;
+			while( received < fileSize ){
+				int size = (int) Math.min( data.length, fileSize - received );
+				in.readFully( data, 0, size );
+				m_fileTicketToReceive.writeData( received, size, data );
+				m_fileTicketToReceive.setCurrentDataSegNum( segIndex );
+
+				received += size;
+				segIndex++;
+			}
+
+			//let the sender end the transfer once all of the file is written
+			out.writeByte( DirectTransfer.OK );
+			out.flush();
+			System.out.println("received " + m_fileTicketToReceive.getFileName()
+					+ " directly");
+		} catch (IOException e) {
+			//not connected to, or disconnected mid-file, which the sender
+			//answers by relaying the file or ending the transfer
+			System.out.println("Direct transfer of "
+					+ m_fileTicketToReceive.getFileName() + " ended: "
+					+ e.getMessage() );
+		} finally{
+			close();
+			m_client.removeDirectReceiver(
+					m_fileTicketToReceive.getTransferID() );
+		}
+	}
+
+	/**
+	 * Close the listening socket, ignoring errors.
+	 *
+	 * @param a_listener ServerSocket, the socket to close
+	 */
+	private static void closeQuietly(ServerSocket a_listener){
+		try {
+			a_listener.close();
+		} catch (IOException e) {
+			//closing anyway
+		}
+	}
+}
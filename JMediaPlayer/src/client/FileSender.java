@@ -1,25 +1,51 @@
 package client;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.List;
 
 import javafx.application.Platform;
 
 import client.messages.FileTransDataMessage;
 import client.messages.FileTransResponseMessage;
 import client.messages.FileTransferMessage.TransferStage;
-import client.messages.Message.MessageHeader;
-import client.messages.Message.MessageResponse;
+import protocol.DirectTransfer;
+import protocol.MessageHeader;
+import protocol.TransferCredits;
+import protocol.messages.Message.MessageResponse;
 
 /**
  * Thread meant to handle the process of sending a user's
  * 	chosen file data to the server.
  * 
  * The thread manages an individual file's transfer during its lifetime 
- * and interacts with the ClientWriter class to send the file.
+ * and interacts with the ClientWriter class to send the file, sending only
+ * as many segments as the receiver has granted credits for, or, if it does 
+ * not grant any, as the writer has room to queue. If the server
+ * brokered a direct transfer, the file is streamed straight to the receiver
+ * instead, and only relayed through the server if the receiver cannot be
+ * reached. A transfer resumed by the receiver sends only the segments it
+ * is missing.
  * @author Andrzej Brynczka
  *
  */
 public class FileSender extends Thread{
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/**
+	 * The most bytes handed from the file to the receiver's connection
+	 * at once, in a direct transfer, between checks of whether the 
+	 * transmission was ended
+	 */
+	private static final long DIRECT_CHUNK_SIZE = 
+			32L * FileTransDataMessage.MAX_SEGMENT_SIZE;
+	
 	// *********************************************************
 	// ******************** Class Variables ********************
 	// *********************************************************
@@ -43,7 +69,13 @@ public class FileSender extends Thread{
 	 * Indication of whether to end the file transmission,
 	 * used in the case of a user canceling a transfer.
 	 */
-	private boolean m_endTransmission;
+	private volatile boolean m_endTransmission;
+	
+	/**
+	 * The number of segments the receiver has granted credits for
+	 * and that have not been sent yet
+	 */
+	private int m_credits;
 	
 	// *********************************************************
 	// ******************** Constructors ***********************
@@ -64,6 +96,7 @@ public class FileSender extends Thread{
 		m_clientWriter = a_clientWriter;
 		m_client = a_client;
 		m_endTransmission = false;
+		m_credits = a_ticket.getCreditWindow();
 	}
 	
 	/**
@@ -74,6 +107,20 @@ public class FileSender extends Thread{
 		interrupt();
 	}
 	
+	/**
+	 * Let this FileSender thread send further segments, granted by
+	 * 	the receiver.
+	 * 
+	 * @param a_credits int, the number of segments granted
+	 */
+	public synchronized void grantCredits(int a_credits){
+		if( a_credits > 0 ){
+			m_credits = (int) Math.min( Integer.MAX_VALUE, 
+					(long) m_credits + a_credits );
+			notifyAll();
+		}
+	}
+	
 	/**
 	 * Transmit the provided file to the server with the aid of the
 	 * 	ClientWriter thread.
@@ -86,61 +133,77 @@ public class FileSender extends Thread{
 						((double)m_fileTicketToSend.getFileSize() 
 						/ FileTransDataMessage.MAX_SEGMENT_SIZE)) );
 
+		//stream the file straight to the receiver, if the server brokered it
+		boolean sentDirectly = false;
+		if( m_fileTicketToSend.getDirectToken() != null ){
+			try {
+				sentDirectly = sendDirectly();
+			} catch (IOException e) {
+				System.out.println("Failed to send file directly:" 
+						+ e.getMessage() );
+				m_endTransmission = true;
+			}
+		}
+
 		System.out.println("about to start sending segments, total: " 
 				+ m_fileTicketToSend.getTotalDataSeg());
 		 
 		//gather the data segments and send them to the clientwriter to 
-		//send to the server
+		//send to the server, only those missing if the receiver resumed
 		int bytesRead = 0;
-		int segIndex = 1;
-		while( m_endTransmission == false && 
-				segIndex <= m_fileTicketToSend.getTotalDataSeg() ){
+		List<int[]> ranges = m_fileTicketToSend.getSegmentsToSend();
+		for( int range = 0; sentDirectly == false && 
+				m_endTransmission == false && range < ranges.size(); range++ ){
+			int segIndex = Math.max( 1, ranges.get( range )[0] );
+			int lastSeg = Math.min( ranges.get( range )[1], 
+					m_fileTicketToSend.getTotalDataSeg() );
+			while( m_endTransmission == false && segIndex <= lastSeg ){
 			
-			try {
-				byte[] readData = 
-						new byte[ FileTransDataMessage.MAX_SEGMENT_SIZE ];
+				//hold the segment back until the receiver, or the writer, has
+				//room for it
+				if( !awaitRoom() ){
+					m_endTransmission = true;
+					break;
+				}
+			
+				try {
+					byte[] readData = 
+							new byte[ FileTransDataMessage.MAX_SEGMENT_SIZE ];
 				
-				//read the maximum amount of available bytes per segment
-				bytesRead = m_fileTicketToSend.readData( readData,
-						FileTransDataMessage.MAX_SEGMENT_SIZE );
+					//read the maximum amount of available bytes per segment,
+					//from the segment's offset
+					bytesRead = m_fileTicketToSend.readData( 
+							(long) ( segIndex - 1 ) 
+									* FileTransDataMessage.MAX_SEGMENT_SIZE, 
+							readData, FileTransDataMessage.MAX_SEGMENT_SIZE );
 				
-				//update the ticket to reflect the current segment being sent
-				m_fileTicketToSend.setCurrentDataSegNum( segIndex );
+					//update the ticket to reflect the current segment being 
+					//sent
+					m_fileTicketToSend.setCurrentDataSegNum( segIndex );
 
-				//create the data message and send the data
-				FileTransDataMessage ftdMsg = new FileTransDataMessage(
-						MessageHeader.FILE_Transfer, 
-						m_fileTicketToSend.getTransferID(), 
-						TransferStage.STAGE3_DataTransmission, 
-						m_fileTicketToSend.getSenderName(), 
-						m_fileTicketToSend.getReceiverName(), 
-						m_fileTicketToSend.getFileName(), 
-						segIndex, 
-						m_fileTicketToSend.getTotalDataSeg(), 
-						bytesRead, 
-						readData);
+					//create the data message and send the data
+					FileTransDataMessage ftdMsg = new FileTransDataMessage(
+							MessageHeader.FILE_Transfer, 
+							m_fileTicketToSend.getTransferID(), 
+							TransferStage.STAGE3_DataTransmission, 
+							m_fileTicketToSend.getSenderName(), 
+							m_fileTicketToSend.getReceiverName(), 
+							m_fileTicketToSend.getFileName(), 
+							segIndex, 
+							m_fileTicketToSend.getTotalDataSeg(), 
+							bytesRead, 
+							readData);
 			
-				m_clientWriter.addMessage( ftdMsg );
+					m_clientWriter.addMessage( ftdMsg );
 				
 				
-				//update the segment index
-				segIndex++;
-			} catch (Exception e) {
-				System.out.println("Failed to send file:" + e.getMessage() );
-				m_endTransmission = true;
-			}	
-			
-			if( ( segIndex % 50 == 0 ) || (segIndex % 75 == 0)){
-				//wait every so often to ensure that
-				//the data transmission messages don't clog the 
-				//socket used to transfer messages
-				try {
-					synchronized( this ){
-						wait(1000);//1 second
-					}
-				} catch (InterruptedException e) {
-					//continue...
-				}
+					//update the segment index
+					segIndex++;
+				} catch (Exception e) {
+					System.out.println("Failed to send file:" 
+							+ e.getMessage() );
+					m_endTransmission = true;
+				}	
 			}
 		}
 		
@@ -185,4 +248,109 @@ public class FileSender extends Thread{
 		}
 		
 	}
+	
+	/**
+	 * Wait until the next segment may be sent: until a credit is granted
+	 * 	for it, taking the credit, or, in a transfer without credits, until
+	 * 	the writer has fewer than a window of messages queued.
+	 * 
+	 * @return true if the segment may be sent, false if the transmission
+	 * 	was ended, or the receiver granted no credits in time
+	 */
+	private boolean awaitRoom(){
+		try {
+			if( m_fileTicketToSend.getCreditWindow() <= 0 ){
+				m_clientWriter.awaitQueueBelow( TransferCredits.WINDOW );
+				return true;
+			}
+			
+			synchronized( this ){
+				long deadline = System.currentTimeMillis() 
+						+ TransferCredits.CREDIT_TIMEOUT;
+				while( m_credits <= 0 ){
+					long remaining = deadline - System.currentTimeMillis();
+					if( remaining <= 0 ){
+						System.out.println("No credits granted for " 
+								+ m_fileTicketToSend.getFileName() );
+						return false;
+					}
+					wait( remaining );
+				}
+				m_credits--;
+				return true;
+			}
+		} catch (InterruptedException e) {
+			//the transmission was ended
+			return false;
+		}
+	}
+	
+	/**
+	 * Stream the file straight to the receiver, at the endpoint brokered
+	 * 	by the server, and wait for the receiver to have written all of it.
+	 * 	The file's data is handed from the file to the connection by
+	 * 	its channel, without being copied through this client.
+	 * 
+	 * @return true if the file was sent, false if the receiver could 
+	 * 	not be reached, so that the file is to be relayed through the server
+	 * @throws IOException if the connection fails once the file's data is
+	 * 	being sent, or the transmission is ended
+	 */
+	private boolean sendDirectly() throws IOException{
+		SocketChannel channel = SocketChannel.open();
+		Socket socket = channel.socket();
+		try {
+			DataInputStream in;
+			DataOutputStream out;
+			try {
+				socket.connect( new InetSocketAddress( 
+						m_fileTicketToSend.getDirectHost(), 
+						m_fileTicketToSend.getDirectPort() ), 
+						DirectTransfer.CONNECT_TIMEOUT );
+				socket.setSoTimeout( DirectTransfer.CONNECT_TIMEOUT );
+				
+				in = new DataInputStream( socket.getInputStream() );
+				out = new DataOutputStream( 
+						new BufferedOutputStream( socket.getOutputStream() ) );
+				DirectTransfer.writeHello( out, 
+						m_fileTicketToSend.getTransferID(), 
+						m_fileTicketToSend.getDirectToken() );
+				DirectTransfer.readOk( in );
+			} catch (IOException e) {
+				//nothing was read from the file yet, relay it instead
+				System.out.println("Unable to reach " 
+						+ m_fileTicketToSend.getReceiverName() 
+						+ " directly, relaying the file: " + e.getMessage() );
+				return false;
+			}
+			
+			long fileSize = m_fileTicketToSend.getFileSize();
+			long sent = 0;
+			while( sent < fileSize ){
+				if( m_endTransmission == true ){
+					throw new IOException("Transmission canceled");
+				}
+				
+				long bytesSent = m_fileTicketToSend.transferData( sent, 
+						Math.min( DIRECT_CHUNK_SIZE, fileSize - sent ), channel );
+				if( bytesSent <= 0 ){
+					throw new IOException("File ended early");
+				}
+				
+				//update the ticket to reflect the segments' worth sent
+				sent += bytesSent;
+				m_fileTicketToSend.setCurrentDataSegNum( (int) Math.ceil( 
+						(double) sent / FileTransDataMessage.MAX_SEGMENT_SIZE ));
+			}
+			
+			//the receiver answers once the whole file is written
+			socket.setSoTimeout( DirectTransfer.ACCEPT_TIMEOUT );
+			DirectTransfer.readOk( in );
+			System.out.println("sent " + m_fileTicketToSend.getFileName()
+					+ " directly");
+			return true;
+		} finally{
+			channel.close();
+		}
+	}
 }
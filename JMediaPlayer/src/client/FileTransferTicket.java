@@ -2,13 +2,16 @@ package client;
 
 
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.SimpleDoubleProperty;
@@ -16,6 +19,7 @@ import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 
 
+import client.messages.FileTransDataMessage;
 import client.messages.FileTransferMessage.TransferStage;
 
 /** Class used to store all information on an individual file transfer,
@@ -63,12 +67,12 @@ public class FileTransferTicket {
 	/**
 	 * The size of the file being transfered(in bytes)
 	 */
-	private int m_sizeOfFile;
+	private long m_sizeOfFile;
 	
 	/**
 	 * The number of bytes exchanged so far during the transmission
 	 */
-	private int m_bytesExchanged;
+	private long m_bytesExchanged;
 	
 	/**
 	 * The number of the file data segments transfered
@@ -86,10 +90,10 @@ public class FileTransferTicket {
 	 */
 	private String m_filePath;
 	/**
-	 * The inputstream to the file being sent 
+	 * The channel of the file being sent, read in order
 	 * (This variable is used only by the sender)
 	 */
-	private FileInputStream m_fileIn;
+	private FileChannel m_fileIn;
 	
 	//receiver only
 	/**
@@ -99,10 +103,69 @@ public class FileTransferTicket {
 	private File m_receivedFile;
 	
 	/**
-	 * The outputstream to the file being received
+	 * The channel of the file being received, written at the offset
+	 * of each segment
 	 * (This variable is used only by the receiver)
 	 */
-	private FileOutputStream m_fileOut;
+	private FileChannel m_fileOut;
+	
+	/**
+	 * The record of the segments written to the file being received,
+	 * kept for the transfer to be resumed
+	 * (This variable is used only by the receiver)
+	 */
+	private TransferCheckpoint m_checkpoint;
+	
+	/**
+	 * Indication of whether the sender is able to resume the transfer
+	 * (This variable is used only by the receiver)
+	 */
+	private boolean m_resumeOffered;
+	
+	/**
+	 * Indication of whether the receiver resumes the transfer, and the
+	 * segments it is missing are yet to arrive
+	 * (This variable is used only by the sender)
+	 */
+	private boolean m_awaitingResume;
+	
+	/**
+	 * The ranges of segments to send, each an array of its first and last
+	 * segment number, or null to send all of them
+	 * (This variable is used only by the sender)
+	 */
+	private List<int[]> m_segmentsToSend;
+	
+	/**
+	 * The one-time token of a direct transfer, streamed straight from the
+	 * sender to the receiver, or null if the file is relayed through the
+	 * server
+	 */
+	private byte[] m_directToken;
+	
+	/**
+	 * The receiver's address for a direct transfer
+	 * (This variable is used only by the sender)
+	 */
+	private String m_directHost;
+	
+	/**
+	 * The port the receiver listens on for a direct transfer
+	 * (This variable is used only by the sender)
+	 */
+	private int m_directPort;
+	
+	/**
+	 * The window of credits granted to the sender, or 0 if the 
+	 * transfer does not use credits
+	 */
+	private int m_creditWindow;
+	
+	/**
+	 * The number of segments written since credits were last granted
+	 * (This variable is used only by the receiver)
+	 */
+	private int m_creditsOwed;
 	
 	//gui based
 	/**
@@ -129,7 +192,7 @@ public class FileTransferTicket {
 	 * @param a_transferID  	int, the file's unique transfer id
 	 * @param a_currentStage    TransferStage, the file's stage in the transfer
 	 * @param a_fileName        String, the file's name
-	 * @param a_fileSize  		int, the file's size in bytes
+	 * @param a_fileSize  		long, the file's size in bytes
 	 * @param a_senderName		String, the sender's name
 	 * @param a_recieverName 	String, the receiver's name
 	 * @param a_receiving  		boolean, indication of whether or not this 
@@ -137,7 +200,7 @@ public class FileTransferTicket {
 	 * @author Andrzej Brynczka
 	 */
 	public FileTransferTicket(int a_transferID, TransferStage a_currentStage, 
-			String a_fileName, int a_fileSize, 
+			String a_fileName, long a_fileSize, 
 			String a_senderName, String a_recieverName, boolean a_receiving){
 		
 		m_sender = a_senderName;
@@ -157,6 +220,15 @@ public class FileTransferTicket {
 		m_receivedFile = null;
 		m_fileOut = null;
 		m_fileIn = null;
+		m_checkpoint = null;
+		m_resumeOffered = false;
+		m_awaitingResume = false;
+		m_segmentsToSend = null;
+		m_directToken = null;
+		m_directHost = null;
+		m_directPort = 0;
+		m_creditWindow = 0;
+		m_creditsOwed = 0;
 		
 		m_progress = new SimpleDoubleProperty(0);
 		m_status = new SimpleStringProperty("");
@@ -221,18 +293,18 @@ public class FileTransferTicket {
 	
 	/**
 	 * Get the transmitted file's size
-	 * @return int, containing the size in bytes
+	 * @return long, containing the size in bytes
 	 */
-	public int getFileSize(){
+	public long getFileSize(){
 		return m_sizeOfFile;
 	}
 	
 	/**
 	 * Get the number of bytes currently exchanged during the transmission
 	 * 
-	 * @return int, containing the number of bytes
+	 * @return long, containing the number of bytes
 	 */
-	public int getNumOfBytesExchanged(){
+	public long getNumOfBytesExchanged(){
 		return m_bytesExchanged;
 	}
 	
@@ -267,6 +339,109 @@ public class FileTransferTicket {
 		
 	}
 	
+	/**
+	 * Get the token of the direct transfer brokered by the server.
+	 * 
+	 * @return byte[], the token, or null if the file is relayed
+	 * 	through the server
+	 */
+	public byte[] getDirectToken(){
+		return m_directToken;
+	}
+	
+	/**
+	 * Get the receiver's address for a direct transfer.
+	 * 
+	 * @return String, the address, or null if the file is relayed
+	 * 	through the server
+	 */
+	public String getDirectHost(){
+		return m_directHost;
+	}
+	
+	/**
+	 * Get the port the receiver listens on for a direct transfer.
+	 * 
+	 * @return int, the port, or 0 if the file is relayed through
+	 * 	the server
+	 */
+	public int getDirectPort(){
+		return m_directPort;
+	}
+	
+	/**
+	 * Get the window of credits granted to the sender.
+	 * 
+	 * @return int, the number of data segments the sender may send 
+	 * 	before it is granted more, or 0 if the transfer does not use 
+	 * 	credits
+	 */
+	public int getCreditWindow(){
+		return m_creditWindow;
+	}
+	
+	/**
+	 * Check whether the sender is able to resume the transfer
+	 * 
+	 * @return boolean, true if the sender may be asked for only the 
+	 * 	segments missing
+	 */
+	public boolean isResumeOffered(){
+		return m_resumeOffered;
+	}
+	
+	/**
+	 * Check whether the file being received was partly received before,
+	 * 	so that its transfer may be resumed
+	 * 
+	 * @return boolean, true if some of its segments are already written
+	 */
+	public boolean hasCheckpointedData(){
+		return m_checkpoint != null && m_checkpoint.getWrittenCount() > 0;
+	}
+	
+	/**
+	 * Get the ranges of segments the file being received is still missing
+	 * 
+	 * @return List, the ranges, each an array of its first and last
+	 * 	segment number, or an empty list if the file has no record of its
+	 * 	segments
+	 */
+	public List<int[]> getMissingSegments(){
+		if( m_checkpoint == null ){
+			return new ArrayList<int[]>();
+		}
+		return m_checkpoint.getMissingRanges();
+	}
+	
+	/**
+	 * Check whether the segments the receiver is missing are yet to arrive
+	 * 
+	 * @return boolean, true if the file's data is not to be sent yet
+	 */
+	public boolean isAwaitingResume(){
+		return m_awaitingResume;
+	}
+	
+	/**
+	 * Get the ranges of segments to send
+	 * 
+	 * @return List, the ranges, each an array of its first and last
+	 * 	segment number, all of the file's segments unless the receiver 
+	 * 	resumed the transfer
+	 */
+	public List<int[]> getSegmentsToSend(){
+		if( m_segmentsToSend != null ){
+			return m_segmentsToSend;
+		}
+		
+		List<int[]> all = new ArrayList<int[]>();
+		if( m_totalDataSegments > 0 ){
+			all.add( new int[]{ 1, m_totalDataSegments } );
+		}
+		return all;
+	}
+	
 	/**
 	 * Get the current TransferStage status for the transmission
 	 * 
@@ -397,6 +572,91 @@ public class FileTransferTicket {
 		return true;
 	}
 	
+	/**
+	 * Set the token of a direct transfer offered to the receiver
+	 * 
+	 * @param a_token byte[], the token, or null to have the file
+	 * 	relayed through the server
+	 */
+	public void setDirectToken(byte[] a_token){
+		m_directToken = a_token;
+	}
+	
+	/**
+	 * Set where the sender streams the file in a direct transfer
+	 * 
+	 * @param a_host String, the receiver's address
+	 * @param a_port int, the port the receiver listens on
+	 * @param a_token byte[], the transfer's token
+	 */
+	public void setDirectEndpoint(String a_host, int a_port, byte[] a_token){
+		m_directHost = a_host;
+		m_directPort = a_port;
+		m_directToken = a_token;
+	}
+	
+	/**
+	 * Set the window of credits granted to the sender
+	 * 
+	 * @param a_window int, the number of data segments the sender
+	 * 	may send before it is granted more, or 0 for none
+	 */
+	public void setCreditWindow(int a_window){
+		m_creditWindow = Math.max( 0, a_window );
+	}
+	
+	/**
+	 * Set whether the sender is able to resume the transfer
+	 * 
+	 * @param a_offered boolean, true if the sender may be asked for only
+	 * 	the segments missing
+	 */
+	public void setResumeOffered(boolean a_offered){
+		m_resumeOffered = a_offered;
+	}
+	
+	/**
+	 * Set whether the segments the receiver is missing are yet to arrive
+	 * 
+	 * @param a_awaiting boolean, true to hold the file's data back
+	 */
+	public void setAwaitingResume(boolean a_awaiting){
+		m_awaitingResume = a_awaiting;
+	}
+	
+	/**
+	 * Set the ranges of segments to send, as asked for by a receiver
+	 * 	resuming the transfer
+	 * 
+	 * @param a_ranges List, the ranges, each an array of its first and
+	 * 	last segment number
+	 */
+	public void setSegmentsToSend(List<int[]> a_ranges){
+		m_segmentsToSend = a_ranges;
+	}
+	
+	/**
+	 * Count a data segment written by the receiver, for the credits
+	 * 	to grant the sender back, half a window at a time.
+	 * 
+	 * @return int, the number of credits to grant now, or 0 if none
+	 * 	are due yet or the transfer does not use credits
+	 */
+	public int countWrittenSegment(){
+		if( m_creditWindow <= 0 ){
+			return 0;
+		}
+		
+		m_creditsOwed++;
+		if( m_creditsOwed < Math.max( 1, m_creditWindow / 2 ) ){
+			return 0;
+		}
+		
+		int credits = m_creditsOwed;
+		m_creditsOwed = 0;
+		return credits;
+	}
+	
 	/**
 	 * Set the transmission's progress property
 	 * 
@@ -432,12 +692,15 @@ public class FileTransferTicket {
 	 * Make sure that the filepath is set in this ticket
 	 * beforehand.
 	 * <p>
-	 * This function also creates a FileOutputStream to the
+	 * This function also opens a FileChannel to the
 	 * 	newly created file, allowing for the file to be written
-	 * 	to using {@link FileTransferTicket#writeData(int, byte[])}
+	 * 	to using {@link FileTransferTicket#writeData(long, int, byte[])}, 
+	 * 	and records the segments written next to it. A file partly 
+	 * 	received before from the same sender, with the same size, is
+	 * 	opened as it is, for its transfer to be resumed.
 	 * 
-	 * @return true if the new file was made, false if a "new" file
-	 * 	already exists
+	 * @return true if the new file was made or the partial file opened, 
+	 * 	false if a "new" file already exists
 	 * @throws IOException if an error occured when attempting
 	 * 	to create the new file
 	 */
@@ -448,30 +711,45 @@ public class FileTransferTicket {
 		}
 		
 		m_receivedFile = new File( m_filePath + "/" + m_fileName);
+		int totalSegments = (int) ( ( m_sizeOfFile 
+				+ FileTransDataMessage.MAX_SEGMENT_SIZE - 1 ) 
+				/ FileTransDataMessage.MAX_SEGMENT_SIZE );
 		
-		if( m_receivedFile.createNewFile() == false ){
-			//file already exists at this path
-			return false;
+		//continue a partial file from where its transfer was cut short
+		m_checkpoint = TransferCheckpoint.open( m_receivedFile, m_sender, 
+				m_sizeOfFile, totalSegments );
+		if( m_checkpoint == null ){
+			if( m_receivedFile.createNewFile() == false ){
+				//file already exists at this path
+				return false;
+			}
+			m_checkpoint = TransferCheckpoint.create( m_receivedFile, 
+					m_sender, m_sizeOfFile, totalSegments );
 		}
 		
-		m_fileOut = new FileOutputStream( m_receivedFile );
+		m_fileOut = new RandomAccessFile( m_receivedFile, "rw" ).getChannel();
 		return true;
 	}
 	
 	/**
-	 * Write the given data to the file that is being received(Create the
-	 * file first using {@link FileTransferTicket#createNewFile()}.
+	 * Write the given data to the file that is being received, at the
+	 * 	given offset(Create the file first using 
+	 * 	{@link FileTransferTicket#createNewFile()}.
 	 * 
+	 * @param a_offset long, the position in the file of the data's
+	 * 	first byte
 	 * @param a_numOfBytes int, the number of bytes to write
 	 * @param a_fileData byte[], the data to write
 	 * @return boolean, false if the file was not yet created
-	 * (and therefore its output stream not yet open) or if the
-	 * 	number of bytes to write is less than 0, true otherwise
+	 * (and therefore its channel not yet open), if the
+	 * 	number of bytes to write is less than 0 or if the data
+	 * 	does not fit in the file's size, true otherwise
 	 * @throws IOException if an error occurs while writing to the file
 	 */
-	public boolean writeData(int a_numOfBytes, byte[] a_fileData) 
-			throws IOException{
-		if( m_fileOut == null ){
+	public boolean writeData(long a_offset, int a_numOfBytes, 
+			byte[] a_fileData) throws IOException{
+		if( m_fileOut == null || a_offset < 0 || 
+				a_offset + a_numOfBytes > m_sizeOfFile ){
 			return false;
 		}
 		
@@ -480,28 +758,54 @@ public class FileTransferTicket {
 			return false;
 		}
 		
-		BufferedOutputStream buffOut = new BufferedOutputStream( m_fileOut );	
-		buffOut.write( a_fileData, 0, a_numOfBytes);
-		buffOut.flush();
+		ByteBuffer buffer = ByteBuffer.wrap( a_fileData, 0, a_numOfBytes );
+		long position = a_offset;
+		while( buffer.hasRemaining() ){
+			position += m_fileOut.write( buffer, position );
+		}
+		
+		//record the segment once written, for the transfer to be resumed
+		if( m_checkpoint != null && 
+				a_offset % FileTransDataMessage.MAX_SEGMENT_SIZE == 0 ){
+			m_checkpoint.markWritten( (int) ( a_offset 
+					/ FileTransDataMessage.MAX_SEGMENT_SIZE ) + 1 );
+		}
 		
 		return true;
 	}
 	
 	/**
-	 * Close the FileOutputStream held by this ticket.
-	 * @return true if the OutputStream was closed, false if the
-	 * 	ticket did not have an OutputStream open
+	 * Close the FileChannel written to by this ticket.
+	 * @return true if the channel was closed, false if the
+	 * 	ticket did not have a channel open for writing
 	 * @throws IOException if an error occurs attempting to close
-	 * 	the ticket's OutputStream
+	 * 	the ticket's channel
 	 */
 	public boolean closeFileWriteStream() throws IOException{
 		if( m_fileOut == null){
 			return false;
 		}
 		m_fileOut.close();
+		if( m_checkpoint != null ){
+			m_checkpoint.close();
+		}
 		return true;
 	}
 	
+	/**
+	 * Delete the record of the segments written, once the whole file
+	 * 	has been received
+	 * 
+	 * @return true if the record was deleted, false if there was none
+	 */
+	public boolean deleteCheckpoint(){
+		if( m_checkpoint == null ){
+			return false;
+		}
+		
+		return m_checkpoint.delete();
+	}
+	
 	/**
 	 * Delete the file written to when receiving data during the
 	 * 	transmission.(Use this if a transmission gets canceled, to ensure
@@ -515,6 +819,7 @@ public class FileTransferTicket {
 		}
 		
 		m_receivedFile.delete();
+		deleteCheckpoint();
 		return true;
 	}
 	
@@ -522,11 +827,12 @@ public class FileTransferTicket {
 	 * Open the file that is to be sent through the file transfer.
 	 * 
 	 * <p>
-	 * 	This function also sets a FileInputStream to the opened file,
+	 * 	This function also opens a FileChannel to the opened file,
 	 * 	allowing for the file's data to be read with 
-	 * 	{@link FileTransferTicket#readData(byte[], int)}
+	 * 	{@link FileTransferTicket#readData(long, byte[], int)} or sent with
+	 * 	{@link FileTransferTicket#transferData(long, long, WritableByteChannel)}
 	 * 
-	 * @return true if the file is opened and the FileInputStream connected,
+	 * @return true if the file is opened and the FileChannel connected,
 	 * 	false otherwise
 	 * @throws FileNotFoundException
 	 */
@@ -537,7 +843,7 @@ public class FileTransferTicket {
 			return false;
 		}
 		File fileToRead = new File( m_filePath );
-		m_fileIn = new FileInputStream( fileToRead );
+		m_fileIn = new FileInputStream( fileToRead ).getChannel();
 		return true;
 	}
 	
@@ -559,8 +865,11 @@ public class FileTransferTicket {
 	}
 	/**
 	 * Read a given number of bytes of data from the current file
-	 * to be transfered (Open it first using <code>openFileToRead()</code>).
+	 * to be transfered, from the given offset (Open it first using 
+	 * <code>openFileToRead()</code>).
 	 * 
+	 * @param a_offset long, the position in the file of the first
+	 * 	byte to read
 	 * @param a_OutDataContainer byte[], the byte array into which
 	 * 	the read data will be written to
 	 * @param a_bytesToRead int, the number of bytes to read
@@ -568,8 +877,8 @@ public class FileTransferTicket {
 	 * @return int, the number of bytes read
 	 * @throws IOException if an error occurs while reading from the file
 	 */
-	public int readData(byte[] a_OutDataContainer, int a_bytesToRead) 
-			throws IOException{
+	public int readData(long a_offset, byte[] a_OutDataContainer, 
+			int a_bytesToRead) throws IOException{
 		//Number of bytes to read must be positive and the client
 		//should not be reading from the file that it is receiving
 		if( a_bytesToRead <= 0 || m_receiving == true){
@@ -580,20 +889,50 @@ public class FileTransferTicket {
 			return 0;
 		}
 		
-		int bytesRead = 0;
-		//bytesRead = m_fileIn.read( a_dataContainer, 0, a_bytesToRead );
-		BufferedInputStream ff = new BufferedInputStream( m_fileIn );
-		bytesRead = ff.read( a_OutDataContainer, 0, a_bytesToRead);
+		//fill the segment, unless the file ends first
+		ByteBuffer buffer = ByteBuffer.wrap( a_OutDataContainer, 0, 
+				a_bytesToRead );
+		while( buffer.hasRemaining() ){
+			if( m_fileIn.read( buffer, a_offset + buffer.position() ) < 0 ){
+				break;
+			}
+		}
+		
+		return buffer.position();
+	}
+	
+	/**
+	 * Send part of the current file to be transfered straight to the
+	 * 	given channel, without copying it through this client, where
+	 * 	the platform allows it (Open it first using 
+	 * 	<code>openFileToRead()</code>).
+	 * 
+	 * @param a_offset long, the position in the file of the first
+	 * 	byte to send
+	 * @param a_count long, the largest number of bytes to send
+	 * @param a_target WritableByteChannel, the channel to send to
+	 * @return long, the number of bytes sent, possibly fewer than
+	 * 	asked for, or 0 if none could be
+	 * @throws IOException if an error occurs while reading from the file
+	 * 	or writing to the channel
+	 */
+	public long transferData(long a_offset, long a_count, 
+			WritableByteChannel a_target) throws IOException{
+		if( a_count <= 0 || m_receiving == true || m_fileIn == null ){
+			return 0;
+		}
 		
-		return bytesRead;
+		long sent = m_fileIn.transferTo( a_offset, a_count, a_target );
+		m_bytesExchanged += sent;
+		return sent;
 	}
 	
 	/**
-	 * Close the FileInputStream to the file being sent in
+	 * Close the FileChannel to the file being sent in
 	 * 	the transfer
 	 * 
-	 * @return true if the FileInputStream held by the ticket was closed,
-	 * 	false if the this ticket had no InpuStream to close
+	 * @return true if the FileChannel held by the ticket was closed,
+	 * 	false if the this ticket had no channel to close
 	 * @throws IOException
 	 */
 	public boolean closeFileReadStream() throws IOException{
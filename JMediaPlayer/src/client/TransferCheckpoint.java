@@ -0,0 +1,311 @@
+package client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import protocol.TransferResume;
+
+/**
+ * Record of the data segments written of a file being received, kept in a
+ * file next to the partial file so that its transfer can be resumed after
+ * it is cut short.
+ * <p>
+ * The record starts with the file's sender, size and number of segments,
+ * followed by a bitmap of the segments, one bit each. A segment's bit is
+ * written as soon as the segment is written to the file, so the record
+ * holds across dropped connections and restarts of the client, though not
+ * across a crash of the machine before the system writes them out.
+ * @author Andrzej Brynczka
+ * @see TransferResume
+ *
+ */
+public class TransferCheckpoint {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Extension of the record's file, added to the partial file's name */
+	public static final String EXTENSION = ".resume";
+
+	/** Marker starting every record, "JMRS" */
+	private static final int MAGIC = 0x4A4D5253;
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The record's file */
+	private final File m_file;
+
+	/** The channel the record's bits are written through */
+	private final FileChannel m_channel;
+
+	/** The size of the record's fields before its bitmap, in bytes */
+	private final int m_headerSize;
+
+	/** The number of segments of the file */
+	private final int m_totalSegments;
+
+	/** The bitmap of the segments written, segment 1 in the lowest bit */
+	private final byte[] m_bitmap;
+
+	/** The number of segments written */
+	private int m_written;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Open a record kept in the given file.
+	 *
+	 * @param a_file File, the record's file
+	 * @param a_headerSize int, the size of the record's fields before
+	 * 	its bitmap
+	 * @param a_totalSegments int, the number of segments of the file
+	 * @param a_bitmap byte[], the bitmap of the segments written
+	 * @throws IOException if the record's file cannot be opened
+	 */
+	private TransferCheckpoint(File a_file, int a_headerSize,
+			int a_totalSegments, byte[] a_bitmap) throws IOException{
+		m_file = a_file;
+		m_headerSize = a_headerSize;
+		m_totalSegments = a_totalSegments;
+		m_bitmap = a_bitmap;
+		m_written = 0;
+		for( int i = 1; i <= m_totalSegments; i++ ){
+			if( isWritten( i ) ){
+				m_written++;
+			}
+		}
+		m_channel = new RandomAccessFile( m_file, "rw" ).getChannel();
+	}
+
+	/**
+	 * Create a new, empty record for the given partial file, replacing any
+	 * 	record already kept for it.
+	 *
+	 * @param a_partialFile File, the file being received
+	 * @param a_sender String, the name of the file's sender
+	 * @param a_fileSize long, the file's size, in bytes
+	 * @param a_totalSegments int, the number of segments of the file
+	 * @return TransferCheckpoint, the new record
+	 * @throws IOException if the record cannot be written
+	 */
+	public static TransferCheckpoint create(File a_partialFile,
+			String a_sender, long a_fileSize, int a_totalSegments)
+					throws IOException{
+		byte[] header = writeHeader( a_sender, a_fileSize, a_totalSegments );
+		byte[] bitmap = new byte[ ( a_totalSegments + 7 ) / 8 ];
+
+		File file = getFile( a_partialFile );
+		RandomAccessFile out = new RandomAccessFile( file, "rw" );
+		try {
+			out.setLength( 0 );
+			out.write( header );
+			out.write( bitmap );
+		} finally{
+			out.close();
+		}
+
+		return new TransferCheckpoint( file, header.length,
+				a_totalSegments, bitmap );
+	}
+
+	/**
+	 * Open the record kept for the given partial file, if it was received
+	 * 	from the same sender with the same size.
+	 *
+	 * @param a_partialFile File, the file being received
+	 * @param a_sender String, the name of the file's sender
+	 * @param a_fileSize long, the file's size, in bytes
+	 * @param a_totalSegments int, the number of segments of the file
+	 * @return TransferCheckpoint, the record, or null if the partial file
+	 * 	has no such record
+	 */
+	public static TransferCheckpoint open(File a_partialFile,
+			String a_sender, long a_fileSize, int a_totalSegments){
+		File file = getFile( a_partialFile );
+		if( !a_partialFile.isFile() || !file.isFile()
+				|| a_partialFile.length() > a_fileSize ){
+			return null;
+		}
+
+		try {
+			byte[] header =
+					writeHeader( a_sender, a_fileSize, a_totalSegments );
+			byte[] bitmap = new byte[ ( a_totalSegments + 7 ) / 8 ];
+
+			DataInputStream in =
+					new DataInputStream( new FileInputStream( file ) );
+			try {
+				//the record must be for the same file, with all of its bits
+				byte[] kept = new byte[ header.length ];
+				in.readFully( kept );
+				if( !Arrays.equals( kept, header ) ){
+					return null;
+				}
+				in.readFully( bitmap );
+			} finally{
+				in.close();
+			}
+
+			return new TransferCheckpoint( file, header.length,
+					a_totalSegments, bitmap );
+		} catch (IOException e) {
+			//an unreadable record is as good as none
+			return null;
+		}
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Check whether the given segment was written.
+	 *
+	 * @param a_segment int, the segment's number, from 1
+	 * @return boolean, true if the segment was written
+	 */
+	public synchronized boolean isWritten(int a_segment){
+		if( a_segment < 1 || a_segment > m_totalSegments ){
+			return false;
+		}
+
+		int index = a_segment - 1;
+		return ( m_bitmap[ index / 8 ] & ( 1 << ( index % 8 ) ) ) != 0;
+	}
+
+	/**
+	 * Get the number of segments written.
+	 *
+	 * @return int, the number of segments
+	 */
+	public synchronized int getWrittenCount(){
+		return m_written;
+	}
+
+	/**
+	 * Get the ranges of segments not yet written, at most
+	 * 	<code>MAX_RANGES</code> of them, the last of which runs to the
+	 * 	file's last segment if more are missing.
+	 *
+	 * @return List, the ranges, each an array of its first and last
+	 * 	segment number
+	 */
+	public synchronized List<int[]> getMissingRanges(){
+		List<int[]> ranges = new ArrayList<int[]>();
+		int segment = 1;
+		while( segment <= m_totalSegments ){
+			if( isWritten( segment ) ){
+				segment++;
+				continue;
+			}
+
+			//the last range allowed covers the rest of the file
+			if( ranges.size() == TransferResume.MAX_RANGES - 1 ){
+				ranges.add( new int[]{ segment, m_totalSegments } );
+				break;
+			}
+
+			int first = segment;
+			while( segment <= m_totalSegments && !isWritten( segment ) ){
+				segment++;
+			}
+			ranges.add( new int[]{ first, segment - 1 } );
+		}
+
+		return ranges;
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Record the given segment as written, once it is written to the
+	 * 	file.
+	 *
+	 * @param a_segment int, the segment's number, from 1
+	 * @throws IOException if the record cannot be written
+	 */
+	public synchronized void markWritten(int a_segment) throws IOException{
+		if( a_segment < 1 || a_segment > m_totalSegments
+				|| isWritten( a_segment ) ){
+			return;
+		}
+
+		int index = a_segment - 1;
+		m_bitmap[ index / 8 ] |= 1 << ( index % 8 );
+		m_written++;
+
+		//only the segment's byte of the bitmap is written again
+		ByteBuffer changed = ByteBuffer.wrap( m_bitmap, index / 8, 1 );
+		m_channel.write( changed, m_headerSize + index / 8 );
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Close the record's file, keeping it for the transfer to be resumed.
+	 *
+	 * @throws IOException if an error occurs when closing the file
+	 */
+	public synchronized void close() throws IOException{
+		m_channel.close();
+	}
+
+	/**
+	 * Close and delete the record's file, once the transfer is complete
+	 * 	or its partial file deleted.
+	 *
+	 * @return boolean, true if the record's file was deleted
+	 */
+	public synchronized boolean delete(){
+		try {
+			m_channel.close();
+		} catch (IOException e) {
+			System.out.println("Error closing checkpoint " + m_file
+					+ ": " + e.getMessage() );
+		}
+		return m_file.delete();
+	}
+
+	/**
+	 * Get the file of the record kept for the given partial file.
+	 *
+	 * @param a_partialFile File, the file being received
+	 * @return File, the record's file, next to the partial file
+	 */
+	private static File getFile(File a_partialFile){
+		return new File( a_partialFile.getPath() + EXTENSION );
+	}
+
+	/**
+	 * Write the record's fields that come before its bitmap.
+	 *
+	 * @param a_sender String, the name of the file's sender
+	 * @param a_fileSize long, the file's size, in bytes
+	 * @param a_totalSegments int, the number of segments of the file
+	 * @return byte[], the fields' bytes
+	 * @throws IOException if the fields cannot be written
+	 */
+	private static byte[] writeHeader(String a_sender, long a_fileSize,
+			int a_totalSegments) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		out.writeInt( MAGIC );
+		out.writeLong( a_fileSize );
+		out.writeInt( a_totalSegments );
+		out.writeUTF( a_sender );
+		out.flush();
+		return bytes.toByteArray();
+	}
+}
@@ -1,6 +1,6 @@
 package client;
 
-import client.messages.Message.MessageResponse;
+import protocol.messages.Message.MessageResponse;
 import javafx.beans.property.SimpleObjectProperty;
 
 /**
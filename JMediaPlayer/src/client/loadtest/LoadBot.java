@@ -0,0 +1,820 @@
+package client.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import client.loadtest.LoadStats.Action;
+import client.messages.AdminLoginMessage;
+import client.messages.AdminPunishListMessage;
+import client.messages.FileTransDataMessage;
+import client.messages.FileTransRequestMessage;
+import client.messages.FileTransResponseMessage;
+import client.messages.FileTransferMessage.TransferStage;
+import client.messages.LoginMessage.LoginCondition;
+import client.messages.UserListSyncMessage;
+import protocol.DirectTransfer;
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.ProtocolVersion;
+import protocol.messages.ChatMessage;
+import protocol.messages.Message;
+import protocol.messages.Message.MessageResponse;
+import protocol.messages.PrivateChatMessage;
+
+/**
+ * A headless client logged into the server by a <code>LoadTest</code>.
+ * <p>
+ * The bot speaks the V2 protocol, and sends its messages with the same
+ * <code>client.messages</code> classes as the regular client. Its sending
+ * thread takes actions at random intervals averaging the configured rate,
+ * choosing each action by the configured mix, while its reading thread
+ * answers file transfers and records the completion of every action it
+ * sees in the shared <code>LoadStats</code>.
+ * <p>
+ * Every chat and private message carries the time it was sent and the name
+ * of the bot that records its arrival, and every file's name the time its
+ * transfer was requested, so the latencies measured span the whole trip
+ * through the server. As all bots run in the same process, their clocks
+ * agree.
+ * <p>
+ * Bots asking for direct transfers stream their files straight to the
+ * receiving bots, on threads of their own, when the server brokers it, and
+ * relay them through the server when the receiver cannot be reached.
+ *
+ * @author Andrzej Brynczka
+ */
+public class LoadBot {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Start of the text of the bots' chat and private messages */
+	private static final String TEXT_PREFIX = "lt ";
+
+	/** Start of the names of the bots' files */
+	private static final String FILE_PREFIX = "load-";
+
+	/** The data of every segment of the bots' files */
+	private static final byte[] FILE_DATA =
+			new byte[ FileTransDataMessage.MAX_SEGMENT_SIZE ];
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The name the bot logged in with */
+	private final String m_userName;
+
+	/** The names of every bot of the test, this one included */
+	private final String[] m_botNames;
+
+	/** The counters shared by every bot */
+	private final LoadStats m_stats;
+
+	/** The connection to the server */
+	private final Socket m_socket;
+
+	/** The stream of the server's frames */
+	private final DataInputStream m_in;
+
+	/** The stream of the bot's frames, written by the sending thread */
+	private final OutputStream m_out;
+
+	/** Answers and file data waiting for the sending thread */
+	private final LinkedBlockingQueue<Message> m_outgoing;
+
+	/** Send times of the admin requests awaiting their answers, in order */
+	private final ConcurrentLinkedQueue<Long> m_adminRequests;
+
+	/** The thread taking the bot's actions */
+	private final Thread m_sender;
+
+	/** The thread reading the server's frames */
+	private final Thread m_reader;
+
+	/** Actions taken per second, on average */
+	private final double m_rate;
+
+	/** Weights of the actions, by <code>Action</code> ordinal */
+	private final int[] m_mix;
+
+	/** Size, in bytes, of the files sent */
+	private final int m_fileSize;
+
+	/** Set if the bot asks for its files to be streamed to their receivers */
+	private final boolean m_direct;
+
+	/** Set once the server accepted the bot's admin password */
+	private volatile boolean m_admin;
+
+	/** Cleared once the bot is to stop taking actions */
+	private volatile boolean m_running;
+
+	/** Set once the bot is being closed, so the closing is not an error */
+	private volatile boolean m_closing;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Connect a bot to the server and log it in.
+	 *
+	 * @param a_host <code>String</code>, the server's host
+	 * @param a_port <code>int</code>, the server's port
+	 * @param a_index <code>int</code>, the bot's index within
+	 * 	<code>a_botNames</code>
+	 * @param a_botNames <code>String[]</code>, the names of every bot
+	 * @param a_serverPass <code>String</code>, the server's password
+	 * @param a_rate <code>double</code>, actions taken per second
+	 * @param a_mix <code>int[]</code>, weights of the actions, by
+	 * 	<code>Action</code> ordinal
+	 * @param a_fileSize <code>int</code>, size, in bytes, of the files sent
+	 * @param a_direct <code>boolean</code>, <code>true</code> to ask for the
+	 * 	files to be streamed straight to their receivers
+	 * @param a_stats <code>LoadStats</code>, the counters shared by every bot
+	 * @throws IOException if the connection fails or the login is refused
+	 */
+	public LoadBot(String a_host, int a_port, int a_index, String[] a_botNames,
+			String a_serverPass, double a_rate, int[] a_mix, int a_fileSize,
+			boolean a_direct, LoadStats a_stats) throws IOException{
+		m_userName = a_botNames[ a_index ];
+		m_botNames = a_botNames;
+		m_stats = a_stats;
+		m_rate = a_rate;
+		m_mix = a_mix;
+		m_fileSize = a_fileSize;
+		m_direct = a_direct;
+		m_outgoing = new LinkedBlockingQueue<Message>();
+		m_adminRequests = new ConcurrentLinkedQueue<Long>();
+		m_admin = false;
+		m_running = true;
+		m_closing = false;
+
+		m_socket = new Socket( a_host, a_port );
+		m_socket.setTcpNoDelay( true );
+		m_in = new DataInputStream(
+				new BufferedInputStream( m_socket.getInputStream() ) );
+		m_out = new BufferedOutputStream( m_socket.getOutputStream() );
+
+		login( a_serverPass );
+
+		m_sender = new Thread( "LoadBot-" + m_userName ){
+			@Override
+			public void run(){
+				sendActions();
+			}
+		};
+		m_reader = new Thread( "LoadBotReader-" + m_userName ){
+			@Override
+			public void run(){
+				readFrames();
+			}
+		};
+		m_sender.setDaemon( true );
+		m_reader.setDaemon( true );
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the name the bot logged in with.
+	 * @return <code>String</code>, the username
+	 */
+	public String getUserName(){
+		return m_userName;
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Start reading the server's frames and taking actions, logging in as
+	 * an admin first if a password is given.
+	 * @param a_adminPass <code>String</code>, the admin password, or
+	 * 	<code>null</code> to take no admin actions
+	 */
+	public void start(String a_adminPass){
+		m_reader.start();
+		if( a_adminPass != null ){
+			m_outgoing.offer( new AdminLoginMessage( MessageHeader.ADMIN_Login,
+					a_adminPass ) );
+		}
+		m_sender.start();
+	}
+
+	/**
+	 * Stop taking actions, while still reading and answering the server.
+	 */
+	public void stop(){
+		m_running = false;
+		m_sender.interrupt();
+	}
+
+	/**
+	 * Close the bot's connection.
+	 */
+	public void close(){
+		m_closing = true;
+		stop();
+		try {
+			m_socket.close();
+		} catch (IOException e) {
+			//closing anyway
+		}
+	}
+
+	/**
+	 * Log in with a V2 frame, and wait for the server's answer.
+	 * @param a_serverPass <code>String</code>, the server's password
+	 * @throws IOException if the connection fails or the login is refused
+	 */
+	private void login(String a_serverPass) throws IOException{
+		ByteArrayOutputStream loginData = new ByteArrayOutputStream();
+		new DataOutputStream( loginData ).writeInt( ProtocolVersion.V2_MAGIC );
+
+		//ask for the user list in pages, which the bots never do, and for
+		//presence in batches, so logins stay cheap
+		MessageWriter login = new MessageWriter( ProtocolVersion.V2 );
+		login.writeHeader( MessageHeader.LOGIN );
+		login.writeString( m_userName );
+		login.writeString( a_serverPass );
+		login.writeLength( UserListSyncMessage.PAGED
+				| UserListSyncMessage.PRESENCE );
+		login.writeTo( loginData );
+		loginData.writeTo( m_out );
+		m_out.flush();
+
+		InputStream frame = readFrame();
+		byte type = (byte) frame.read();
+		byte condition = (byte) frame.read();
+		if( type != MessageHeader.LOGIN.getTypeCode()
+				|| ( condition != LoginCondition.SUCCESS.getCode()
+				&& condition != LoginCondition.SUCCESS_Muted.getCode() ) ){
+			throw new IOException("Login of " + m_userName
+					+ " refused with condition " + condition);
+		}
+	}
+
+	/**
+	 * Take actions at random intervals until stopped, sending the answers
+	 * and file data queued by the reading thread in between.
+	 */
+	private void sendActions(){
+		Random random = new Random( m_userName.hashCode() );
+		double meanNanos = m_rate > 0 ? 1000000000.0 / m_rate : 0;
+		long next = System.nanoTime()
+				+ (long) ( random.nextDouble() * meanNanos );
+		try {
+			while( true ){
+				Message queued;
+				if( m_rate > 0 && m_running ){
+					queued = m_outgoing.poll(
+							Math.max( 0, next - System.nanoTime() ),
+							TimeUnit.NANOSECONDS );
+				}
+				else if( m_closing ){
+					return;
+				}
+				else{
+					queued = m_outgoing.poll( 100, TimeUnit.MILLISECONDS );
+				}
+
+				if( queued != null ){
+					send( queued );
+					continue;
+				}
+				if( !m_running || m_rate <= 0 ){
+					continue;
+				}
+
+				act( random );
+
+				//exponential gaps, as between the messages of real users
+				next += (long) ( -Math.log( 1 - random.nextDouble() )
+						* meanNanos );
+			}
+		} catch (InterruptedException e) {
+			//stopped, keep sending answers until closed
+			if( !m_closing ){
+				m_running = false;
+				sendActions();
+			}
+		} catch (IOException e) {
+			connectionLost( e );
+		}
+	}
+
+	/**
+	 * Take an action chosen by the mix.
+	 * @param a_random <code>Random</code>, the bot's random numbers
+	 * @throws IOException if the action cannot be sent
+	 */
+	private void act(Random a_random) throws IOException{
+		String target = pickOtherBot( a_random );
+		long now = System.nanoTime();
+
+		switch( pickAction( a_random ) ){
+		case CHAT:
+			send( new ChatMessage( MessageHeader.REG_SendChatMess,
+					TEXT_PREFIX + now + " " + target, m_userName ) );
+			m_stats.sent( Action.CHAT );
+			break;
+		case PM:
+			send( new PrivateChatMessage( MessageHeader.PRIV_SendChatMess,
+					TEXT_PREFIX + now + " " + target, m_userName, target ) );
+			m_stats.sent( Action.PM );
+			break;
+		case ADMIN:
+			if( !m_admin ){
+				//not yet, or never, accepted as an admin
+				break;
+			}
+			m_adminRequests.offer( now );
+			send( new AdminPunishListMessage( MessageHeader.ADMIN_PunishList ) );
+			m_stats.sent( Action.ADMIN );
+			break;
+		case FILE:
+			try {
+				FileTransRequestMessage request = new FileTransRequestMessage(
+						MessageHeader.FILE_Transfer, 0,
+						TransferStage.STAGE1_RequestFromSender, m_userName,
+						target, FILE_PREFIX + now + ".bin", m_fileSize );
+				request.setDirect( m_direct );
+				send( request );
+				m_stats.sent( Action.FILE );
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				//file size refused by the message
+				m_stats.serverError();
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Choose an action by the weights of the mix.
+	 * @param a_random <code>Random</code>, the bot's random numbers
+	 * @return <code>Action</code>, the action
+	 */
+	private Action pickAction(Random a_random){
+		int total = 0;
+		for( int weight : m_mix ){
+			total += weight;
+		}
+
+		int pick = a_random.nextInt( total );
+		for( Action action : Action.values() ){
+			pick -= m_mix[ action.ordinal() ];
+			if( pick < 0 ){
+				return action;
+			}
+		}
+		return Action.CHAT;
+	}
+
+	/**
+	 * Choose a bot other than this one, or this one if it is the only bot.
+	 * @param a_random <code>Random</code>, the bot's random numbers
+	 * @return <code>String</code>, the bot's name
+	 */
+	private String pickOtherBot(Random a_random){
+		if( m_botNames.length == 1 ){
+			return m_userName;
+		}
+
+		String name;
+		do{
+			name = m_botNames[ a_random.nextInt( m_botNames.length ) ];
+		} while( name.equals( m_userName ) );
+		return name;
+	}
+
+	/**
+	 * Write a message to the server. Only called by the sending thread.
+	 * @param a_message <code>Message</code>, the message
+	 * @throws IOException if the message cannot be written
+	 */
+	private void send(Message a_message) throws IOException{
+		a_message.sendMessage( m_out, ProtocolVersion.V2, 0 );
+		if( m_outgoing.isEmpty() ){
+			m_out.flush();
+		}
+	}
+
+	/**
+	 * Read the server's frames until the connection ends.
+	 */
+	private void readFrames(){
+		try {
+			while( true ){
+				handleFrame( readFrame() );
+			}
+		} catch (IOException e) {
+			connectionLost( e );
+		}
+	}
+
+	/**
+	 * Act on a frame from the server.
+	 * @param a_frame <code>InputStream</code>, the frame's bytes
+	 * @throws IOException if the frame is invalid
+	 */
+	private void handleFrame(InputStream a_frame) throws IOException{
+		MessageHeader header = MessageHeader.fromTypeCode(
+				(byte) a_frame.read() );
+		switch( header ){
+		case REG_SendChatMess:
+			readString( a_frame );
+			m_stats.delivered();
+			recordText( Action.CHAT, readString( a_frame ) );
+			break;
+		case PRIV_SendChatMess:
+			String sender = readString( a_frame );
+			readString( a_frame );
+			if( !sender.equals( m_userName ) ){
+				//not the copy sent back to the sender
+				m_stats.delivered();
+				recordText( Action.PM, readString( a_frame ) );
+			}
+			break;
+		case FILE_Transfer:
+			handleFileTransfer( a_frame );
+			break;
+		case ADMIN_Login:
+			m_admin = (byte) a_frame.read() == MessageResponse.Success.getCode();
+			if( !m_admin ){
+				System.out.println(m_userName + ": admin password refused");
+				m_stats.serverError();
+			}
+			break;
+		case ADMIN_PunishList:
+			Long sent = m_adminRequests.poll();
+			if( sent != null ){
+				m_stats.completed( Action.ADMIN, sent );
+			}
+			break;
+		case SERVER_Kicked:
+		case SERVER_Error:
+			System.out.println(m_userName + ": " + header + " "
+					+ readString( a_frame ));
+			m_stats.serverError();
+			break;
+		default:
+			//user list and presence changes are not measured
+			break;
+		}
+	}
+
+	/**
+	 * Act on a file transfer frame: accept requests, send the file once a
+	 * request is accepted, and record the transfer's end.
+	 * @param a_frame <code>InputStream</code>, the frame's bytes, after its
+	 * 	type
+	 * @throws IOException if the frame is invalid
+	 */
+	private void handleFileTransfer(InputStream a_frame) throws IOException{
+		TransferStage stage = TransferStage.fromNum( (byte) a_frame.read() );
+		int transferID = readInt( a_frame );
+		String sender = stage == TransferStage.ERROR ? null
+				: readString( a_frame );
+		String fileName = readString( a_frame );
+
+		switch( stage ){
+		case STAGE1_RequestFromSender:
+			m_stats.delivered();
+			int fileSize = readInt( a_frame );
+			FileTransResponseMessage accept = new FileTransResponseMessage(
+					MessageHeader.FILE_Transfer, transferID,
+					TransferStage.STAGE2_ResponseToRequest, m_userName,
+					sender, fileName, MessageResponse.Success );
+
+			//accept a direct transfer offered by the server
+			if( a_frame.available() > 0
+					&& ( a_frame.read() & DirectTransfer.DIRECT ) != 0 ){
+				byte[] token = readBytes( a_frame );
+				accept.setDirectPort(
+						receiveDirectly( transferID, fileSize, token ) );
+			}
+			m_outgoing.offer( accept );
+			break;
+		case STAGE2_ResponseToRequest:
+			if( (byte) a_frame.read() != MessageResponse.Success.getCode() ){
+				m_stats.serverError();
+				break;
+			}
+
+			//stream the file straight to the receiver, if brokered
+			if( a_frame.available() > 0
+					&& ( a_frame.read() & DirectTransfer.DIRECT ) != 0 ){
+				String host = readString( a_frame );
+				int port = readInt( a_frame );
+				byte[] token = readBytes( a_frame );
+				sendDirectly( transferID, sender, fileName, host, port, token );
+				break;
+			}
+			queueFile( transferID, sender, fileName );
+			break;
+		case STAGE3_DataTransmission:
+			m_stats.delivered();
+			break;
+		case STAGE4_TransEndResponse:
+			if( (byte) a_frame.read() != MessageResponse.Success.getCode() ){
+				m_stats.serverError();
+				break;
+			}
+			m_stats.completed( Action.FILE, Long.parseLong( fileName.substring(
+					FILE_PREFIX.length(), fileName.indexOf( '.' ) ) ) );
+			break;
+		default:
+			System.out.println(m_userName + ": transfer error "
+					+ readString( a_frame ));
+			m_stats.serverError();
+			break;
+		}
+	}
+
+	/**
+	 * Queue the data of an accepted file, and the end of its transfer, for
+	 * the sending thread.
+	 *
+	 * @param a_transferID <code>int</code>, the transfer's ID
+	 * @param a_receiver <code>String</code>, the receiving bot
+	 * @param a_fileName <code>String</code>, the file's name
+	 */
+	private void queueFile(int a_transferID, String a_receiver,
+			String a_fileName){
+		int segments = Math.max( 1, ( m_fileSize + FILE_DATA.length - 1 )
+				/ FILE_DATA.length );
+		try {
+			for( int i = 1; i <= segments; i++ ){
+				int size = Math.min( FILE_DATA.length,
+						m_fileSize - ( i - 1 ) * FILE_DATA.length );
+				m_outgoing.offer( new FileTransDataMessage(
+						MessageHeader.FILE_Transfer, a_transferID,
+						TransferStage.STAGE3_DataTransmission, m_userName,
+						a_receiver, a_fileName, i, segments, size,
+						FILE_DATA ) );
+			}
+		} catch (Exception e) {
+			//segment refused by the message
+			m_stats.serverError();
+			return;
+		}
+
+		m_outgoing.offer( new FileTransResponseMessage(
+				MessageHeader.FILE_Transfer, a_transferID,
+				TransferStage.STAGE4_TransEndResponse, m_userName, a_receiver,
+				a_fileName, MessageResponse.Success ) );
+	}
+
+	/**
+	 * Stream an accepted file straight to its receiver on a thread of its
+	 * own, then queue the end of its transfer for the sending thread. The
+	 * file is queued to be relayed instead if the receiver cannot be
+	 * reached.
+	 *
+	 * @param a_transferID <code>int</code>, the transfer's ID
+	 * @param a_receiver <code>String</code>, the receiving bot
+	 * @param a_fileName <code>String</code>, the file's name
+	 * @param a_host <code>String</code>, the receiver's address
+	 * @param a_port <code>int</code>, the port the receiver listens on
+	 * @param a_token <code>byte[]</code>, the transfer's token
+	 */
+	private void sendDirectly(final int a_transferID, final String a_receiver,
+			final String a_fileName, final String a_host, final int a_port,
+			final byte[] a_token){
+		Thread sender = new Thread( "LoadBotDirect-" + a_transferID ){
+			@Override
+			public void run(){
+				MessageResponse response = MessageResponse.Success;
+				Socket socket = new Socket();
+				try {
+					DataInputStream in;
+					DataOutputStream out;
+					try {
+						socket.connect( new InetSocketAddress( a_host, a_port ),
+								DirectTransfer.CONNECT_TIMEOUT );
+						socket.setSoTimeout( DirectTransfer.CONNECT_TIMEOUT );
+						in = new DataInputStream( socket.getInputStream() );
+						out = new DataOutputStream( new BufferedOutputStream(
+								socket.getOutputStream() ) );
+						DirectTransfer.writeHello( out, a_transferID, a_token );
+						DirectTransfer.readOk( in );
+					} catch (IOException e) {
+						m_stats.relayFallback();
+						queueFile( a_transferID, a_receiver, a_fileName );
+						return;
+					}
+
+					for( int sent = 0; sent < m_fileSize;
+							sent += FILE_DATA.length ){
+						out.write( FILE_DATA, 0,
+								Math.min( FILE_DATA.length, m_fileSize - sent ) );
+					}
+					out.flush();
+					socket.setSoTimeout( DirectTransfer.ACCEPT_TIMEOUT );
+					DirectTransfer.readOk( in );
+					m_stats.directFile();
+				} catch (IOException e) {
+					System.out.println(m_userName + ": direct transfer failed, "
+							+ e.getMessage());
+					response = MessageResponse.Failure;
+				} finally {
+					closeQuietly( socket );
+				}
+
+				m_outgoing.offer( new FileTransResponseMessage(
+						MessageHeader.FILE_Transfer, a_transferID,
+						TransferStage.STAGE4_TransEndResponse, m_userName,
+						a_receiver, a_fileName, response ) );
+			}
+		};
+		sender.setDaemon( true );
+		sender.start();
+	}
+
+	/**
+	 * Listen for the sender of a direct transfer, and read the file it
+	 * streams on a thread of its own.
+	 *
+	 * @param a_transferID <code>int</code>, the transfer's ID
+	 * @param a_fileSize <code>int</code>, the file's size, in bytes
+	 * @param a_token <code>byte[]</code>, the transfer's token
+	 * @return <code>int</code>, the port listened on, or 0 to have the file
+	 * 	relayed if no port can be listened on
+	 */
+	private int receiveDirectly(final int a_transferID, final int a_fileSize,
+			final byte[] a_token){
+		final ServerSocket listener;
+		try {
+			listener = new ServerSocket( 0 );
+			listener.setSoTimeout( DirectTransfer.ACCEPT_TIMEOUT );
+		} catch (IOException e) {
+			System.out.println(m_userName + ": unable to listen, "
+					+ e.getMessage());
+			return 0;
+		}
+
+		Thread receiver = new Thread( "LoadBotListener-" + a_transferID ){
+			@Override
+			public void run(){
+				Socket socket = null;
+				try {
+					socket = listener.accept();
+					listener.close();
+					socket.setSoTimeout( DirectTransfer.CONNECT_TIMEOUT );
+					DataInputStream in = new DataInputStream(
+							new BufferedInputStream( socket.getInputStream() ) );
+					OutputStream out = socket.getOutputStream();
+					if( !DirectTransfer.readHello( in, a_transferID, a_token ) ){
+						return;
+					}
+					out.write( DirectTransfer.OK );
+
+					//count the file's segments as the relay would deliver them
+					socket.setSoTimeout( DirectTransfer.ACCEPT_TIMEOUT );
+					byte[] data = new byte[ FILE_DATA.length ];
+					for( int received = 0; received < a_fileSize;
+							received += data.length ){
+						in.readFully( data, 0,
+								Math.min( data.length, a_fileSize - received ) );
+						m_stats.delivered();
+					}
+					out.write( DirectTransfer.OK );
+				} catch (IOException e) {
+					//not connected to, or the sender failed, which the sender
+					//answers by relaying the file or ending the transfer
+				} finally {
+					try {
+						listener.close();
+					} catch (IOException e) {
+						//closing anyway
+					}
+					closeQuietly( socket );
+				}
+			}
+		};
+		receiver.setDaemon( true );
+		receiver.start();
+		return listener.getLocalPort();
+	}
+
+	/**
+	 * Close a direct transfer's connection, ignoring errors.
+	 * @param a_socket <code>Socket</code>, the connection, may be
+	 * 	<code>null</code>
+	 */
+	private static void closeQuietly(Socket a_socket){
+		if( a_socket == null ){
+			return;
+		}
+		try {
+			a_socket.close();
+		} catch (IOException e) {
+			//closing anyway
+		}
+	}
+
+	/**
+	 * Record the completion of a chat or private message sent by a bot, if
+	 * this bot is the one chosen to record it.
+	 * @param a_action <code>Action</code>, the kind of message
+	 * @param a_text <code>String</code>, the message's text
+	 */
+	private void recordText(Action a_action, String a_text){
+		if( !a_text.startsWith( TEXT_PREFIX ) ){
+			return;
+		}
+
+		int space = a_text.indexOf( ' ', TEXT_PREFIX.length() );
+		if( space == -1 || !a_text.substring( space + 1 ).equals( m_userName ) ){
+			return;
+		}
+		m_stats.completed( a_action, Long.parseLong(
+				a_text.substring( TEXT_PREFIX.length(), space ) ) );
+	}
+
+	/**
+	 * Read a whole frame from the server.
+	 * @return <code>InputStream</code>, the frame's bytes
+	 * @throws IOException if the connection fails, or the frame is invalid
+	 */
+	private InputStream readFrame() throws IOException{
+		int size = ProtocolVersion.readVarInt( m_in );
+		if( size <= 0 || size > ProtocolVersion.MAX_FRAME_SIZE ){
+			throw new IOException("Invalid frame size " + size);
+		}
+
+		byte[] frame = new byte[ size ];
+		m_in.readFully( frame );
+		m_stats.read( size );
+		return new ByteArrayInputStream( frame );
+	}
+
+	/**
+	 * Read a V2 int from a frame.
+	 * @param a_frame <code>InputStream</code>, the frame's bytes
+	 * @return <code>int</code>, the value
+	 * @throws IOException if the frame ends
+	 */
+	private static int readInt(InputStream a_frame) throws IOException{
+		return ProtocolVersion.fromZigZag( ProtocolVersion.readVarInt( a_frame ) );
+	}
+
+	/**
+	 * Read a V2 string from a frame.
+	 * @param a_frame <code>InputStream</code>, the frame's bytes
+	 * @return <code>String</code>, the string
+	 * @throws IOException if the frame ends
+	 */
+	private static String readString(InputStream a_frame) throws IOException{
+		byte[] data = new byte[ ProtocolVersion.readVarInt( a_frame ) ];
+		if( a_frame.read( data ) != data.length && data.length > 0 ){
+			throw new IOException("Frame ended within a string");
+		}
+		return new String( data, ProtocolVersion.V2.getCharset() );
+	}
+
+	/**
+	 * Read V2 bytes, written after their size, from a frame.
+	 * @param a_frame <code>InputStream</code>, the frame's bytes
+	 * @return <code>byte[]</code>, the bytes
+	 * @throws IOException if the frame ends
+	 */
+	private static byte[] readBytes(InputStream a_frame) throws IOException{
+		byte[] data = new byte[ ProtocolVersion.readVarInt( a_frame ) ];
+		if( a_frame.read( data ) != data.length && data.length > 0 ){
+			throw new IOException("Frame ended within bytes");
+		}
+		return data;
+	}
+
+	/**
+	 * Count a lost connection, unless the bot is being closed.
+	 * @param a_error <code>IOException</code>, the cause
+	 */
+	private void connectionLost(IOException a_error){
+		if( m_closing ){
+			return;
+		}
+		m_closing = true;
+		System.out.println(m_userName + ": connection lost, "
+				+ a_error.getMessage());
+		m_stats.connectionError();
+		close();
+	}
+}
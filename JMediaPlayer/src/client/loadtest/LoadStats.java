@@ -0,0 +1,260 @@
+package client.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import protocol.LatencyHistogram;
+
+/**
+ * Counters shared by every <code>LoadBot</code> of a load test: the actions
+ * sent and completed, their end-to-end latencies, the messages delivered to
+ * the bots, and the errors seen.
+ *
+ * @author Andrzej Brynczka
+ */
+public class LoadStats {
+
+	/**
+	 * The actions a bot may take, each with the point at which it counts as
+	 * completed.
+	 */
+	public enum Action{
+		/** Public chat, completed when a chosen bot receives it */
+		CHAT,
+
+		/** Private message, completed when its receiver gets it */
+		PM,
+
+		/** Request for the punished users, completed by the answer */
+		ADMIN,
+
+		/** File transfer, completed when its end reaches the receiver */
+		FILE;
+	}
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** Actions sent, by <code>Action</code> ordinal */
+	private final AtomicLong[] m_sent;
+
+	/** Actions completed, by <code>Action</code> ordinal */
+	private final AtomicLong[] m_completed;
+
+	/** Latencies from sending to completion, by <code>Action</code> ordinal */
+	private final LatencyHistogram[] m_latencies;
+
+	/** Chat, private and file messages received by all bots */
+	private final AtomicLong m_delivered;
+
+	/** Bytes read by all bots */
+	private final AtomicLong m_bytesRead;
+
+	/** Error messages, kicks, and failed transfers or admin requests */
+	private final AtomicLong m_serverErrors;
+
+	/** Bots that could not log in, or lost their connection */
+	private final AtomicLong m_connectionErrors;
+
+	/** Files streamed straight to their receivers */
+	private final AtomicLong m_directFiles;
+
+	/** Direct transfers whose receivers could not be reached, and relayed */
+	private final AtomicLong m_relayFallbacks;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create empty counters.
+	 */
+	public LoadStats(){
+		int actions = Action.values().length;
+		m_sent = new AtomicLong[ actions ];
+		m_completed = new AtomicLong[ actions ];
+		m_latencies = new LatencyHistogram[ actions ];
+		for( int i = 0; i < actions; i++ ){
+			m_sent[i] = new AtomicLong();
+			m_completed[i] = new AtomicLong();
+			m_latencies[i] = new LatencyHistogram();
+		}
+		m_delivered = new AtomicLong();
+		m_bytesRead = new AtomicLong();
+		m_serverErrors = new AtomicLong();
+		m_connectionErrors = new AtomicLong();
+		m_directFiles = new AtomicLong();
+		m_relayFallbacks = new AtomicLong();
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the number of actions of a kind sent.
+	 * @param a_action <code>Action</code>, the kind of action
+	 * @return <code>long</code>, the number sent
+	 */
+	public long getSent(Action a_action){
+		return m_sent[ a_action.ordinal() ].get();
+	}
+
+	/**
+	 * Get the number of actions of a kind completed.
+	 * @param a_action <code>Action</code>, the kind of action
+	 * @return <code>long</code>, the number completed
+	 */
+	public long getCompleted(Action a_action){
+		return m_completed[ a_action.ordinal() ].get();
+	}
+
+	/**
+	 * Get the latencies of the completed actions of a kind.
+	 * @param a_action <code>Action</code>, the kind of action
+	 * @return <code>LatencyHistogram</code>, the latencies
+	 */
+	public LatencyHistogram getLatencies(Action a_action){
+		return m_latencies[ a_action.ordinal() ];
+	}
+
+	/**
+	 * Get the number of chat, private and file messages received.
+	 * @return <code>long</code>, the number of messages
+	 */
+	public long getDelivered(){
+		return m_delivered.get();
+	}
+
+	/**
+	 * Get the number of bytes read from the server.
+	 * @return <code>long</code>, the number of bytes
+	 */
+	public long getBytesRead(){
+		return m_bytesRead.get();
+	}
+
+	/**
+	 * Get the number of errors reported by the server.
+	 * @return <code>long</code>, the number of errors
+	 */
+	public long getServerErrors(){
+		return m_serverErrors.get();
+	}
+
+	/**
+	 * Get the number of failed logins and lost connections.
+	 * @return <code>long</code>, the number of errors
+	 */
+	public long getConnectionErrors(){
+		return m_connectionErrors.get();
+	}
+
+	/**
+	 * Get the number of files streamed straight to their receivers.
+	 * @return <code>long</code>, the number of files
+	 */
+	public long getDirectFiles(){
+		return m_directFiles.get();
+	}
+
+	/**
+	 * Get the number of direct transfers relayed through the server as
+	 * their receivers could not be reached.
+	 * @return <code>long</code>, the number of transfers
+	 */
+	public long getRelayFallbacks(){
+		return m_relayFallbacks.get();
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Count an action sent.
+	 * @param a_action <code>Action</code>, the kind of action
+	 */
+	public void sent(Action a_action){
+		m_sent[ a_action.ordinal() ].incrementAndGet();
+	}
+
+	/**
+	 * Count an action completed, and record its latency.
+	 * @param a_action <code>Action</code>, the kind of action
+	 * @param a_sentNanos <code>long</code>, the <code>System.nanoTime</code>
+	 * 	at which it was sent
+	 */
+	public void completed(Action a_action, long a_sentNanos){
+		m_completed[ a_action.ordinal() ].incrementAndGet();
+		m_latencies[ a_action.ordinal() ].record(
+				System.nanoTime() - a_sentNanos );
+	}
+
+	/**
+	 * Count a chat, private or file message received.
+	 */
+	public void delivered(){
+		m_delivered.incrementAndGet();
+	}
+
+	/**
+	 * Count bytes read from the server.
+	 * @param a_bytes <code>int</code>, the number of bytes
+	 */
+	public void read(int a_bytes){
+		m_bytesRead.addAndGet( a_bytes );
+	}
+
+	/**
+	 * Count an error reported by the server.
+	 */
+	public void serverError(){
+		m_serverErrors.incrementAndGet();
+	}
+
+	/**
+	 * Count a failed login or lost connection.
+	 */
+	public void connectionError(){
+		m_connectionErrors.incrementAndGet();
+	}
+
+	/**
+	 * Count a file streamed straight to its receiver.
+	 */
+	public void directFile(){
+		m_directFiles.incrementAndGet();
+	}
+
+	/**
+	 * Count a direct transfer relayed through the server instead.
+	 */
+	public void relayFallback(){
+		m_relayFallbacks.incrementAndGet();
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Describe the counters over the given run time.
+	 * @param a_seconds <code>double</code>, the seconds the test ran for
+	 * @return <code>String</code>, one line per kind of action, followed by
+	 * 	the throughput and errors
+	 */
+	public String report(double a_seconds){
+		StringBuilder report = new StringBuilder();
+		for( Action action : Action.values() ){
+			report.append( String.format( "%-6s sent=%d completed=%d %s%n",
+					action, getSent( action ), getCompleted( action ),
+					getLatencies( action ) ) );
+		}
+		report.append( String.format( "throughput: %.1f deliveries/s, "
+				+ "%.1f KB/s read%n", getDelivered() / a_seconds,
+				getBytesRead() / 1024.0 / a_seconds ) );
+		if( getDirectFiles() > 0 || getRelayFallbacks() > 0 ){
+			report.append( String.format( "direct files: sent=%d "
+					+ "relayed=%d%n", getDirectFiles(), getRelayFallbacks() ) );
+		}
+		report.append( String.format( "errors: server=%d connection=%d",
+				getServerErrors(), getConnectionErrors() ) );
+		return report.toString();
+	}
+}
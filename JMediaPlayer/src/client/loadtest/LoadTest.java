@@ -0,0 +1,141 @@
+package client.loadtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import client.loadtest.LoadStats.Action;
+
+/**
+ * Soak test of a running server by many headless clients.
+ * <p>
+ * Logs in the given number of <code>LoadBot</code>s, lets each take actions
+ * at the given rate for the given time, in the given mix of public chat,
+ * private messages, admin requests and file transfers, and then reports the
+ * end-to-end latencies of every kind of action, the throughput, and the
+ * errors seen. Progress is printed every ten seconds.
+ * <p>
+ * Usage: <code>LoadTest [host] [port] [users] [seconds] [rate] [mix]
+ * [fileSize] [serverPass] [adminPass] [direct]</code>, where the rate is the
+ * actions each bot takes per second and the mix is given as
+ * <code>chat:pm:admin:file</code> weights. Admin actions are only taken
+ * when a non-empty admin password is given. With <code>direct</code> set to
+ * <code>true</code>, the bots ask for their files to be streamed straight to
+ * one another. The server must allow multiple logins when run on the same
+ * machine. Exits with status 1 if any errors were seen.
+ *
+ * @author Andrzej Brynczka
+ */
+public class LoadTest {
+
+	/** Milliseconds between progress lines */
+	private static final long PROGRESS_INTERVAL = 10000;
+
+	/** Milliseconds to wait for answers once the bots stop */
+	private static final long DRAIN_TIME = 2000;
+
+	public static void main(String[] args) throws Exception{
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt( args[1] ) : 5376;
+		int users = args.length > 2 ? Integer.parseInt( args[2] ) : 20;
+		int seconds = args.length > 3 ? Integer.parseInt( args[3] ) : 60;
+		double rate = args.length > 4 ? Double.parseDouble( args[4] ) : 2.0;
+		int[] mix = parseMix( args.length > 5 ? args[5] : "70:25:0:5" );
+		int fileSize = args.length > 6 ? Integer.parseInt( args[6] ) : 65536;
+		String serverPass = args.length > 7 ? args[7] : "";
+		String adminPass = args.length > 8 && !args[8].isEmpty() ? args[8]
+				: null;
+		boolean direct = args.length > 9 && Boolean.parseBoolean( args[9] );
+
+		String[] names = new String[ users ];
+		for( int i = 0; i < users; i++ ){
+			names[i] = "bot" + i;
+		}
+
+		//log in every bot before any starts, so none misses the others
+		LoadStats stats = new LoadStats();
+		List<LoadBot> bots = new ArrayList<LoadBot>();
+		for( int i = 0; i < users; i++ ){
+			try {
+				bots.add( new LoadBot( host, port, i, names, serverPass, rate,
+						mix, fileSize, direct, stats ) );
+			} catch (IOException e) {
+				System.out.println(names[i] + ": " + e.getMessage());
+				stats.connectionError();
+			}
+		}
+		System.out.println("Logged in " + bots.size() + " of " + users
+				+ " bots");
+
+		long start = System.nanoTime();
+		for( LoadBot bot : bots ){
+			bot.start( adminPass );
+		}
+
+		long end = start + seconds * 1000000000L;
+		long now;
+		while( ( now = System.nanoTime() ) < end ){
+			Thread.sleep( Math.min( PROGRESS_INTERVAL,
+					( end - now ) / 1000000 + 1 ) );
+			if( System.nanoTime() < end ){
+				printProgress( stats, start );
+			}
+		}
+
+		for( LoadBot bot : bots ){
+			bot.stop();
+		}
+		double elapsed = ( System.nanoTime() - start ) / 1e9;
+		Thread.sleep( DRAIN_TIME );
+		for( LoadBot bot : bots ){
+			bot.close();
+		}
+
+		System.out.println(stats.report( elapsed ));
+		if( stats.getServerErrors() > 0 || stats.getConnectionErrors() > 0 ){
+			System.exit( 1 );
+		}
+	}
+
+	/**
+	 * Parse the weights of the actions.
+	 * @param a_mix <code>String</code>, the weights as
+	 * 	<code>chat:pm:admin:file</code>
+	 * @return <code>int[]</code>, the weights by <code>Action</code> ordinal
+	 */
+	private static int[] parseMix(String a_mix){
+		String[] parts = a_mix.split( ":" );
+		int[] mix = new int[ Action.values().length ];
+		int total = 0;
+		for( int i = 0; i < mix.length && i < parts.length; i++ ){
+			mix[i] = Integer.parseInt( parts[i].trim() );
+			if( mix[i] < 0 ){
+				throw new IllegalArgumentException("Negative weight: " + a_mix);
+			}
+			total += mix[i];
+		}
+		if( total == 0 ){
+			throw new IllegalArgumentException("Empty mix: " + a_mix);
+		}
+		return mix;
+	}
+
+	/**
+	 * Print the actions sent and completed so far.
+	 * @param a_stats <code>LoadStats</code>, the counters
+	 * @param a_start <code>long</code>, the <code>System.nanoTime</code> at
+	 * 	which the test started
+	 */
+	private static void printProgress(LoadStats a_stats, long a_start){
+		StringBuilder line = new StringBuilder();
+		line.append( String.format( "%4ds", ( System.nanoTime() - a_start )
+				/ 1000000000L ) );
+		for( Action action : Action.values() ){
+			line.append( String.format( " %s=%d/%d", action,
+					a_stats.getCompleted( action ), a_stats.getSent( action ) ) );
+		}
+		line.append( String.format( " errors=%d", a_stats.getServerErrors()
+				+ a_stats.getConnectionErrors() ) );
+		System.out.println(line);
+	}
+}
@@ -1,8 +1,10 @@
 package client.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
 
 /**
  * Message containing information to send when attempting to gain access
@@ -87,24 +89,20 @@ public class AdminLoginMessage extends Message {
 	// ******************** Utility Methods ********************
 	// *********************************************************
 	/**
-	 * Send the the admin login message to the given stream, attempting to
+	 * Send the the admin login message to the given writer, attempting to
 	 * gain access to administrator rights on the server.
 	 * Included are:
 	 * </br>the message header
 	 * </br>the login password
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {
-		DataOutputStream outData = new DataOutputStream( a_stream );
-		
+	protected boolean encode(MessageWriter a_writer) throws IOException {
 		//write the header code
-		a_stream.write( m_header.getHeaderCode().getBytes() );
+		a_writer.writeHeader( m_header );
 		
 		//write the password's length and the password
-		outData.writeInt( m_adminPass.length() );
-		a_stream.write ( m_adminPass.getBytes() );	
+		a_writer.writeString( m_adminPass );
 		
-		a_stream.flush();
 		return true;
 	}
 
@@ -1,11 +1,13 @@
 package client.messages;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 
 import client.messages.PunishmentInfo.Punishment;
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
 
 /**
  * Message used to collect information on a group of punished users
@@ -135,11 +137,10 @@ public class AdminPunishListMessage extends Message{
 	 * to receive a list of punished users.
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {	
+	protected boolean encode(MessageWriter a_writer) throws IOException {	
 		
 		//simply send the message header to request a list
-		a_stream.write( m_header.getHeaderCode().getBytes() );
-		a_stream.flush();
+		a_writer.writeHeader( m_header );
 		
 		return true;
 	}
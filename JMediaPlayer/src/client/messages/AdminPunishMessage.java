@@ -1,11 +1,12 @@
 package client.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 
 import client.messages.PunishmentInfo.Direction;
 import client.messages.PunishmentInfo.Punishment;
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
 
 /**
  * Class containing information on the AdminPunish message sent either
@@ -216,7 +217,7 @@ public class AdminPunishMessage extends Message {
 	// ******************** Utility Methods ********************
 	// *********************************************************
 	/**
-	 * Send the AdminPunish request to the given stream, requesting 
+	 * Send the AdminPunish request to the given writer, requesting 
 	 * that the server commit the punishment.
 	 * Included are:
 	 * </br>the message header
@@ -227,33 +228,28 @@ public class AdminPunishMessage extends Message {
 	 * 	to the message type
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {
-		DataOutputStream outData = new DataOutputStream( a_stream );
-		
+	protected boolean encode(MessageWriter a_writer) throws IOException {
 		//write the header code
-		a_stream.write( m_header.getHeaderCode().getBytes() );
+		a_writer.writeHeader( m_header );
 		
 		//write the punishment's reference code
-		a_stream.write( m_punishmentInfo.getPunishment().getCode().getBytes());
+		a_writer.writeRaw( 
+				m_punishmentInfo.getPunishment().getCode().getBytes() );
 		
 		//write the direction's code
-		a_stream.write( m_punishmentInfo.getDirection().getCode() );
+		a_writer.writeByte( m_punishmentInfo.getDirection().getCode() );
 		
 		//write the name of the admin that made the request
-		outData.writeInt( m_adminName.length() );
-		a_stream.write( m_adminName.getBytes() );
+		a_writer.writeString( m_adminName );
 		
 		//write the name of the user to be punished
-		outData.writeInt( m_punishmentInfo.getTargetName().length() );
-		a_stream.write( m_punishmentInfo.getTargetName().getBytes() );
+		a_writer.writeString( m_punishmentInfo.getTargetName() );
 		
 		//write the target's IP if the message requires it
 		if( m_header == MessageHeader.ADMIN_RemovePunishment ){
-			outData.writeInt( m_punishmentInfo.getTargetIP().length() );
-			a_stream.write( m_punishmentInfo.getTargetIP().getBytes() );
+			a_writer.writeString( m_punishmentInfo.getTargetIP() );
 		}
 		
-		a_stream.flush();
 		return true;
 	}
 }
@@ -1,8 +1,9 @@
 package client.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
 
 /**
  * Class containing information on the messages that deal with
@@ -215,35 +216,29 @@ public class FileTransDataMessage extends FileTransferMessage {
 	 * </br>the data segment containing the file data
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException{
+	protected boolean encode(MessageWriter a_writer) throws IOException{
 
-		DataOutputStream outData = new DataOutputStream( a_stream );
 		//write the header, transfer stage, and transferID
-		a_stream.write( m_header.getHeaderCode().getBytes() );
-		a_stream.write( m_transferStage.getCode() );
-		outData.writeInt( m_transferID );
+		a_writer.writeHeader( m_header );
+		a_writer.writeByte( m_transferStage.getCode() );
+		a_writer.writeInt( m_transferID );
 		
 		//write the receiver's username
-		outData.writeInt( m_receiverName.length() );
-		a_stream.write( m_receiverName.getBytes() );
-		a_stream.flush();
+		a_writer.writeString( m_receiverName );
 		
 		//write the file name
-		outData.writeInt( m_fileName.length() );
-		a_stream.write( m_fileName.getBytes() );
+		a_writer.writeString( m_fileName );
 		
 		//write the # of the current data segment
 		//and the number of total segments
-		outData.writeInt( m_currentDataSegment );
-		outData.writeInt( m_totalDataSegments );
+		a_writer.writeInt( m_currentDataSegment );
+		a_writer.writeInt( m_totalDataSegments );
 		
 		//write the size of the current segment and the segment itself
-		outData.writeInt( m_sizeOfCurSeg );
-		a_stream.flush();
+		a_writer.writeLength( m_sizeOfCurSeg );
 		
 		//write the data segment
-		a_stream.write( m_dataSegment, 0, m_sizeOfCurSeg);
-		a_stream.flush();
+		a_writer.writeRaw( m_dataSegment, 0, m_sizeOfCurSeg );
 		
 		return true;
 	}
@@ -1,8 +1,14 @@
 package client.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.DirectTransfer;
+import protocol.LargeFiles;
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.ProtocolVersion;
+import protocol.TransferCredits;
+import protocol.TransferResume;
 
 
 /**
@@ -17,7 +23,16 @@ public class FileTransRequestMessage extends FileTransferMessage {
 	// ******************** Class Variables ********************
 	// *********************************************************
 	/** The size of the file being requested, in bytes */
-	private int m_sizeOfFile;
+	private long m_sizeOfFile;
+	
+	/** Set if the file is to be streamed straight to the receiver */
+	private boolean m_direct;
+	
+	/** Set if the receiver is to grant credits for the file's data */
+	private boolean m_credits;
+	
+	/** Set if the receiver may resume a transfer of the file it holds */
+	private boolean m_resume;
 	
 	// *********************************************************
 	// ******************** Constructors ***********************
@@ -37,7 +52,7 @@ public class FileTransRequestMessage extends FileTransferMessage {
 	 * 			recieving the file
 	 * @param a_fileName <code>String</code>, the name of the file to be 
 	 * 			transfered
-	 * @param a_sizeOfFile <code>int</code>, the size of the file to be 
+	 * @param a_sizeOfFile <code>long</code>, the size of the file to be 
 	 * 			transfered
 	 * @throws Exception if provided size of file is invalid
 	 */
@@ -50,6 +65,9 @@ public class FileTransRequestMessage extends FileTransferMessage {
 		if( !setSizeOfFile( a_sizeOfFile ) ){
 			throw new Exception("Invalid file size");
 		}
+		m_direct = false;
+		m_credits = false;
+		m_resume = false;
 	}		
 	
 	// *********************************************************
@@ -58,35 +76,106 @@ public class FileTransRequestMessage extends FileTransferMessage {
 	/**
 	 * Get the size of the file being transfered
 	 * 
-	 * @return <code>int</code> - the size of the file, in bytes
+	 * @return <code>long</code> - the size of the file, in bytes
 	 */
-	public int getFileSize(){
+	public long getFileSize(){
 		return m_sizeOfFile;
 	}
+	
+	/**
+	 * Check whether a direct transfer is asked for.
+	 * 
+	 * @return <code>boolean</code> - <code>true</code> if the file is to be
+	 * 	streamed straight to the receiver, <code>false</code> if it is to be
+	 * 	relayed through the server
+	 * @see DirectTransfer
+	 */
+	public boolean isDirect(){
+		return m_direct;
+	}
+	
+	/**
+	 * Check whether credits are asked for.
+	 * 
+	 * @return <code>boolean</code> - <code>true</code> if the receiver is 
+	 * 	to grant credits for the file's data, <code>false</code> otherwise
+	 * @see TransferCredits
+	 */
+	public boolean isCredits(){
+		return m_credits;
+	}
+	
+	/**
+	 * Check whether the receiver may resume the transfer.
+	 * 
+	 * @return <code>boolean</code> - <code>true</code> if the receiver may
+	 * 	ask for only the segments it is missing, <code>false</code> otherwise
+	 * @see TransferResume
+	 */
+	public boolean isResume(){
+		return m_resume;
+	}
 	// *********************************************************
 	// ******************** Mutators ***************************
 	// *********************************************************
 	/**
 	 * Set the size(in bytes) of the file being transfered
 	 * 
-	 * @param a_size <code>int</code>, the size of the file
+	 * @param a_size <code>long</code>, the size of the file
 	 * @return <code>boolean</code> - <code>true</code> if the size is valid
 	 * 	<code>false</code> otherwise
 	 */
 	private boolean setSizeOfFile(long a_size){
-		if( a_size < 0 || a_size > Integer.MAX_VALUE){
+		if( a_size < 0 ){
 			return false;
 		}
 		
-		m_sizeOfFile = (int) a_size;
+		m_sizeOfFile = a_size;
 		return true;
 	}
 	
+	/**
+	 * Ask for the file to be streamed straight to the receiver, which V2
+	 * 	servers allowing it broker, and the other servers ignore.
+	 * 
+	 * @param a_direct <code>boolean</code>, <code>true</code> to ask for a
+	 * 	direct transfer
+	 * @see DirectTransfer
+	 */
+	public void setDirect(boolean a_direct){
+		m_direct = a_direct;
+	}
+	
+	/**
+	 * Ask for the receiver to grant credits for the file's data, which V2
+	 * 	servers pass on to the receiver, and the other servers ignore.
+	 * 
+	 * @param a_credits <code>boolean</code>, <code>true</code> to ask for
+	 * 	credits
+	 * @see TransferCredits
+	 */
+	public void setCredits(boolean a_credits){
+		m_credits = a_credits;
+	}
+	
+	/**
+	 * Let the receiver resume a transfer of the file it partly holds, 
+	 * 	which V2 servers pass on to the receiver, and the other servers 
+	 * 	ignore.
+	 * 
+	 * @param a_resume <code>boolean</code>, <code>true</code> to let the
+	 * 	receiver ask for only the segments it is missing
+	 * @see TransferResume
+	 */
+	public void setResume(boolean a_resume){
+		m_resume = a_resume;
+	}
+	
 	// *********************************************************
 	// ******************** Utility Methods ********************
 	// *********************************************************
 	/**
-	 * Send the FileTransRequest information to the given stream(the receiver
+	 * Send the FileTransRequest information to the given writer(the receiver
 	 * 	of the request). 
 	 * Included are:
 	 * </br>the message header
@@ -94,30 +183,53 @@ public class FileTransRequestMessage extends FileTransferMessage {
 	 * </br>the transfer ID integer
 	 * </br>the size of the receiver's user name and the receiver's name
 	 * </br>the size of the file's name and the file's name
-	 * </br>the file's size
+	 * </br>the file's size, or <code>MAX_INT_SIZE</code> for a large file
+	 * </br>in V2, if a direct transfer, credits, resuming or a large 
+	 * 	file's size are asked for, the options byte, holding 
+	 * 	<code>DIRECT</code>, <code>CREDITS</code>, <code>RESUME</code> 
+	 * 	and <code>LARGE</code>
+	 * </br>for a large file, the file's size as a long
+	 * 
+	 * @return <code>boolean</code> - <code>false</code> for a large file
+	 * 	and a V1 server, which cannot be told its size, <code>true</code> 
+	 * 	otherwise
+	 * @see LargeFiles
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {
-		DataOutputStream outData = new DataOutputStream( a_stream );
+	protected boolean encode(MessageWriter a_writer) throws IOException {
+		boolean large = LargeFiles.isLarge( m_sizeOfFile );
+		if( large && a_writer.getProtocol() != ProtocolVersion.V2 ){
+			return false;
+		}
 		
 		//write the header, transfer stage, and transferID
-		a_stream.write( m_header.getHeaderCode().getBytes() );
-		a_stream.write( m_transferStage.getCode() );
-		outData.writeInt( m_transferID );
+		a_writer.writeHeader( m_header );
+		a_writer.writeByte( m_transferStage.getCode() );
+		a_writer.writeInt( m_transferID );
 		
 		//write the receiver's username
-		outData.writeInt( m_receiverName.length() );
-		a_stream.write( m_receiverName.getBytes() );
-		a_stream.flush();
+		a_writer.writeString( m_receiverName );
 		
 		//write file name
-		outData.writeInt( m_fileName.length() );
-		a_stream.write( m_fileName.getBytes() );
+		a_writer.writeString( m_fileName );
 		
 		//write the file size
-		outData.writeInt( m_sizeOfFile );
+		a_writer.writeInt( LargeFiles.intSize( m_sizeOfFile ) );
+		
+		//ask V2 servers to broker a direct transfer, and for credits
+		int options = ( m_direct ? DirectTransfer.DIRECT : 0 ) 
+				| ( m_credits ? TransferCredits.CREDITS : 0 )
+				| ( large ? LargeFiles.LARGE : 0 )
+				| ( m_resume ? TransferResume.RESUME : 0 );
+		if( a_writer.getProtocol() == ProtocolVersion.V2 && options != 0 ){
+			a_writer.writeByte( options );
+		}
+		
+		//followed by the size of a file too large for the int
+		if( large ){
+			a_writer.writeLong( m_sizeOfFile );
+		}
 
-		a_stream.flush();
 		return true;
 	}
 }
@@ -1,8 +1,13 @@
 package client.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.DirectTransfer;
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.ProtocolVersion;
+import protocol.TransferCredits;
+import protocol.TransferResume;
 
 /**
  * Message for the file transfer responses. Used to respond to the initial
@@ -20,6 +25,24 @@ public class FileTransResponseMessage extends FileTransferMessage {
 	/** The response to send through this message */
 	private MessageResponse m_response;
 	
+	/** 
+	 * Port this client listens on for the sender of a direct transfer, or
+	 * 	0 if the file is to be relayed through the server 
+	 */
+	private int m_directPort;
+	
+	/** 
+	 * Window of credits this client grants the sender, or 0 if the 
+	 * 	transfer does not use credits
+	 */
+	private int m_creditWindow;
+	
+	/** 
+	 * Set if this client resumes the transfer, and follows the response
+	 * 	with the segments it is missing
+	 */
+	private boolean m_resume;
+	
 	// *********************************************************
 	// ******************** Constructors ***********************
 	// *********************************************************
@@ -45,6 +68,9 @@ public class FileTransResponseMessage extends FileTransferMessage {
 				a_sender, a_receiver, a_fileName);
 		
 		m_response = a_response;
+		m_directPort = 0;
+		m_creditWindow = 0;
+		m_resume = false;
 	}
 
 	// *********************************************************
@@ -78,6 +104,42 @@ public class FileTransResponseMessage extends FileTransferMessage {
 		return true;
 	}
 	
+	/**
+	 * Accept a direct transfer offered with the request, telling the 
+	 * 	sender, through a V2 server, the port to stream the file to.
+	 * 
+	 * @param a_port <code>int</code>, the port this client listens on, or
+	 * 	0 to have the file relayed through the server
+	 * @see DirectTransfer
+	 */
+	public void setDirectPort(int a_port){
+		m_directPort = a_port;
+	}
+	
+	/**
+	 * Grant credits for the file's data, as asked for with the request, 
+	 * 	telling the sender, through a V2 server, the window it starts with.
+	 * 
+	 * @param a_window <code>int</code>, the number of data segments the 
+	 * 	sender may send before it is granted more, or 0 for none
+	 * @see TransferCredits
+	 */
+	public void setCreditWindow(int a_window){
+		m_creditWindow = a_window;
+	}
+	
+	/**
+	 * Resume the transfer of a file partly received before, telling the
+	 * 	sender, through a V2 server, to wait for the segments missing.
+	 * 
+	 * @param a_resume <code>boolean</code>, <code>true</code> to resume
+	 * 	the transfer
+	 * @see TransferResume
+	 */
+	public void setResume(boolean a_resume){
+		m_resume = a_resume;
+	}
+	
 	// *********************************************************
 	// ******************** Utility Methods ********************
 	// *********************************************************
@@ -92,29 +154,41 @@ public class FileTransResponseMessage extends FileTransferMessage {
 	 * </br>the size of the receiver's user name and the receiver's name
 	 * </br>the size of the file name and the file name
 	 * </br>the byte-based response code
+	 * </br>in V2, if a direct transfer is accepted, credits are granted or
+	 * 	the transfer is resumed, the options byte, followed by the port 
+	 * 	listened on for <code>DIRECT</code> and the window for 
+	 * 	<code>CREDITS</code>
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException{
-		DataOutputStream outData = new DataOutputStream( a_stream );
-		
+	protected boolean encode(MessageWriter a_writer) throws IOException{
 		//write the header, transfer stage, and transferID
-		a_stream.write( m_header.getHeaderCode().getBytes() );
-		a_stream.write( m_transferStage.getCode() );
-		outData.writeInt( m_transferID );
+		a_writer.writeHeader( m_header );
+		a_writer.writeByte( m_transferStage.getCode() );
+		a_writer.writeInt( m_transferID );
 				
 		//write the receiver's username
-		outData.writeInt( m_receiverName.length() );
-		a_stream.write( m_receiverName.getBytes() );
-		a_stream.flush();
+		a_writer.writeString( m_receiverName );
 		
 		//send filename
-		outData.writeInt( m_fileName.length() );
-		a_stream.write( m_fileName.getBytes() );
+		a_writer.writeString( m_fileName );
 		
 		//send message response
-		a_stream.write( m_response.getCode() );
+		a_writer.writeByte( m_response.getCode() );
+		
+		//tell V2 servers where the sender is to connect, and its window
+		int options = ( m_directPort > 0 ? DirectTransfer.DIRECT : 0 ) 
+				| ( m_creditWindow > 0 ? TransferCredits.CREDITS : 0 )
+				| ( m_resume ? TransferResume.RESUME : 0 );
+		if( a_writer.getProtocol() == ProtocolVersion.V2 && options != 0 ){
+			a_writer.writeByte( options );
+			if( m_directPort > 0 ){
+				a_writer.writeInt( m_directPort );
+			}
+			if( m_creditWindow > 0 ){
+				a_writer.writeInt( m_creditWindow );
+			}
+		}
 		
-		a_stream.flush();
 		return true;
 	}
 	
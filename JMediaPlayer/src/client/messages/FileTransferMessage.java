@@ -1,7 +1,10 @@
 package client.messages;
 
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
 
 /**
  * The base message class for all file transfer based messages.
@@ -49,6 +52,18 @@ public abstract class FileTransferMessage extends Message {
 		 */
 		STAGE5_Done( (byte) 5),
 		
+		/**
+		 * Stage 3 - Credits the receiver grants the sender, to send further
+		 * file data in a transfer using credits.
+		 */
+		STAGE3_DataCredit( (byte) 6),
+		
+		/**
+		 * Stage 2 - The segments the receiver is still missing, sent after
+		 * its acceptance of a resumed transfer.
+		 */
+		STAGE2_ResumeRequest( (byte) 7),
+		
 		ERROR( (byte) -1 );
 				
 		/** The byte-based code associated with the transfer stage */
@@ -86,6 +101,10 @@ public abstract class FileTransferMessage extends Message {
 				return STAGE4_TransEndResponse;
 			case 5:
 				return STAGE5_Done;
+			case 6:
+				return STAGE3_DataCredit;
+			case 7:
+				return STAGE2_ResumeRequest;
 			default:
 				return ERROR;			
 			}
@@ -193,6 +212,6 @@ public abstract class FileTransferMessage extends Message {
 	// ******************** Utility Methods ********************
 	// *********************************************************
 	@Override
-	public abstract boolean sendMessage(OutputStream a_stream) 
+	protected abstract boolean encode(MessageWriter a_writer) 
 			throws IOException;
 }
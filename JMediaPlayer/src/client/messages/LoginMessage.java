@@ -1,7 +1,10 @@
 package client.messages;
 
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
 
 public class LoginMessage extends Message {
 	// *********************************************************
@@ -144,7 +147,7 @@ public class LoginMessage extends Message {
 	 * is received from the server upon attempting to login.
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {
+	protected boolean encode(MessageWriter a_writer) throws IOException {
 		return false;
 	}
 
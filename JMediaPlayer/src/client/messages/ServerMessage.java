@@ -1,7 +1,10 @@
 package client.messages;
 
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
 
 
 /**
@@ -75,7 +78,7 @@ public class ServerMessage extends Message {
 	 * This always returns false;
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {
+	protected boolean encode(MessageWriter a_writer) throws IOException {
 		return false;
 	}
 
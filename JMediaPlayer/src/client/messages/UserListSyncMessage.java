@@ -0,0 +1,114 @@
+package client.messages;
+
+import java.io.IOException;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
+
+/**
+ * Message requesting the list of connected users from the server in pages,
+ * or only the changes to it since the roster version this client last
+ * synced to.
+ * <p>
+ * The server answers with a message of the same header, holding either a
+ * page of usernames or the names added and removed since the version.
+ *
+ * @author Andrzej Brynczka
+ *
+ */
+public class UserListSyncMessage extends Message {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Capability bit of a client that fetches the user list in pages */
+	public static final int PAGED = 0x02;
+
+	/**
+	 * Capability bit of a client that accepts logins and logouts announced
+	 * together, as a single presence message
+	 */
+	public static final int PRESENCE = 0x04;
+
+	/**
+	 * Flag of the first page of a full list: names known to the client
+	 * that are not in any of the list's pages have left
+	 */
+	public static final byte RESET = 0x01;
+
+	/** Flag of a page that is followed by more names */
+	public static final byte MORE = 0x02;
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The roster this client last synced to, or 0 if none */
+	private int m_rosterID;
+
+	/** The roster version this client last synced to */
+	private int m_version;
+
+	/** The last name of the previous page, or empty if not continuing one */
+	private String m_after;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create the complete user list request, ready to be sent to the
+	 * server.
+	 *
+	 * @param a_header <code>MessageHeader</code>, the message's header
+	 * @param a_rosterID <code>int</code>, the roster this client last
+	 * 	synced to, or 0 if none
+	 * @param a_version <code>int</code>, the version this client last
+	 * 	synced to
+	 * @param a_after <code>String</code>, the last name of the previous
+	 * 	page, or an empty string for the changes since the version
+	 */
+	public UserListSyncMessage(MessageHeader a_header, int a_rosterID,
+			int a_version, String a_after){
+		super(a_header);
+		m_rosterID = a_rosterID;
+		m_version = a_version;
+		m_after = a_after;
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the last name of the page before the requested one
+	 * @return <code>String</code>, the name, or an empty string if no page
+	 * 	is being continued
+	 */
+	public String getAfter(){
+		return m_after;
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Send the user list request to the given writer.
+	 * Included are:
+	 * </br>the message header
+	 * </br>the roster and version last synced to
+	 * </br>the size of the last name of the previous page, and the name
+	 */
+	@Override
+	protected boolean encode(MessageWriter a_writer) throws IOException {
+		//write the header code
+		a_writer.writeHeader( m_header );
+
+		//write the roster last synced to
+		a_writer.writeInt( m_rosterID );
+		a_writer.writeInt( m_version );
+
+		//write the page to continue from
+		a_writer.writeString( m_after );
+
+		return true;
+	}
+
+}
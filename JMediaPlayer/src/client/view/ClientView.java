@@ -7,7 +7,7 @@ import client.ClientDriver;
 import client.FileTransferTicket;
 
 import client.messages.PunishmentInfo;
-import client.messages.Message.MessageResponse;
+import protocol.messages.Message.MessageResponse;
 
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
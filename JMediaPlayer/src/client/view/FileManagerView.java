@@ -3,7 +3,7 @@ package client.view;
 import client.Client;
 import client.FileTransferTicket;
 import client.messages.FileTransferMessage.TransferStage;
-import client.messages.Message.MessageResponse;
+import protocol.messages.Message.MessageResponse;
 import client.view.component.ProgressBarTableCell;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
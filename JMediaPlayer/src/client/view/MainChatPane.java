@@ -7,12 +7,7 @@ import java.text.DecimalFormat;
 
 import client.Client;
 import client.FileTransferTicket;
-import client.messages.ChatMessage;
-import client.messages.Message;
-import client.messages.PrivateChatMessage;
 import client.messages.PunishmentInfo.Punishment;
-import client.messages.Message.MessageHeader;
-import client.messages.Message.MessageResponse;
 import client.view.component.MessageListCell;
 import client.view.component.UserListCell;
 import javafx.event.ActionEvent;
@@ -43,6 +38,11 @@ import javafx.scene.layout.RowConstraints;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.util.Callback;
+import protocol.MessageHeader;
+import protocol.messages.ChatMessage;
+import protocol.messages.Message;
+import protocol.messages.Message.MessageResponse;
+import protocol.messages.PrivateChatMessage;
 
 /**
  * The view containing the main chat components presented to the user
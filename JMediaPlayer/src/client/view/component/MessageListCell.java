@@ -2,20 +2,23 @@ package client.view.component;
 
 import client.messages.AdminLoginMessage;
 import client.messages.AdminPunishMessage;
-import client.messages.ChatMessage;
 import client.messages.FileTransResponseMessage;
 import client.messages.FileTransferMessage.TransferStage;
 import client.messages.LoginMessage;
-import client.messages.Message;
-import client.messages.PrivateChatMessage;
 import client.messages.PunishmentInfo.Punishment;
 import client.messages.ServerMessage;
 import client.messages.LoginMessage.LoginCondition;
-import client.messages.Message.MessageResponse;
 import client.view.ClientView;
 import javafx.scene.control.ListCell;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Text;
+import protocol.MessageHeader;
+import protocol.messages.ChannelChatMessage;
+import protocol.messages.ChannelMessage;
+import protocol.messages.ChatMessage;
+import protocol.messages.Message;
+import protocol.messages.Message.MessageResponse;
+import protocol.messages.PrivateChatMessage;
 
 /**
  * This class is a cell component made to be used within a
@@ -63,6 +66,31 @@ public class MessageListCell<T> extends ListCell<T> {
 				displayedText.setFill( Color.DARKBLUE );
 				setGraphic(displayedText);
 				
+				break;
+			case CHANNEL_SendChatMess:
+				ChannelChatMessage cMessage = (ChannelChatMessage) item;
+				textMsg = "#" + cMessage.getChannel() + " " 
+								+ cMessage.getSenderName() 
+								+ " > " + cMessage.getMessage();
+				
+				displayedText = new Text(textMsg);
+				displayedText.setFill( Color.DARKCYAN );
+				setGraphic(displayedText);
+				
+				break;
+			case CHANNEL_Join:
+			case CHANNEL_Leave:
+				ChannelMessage chMessage = (ChannelMessage) item;
+				textMsg = "#" + chMessage.getChannel() + " > " 
+						+ chMessage.getUserName() 
+						+ ( chMessage.getHeader() == MessageHeader.CHANNEL_Join 
+								? " joined the channel." 
+								: " left the channel." );
+				
+				displayedText = new Text(textMsg);
+				displayedText.setFill( Color.DARKCYAN );
+				setGraphic(displayedText);
+				
 				break;
 			case PRIV_SendChatMess:
 				PrivateChatMessage pMessage = (PrivateChatMessage) item;
@@ -0,0 +1,115 @@
+package protocol.bench;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An operation timed by the <code>BenchmarkRunner</code>, along with the
+ * parameters it was set up with.
+ * <p>
+ * The runner calls <code>run()</code> until each iteration's time is up,
+ * adding up the operations each call reports. A benchmark chooses how many
+ * operations a call performs, enough that the cost of the call itself does
+ * not matter, and leaves every result somewhere observable, such as a
+ * stream, so that none of the work can be optimized away.
+ *
+ * @author Andrzej Brynczka
+ */
+public abstract class Benchmark {
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The benchmark's name, grouped by dots */
+	private final String m_name;
+
+	/** The parameters the benchmark was set up with, in order */
+	private final Map<String, String> m_params;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create a benchmark with the given name and parameters.
+	 *
+	 * @param a_name <code>String</code>, the benchmark's name, such as
+	 * 	<code>encode.ChatMessage</code>
+	 * @param a_params <code>String...</code>, the names and values of the
+	 * 	benchmark's parameters, one after another
+	 */
+	protected Benchmark(String a_name, String... a_params){
+		m_name = a_name;
+		m_params = new LinkedHashMap<String, String>();
+		for( int i = 0; i + 1 < a_params.length; i += 2 ){
+			m_params.put( a_params[i], a_params[i + 1] );
+		}
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the benchmark's name.
+	 * @return <code>String</code>, the name
+	 */
+	String getName(){
+		return m_name;
+	}
+
+	/**
+	 * Get the parameters the benchmark was set up with.
+	 * @return <code>Map&lt;String, String&gt;</code>, the parameters' values
+	 * 	by name, in order
+	 */
+	Map<String, String> getParams(){
+		return Collections.unmodifiableMap( m_params );
+	}
+
+	/**
+	 * Get the benchmark's name followed by its parameters.
+	 * @return <code>String</code>, such as
+	 * 	<code>encode.ChatMessage:protocol=V2</code>
+	 */
+	String getLabel(){
+		StringBuilder label = new StringBuilder( m_name );
+		String separator = ":";
+		for( Map.Entry<String, String> param : m_params.entrySet() ){
+			label.append( separator ).append( param.getKey() ).append( '=' )
+					.append( param.getValue() );
+			separator = ",";
+		}
+		return label.toString();
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Prepare the benchmark's state before its first call. Not timed.
+	 * @throws Exception if the state cannot be prepared
+	 */
+	protected void setUp() throws Exception{
+	}
+
+	/**
+	 * Perform a number of the benchmark's operations.
+	 * @return <code>int</code>, the number of operations performed
+	 * @throws Exception if an operation fails
+	 */
+	protected abstract int run() throws Exception;
+
+	/**
+	 * Let work started by the last iteration's operations finish, such as
+	 * messages still being delivered by other threads. Not timed.
+	 * @throws Exception if the work fails
+	 */
+	protected void afterIteration() throws Exception{
+	}
+
+	/**
+	 * Release the benchmark's state after its last call. Not timed.
+	 * @throws Exception if the state cannot be released
+	 */
+	protected void tearDown() throws Exception{
+	}
+}
@@ -0,0 +1,598 @@
+package protocol.bench;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Runner of <code>Benchmark</code>s, measuring the average time each takes
+ * per operation and the bytes it allocates per operation, and writing the
+ * results in a machine-readable file so that changes to the hot paths can
+ * be compared run to run.
+ * <p>
+ * Every benchmark is first run for a number of warmup iterations, letting
+ * the JIT compile it, then for a number of measured iterations of a fixed
+ * time each. Its score is the mean of the iterations' nanoseconds per
+ * operation, with an error of the 99.9% confidence interval's half-width.
+ * Allocations are those of the benchmark's own thread, as counted by the
+ * JVM; work handed to other threads, such as the server's dispatcher's,
+ * is timed only as far as the benchmark waits for it.
+ * <p>
+ * The server and client print a line for nearly every message they 
+ * handle, so the standard output is discarded while benchmarks run; the runner prints
+ * its results once each benchmark is done.
+ * <p>
+ * Results are written in the CSV or JSON layout used by JMH, so that tools
+ * reading JMH's results can read these. The options follow JMH's as well:
+ * <ul>
+ * <li><code>-wi n</code> - warmup iterations, 5 unless given</li>
+ * <li><code>-i n</code> - measured iterations, 10 unless given</li>
+ * <li><code>-r ms</code> - milliseconds per iteration, 200 unless given</li>
+ * <li><code>-f regex</code> - only run benchmarks whose name and parameters
+ * 	contain a match</li>
+ * <li><code>-rf csv|json</code> - format of the results file, taken from
+ * 	its name unless given</li>
+ * <li><code>-rff file</code> - file to write the results to</li>
+ * </ul>
+ * <p>
+ * The runner is shared by the server's and the client's benchmarks, which
+ * keep it here rather than each carrying a copy.
+ *
+ * @author Andrzej Brynczka
+ */
+public final class BenchmarkRunner {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Warmup iterations, unless given */
+	private static final int DEFAULT_WARMUP_ITERATIONS = 5;
+
+	/** Measured iterations, unless given */
+	private static final int DEFAULT_ITERATIONS = 10;
+
+	/** Milliseconds per iteration, unless given */
+	private static final int DEFAULT_ITERATION_MILLIS = 200;
+
+	/**
+	 * Two-sided 99.9% quantiles of Student's t distribution, by degrees of
+	 * freedom from 1 to 30
+	 */
+	private static final double[] T_999 = { 636.619, 31.599, 12.924, 8.610,
+		6.869, 5.959, 5.408, 5.041, 4.781, 4.587, 4.437, 4.318, 4.221, 4.140,
+		4.073, 4.015, 3.965, 3.922, 3.883, 3.850, 3.819, 3.792, 3.768, 3.745,
+		3.725, 3.707, 3.690, 3.674, 3.659, 3.646 };
+
+	/** The 99.9% quantile for more than 30 degrees of freedom */
+	private static final double Z_999 = 3.291;
+
+	/**
+	 * The measurements of a benchmark.
+	 */
+	static final class Result {
+		/** The measured benchmark */
+		private final Benchmark m_benchmark;
+
+		/** Nanoseconds per operation, by measured iteration */
+		private final double[] m_scores;
+
+		/** Bytes allocated per operation, or -1 if not counted */
+		private final double m_allocated;
+
+		/**
+		 * Create the result of a benchmark.
+		 * @param a_benchmark <code>Benchmark</code>, the benchmark
+		 * @param a_scores <code>double[]</code>, nanoseconds per operation,
+		 * 	by measured iteration
+		 * @param a_allocated <code>double</code>, bytes allocated per
+		 * 	operation, or -1 if not counted
+		 */
+		Result(Benchmark a_benchmark, double[] a_scores, double a_allocated){
+			m_benchmark = a_benchmark;
+			m_scores = a_scores;
+			m_allocated = a_allocated;
+		}
+
+		/**
+		 * Get the measured benchmark.
+		 * @return <code>Benchmark</code>, the benchmark
+		 */
+		Benchmark getBenchmark(){
+			return m_benchmark;
+		}
+
+		/**
+		 * Get the nanoseconds per operation of every measured iteration.
+		 * @return <code>double[]</code>, the iterations' scores
+		 */
+		double[] getScores(){
+			return m_scores.clone();
+		}
+
+		/**
+		 * Get the mean of the iterations' nanoseconds per operation.
+		 * @return <code>double</code>, the score
+		 */
+		double getScore(){
+			double sum = 0;
+			for( double score : m_scores ){
+				sum += score;
+			}
+			return sum / m_scores.length;
+		}
+
+		/**
+		 * Get the half-width of the score's 99.9% confidence interval.
+		 * @return <code>double</code>, the error, <code>NaN</code> if only a
+		 * 	single iteration was measured
+		 */
+		double getScoreError(){
+			int n = m_scores.length;
+			if( n < 2 ){
+				return Double.NaN;
+			}
+
+			double mean = getScore();
+			double squares = 0;
+			for( double score : m_scores ){
+				squares += ( score - mean ) * ( score - mean );
+			}
+			double quantile = n - 1 <= T_999.length ? T_999[ n - 2 ] : Z_999;
+			return quantile * Math.sqrt( squares / ( n - 1 ) ) / Math.sqrt( n );
+		}
+
+		/**
+		 * Get the bytes allocated per operation by the benchmark's thread.
+		 * @return <code>double</code>, the bytes, or -1 if the JVM does not
+		 * 	count them
+		 */
+		double getAllocated(){
+			return m_allocated;
+		}
+	}
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** Warmup iterations of each benchmark */
+	private int m_warmupIterations;
+
+	/** Measured iterations of each benchmark */
+	private int m_iterations;
+
+	/** Milliseconds per iteration */
+	private int m_iterationMillis;
+
+	/** Filter of the benchmarks to run, or <code>null</code> to run all */
+	private Pattern m_filter;
+
+	/** Format of the results file, <code>csv</code> or <code>json</code> */
+	private String m_resultFormat;
+
+	/** File to write the results to, or <code>null</code> if none */
+	private String m_resultFile;
+
+	/** The standard output, which the results are printed to */
+	private final PrintStream m_out;
+
+	/** Counter of the bytes allocated by threads, or <code>null</code> */
+	private final com.sun.management.ThreadMXBean m_threads;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create a runner configured by the given command line options.
+	 *
+	 * @param a_args <code>String[]</code>, the options
+	 * @throws IllegalArgumentException if an option is unknown or invalid
+	 */
+	public BenchmarkRunner(String[] a_args){
+		m_warmupIterations = DEFAULT_WARMUP_ITERATIONS;
+		m_iterations = DEFAULT_ITERATIONS;
+		m_iterationMillis = DEFAULT_ITERATION_MILLIS;
+		m_filter = null;
+		m_resultFormat = null;
+		m_resultFile = null;
+		m_out = System.out;
+
+		for( int i = 0; i < a_args.length; i++ ){
+			String option = a_args[i];
+			if( i + 1 == a_args.length ){
+				throw new IllegalArgumentException("Missing value of "
+						+ option);
+			}
+			String value = a_args[ ++i ];
+			switch( option ){
+			case "-wi":
+				m_warmupIterations = Math.max( 0, Integer.parseInt( value ) );
+				break;
+			case "-i":
+				m_iterations = Math.max( 1, Integer.parseInt( value ) );
+				break;
+			case "-r":
+				m_iterationMillis = Math.max( 1, Integer.parseInt( value ) );
+				break;
+			case "-f":
+				m_filter = Pattern.compile( value );
+				break;
+			case "-rf":
+				m_resultFormat = value.toLowerCase( Locale.ROOT );
+				break;
+			case "-rff":
+				m_resultFile = value;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+
+		if( m_resultFile != null && m_resultFormat == null ){
+			m_resultFormat = m_resultFile.toLowerCase( Locale.ROOT )
+					.endsWith( ".csv" ) ? "csv" : "json";
+		}
+		if( m_resultFormat != null && !m_resultFormat.equals( "csv" )
+				&& !m_resultFormat.equals( "json" ) ){
+			throw new IllegalArgumentException("Unknown result format "
+					+ m_resultFormat);
+		}
+
+		java.lang.management.ThreadMXBean threads =
+				ManagementFactory.getThreadMXBean();
+		if( threads instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) threads)
+				.isThreadAllocatedMemorySupported() ){
+			m_threads = (com.sun.management.ThreadMXBean) threads;
+			m_threads.setThreadAllocatedMemoryEnabled( true );
+		}
+		else{
+			m_threads = null;
+		}
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Run every benchmark passing the filter, printing each one's result
+	 * as it finishes, then write the results file if one was given.
+	 *
+	 * @param a_benchmarks <code>List&lt;Benchmark&gt;</code>, the benchmarks
+	 * @return <code>boolean</code> - <code>true</code> if every benchmark
+	 * 	ran, <code>false</code> if any failed
+	 * @throws IOException if the results file cannot be written
+	 */
+	public boolean run(List<Benchmark> a_benchmarks) throws IOException{
+		List<Result> results = new ArrayList<Result>();
+		boolean passed = true;
+
+		m_out.println( String.format( "%-64s %12s %10s %10s", "Benchmark",
+				"ns/op", "error", "B/op" ) );
+		//keep the server's and client's logging out of the measurements, including that
+		//of threads still finishing the last benchmark's work
+		System.setOut( new PrintStream( new OutputStream(){
+			@Override
+			public void write(int a_byte){
+			}
+
+			@Override
+			public void write(byte[] a_data, int a_offset, int a_length){
+			}
+		}) );
+		try {
+			for( Benchmark benchmark : a_benchmarks ){
+				if( m_filter != null
+						&& !m_filter.matcher( benchmark.getLabel() ).find() ){
+					continue;
+				}
+
+				Result result;
+				try {
+					result = measure( benchmark );
+				} catch (Exception e) {
+					m_out.println( benchmark.getLabel() + " FAILED: " + e );
+					passed = false;
+					continue;
+				}
+
+				results.add( result );
+				m_out.println( String.format( Locale.ROOT,
+						"%-64s %12.1f %10.1f %10s", benchmark.getLabel(),
+						result.getScore(), result.getScoreError(),
+						result.getAllocated() < 0 ? "-" : String.format(
+								Locale.ROOT, "%.1f", result.getAllocated() ) ) );
+			}
+		} finally {
+			System.setOut( m_out );
+		}
+
+		if( m_resultFile != null ){
+			writeResults( results );
+			m_out.println( "Results written to " + m_resultFile );
+		}
+		return passed;
+	}
+
+	/**
+	 * Set up, warm up and measure a benchmark, tearing it down afterwards.
+	 * @param a_benchmark <code>Benchmark</code>, the benchmark
+	 * @return <code>Result</code>, its measurements
+	 * @throws Exception if the benchmark fails
+	 */
+	private Result measure(Benchmark a_benchmark) throws Exception{
+		long threadID = Thread.currentThread().getId();
+		long iterationNanos = m_iterationMillis * 1000000L;
+
+		a_benchmark.setUp();
+		try {
+			for( int i = 0; i < m_warmupIterations; i++ ){
+				runIteration( a_benchmark, iterationNanos );
+				a_benchmark.afterIteration();
+			}
+
+			double[] scores = new double[ m_iterations ];
+			long operations = 0;
+			long allocated = 0;
+			for( int i = 0; i < m_iterations; i++ ){
+				long allocatedBefore = m_threads != null
+						? m_threads.getThreadAllocatedBytes( threadID ) : 0;
+				long start = System.nanoTime();
+				long iterationOps = runIteration( a_benchmark, iterationNanos );
+				long nanos = System.nanoTime() - start;
+				if( m_threads != null ){
+					allocated += m_threads.getThreadAllocatedBytes( threadID )
+							- allocatedBefore;
+				}
+				a_benchmark.afterIteration();
+
+				scores[i] = (double) nanos / iterationOps;
+				operations += iterationOps;
+			}
+
+			return new Result( a_benchmark, scores,
+					m_threads != null ? (double) allocated / operations : -1 );
+		} finally {
+			a_benchmark.tearDown();
+		}
+	}
+
+	/**
+	 * Call a benchmark until the iteration's time is up.
+	 * @param a_benchmark <code>Benchmark</code>, the benchmark
+	 * @param a_nanos <code>long</code>, the iteration's time
+	 * @return <code>long</code>, the number of operations performed
+	 * @throws Exception if the benchmark fails
+	 */
+	private static long runIteration(Benchmark a_benchmark, long a_nanos)
+			throws Exception{
+		long end = System.nanoTime() + a_nanos;
+		long operations = 0;
+		do{
+			operations += a_benchmark.run();
+		} while( System.nanoTime() < end );
+		return operations;
+	}
+
+	/**
+	 * Write the results to the results file, in its format.
+	 * @param a_results <code>List&lt;Result&gt;</code>, the results
+	 * @throws IOException if the file cannot be written
+	 */
+	private void writeResults(List<Result> a_results) throws IOException{
+		Writer out = new OutputStreamWriter(
+				new FileOutputStream( m_resultFile ), "UTF-8" );
+		try {
+			if( m_resultFormat.equals( "csv" ) ){
+				writeCsv( out, a_results );
+			}
+			else{
+				writeJson( out, a_results );
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write the results as CSV, one row per score, with a column for every
+	 * parameter of any benchmark.
+	 * @param a_out <code>Writer</code>, where the results are written
+	 * @param a_results <code>List&lt;Result&gt;</code>, the results
+	 * @throws IOException if the results cannot be written
+	 */
+	private void writeCsv(Writer a_out, List<Result> a_results)
+			throws IOException{
+		Set<String> params = new LinkedHashSet<String>();
+		for( Result result : a_results ){
+			params.addAll( result.getBenchmark().getParams().keySet() );
+		}
+
+		StringBuilder csv = new StringBuilder( "\"Benchmark\",\"Mode\","
+				+ "\"Threads\",\"Samples\",\"Score\",\"Score Error (99.9%)\","
+				+ "\"Unit\"" );
+		for( String param : params ){
+			csv.append( ",\"Param: " ).append( param ).append( '"' );
+		}
+		csv.append( '\n' );
+
+		for( Result result : a_results ){
+			Benchmark benchmark = result.getBenchmark();
+			appendCsvRow( csv, benchmark.getName(), params,
+					benchmark.getParams(), result.getScores().length,
+					result.getScore(), result.getScoreError(), "ns/op" );
+			if( result.getAllocated() >= 0 ){
+				appendCsvRow( csv, benchmark.getName()
+						+ ":\u00b7gc.alloc.rate.norm", params,
+						benchmark.getParams(), 1, result.getAllocated(),
+						Double.NaN, "B/op" );
+			}
+		}
+		a_out.write( csv.toString() );
+	}
+
+	/**
+	 * Append a row of the CSV results.
+	 * @param a_csv <code>StringBuilder</code>, the results
+	 * @param a_name <code>String</code>, the score's name
+	 * @param a_params <code>Set&lt;String&gt;</code>, the parameters with
+	 * 	columns
+	 * @param a_values <code>Map&lt;String, String&gt;</code>, the
+	 * 	benchmark's parameters
+	 * @param a_samples <code>int</code>, the number of iterations measured
+	 * @param a_score <code>double</code>, the score
+	 * @param a_error <code>double</code>, the score's error
+	 * @param a_unit <code>String</code>, the score's unit
+	 */
+	private void appendCsvRow(StringBuilder a_csv, String a_name,
+			Set<String> a_params, Map<String, String> a_values, int a_samples,
+			double a_score, double a_error, String a_unit){
+		a_csv.append( '"' ).append( a_name ).append( "\",\"avgt\",1," )
+				.append( a_samples ).append( ',' )
+				.append( formatNumber( a_score ) ).append( ',' )
+				.append( formatNumber( a_error ) ).append( ",\"" )
+				.append( a_unit ).append( '"' );
+		for( String param : a_params ){
+			String value = a_values.get( param );
+			a_csv.append( ',' );
+			if( value != null ){
+				a_csv.append( value );
+			}
+		}
+		a_csv.append( '\n' );
+	}
+
+	/**
+	 * Write the results as a JSON array, one object per benchmark.
+	 * @param a_out <code>Writer</code>, where the results are written
+	 * @param a_results <code>List&lt;Result&gt;</code>, the results
+	 * @throws IOException if the results cannot be written
+	 */
+	private void writeJson(Writer a_out, List<Result> a_results)
+			throws IOException{
+		StringBuilder json = new StringBuilder( "[\n" );
+		for( int i = 0; i < a_results.size(); i++ ){
+			Result result = a_results.get( i );
+			Benchmark benchmark = result.getBenchmark();
+			double score = result.getScore();
+			double error = result.getScoreError();
+
+			json.append( "    {\n" );
+			json.append( "        \"benchmark\" : " )
+					.append( quote( benchmark.getName() ) ).append( ",\n" );
+			json.append( "        \"mode\" : \"avgt\",\n" );
+			json.append( "        \"threads\" : 1,\n" );
+			json.append( "        \"forks\" : 1,\n" );
+			json.append( "        \"warmupIterations\" : " )
+					.append( m_warmupIterations ).append( ",\n" );
+			json.append( "        \"warmupTime\" : \"" )
+					.append( m_iterationMillis ).append( " ms\",\n" );
+			json.append( "        \"measurementIterations\" : " )
+					.append( m_iterations ).append( ",\n" );
+			json.append( "        \"measurementTime\" : \"" )
+					.append( m_iterationMillis ).append( " ms\",\n" );
+
+			json.append( "        \"params\" : {" );
+			String separator = "\n";
+			for( Map.Entry<String, String> param
+					: benchmark.getParams().entrySet() ){
+				json.append( separator ).append( "            " )
+						.append( quote( param.getKey() ) ).append( " : " )
+						.append( quote( param.getValue() ) );
+				separator = ",\n";
+			}
+			json.append( "\n        },\n" );
+
+			json.append( "        \"primaryMetric\" : {\n" );
+			json.append( "            \"score\" : " )
+					.append( formatJsonNumber( score ) ).append( ",\n" );
+			json.append( "            \"scoreError\" : " )
+					.append( formatJsonNumber( error ) ).append( ",\n" );
+			json.append( "            \"scoreConfidence\" : [ " )
+					.append( formatJsonNumber( score - error ) ).append( ", " )
+					.append( formatJsonNumber( score + error ) )
+					.append( " ],\n" );
+			json.append( "            \"scoreUnit\" : \"ns/op\",\n" );
+			json.append( "            \"rawData\" : [ [ " );
+			double[] scores = result.getScores();
+			for( int j = 0; j < scores.length; j++ ){
+				json.append( j > 0 ? ", " : "" )
+						.append( formatJsonNumber( scores[j] ) );
+			}
+			json.append( " ] ]\n" );
+			json.append( "        },\n" );
+
+			json.append( "        \"secondaryMetrics\" : {" );
+			if( result.getAllocated() >= 0 ){
+				json.append( "\n            \"\u00b7gc.alloc.rate.norm\" : {\n" );
+				json.append( "                \"score\" : " )
+						.append( formatJsonNumber( result.getAllocated() ) )
+						.append( ",\n" );
+				json.append( "                \"scoreError\" : \"NaN\",\n" );
+				json.append( "                \"scoreUnit\" : \"B/op\"\n" );
+				json.append( "            }\n        " );
+			}
+			json.append( "}\n" );
+			json.append( i + 1 < a_results.size() ? "    },\n" : "    }\n" );
+		}
+		json.append( "]\n" );
+		a_out.write( json.toString() );
+	}
+
+	/**
+	 * Format a number for the CSV results.
+	 * @param a_value <code>double</code>, the number
+	 * @return <code>String</code>, the number, or <code>NaN</code>
+	 */
+	private static String formatNumber(double a_value){
+		if( Double.isNaN( a_value ) || Double.isInfinite( a_value ) ){
+			return "NaN";
+		}
+		return String.format( Locale.ROOT, "%.6f", a_value );
+	}
+
+	/**
+	 * Format a number for the JSON results, in which <code>NaN</code> is
+	 * a string as JSON has no such number.
+	 * @param a_value <code>double</code>, the number
+	 * @return <code>String</code>, the number, or <code>"NaN"</code>
+	 */
+	private static String formatJsonNumber(double a_value){
+		if( Double.isNaN( a_value ) || Double.isInfinite( a_value ) ){
+			return "\"NaN\"";
+		}
+		return String.format( Locale.ROOT, "%.6f", a_value );
+	}
+
+	/**
+	 * Quote a string for the JSON results.
+	 * @param a_value <code>String</code>, the string
+	 * @return <code>String</code>, the quoted string
+	 */
+	private static String quote(String a_value){
+		StringBuilder quoted = new StringBuilder( a_value.length() + 2 );
+		quoted.append( '"' );
+		for( int i = 0; i < a_value.length(); i++ ){
+			char c = a_value.charAt( i );
+			if( c == '"' || c == '\\' ){
+				quoted.append( '\\' ).append( c );
+			}
+			else if( c < 0x20 ){
+				quoted.append( String.format( "\\u%04x", (int) c ) );
+			}
+			else{
+				quoted.append( c );
+			}
+		}
+		return quoted.append( '"' ).toString();
+	}
+}
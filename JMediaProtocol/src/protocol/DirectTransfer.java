@@ -0,0 +1,132 @@
+package protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * File transfers streamed straight from the sender to the receiver over a
+ * connection of their own, with the server only brokering the connection.
+ * <p>
+ * A V2 sender asks for a direct transfer by setting <code>DIRECT</code> in
+ * the options at the end of its transfer request. A server allowing direct
+ * transfers passes the receiver a one-time token with the request, and a
+ * receiver accepting the transfer listens on a port of its own, answering
+ * with the port. The server then passes the sender the receiver's address,
+ * as the server sees it, along with the port and token.
+ * <p>
+ * The sender connects to the receiver and sends its hello: the
+ * <code>MAGIC</code> int, the transfer ID and the token. The receiver, which
+ * accepts a single connection, answers a valid hello with <code>OK</code>,
+ * reads the file's bytes as they are, and answers with <code>OK</code> once
+ * it has written all of them. The sender then ends the transfer through the
+ * server, as it does after relaying the file. If the sender cannot connect,
+ * or the hello is refused, it relays the file through the server instead.
+ * @author Andrzej Brynczka
+ *
+ */
+public final class DirectTransfer {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Option bit of a transfer request or answer asking for a direct one */
+	public static final int DIRECT = 0x01;
+
+	/** Size of a transfer's token, in bytes */
+	public static final int TOKEN_SIZE = 16;
+
+	/** First int of the sender's hello, "JMDT" */
+	public static final int MAGIC = 0x4A4D4454;
+
+	/** Answer of the receiver to a valid hello, and to the file's end */
+	public static final byte OK = 1;
+
+	/**
+	 * Milliseconds the sender waits to connect to the receiver, and either
+	 * side waits for the other's answers
+	 */
+	public static final int CONNECT_TIMEOUT = 3000;
+
+	/** Milliseconds the receiver waits for the sender to connect */
+	public static final int ACCEPT_TIMEOUT = 30000;
+
+	/** Source of the tokens */
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Not instantiable, only holds the direct transfers' constants and
+	 * methods.
+	 */
+	private DirectTransfer(){
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Create a new, unguessable token for a transfer.
+	 * @return <code>byte[]</code>, the <code>TOKEN_SIZE</code> bytes
+	 */
+	public static byte[] newToken(){
+		byte[] token = new byte[TOKEN_SIZE];
+		RANDOM.nextBytes( token );
+		return token;
+	}
+
+	/**
+	 * Send the sender's hello to the receiver.
+	 * @param a_out <code>DataOutputStream</code>, the direct connection's
+	 * 	stream
+	 * @param a_transferID <code>int</code>, the transfer's ID
+	 * @param a_token <code>byte[]</code>, the transfer's token
+	 * @throws IOException if the hello cannot be sent
+	 */
+	public static void writeHello(DataOutputStream a_out, int a_transferID,
+			byte[] a_token) throws IOException{
+		a_out.writeInt( MAGIC );
+		a_out.writeInt( a_transferID );
+		a_out.write( a_token );
+		a_out.flush();
+	}
+
+	/**
+	 * Read the sender's hello, and check that it is for the given transfer.
+	 * @param a_in <code>DataInputStream</code>, the direct connection's
+	 * 	stream
+	 * @param a_transferID <code>int</code>, the transfer's ID
+	 * @param a_token <code>byte[]</code>, the transfer's token
+	 * @return <code>boolean</code> - <code>true</code> if the hello carries
+	 * 	the transfer's ID and token, <code>false</code> otherwise
+	 * @throws IOException if the hello cannot be read
+	 */
+	public static boolean readHello(DataInputStream a_in, int a_transferID,
+			byte[] a_token) throws IOException{
+		if( a_in.readInt() != MAGIC ){
+			return false;
+		}
+
+		int transferID = a_in.readInt();
+		byte[] token = new byte[TOKEN_SIZE];
+		a_in.readFully( token );
+		return transferID == a_transferID
+				&& MessageDigest.isEqual( token, a_token );
+	}
+
+	/**
+	 * Read the other side's answer.
+	 * @param a_in <code>DataInputStream</code>, the direct connection's
+	 * 	stream
+	 * @throws IOException if the answer is not <code>OK</code>, or cannot
+	 * 	be read
+	 */
+	public static void readOk(DataInputStream a_in) throws IOException{
+		if( a_in.readByte() != OK ){
+			throw new IOException("Direct transfer refused");
+		}
+	}
+}
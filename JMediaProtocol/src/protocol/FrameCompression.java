@@ -0,0 +1,136 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of text-heavy V2 frames, such as chat messages and user
+ * lists, agreed on by the client and server during login.
+ * <p>
+ * A client able to read compressed frames lists <code>DEFLATE</code> in the
+ * capabilities at the end of its V2 login, and a server willing to use them
+ * answers with the size, in bytes, above which frames are compressed. Each
+ * frame is compressed on its own, with a preset dictionary of common chat
+ * words and addresses, so that a compressed message can still be shared by
+ * every client it is sent to. A compressed frame has the type code
+ * <code>DEFLATED_TYPE</code>, followed by the length of the original
+ * frame's type code and fields as a varint, then those bytes compressed in
+ * the zlib format.
+ * <p>
+ * File data is never compressed, as the media it carries usually is
+ * already.
+ * @author Andrzej Brynczka
+ *
+ */
+public final class FrameCompression {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Capability bit of a client able to read compressed frames */
+	public static final int DEFLATE = 0x01;
+
+	/** Type code of a compressed V2 frame */
+	public static final byte DEFLATED_TYPE = 0x7E;
+
+	/**
+	 * Strings common in chat messages, user lists and punishment lists,
+	 * most common last, from which the compression of even short frames
+	 * can draw. Must never change, as both sides compress with it.
+	 */
+	private static final byte[] DICTIONARY = ( "http://www. .com .org .net "
+			+ "0001 0002 0003 10.0.0. 172.16. 192.168.0. 192.168.1. "
+			+ "127.0.0.1 anyone everyone someone something thanks "
+			+ "thank you sorry please hello hey what's going on? "
+			+ "how are you doing good great nice cool yeah okay lol "
+			+ "haha just about there here then when what with this "
+			+ "that have from your they will would could should "
+			+ "know like want need think about really right now "
+			+ "the and you for not are but can all was " )
+			.getBytes( StandardCharsets.US_ASCII );
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Not instantiable, only holds the compression's constants and methods.
+	 */
+	private FrameCompression(){
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Compress a frame's type code and fields.
+	 * @param a_data <code>byte[]</code>, the bytes to compress
+	 * @param a_length <code>int</code>, the number of bytes to compress
+	 * @return <code>byte[]</code>, the compressed bytes, or
+	 * 	<code>null</code> if compressing them does not make them smaller
+	 */
+	public static byte[] deflate(byte[] a_data, int a_length){
+		Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+		try {
+			deflater.setDictionary( DICTIONARY );
+			deflater.setInput( a_data, 0, a_length );
+			deflater.finish();
+
+			//give up once the output is no smaller than the input
+			byte[] compressed = new byte[a_length];
+			int size = 0;
+			while( !deflater.finished() && size < compressed.length ){
+				size += deflater.deflate( compressed, size,
+						compressed.length - size );
+			}
+			if( !deflater.finished() ){
+				return null;
+			}
+
+			return Arrays.copyOf( compressed, size );
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Decompress a frame's type code and fields.
+	 * @param a_inflater <code>Inflater</code>, the connection's inflater,
+	 * 	reset before use
+	 * @param a_data <code>byte[]</code>, the compressed bytes
+	 * @param a_offset <code>int</code>, the position of the first
+	 * 	compressed byte
+	 * @param a_length <code>int</code>, the number of compressed bytes
+	 * @param a_dest <code>byte[]</code>, the array to decompress into
+	 * @param a_size <code>int</code>, the number of bytes the data
+	 * 	decompresses to
+	 * @throws IOException if the data is invalid, or decompresses to fewer
+	 * 	bytes than expected
+	 */
+	public static void inflate(Inflater a_inflater, byte[] a_data,
+			int a_offset, int a_length, byte[] a_dest, int a_size)
+			throws IOException{
+		a_inflater.reset();
+		a_inflater.setInput( a_data, a_offset, a_length );
+		try {
+			int size = 0;
+			while( size < a_size ){
+				int inflated = a_inflater.inflate( a_dest, size,
+						a_size - size );
+				if( inflated == 0 ){
+					if( !a_inflater.needsDictionary() ){
+						throw new IOException("Compressed frame holds "
+								+ size + " of " + a_size + " bytes");
+					}
+					a_inflater.setDictionary( DICTIONARY );
+				}
+				size += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid compressed frame: "
+					+ e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package protocol;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of the arrays that frames relayed to a single peer are built in,
+ * such as file data passed from one client to another, so that the arrays
+ * are reused rather than allocated for every frame.
+ * <p>
+ * Every pooled array has the same size. A frame taken from the pool is
+ * owned by the one peer it is sent to, and is released once it has been
+ * written, returning its array; frames that are never released, such as
+ * those discarded with a closed connection, are simply left to the garbage
+ * collector. Frames larger than the pooled arrays get arrays of their own.
+ * @author Andrzej Brynczka
+ *
+ */
+public final class FramePool {
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** Size of every pooled array, in bytes */
+	private final int m_bufferSize;
+
+	/** Largest number of released arrays kept for reuse */
+	private final int m_maxBuffers;
+
+	/** The released arrays, waiting to be reused */
+	private final ArrayDeque<byte[]> m_buffers;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create an empty pool.
+	 * @param a_bufferSize <code>int</code>, the size of every pooled array,
+	 * 	in bytes
+	 * @param a_maxBuffers <code>int</code>, the largest number of released
+	 * 	arrays kept for reuse
+	 */
+	public FramePool(int a_bufferSize, int a_maxBuffers){
+		m_bufferSize = a_bufferSize;
+		m_maxBuffers = a_maxBuffers;
+		m_buffers = new ArrayDeque<byte[]>();
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the size of every pooled array.
+	 * @return <code>int</code>, the size in bytes
+	 */
+	public int getBufferSize(){
+		return m_bufferSize;
+	}
+
+	/**
+	 * Get the number of released arrays waiting to be reused.
+	 * @return <code>int</code>, the number of arrays
+	 */
+	public synchronized int size(){
+		return m_buffers.size();
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Take an array with room for a frame of the given size, reusing a
+	 * released array if the frame fits in one.
+	 * @param a_size <code>int</code>, the frame's size in bytes
+	 * @return <code>byte[]</code>, the array, at least as large as the frame
+	 */
+	byte[] acquire(int a_size){
+		if( a_size > m_bufferSize ){
+			return new byte[a_size];
+		}
+
+		byte[] buffer;
+		synchronized( this ){
+			buffer = m_buffers.pollFirst();
+		}
+		return buffer != null ? buffer : new byte[m_bufferSize];
+	}
+
+	/**
+	 * Return the array of a frame that has been written, keeping it for
+	 * reuse if it is one of the pool's arrays and the pool is not full.
+	 * @param a_buffer <code>byte[]</code>, the frame's array
+	 */
+	void release(byte[] a_buffer){
+		if( a_buffer.length != m_bufferSize ){
+			return;
+		}
+
+		synchronized( this ){
+			if( m_buffers.size() < m_maxBuffers ){
+				m_buffers.addFirst( a_buffer );
+			}
+		}
+	}
+}
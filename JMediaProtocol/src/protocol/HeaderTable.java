@@ -0,0 +1,65 @@
+package protocol;
+
+/**
+ * Registry of a value for each <code>MessageHeader</code>, such as the
+ * handler that reads or routes messages with the header.
+ * <p>
+ * The values are kept in an array indexed by the headers' ordinals, so a
+ * lookup is a single array load in place of a <code>switch</code> over the
+ * headers. A table is filled in once, while its owner is set up, and only
+ * read from afterwards; headers without a value of their own get the
+ * table's default.
+ *
+ * @param <T> the type of the values
+ * @author Andrzej Brynczka
+ */
+public final class HeaderTable<T> {
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The values, indexed by the headers' ordinals */
+	private final Object[] m_values;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create a table giving every header the given default value.
+	 * @param a_default <code>T</code>, the value of headers without a value
+	 * 	of their own, may be <code>null</code>
+	 */
+	public HeaderTable(T a_default){
+		m_values = new Object[ MessageHeader.values().length ];
+		for( int i = 0; i < m_values.length; i++ ){
+			m_values[i] = a_default;
+		}
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the value of the given header.
+	 * @param a_header <code>MessageHeader</code>, the header
+	 * @return <code>T</code>, the header's value, or the default if it has
+	 * 	none of its own
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(MessageHeader a_header){
+		return (T) m_values[ a_header.ordinal() ];
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Set the value of the given headers.
+	 * @param a_value <code>T</code>, the value
+	 * @param a_headers <code>MessageHeader...</code>, the headers
+	 */
+	public void put(T a_value, MessageHeader... a_headers){
+		for( MessageHeader header : a_headers ){
+			m_values[ header.ordinal() ] = a_value;
+		}
+	}
+}
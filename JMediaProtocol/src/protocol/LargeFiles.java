@@ -0,0 +1,67 @@
+package protocol;
+
+/**
+ * Transfers of files of 2GB and over, whose sizes do not fit in the int
+ * field of a transfer request.
+ * <p>
+ * A V2 client able to receive such files sets <code>CAPABILITY</code> in the
+ * capabilities of its login, and a V2 server relaying them sets it in the
+ * capabilities that follow the compression threshold of its login response.
+ * The request of a file over <code>MAX_INT_SIZE</code> holds
+ * <code>MAX_INT_SIZE</code> in its int size field, sets <code>LARGE</code>
+ * in its options, and is followed, after any other option's fields, by the
+ * file's size as a long. Such requests are only sent to servers, and passed
+ * on to receivers, that set <code>CAPABILITY</code>.
+ * <p>
+ * The file's data is sent in segments as before: a segment's number gives
+ * its offset in the file, at <code>(number - 1)</code> times the largest
+ * segment size, so a transfer's offsets are 64-bit without any other field
+ * changing.
+ * @author Andrzej Brynczka
+ *
+ */
+public final class LargeFiles {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Login capability of clients and servers handling large files */
+	public static final int CAPABILITY = 0x08;
+
+	/** Option bit of a transfer request whose size follows as a long */
+	public static final int LARGE = 0x04;
+
+	/** Largest file size held in a transfer request's int size field */
+	public static final long MAX_INT_SIZE = Integer.MAX_VALUE;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Not instantiable, only holds the large files' constants.
+	 */
+	private LargeFiles(){
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Check whether a file's size only fits in a long.
+	 * @param a_size <code>long</code>, the file's size, in bytes
+	 * @return <code>boolean</code> - <code>true</code> if the size is over
+	 * 	<code>MAX_INT_SIZE</code>, <code>false</code> otherwise
+	 */
+	public static boolean isLarge(long a_size){
+		return a_size > MAX_INT_SIZE;
+	}
+
+	/**
+	 * Get the value of a transfer request's int size field.
+	 * @param a_size <code>long</code>, the file's size, in bytes
+	 * @return <code>int</code> - the size, or <code>MAX_INT_SIZE</code> for
+	 * 	a large file
+	 */
+	public static int intSize(long a_size){
+		return (int) Math.min( a_size, MAX_INT_SIZE );
+	}
+}
@@ -0,0 +1,233 @@
+package protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations, recorded in nanoseconds from any thread without
+ * locking.
+ * <p>
+ * Durations are counted in buckets that split every power of two into four,
+ * so a reported percentile is within a quarter of the true value. The
+ * buckets cover every positive <code>long</code>, so the histogram never
+ * needs resizing and its memory is fixed, however long it records.
+ * <p>
+ * Shared by the server's metrics, its benchmarks and the client's load
+ * test.
+ *
+ * @author Andrzej Brynczka
+ */
+public class LatencyHistogram {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Number of buckets every power of two is split into, as a shift */
+	private static final int SUB_BUCKET_BITS = 2;
+
+	/** Number of buckets every power of two is split into */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Number of buckets needed to hold any positive <code>long</code> */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** Number of durations recorded in each bucket */
+	private final AtomicLongArray m_buckets;
+
+	/** Number of durations recorded */
+	private final AtomicLong m_count;
+
+	/** Sum of the durations recorded, in nanoseconds */
+	private final AtomicLong m_total;
+
+	/** Longest duration recorded, in nanoseconds */
+	private final AtomicLong m_max;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create an empty histogram.
+	 */
+	public LatencyHistogram(){
+		m_buckets = new AtomicLongArray( BUCKETS );
+		m_count = new AtomicLong( 0 );
+		m_total = new AtomicLong( 0 );
+		m_max = new AtomicLong( 0 );
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the number of durations recorded.
+	 * @return <code>long</code>, the number of durations
+	 */
+	public long getCount(){
+		return m_count.get();
+	}
+
+	/**
+	 * Get the mean of the durations recorded.
+	 * @return <code>double</code>, the mean in microseconds, or 0 if nothing
+	 * 	has been recorded
+	 */
+	public double getMeanMicros(){
+		long count = m_count.get();
+		if( count == 0 ){
+			return 0;
+		}
+		return m_total.get() / 1000.0 / count;
+	}
+
+	/**
+	 * Get the longest duration recorded.
+	 * @return <code>double</code>, the duration in microseconds
+	 */
+	public double getMaxMicros(){
+		return m_max.get() / 1000.0;
+	}
+
+	/**
+	 * Get an estimate of the median duration.
+	 * @return <code>double</code>, the duration in microseconds
+	 */
+	public double getP50Micros(){
+		return getPercentileMicros( 0.5 );
+	}
+
+	/**
+	 * Get an estimate of the 90th percentile duration.
+	 * @return <code>double</code>, the duration in microseconds
+	 */
+	public double getP90Micros(){
+		return getPercentileMicros( 0.9 );
+	}
+
+	/**
+	 * Get an estimate of the 99th percentile duration.
+	 * @return <code>double</code>, the duration in microseconds
+	 */
+	public double getP99Micros(){
+		return getPercentileMicros( 0.99 );
+	}
+
+	/**
+	 * Get an estimate of the duration below which the given fraction of the
+	 * recorded durations fall.
+	 *
+	 * @param a_fraction <code>double</code>, the fraction, between 0 and 1
+	 * 	(0.99 for the 99th percentile)
+	 * @return <code>double</code>, the duration in microseconds, the upper
+	 * 	bound of the bucket holding the percentile, or 0 if nothing has been
+	 * 	recorded
+	 */
+	public double getPercentileMicros(double a_fraction){
+		long count = m_count.get();
+		if( count == 0 ){
+			return 0;
+		}
+
+		long rank = (long) Math.ceil( count * a_fraction );
+		long seen = 0;
+		for( int i = 0; i < BUCKETS; i++ ){
+			seen += m_buckets.get( i );
+			if( seen >= Math.max( 1, rank ) ){
+				//never report beyond the longest duration actually seen
+				return Math.min( upperBound( i ), m_max.get() ) / 1000.0;
+			}
+		}
+		return getMaxMicros();
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Record a single duration.
+	 * @param a_nanos <code>long</code>, the duration in nanoseconds;
+	 * 	negative values are counted as 0
+	 */
+	public void record(long a_nanos){
+		long nanos = Math.max( 0, a_nanos );
+
+		m_buckets.incrementAndGet( bucketOf( nanos ) );
+		m_count.incrementAndGet();
+		m_total.addAndGet( nanos );
+
+		long max = m_max.get();
+		while( nanos > max && !m_max.compareAndSet( max, nanos ) ){
+			max = m_max.get();
+		}
+	}
+
+	/**
+	 * Record the time passed since the given start.
+	 * @param a_startNanos <code>long</code>, the start, as given by
+	 * 	<code>System.nanoTime()</code>
+	 */
+	public void recordSince(long a_startNanos){
+		record( System.nanoTime() - a_startNanos );
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Get the bucket counting the given duration.
+	 * @param a_nanos <code>long</code>, the duration, not negative
+	 * @return <code>int</code>, the bucket's index
+	 */
+	private static int bucketOf(long a_nanos){
+		if( a_nanos < SUB_BUCKETS ){
+			return (int) a_nanos;
+		}
+
+		//the power of two, followed by the next bits below the highest one
+		int highestBit = 63 - Long.numberOfLeadingZeros( a_nanos );
+		int subBucket = (int) ( a_nanos >>> ( highestBit - SUB_BUCKET_BITS ) )
+				& ( SUB_BUCKETS - 1 );
+		return ( highestBit - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Get the largest duration counted by the given bucket.
+	 * @param a_bucket <code>int</code>, the bucket's index
+	 * @return <code>long</code>, the duration in nanoseconds
+	 */
+	private static long upperBound(int a_bucket){
+		if( a_bucket + 1 >= BUCKETS ){
+			return Long.MAX_VALUE;
+		}
+		return lowerBound( a_bucket + 1 ) - 1;
+	}
+
+	/**
+	 * Get the smallest duration counted by the given bucket.
+	 * @param a_bucket <code>int</code>, the bucket's index
+	 * @return <code>long</code>, the duration in nanoseconds
+	 */
+	private static long lowerBound(int a_bucket){
+		if( a_bucket < SUB_BUCKETS ){
+			return a_bucket;
+		}
+
+		int highestBit = a_bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = a_bucket % SUB_BUCKETS;
+		return ( SUB_BUCKETS + subBucket ) << ( highestBit - SUB_BUCKET_BITS );
+	}
+
+	/**
+	 * Describe the histogram for a log or report.
+	 * @return <code>String</code>, the count and main percentiles
+	 */
+	@Override
+	public String toString(){
+		return String.format( "count=%d mean=%.1fus p50=%.1fus p99=%.1fus "
+				+ "max=%.1fus", getCount(), getMeanMicros(),
+				getP50Micros(), getP99Micros(),
+				getMaxMicros() );
+	}
+}
@@ -0,0 +1,135 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The encoded bytes of a message, exactly as they are sent to a client.
+ * <p>
+ * A frame is built once per message and never changes afterwards, so a 
+ * single frame can be shared by every client the message is sent to.
+ * <p>
+ * Frames relayed to a single client are instead built in an array taken
+ * from a <code>FramePool</code>, and are released once written so that the
+ * array can be reused. Releasing any other frame does nothing.
+ * @author Andrzej Brynczka
+ *
+ */
+public final class MessageFrame {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************	
+	/** Frame of a message that has nothing to send */
+	public static final MessageFrame EMPTY = new MessageFrame( new byte[0] );
+	
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	
+	/** The encoded message, possibly followed by unused bytes */
+	private final byte[] m_data;
+	
+	/** The number of bytes in the frame, from the start of the array */
+	private final int m_length;
+	
+	/** 
+	 * The pool the array is returned to once the frame is released, or 
+	 * <code>null</code> if the frame is not pooled or has been released 
+	 */
+	private FramePool m_pool;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	
+	/**
+	 * Create a frame holding the given encoded message. The array is not
+	 * copied, and must not be changed afterwards.
+	 * @param a_data <code>byte[]</code>, the encoded message
+	 */
+	MessageFrame(byte[] a_data){
+		this( a_data, a_data.length, null );
+	}
+	
+	/**
+	 * Create a frame holding the start of the given array, taken from a
+	 * pool. The array must not be changed until the frame is released.
+	 * @param a_data <code>byte[]</code>, the array holding the message
+	 * @param a_length <code>int</code>, the number of bytes in the frame
+	 * @param a_pool <code>FramePool</code>, the pool the array was taken
+	 * 	from, or <code>null</code> if it is not pooled
+	 */
+	MessageFrame(byte[] a_data, int a_length, FramePool a_pool){
+		m_data = a_data;
+		m_length = a_length;
+		m_pool = a_pool;
+	}
+	
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the number of bytes in the frame.
+	 * @return <code>int</code>, the frame's length
+	 */
+	public int length(){
+		return m_length;
+	}
+	
+	/**
+	 * Check if the frame has nothing to send.
+	 * @return <code>boolean</code> - <code>true</code> if empty, 
+	 * 	<code>false</code> otherwise
+	 */
+	public boolean isEmpty(){
+		return m_length == 0;
+	}
+	
+	/**
+	 * Get a read-only buffer over the frame's bytes. Each call returns a new
+	 * buffer with its own position, sharing the same bytes.
+	 * @return <code>ByteBuffer</code>, the buffer, ready to be read from
+	 */
+	public ByteBuffer toByteBuffer(){
+		return ByteBuffer.wrap( m_data, 0, m_length ).asReadOnlyBuffer();
+	}
+	
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Write the whole frame to the given stream in a single write.
+	 * @param a_stream <code>OutputStream</code>, the stream to write to
+	 * @throws IOException if an error occurs when writing to the stream
+	 */
+	public void writeTo(OutputStream a_stream) throws IOException{
+		a_stream.write( m_data, 0, m_length );
+	}
+	
+	/**
+	 * Copy the frame's bytes into the given array, so that several frames 
+	 * can be collected into a single write.
+	 * @param a_dest <code>byte[]</code>, the array to copy into, with room
+	 * 	for the whole frame
+	 * @param a_offset <code>int</code>, the position to copy to
+	 * @return <code>int</code>, the position just after the copied frame
+	 */
+	public int copyTo(byte[] a_dest, int a_offset){
+		System.arraycopy( m_data, 0, a_dest, a_offset, m_length );
+		return a_offset + m_length;
+	}
+	
+	/**
+	 * Return a pooled frame's array to its pool, once the frame has been
+	 * written. The frame must not be used afterwards. Does nothing for
+	 * frames that are not pooled, which may be shared.
+	 */
+	public void release(){
+		FramePool pool = m_pool;
+		if( pool != null ){
+			m_pool = null;
+			pool.release( m_data );
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package protocol;
+
+import java.util.Arrays;
+
+/**
+ * Aids in the tracking of message header codes.
+ * Use to acquire the 4-character code for a desired message header, or
+ * to get the header enumeration for a 4-character code. Each header
+ * also has a single byte type code, used in its place by the compact
+ * <code>ProtocolVersion.V2</code> wire format.
+ * @author Andrzej Brynczka
+ *
+ */
+public enum MessageHeader{
+	LOGIN("0001", 0x01),
+	LOGOUT("0002", 0x02),
+	
+	REG_SendChatMess("0100", 0x10),
+	
+	PRIV_SendChatMess("0200", 0x20),
+	
+	FILE_Transfer("0300", 0x30),
+	
+	CHANNEL_Join("0400", 0x40),
+	CHANNEL_Leave("0401", 0x41),
+	CHANNEL_SendChatMess("0402", 0x42),
+	
+	ADMIN_Login("0800", 0x80),
+	ADMIN_PunishList("0809", 0x89),
+	ADMIN_PunishUser("0810", 0x8A),
+	ADMIN_RemovePunishment("0811", 0x8B),
+	
+	SERVER_UserList("0905", 0x95),
+	SERVER_AddNewUser("0906", 0x96),
+	SERVER_RemoveUser("0907", 0x97),
+	SERVER_UserListSync("0908", 0x98),
+	SERVER_Presence("0909", 0x99),
+	SERVER_Kicked("0970", 0xA0),
+	SERVER_Error("0999", 0xA9),
+	
+	INVALID("9999", 0xFF);
+	
+	/** The 4 character header code used in messages */
+	private final String headerCode;
+	
+	/** The single byte type code used in V2 frames */
+	private final byte typeCode;
+	
+	/** The headers indexed by their type codes, INVALID for unused codes */
+	private static final MessageHeader[] BY_TYPE_CODE = new MessageHeader[256];
+	
+	static{
+		Arrays.fill( BY_TYPE_CODE, INVALID );
+		for( MessageHeader header : values() ){
+			BY_TYPE_CODE[ header.typeCode & 0xFF ] = header;
+		}
+	}
+	
+	/**
+	 * Sets the header codes associated with the current enum.
+	 * @param code <code>String</code>, the 4 character code
+	 * @param type <code>int</code>, the single byte type code
+	 */
+	MessageHeader(String code, int type){
+		headerCode = code;
+		typeCode = (byte) type;
+	}
+	
+	/**
+	 * Get the 4 character message code for the given header.
+	 * @return <code>String</code> - the 4 character code
+	 */
+	public String getHeaderCode(){
+		return headerCode;
+	}
+	
+	/**
+	 * Get the single byte type code for the given header.
+	 * @return <code>byte</code> - the type code
+	 */
+	public byte getTypeCode(){
+		return typeCode;
+	}
+	
+	/**
+	 * Convert the string-based 4 character header code into its 
+	 * MessageHeader enum.
+	 * 
+	 * @param code <code>String</code>, the header code
+	 * @return <code>MessageHeader</code> - the header's enum
+	 */
+	public static MessageHeader fromString(String code){
+		switch(code){
+		case "0001":
+			return LOGIN;
+		case "0002":
+			return LOGOUT;
+		case "0100":
+			return REG_SendChatMess;
+		case "0200":
+			return PRIV_SendChatMess;
+		case "0300":
+			return FILE_Transfer;
+		case "0400":
+			return CHANNEL_Join;
+		case "0401":
+			return CHANNEL_Leave;
+		case "0402":
+			return CHANNEL_SendChatMess;
+		case "0800":
+			return ADMIN_Login;
+		case "0809":
+			return ADMIN_PunishList;
+		case "0810":
+			return ADMIN_PunishUser;
+		case "0811":
+			return ADMIN_RemovePunishment;
+		case "0905":
+			return SERVER_UserList;
+		case "0906":
+			return SERVER_AddNewUser;
+		case "0907":
+			return SERVER_RemoveUser;
+		case "0908":
+			return SERVER_UserListSync;
+		case "0909":
+			return SERVER_Presence;
+		case "0970":
+			return SERVER_Kicked;
+		case "0999":
+			return SERVER_Error;
+		default:
+			return INVALID;	
+		}
+	}
+	
+	/**
+	 * Convert a single byte type code into its MessageHeader enum.
+	 * 
+	 * @param type <code>byte</code>, the type code
+	 * @return <code>MessageHeader</code> - the header's enum
+	 */
+	public static MessageHeader fromTypeCode(byte type){
+		return BY_TYPE_CODE[ type & 0xFF ];
+	}
+}
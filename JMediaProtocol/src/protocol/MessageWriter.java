@@ -0,0 +1,290 @@
+package protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder of a single message in the wire format of a given
+ * <code>ProtocolVersion</code>, used by messages to write their fields
+ * without depending on the format.
+ * <p>
+ * The message's fields are collected in memory, and the finished message
+ * is taken with <code>toFrame()</code>, which adds the V2 frame's length,
+ * or sent with <code>writeTo()</code> so that it reaches its peer in a 
+ * single write.
+ * @author Andrzej Brynczka
+ *
+ */
+public final class MessageWriter {
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The format in which the message is written */
+	private final ProtocolVersion m_protocol;
+
+	/** The message's bytes, without any frame length */
+	private final ByteArrayOutputStream m_body;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create an empty writer for the given format.
+	 * @param a_protocol <code>ProtocolVersion</code>, the wire format
+	 */
+	public MessageWriter(ProtocolVersion a_protocol){
+		m_protocol = a_protocol;
+		m_body = new ByteArrayOutputStream();
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the format in which the message is written.
+	 * @return <code>ProtocolVersion</code>, the wire format
+	 */
+	public ProtocolVersion getProtocol(){
+		return m_protocol;
+	}
+
+	/**
+	 * Get the finished message, ready to be sent.
+	 * @return <code>MessageFrame</code>, the encoded message
+	 */
+	public MessageFrame toFrame(){
+		if( m_protocol == ProtocolVersion.V1 ){
+			return new MessageFrame( m_body.toByteArray() );
+		}
+
+		return toV2Frame( m_body );
+	}
+
+	/**
+	 * Get the finished message followed by the given bytes, such as file
+	 * data relayed from another peer's frame, built in an array taken from
+	 * the given pool. The bytes are copied straight into the frame, never
+	 * into the writer, and the frame is to be released once written.
+	 * @param a_pool <code>FramePool</code>, the pool to take the array from
+	 * @param a_trailing <code>ByteBuffer</code>, the bytes ending the
+	 * 	message, from its position to its limit, which are consumed
+	 * @return <code>MessageFrame</code>, the encoded message
+	 */
+	public MessageFrame toFrame(FramePool a_pool, ByteBuffer a_trailing){
+		int trailing = a_trailing.remaining();
+
+		//the frame's length, if any, and the fields written so far
+		ByteArrayOutputStream start = 
+				new ByteArrayOutputStream( m_body.size() + 5 );
+		try {
+			if( m_protocol == ProtocolVersion.V2 ){
+				ProtocolVersion.writeVarInt( start, m_body.size() + trailing );
+			}
+			m_body.writeTo( start );
+		} catch (IOException e) {
+			//not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException( e );
+		}
+
+		int length = start.size() + trailing;
+		byte[] data = a_pool.acquire( length );
+		System.arraycopy( start.toByteArray(), 0, data, 0, start.size() );
+		a_trailing.get( data, start.size(), trailing );
+		return new MessageFrame( data, length, a_pool );
+	}
+
+	/**
+	 * Get the finished V2 message, compressed as described by
+	 * <code>FrameCompression</code> if it is large enough and compressing
+	 * it makes it smaller.
+	 * @param a_threshold <code>int</code>, the smallest size of the
+	 * 	message's type code and fields that is compressed
+	 * @return <code>MessageFrame</code>, the encoded message
+	 */
+	public MessageFrame toCompressedFrame(int a_threshold){
+		if( m_protocol == ProtocolVersion.V1 || m_body.size() < a_threshold ){
+			return toFrame();
+		}
+
+		//the compressed bytes also need the type code and original length
+		byte[] body = m_body.toByteArray();
+		byte[] compressed = FrameCompression.deflate( body, body.length );
+		if( compressed == null || compressed.length + 6 > body.length ){
+			return toFrame();
+		}
+
+		ByteArrayOutputStream content =
+				new ByteArrayOutputStream( compressed.length + 6 );
+		content.write( FrameCompression.DEFLATED_TYPE );
+		try {
+			ProtocolVersion.writeVarInt( content, body.length );
+		} catch (IOException e) {
+			//not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException( e );
+		}
+		content.write( compressed, 0, compressed.length );
+		return toV2Frame( content );
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Write the message's header: its 4 character code in V1, or its single
+	 * byte type code in V2. Must be written first.
+	 * @param a_header <code>MessageHeader</code>, the message's header
+	 */
+	public void writeHeader(MessageHeader a_header){
+		if( m_protocol == ProtocolVersion.V1 ){
+			writeRaw( a_header.getHeaderCode().getBytes() );
+		}
+		else{
+			m_body.write( a_header.getTypeCode() );
+		}
+	}
+
+	/**
+	 * Write a single byte, such as a code or a response.
+	 * @param a_value <code>int</code>, the byte, in the lowest 8 bits
+	 */
+	public void writeByte(int a_value){
+		m_body.write( a_value );
+	}
+
+	/**
+	 * Write an int.
+	 * @param a_value <code>int</code>, the value
+	 */
+	public void writeInt(int a_value){
+		if( m_protocol == ProtocolVersion.V1 ){
+			writeFixedInt( a_value );
+		}
+		else{
+			writeVarInt( ProtocolVersion.toZigZag( a_value ) );
+		}
+	}
+
+	/**
+	 * Write a long, as 8 bytes, highest first, in either version.
+	 * @param a_value <code>long</code>, the value
+	 */
+	public void writeLong(long a_value){
+		writeFixedInt( (int) ( a_value >>> 32 ) );
+		writeFixedInt( (int) a_value );
+	}
+
+	/**
+	 * Write the length of the bytes or items that follow.
+	 * @param a_length <code>int</code>, the length, not negative
+	 */
+	public void writeLength(int a_length){
+		if( m_protocol == ProtocolVersion.V1 ){
+			writeFixedInt( a_length );
+		}
+		else{
+			writeVarInt( a_length );
+		}
+	}
+
+	/**
+	 * Write a string, preceded by its length in bytes.
+	 * @param a_string <code>String</code>, the string
+	 */
+	public void writeString(String a_string){
+		byte[] encoded = a_string.getBytes( m_protocol.getCharset() );
+		writeLength( encoded.length );
+		writeRaw( encoded );
+	}
+
+	/**
+	 * Write bytes as they are, without their length.
+	 * @param a_data <code>byte[]</code>, the bytes
+	 */
+	public void writeRaw(byte[] a_data){
+		writeRaw( a_data, 0, a_data.length );
+	}
+
+	/**
+	 * Write part of an array of bytes as they are, without their length.
+	 * @param a_data <code>byte[]</code>, the bytes
+	 * @param a_offset <code>int</code>, the position of the first byte
+	 * @param a_length <code>int</code>, the number of bytes
+	 */
+	public void writeRaw(byte[] a_data, int a_offset, int a_length){
+		m_body.write( a_data, a_offset, a_length );
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Send the finished message to the given stream in a single write.
+	 * @param a_stream <code>OutputStream</code>, the stream to send to
+	 * @throws IOException if an error occurs when writing to the stream
+	 */
+	public void writeTo(OutputStream a_stream) throws IOException{
+		toFrame().writeTo( a_stream );
+		a_stream.flush();
+	}
+
+	/**
+	 * Send the finished V2 message to the given stream in a single write,
+	 * compressed as described by <code>FrameCompression</code> if it is
+	 * large enough and compressing it makes it smaller.
+	 * @param a_stream <code>OutputStream</code>, the stream to send to
+	 * @param a_threshold <code>int</code>, the smallest size of the
+	 * 	message's type code and fields that is compressed
+	 * @throws IOException if an error occurs when writing to the stream
+	 */
+	public void writeCompressedTo(OutputStream a_stream, int a_threshold)
+			throws IOException{
+		toCompressedFrame( a_threshold ).writeTo( a_stream );
+		a_stream.flush();
+	}
+
+	/**
+	 * Build a V2 frame, preceding the given type code and fields with
+	 * their length.
+	 * @param a_content <code>ByteArrayOutputStream</code>, the frame's type
+	 * 	code and fields
+	 * @return <code>MessageFrame</code>, the frame
+	 */
+	private static MessageFrame toV2Frame(ByteArrayOutputStream a_content){
+		ByteArrayOutputStream frame =
+				new ByteArrayOutputStream( a_content.size() + 5 );
+		try {
+			ProtocolVersion.writeVarInt( frame, a_content.size() );
+			a_content.writeTo( frame );
+		} catch (IOException e) {
+			//not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException( e );
+		}
+		return new MessageFrame( frame.toByteArray() );
+	}
+
+	/**
+	 * Write a 4 byte, big-endian int.
+	 * @param a_value <code>int</code>, the value
+	 */
+	private void writeFixedInt(int a_value){
+		m_body.write( a_value >>> 24 );
+		m_body.write( a_value >>> 16 );
+		m_body.write( a_value >>> 8 );
+		m_body.write( a_value );
+	}
+
+	/**
+	 * Write an unsigned varint.
+	 * @param a_value <code>int</code>, the value, treated as unsigned
+	 */
+	private void writeVarInt(int a_value){
+		try {
+			ProtocolVersion.writeVarInt( m_body, a_value );
+		} catch (IOException e) {
+			//not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException( e );
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The wire formats in which messages are exchanged between the clients and
+ * the server, chosen once per connection during login.
+ * <p>
+ * <b>V1</b> is the original format. A message starts with its 4 character
+ * ASCII header code, ints are 4 bytes, big-endian, and strings are an int
+ * holding their length in bytes followed by the string in the platform's
+ * default charset. Its login is sent without a header: the username and
+ * the server password, each as a string.
+ * <p>
+ * <b>V2</b> is the compact format. Every message is a frame: the length of
+ * the rest of the frame as a varint, the header's single byte type code,
+ * then the message's fields. Ints are zigzag varints, so small values of
+ * either sign take a single byte, and strings are a varint holding their
+ * length in bytes followed by the string in UTF-8. Raw bytes, such as file
+ * data and punishment codes, are written as they are in V1. A reader can
+ * always buffer or skip a whole frame without knowing its type.
+ * <p>
+ * A client asks for V2 by sending <code>V2_MAGIC</code> as a V1 int before
+ * a V2 <code>LOGIN</code> frame holding the username and password. The
+ * value is far larger than any V1 username length, so a V1 server answers
+ * it with a V1 <code>FAILURE_UsernameTooLong</code> login response, which
+ * tells the client to reconnect using V1.
+ * @author Andrzej Brynczka
+ *
+ */
+public enum ProtocolVersion {
+	V1( Charset.defaultCharset() ),
+	V2( StandardCharsets.UTF_8 );
+
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** The int sent in place of a V1 username's length to ask for V2: "JMV2" */
+	public static final int V2_MAGIC = 0x4A4D5632;
+
+	/**
+	 * Largest V2 frame accepted, in bytes. Comfortably holds a full file
+	 * data segment.
+	 */
+	public static final int MAX_FRAME_SIZE = 64 * 1024;
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The charset in which the version's strings are encoded */
+	private final Charset m_charset;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create the version with the charset of its strings.
+	 * @param a_charset <code>Charset</code>, the strings' charset
+	 */
+	ProtocolVersion(Charset a_charset){
+		m_charset = a_charset;
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the charset in which the version's strings are encoded.
+	 * @return <code>Charset</code>, the charset
+	 */
+	public Charset getCharset(){
+		return m_charset;
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Write an unsigned varint: 7 bits per byte, lowest bits first, with the
+	 * top bit of each byte set if more bytes follow.
+	 * @param a_stream <code>OutputStream</code>, the stream to write to
+	 * @param a_value <code>int</code>, the value, treated as unsigned
+	 * @throws IOException if an error occurs when writing to the stream
+	 */
+	public static void writeVarInt(OutputStream a_stream, int a_value)
+			throws IOException{
+		while( ( a_value & ~0x7F ) != 0 ){
+			a_stream.write( ( a_value & 0x7F ) | 0x80 );
+			a_value >>>= 7;
+		}
+		a_stream.write( a_value );
+	}
+
+	/**
+	 * Read an unsigned varint, as written by
+	 * <code>writeVarInt</code>.
+	 * @param a_stream <code>InputStream</code>, the stream to read from
+	 * @return <code>int</code>, the value
+	 * @throws IOException if the stream ends, or the varint is longer than
+	 * 	an int allows
+	 */
+	public static int readVarInt(InputStream a_stream) throws IOException{
+		int value = 0;
+		for( int shift = 0; shift < 35; shift += 7 ){
+			int read = a_stream.read();
+			if( read == -1 ){
+				throw new EOFException("Input stream was closed with EOF");
+			}
+
+			value |= ( read & 0x7F ) << shift;
+			if( ( read & 0x80 ) == 0 ){
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Map a signed int to an unsigned one, so that values close to zero of
+	 * either sign are written as short varints.
+	 * @param a_value <code>int</code>, the signed value
+	 * @return <code>int</code>, the zigzag encoded value
+	 */
+	public static int toZigZag(int a_value){
+		return ( a_value << 1 ) ^ ( a_value >> 31 );
+	}
+
+	/**
+	 * Reverse <code>toZigZag</code>.
+	 * @param a_value <code>int</code>, the zigzag encoded value
+	 * @return <code>int</code>, the signed value
+	 */
+	public static int fromZigZag(int a_value){
+		return ( a_value >>> 1 ) ^ -( a_value & 1 );
+	}
+}
@@ -0,0 +1,46 @@
+package protocol;
+
+/**
+ * Flow control of relayed file transfers by credits, granted to the sender
+ * by the receiver as it writes the file's data.
+ * <p>
+ * A V2 sender asks for credits by setting <code>CREDITS</code> in the
+ * options at the end of its transfer request, which the server passes on
+ * to the receiver. A receiver accepting the transfer sets
+ * <code>CREDITS</code> in the options of its answer, followed by the
+ * window: the number of data segments the sender may send before it is
+ * granted more. The server passes the window on to the sender.
+ * <p>
+ * The sender takes a credit for every segment it sends, and waits once it
+ * has none left. The receiver grants the credits back, in a message of the
+ * credit stage, as it writes the segments, half a window at a time, so
+ * that no more than a window of segments is ever on its way to the
+ * receiver. A sender granted no credits for <code>CREDIT_TIMEOUT</code>
+ * ends the transfer. Senders of transfers without credits, such as those
+ * to receivers that do not grant them, only keep a window of segments
+ * waiting to be written to the server.
+ * @author Andrzej Brynczka
+ *
+ */
+public final class TransferCredits {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Option bit of a transfer request or answer asking for credits */
+	public static final int CREDITS = 0x02;
+
+	/** Window granted by receivers, in data segments */
+	public static final int WINDOW = 32;
+
+	/** Milliseconds a sender waits to be granted credits */
+	public static final int CREDIT_TIMEOUT = 30000;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Not instantiable, only holds the transfer credits' constants.
+	 */
+	private TransferCredits(){
+	}
+}
@@ -0,0 +1,42 @@
+package protocol;
+
+/**
+ * Resuming of file transfers cut short, such as by a dropped connection,
+ * from the segments their receiver is still missing.
+ * <p>
+ * A receiver keeps a checkpoint of the segments it has written next to the
+ * partial file, and keeps both if the transfer fails. A V2 sender able to
+ * resume sets <code>RESUME</code> in the options of its transfer request,
+ * which the server passes on to the receiver. A receiver accepting the
+ * request of a file it holds a matching checkpoint for, from the same
+ * sender, with the same name and size, sets <code>RESUME</code> in the
+ * options of its answer, which the server passes back to a sender that
+ * asked for it. The receiver then sends, in a message of the resume stage,
+ * the ranges of segments it is still missing, and the sender waits for
+ * them before sending only those segments.
+ * <p>
+ * At most <code>MAX_RANGES</code> ranges are sent; a receiver missing more
+ * has its last range run to the file's last segment, so that some segments
+ * are sent again rather than none left out.
+ * @author Andrzej Brynczka
+ *
+ */
+public final class TransferResume {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Option bit of a transfer request or answer resuming the transfer */
+	public static final int RESUME = 0x08;
+
+	/** Largest number of ranges of missing segments in a resume message */
+	public static final int MAX_RANGES = 1024;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Not instantiable, only holds the transfer resume's constants.
+	 */
+	private TransferResume(){
+	}
+}
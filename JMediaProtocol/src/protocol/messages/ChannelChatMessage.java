@@ -0,0 +1,79 @@
+package protocol.messages;
+
+import java.io.IOException;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+
+/**
+ * Class containing a chat message sent to the members of a named channel,
+ * rather than to every user on the server.
+ * @author Andrzej Brynczka
+ *
+ */
+public class ChannelChatMessage extends ChatMessage {
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The name of the channel the message was sent to */
+	private final String m_channel;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create the complete channel chat message.
+	 * </br></br>
+	 * If the message size exceeds <code>MESSAGE_CHAR_LIMIT</code>, all
+	 * characters past the limit are cut-off.
+	 *
+	 * @param a_header <code>MessageHeader</code>, the message header
+	 * @param a_channel <code>String</code>, the channel's name
+	 * @param a_message <code>String</code>, the message sent by the user
+	 * @param a_sender <code>String</code>, the sender's user name
+	 */
+	public ChannelChatMessage(MessageHeader a_header, String a_channel,
+			String a_message, String a_sender){
+		super(a_header, a_message, a_sender);
+		m_channel = a_channel;
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the name of the channel the message was sent to
+	 * @return <code>String</code> - the channel's name
+	 */
+	public String getChannel(){
+		return m_channel;
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Send the ChannelChatMessage information to the given writer.
+	 * Included are:
+	 * </br>the message header
+	 * </br>the size of the channel's name and the channel's name
+	 * </br>the size of the sender's name and the sender's name
+	 * </br>the size of the message and the message
+	 */
+	@Override
+	protected boolean encode(MessageWriter a_writer) throws IOException {
+		//write the header
+		a_writer.writeHeader( m_header );
+
+		//write the channel's name
+		a_writer.writeString( m_channel );
+
+		//write the sender's name
+		a_writer.writeString( m_sender );
+
+		//write the message length and the message itself
+		a_writer.writeString( m_message );
+
+		return true;
+	}
+}
@@ -0,0 +1,116 @@
+package protocol.messages;
+
+import java.io.IOException;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+
+/**
+ * Message class used for a user joining or leaving a named chat channel.
+ * Joining vs leaving is determined by header code.
+ * <p>
+ * From the client, it asks to join or leave the channel. From the server,
+ * it awares the channel's members, including the user itself, that the
+ * user joined or left it.
+ * @author Andrzej Brynczka
+ *
+ */
+public class ChannelMessage extends Message {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** The maximum size of a channel's name */
+	public static final int MAX_CHANNEL_SIZE = 20;
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The name of the channel */
+	private final String m_channel;
+
+	/** The name of the user that joined or left the channel */
+	private final String m_user;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create a message of a user joining or leaving a channel.
+	 *
+	 * @param a_header <code>MessageHeader</code>, the message's header code
+	 * @param a_channel <code>String</code>, the channel's name
+	 * @param a_user <code>String</code>, the username of the user
+	 */
+	public ChannelMessage(MessageHeader a_header, String a_channel,
+			String a_user){
+		super(a_header);
+		m_channel = a_channel;
+		m_user = a_user;
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the name of the channel
+	 * @return <code>String</code>, the channel's name
+	 */
+	public String getChannel(){
+		return m_channel;
+	}
+
+	/**
+	 * Get the username of the user that joined or left the channel
+	 * @return <code>String</code>, the username
+	 */
+	public String getUserName(){
+		return m_user;
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Check if the given channel name is valid: not empty, no longer than
+	 * <code>MAX_CHANNEL_SIZE</code>, and without whitespace.
+	 *
+	 * @param a_channel <code>String</code>, the channel's name
+	 * @return <code>boolean</code> - <code>true</code> if valid,
+	 * 	<code>false</code> otherwise
+	 */
+	public static boolean isValidChannel(String a_channel){
+		if( a_channel == null || a_channel.isEmpty()
+				|| a_channel.length() > MAX_CHANNEL_SIZE ){
+			return false;
+		}
+
+		for( int i = 0; i < a_channel.length(); i++ ){
+			if( Character.isWhitespace( a_channel.charAt( i ) ) ){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Send the ChannelMessage information to the given writer.
+	 * Included are:
+	 * </br>the header code(indicating either joining or leaving)
+	 * </br>the size of the channel's name and the name itself
+	 * </br>the size of the user's name and the name itself
+	 */
+	@Override
+	protected boolean encode(MessageWriter a_writer) throws IOException {
+		//write the header code
+		a_writer.writeHeader( m_header );
+
+		//write the channel's name
+		a_writer.writeString( m_channel );
+
+		//write the user's name
+		a_writer.writeString( m_user );
+
+		return true;
+	}
+
+}
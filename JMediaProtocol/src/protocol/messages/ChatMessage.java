@@ -1,8 +1,9 @@
-package server.messages;
+package protocol.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
 
 /**
  * Class containing a sender's name and the sender's chat message,
@@ -109,28 +110,30 @@ public class ChatMessage extends Message {
 	// ******************** Utility Methods ********************
 	// *********************************************************
 	/**
-	 * Send the ChatMessage information to the given stream.
+	 * Chat text is compressed when compression was agreed on.
+	 */
+	@Override
+	protected boolean isCompressible(){
+		return true;
+	}
+	
+	/**
+	 * Send the ChatMessage information to the given writer.
 	 * Included are:
 	 * </br>the message header
 	 * </br>the size of the sender's name and the sender's name
 	 * </br>the size of the message and the message
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {
-		DataOutputStream outData = new DataOutputStream( a_stream );
-		
+	protected boolean encode(MessageWriter a_writer) throws IOException {
 		//write the header
-		a_stream.write( m_header.getHeaderCode().getBytes() );
+		a_writer.writeHeader( m_header );
 			
 		//write the sender's name
-		outData.writeInt( m_sender.length() );
-		a_stream.write( m_sender.getBytes() );
-		a_stream.flush();
+		a_writer.writeString( m_sender );
 		
 		//write the message length and the message itself
-		outData.writeInt( m_message.length() );
-		a_stream.write( m_message.getBytes() );
-		a_stream.flush();
+		a_writer.writeString( m_message );
 		
 		return true;	
 	}	
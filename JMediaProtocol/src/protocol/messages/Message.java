@@ -0,0 +1,258 @@
+package protocol.messages;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import protocol.MessageFrame;
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.ProtocolVersion;
+
+/**
+ * The base message class, containing header code information and outlining
+ * required message functionality.
+ * <p>
+ * Shared by the client and the server: the server encodes each message once
+ * into frames reused for every receiver, while the client writes each of
+ * its messages straight to the server's stream.
+ * @author Andrzej Brynczka
+ *
+ */
+public abstract class Message {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************	
+	/**
+	 * Tracks message response values and their associated message codes.
+	 * @author Andrzej Brynczka
+	 *
+	 */
+	public enum MessageResponse{
+		Success( (byte) 1 ),
+		Failure( (byte) 0 ),
+		
+		INVALID( (byte) -1 );
+		
+		/** The single byte based message code associated to the response */
+		private byte m_code;
+		
+		/**
+		 * Create the MessageResponse with its associated byte-based message
+		 * code.
+		 * @param a_code <code>byte</code>, the enum's message code
+		 */
+		MessageResponse(byte a_code){
+			m_code = a_code;
+		}
+		
+		/**
+		 * Get the message code value for the desired message response
+		 * @return <code>byte</code> - containing the response's code
+		 */
+		public byte getCode(){
+			return m_code;
+		}
+		
+		/**
+		 * Get the <code>MessageResponse</code> enum associated to the
+		 * given byte-based message code.
+		 * @param a_code <code>byte</code>, the message code
+		 * @return <code>MessageResponse</code> - the message code's enum
+		 * 	response
+		 */
+		public static MessageResponse fromByte(byte a_code){
+			switch(a_code){
+			case 1:
+				return Success;
+			case 0: 
+				return Failure;
+			default:
+				return INVALID;
+			}
+		}
+	}
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	
+	/** The message's header */
+	protected MessageHeader m_header;
+	
+	/** 
+	 * The message's encoded bytes in the V1 format, built on first use and
+	 * shared by every V1 client the message is sent to 
+	 */
+	private volatile MessageFrame m_frameV1;
+	
+	/** The message's encoded bytes in the V2 format, built on first use */
+	private volatile MessageFrame m_frameV2;
+	
+	/** 
+	 * The message's encoded bytes for V2 clients accepting compressed 
+	 * frames, built on first use 
+	 */
+	private volatile MessageFrame m_frameCompressed;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	
+	/**
+	 * Create a basic message containing only its header.
+	 * @param a_header <code>MessageHeader</code>, the message's header
+	 */
+	protected Message(MessageHeader a_header){
+		m_header = a_header;
+		m_frameV1 = null;
+		m_frameV2 = null;
+		m_frameCompressed = null;
+	}
+	
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the message's header
+	 * @return <code>MessageHeader</code> - the message's header enum
+	 */
+	public MessageHeader getHeader(){
+		return m_header;
+	}
+	
+	/**
+	 * Get the message's encoded bytes in the given format, ready to be 
+	 *  written to any number of clients using it. The message is encoded 
+	 *  only on the first call for each format; it must not be changed once
+	 *  it has been handed out to be sent.
+	 * @param a_protocol <code>ProtocolVersion</code>, the wire format
+	 * @return <code>MessageFrame</code> - the encoded message, 
+	 *  <code>MessageFrame.EMPTY</code> if the message has nothing to send
+	 * @throws IOException if an error occurs when encoding the message
+	 */
+	public final MessageFrame getFrame(ProtocolVersion a_protocol) 
+			throws IOException{
+		MessageFrame frame = a_protocol == ProtocolVersion.V1 
+				? m_frameV1 : m_frameV2;
+		if( frame == null ){
+			synchronized( this ){
+				frame = a_protocol == ProtocolVersion.V1 
+						? m_frameV1 : m_frameV2;
+				if( frame == null ){
+					MessageWriter writer = new MessageWriter( a_protocol );
+					if( encode( writer ) ){
+						frame = writer.toFrame();
+					}
+					else{
+						frame = MessageFrame.EMPTY;
+					}
+					
+					if( a_protocol == ProtocolVersion.V1 ){
+						m_frameV1 = frame;
+					}
+					else{
+						m_frameV2 = frame;
+					}
+				}
+			}
+		}
+		
+		return frame;
+	}
+	
+	/**
+	 * Get the message's encoded bytes for V2 clients accepting compressed
+	 *  frames, compressed if the message is text-heavy, large enough, and
+	 *  made smaller by compressing it. The message is encoded only on the 
+	 *  first call.
+	 * @param a_threshold <code>int</code>, the smallest size of a message's
+	 *  type code and fields that is compressed, the same on every call
+	 * @return <code>MessageFrame</code> - the encoded message, 
+	 *  <code>MessageFrame.EMPTY</code> if the message has nothing to send
+	 * @throws IOException if an error occurs when encoding the message
+	 * @see FrameCompression
+	 */
+	public final MessageFrame getCompressedFrame(int a_threshold) 
+			throws IOException{
+		if( !isCompressible() ){
+			return getFrame( ProtocolVersion.V2 );
+		}
+		
+		MessageFrame frame = m_frameCompressed;
+		if( frame == null ){
+			synchronized( this ){
+				frame = m_frameCompressed;
+				if( frame == null ){
+					MessageWriter writer = 
+							new MessageWriter( ProtocolVersion.V2 );
+					if( encode( writer ) ){
+						frame = writer.toCompressedFrame( a_threshold );
+					}
+					else{
+						frame = MessageFrame.EMPTY;
+					}
+					m_frameCompressed = frame;
+				}
+			}
+		}
+		
+		return frame;
+	}
+	
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Convert the current message information into an appropriate response
+	 *  message and send it to the given stream in a single write.
+	 * @param a_stream <code>OutputStream</code>, the stream to send the 
+	 *  message to
+	 * @param a_protocol <code>ProtocolVersion</code>, the wire format agreed
+	 *  with the other side
+	 * @param a_compressThreshold <code>int</code>, the size from which
+	 *  text-heavy messages are compressed, or 0 if compression was not 
+	 *  agreed on
+	 * @return <code>boolean</code> - <code>true</code> if the message was 
+	 *  sent, <code>false</code> otherwise
+	 * @throws IOException if an error occurs when attempting to create or
+	 *  send the response
+	 */
+	public final boolean sendMessage(OutputStream a_stream, 
+			ProtocolVersion a_protocol, int a_compressThreshold) 
+			throws IOException{
+		MessageWriter writer = new MessageWriter( a_protocol );
+		if( !encode( writer ) ){
+			return false;
+		}
+		
+		if( a_compressThreshold > 0 && isCompressible() ){
+			writer.writeCompressedTo( a_stream, a_compressThreshold );
+		}
+		else{
+			writer.writeTo( a_stream );
+		}
+		return true;
+	}
+	
+	/**
+	 * Check if the message is mostly text, such as chat or lists of names,
+	 *  and so worth compressing when compression was agreed on.
+	 * @return <code>boolean</code> - <code>true</code> if the message may 
+	 *  be compressed, <code>false</code> by default
+	 */
+	protected boolean isCompressible(){
+		return false;
+	}
+	
+	/**
+	 * Convert the current message information into an appropriate 
+	 *  response message, writing its fields to the given writer.
+	 * @param a_writer <code>MessageWriter</code>, the writer encoding the
+	 *  message in the agreed wire format
+	 * @return <code>boolean</code> - <code>true</code> if the message was 
+	 *  written, <code>false</code> if it has nothing to send
+	 * @throws IOException if an error occurs when attempting to create
+	 *  the response
+	 */
+	protected abstract boolean encode(MessageWriter a_writer) 
+			throws IOException;	
+}
\ No newline at end of file
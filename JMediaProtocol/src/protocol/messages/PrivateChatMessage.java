@@ -1,9 +1,10 @@
-package client.messages;
+package protocol.messages;
 
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
 
 /**
  * Class containing message information on private messages.
@@ -44,7 +45,6 @@ public class PrivateChatMessage extends ChatMessage {
 	// *********************************************************
 	/**
 	 * Get the username of the client that will be receiving this message
-	 * 
 	 * @return <code>String</code> - the name
 	 */
 	public String getReceiverName(){
@@ -55,7 +55,7 @@ public class PrivateChatMessage extends ChatMessage {
 	// ******************** Utility Methods ********************
 	// *********************************************************
 	/**
-	 * Send the PrivateChatMessage's information to the given stream.
+	 * Send the PrivateChatMessage's information to the given writer.
 	 * Included are: 
 	 * </br>the message header
 	 * </br>the size of the sender's name and the sender's name
@@ -63,25 +63,19 @@ public class PrivateChatMessage extends ChatMessage {
 	 * </br>the size of the message and the message
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException{
-		DataOutputStream outData = new DataOutputStream( a_stream );
-		
+	protected boolean encode(MessageWriter a_writer) throws IOException{
 		//write the header
-		a_stream.write( m_header.getHeaderCode().getBytes() );
+		a_writer.writeHeader( m_header );
 		
 		//write the sender's name
-		outData.writeInt( m_sender.length() );
-		a_stream.write( m_sender.getBytes() );
+		a_writer.writeString( m_sender );
 		
 		//write the receiver's name
-		outData.writeInt( m_receiver.length() );
-		a_stream.write( m_receiver.getBytes() );
+		a_writer.writeString( m_receiver );
 		
 		//write the message length and the message itself
-		outData.writeInt( m_message.length() );
-		a_stream.write( m_message.getBytes() );	
+		a_writer.writeString( m_message );	
 		
-		a_stream.flush();
 		return true;
 	}
 }
@@ -0,0 +1,204 @@
+package server.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+import protocol.MessageHeader;
+
+/**
+ * Minimal protocol client used by the server's benchmarks to drive a
+ * running server over real sockets.
+ * <p>
+ * It speaks just enough of the wire protocol to log in, send chat messages,
+ * and read back the messages the server sends, skipping those that the
+ * benchmarks do not care about.
+ *
+ * @author Andrzej Brynczka
+ */
+public class BenchClient {
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	private final Socket m_socket;
+	private final DataInputStream m_in;
+	private final DataOutputStream m_out;
+
+	/** The name this client logged in with */
+	private final String m_userName;
+
+	/** Sender of the last chat message returned by <code>readChat</code> */
+	private String m_lastSender;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Connect to the server and log in.
+	 *
+	 * @param a_host <code>String</code>, the server's host
+	 * @param a_port <code>int</code>, the server's port
+	 * @param a_userName <code>String</code>, the name to log in with
+	 * @param a_serverPass <code>String</code>, the server's password
+	 * @throws IOException if the connection fails or the login is refused
+	 */
+	public BenchClient(String a_host, int a_port, String a_userName,
+			String a_serverPass) throws IOException{
+		m_socket = new Socket( a_host, a_port );
+		m_socket.setTcpNoDelay( true );
+		m_in = new DataInputStream(
+				new BufferedInputStream( m_socket.getInputStream() ) );
+		m_out = new DataOutputStream(
+				new BufferedOutputStream( m_socket.getOutputStream() ) );
+		m_userName = a_userName;
+		m_lastSender = null;
+
+		//the login is sent without a header
+		writeString( a_userName );
+		writeString( a_serverPass );
+		m_out.flush();
+
+		String header = readHeader();
+		if( MessageHeader.fromString( header ) != MessageHeader.LOGIN ){
+			throw new IOException("Expected login response, got " + header);
+		}
+		byte condition = m_in.readByte();
+		if( condition != 1 && condition != 2 ){
+			throw new IOException("Login of " + a_userName
+					+ " refused with condition " + condition);
+		}
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the name this client logged in with.
+	 * @return <code>String</code>, the username
+	 */
+	public String getUserName(){
+		return m_userName;
+	}
+
+	/**
+	 * Get the sender of the last chat message read.
+	 * @return <code>String</code>, the sender's name
+	 */
+	public String getLastSender(){
+		return m_lastSender;
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Send a public chat message.
+	 * @param a_message <code>String</code>, the message to send
+	 * @throws IOException if the message cannot be written
+	 */
+	public void sendChat(String a_message) throws IOException{
+		m_out.write( MessageHeader.REG_SendChatMess.getHeaderCode().getBytes() );
+		writeString( m_userName );
+		writeString( a_message );
+		m_out.flush();
+	}
+
+	/**
+	 * Encode a public chat message without sending it, so that it can be
+	 * written in bulk with <code>sendRaw</code>.
+	 * @param a_message <code>String</code>, the message to encode
+	 * @return <code>byte[]</code>, the encoded message
+	 * @throws IOException if the message cannot be encoded
+	 */
+	public byte[] encodeChat(String a_message) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		out.write( MessageHeader.REG_SendChatMess.getHeaderCode().getBytes() );
+		out.writeInt( m_userName.length() );
+		out.write( m_userName.getBytes() );
+		out.writeInt( a_message.length() );
+		out.write( a_message.getBytes() );
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Write already encoded messages to the server.
+	 * @param a_data <code>byte[]</code>, the encoded messages
+	 * @throws IOException if the data cannot be written
+	 */
+	public void sendRaw(byte[] a_data) throws IOException{
+		m_out.write( a_data );
+		m_out.flush();
+	}
+
+	/**
+	 * Read messages from the server until a public chat message arrives,
+	 * skipping all others.
+	 *
+	 * @return <code>String</code>, the chat message's text. Its sender is
+	 * 	available from <code>getLastSender</code>
+	 * @throws IOException if the connection fails or an unknown message
+	 * 	is received
+	 */
+	public String readChat() throws IOException{
+		while( true ){
+			String header = readHeader();
+			switch( MessageHeader.fromString( header ) ){
+			case REG_SendChatMess:
+				m_lastSender = readString();
+				return readString();
+			case PRIV_SendChatMess:
+				readString();
+				readString();
+				readString();
+				break;
+			case SERVER_UserList:
+				int users = m_in.readInt();
+				for( int i = 0; i < users; i++ ){
+					readString();
+				}
+				break;
+			case SERVER_AddNewUser:
+			case SERVER_RemoveUser:
+			case SERVER_Kicked:
+			case SERVER_Error:
+				readString();
+				break;
+			default:
+				throw new IOException("Unexpected message header " + header);
+			}
+		}
+	}
+
+	/**
+	 * Close the connection.
+	 */
+	public void close(){
+		try {
+			m_socket.close();
+		} catch (IOException e) {
+			//closing anyway
+		}
+	}
+
+	private String readHeader() throws IOException{
+		byte[] header = new byte[4];
+		m_in.readFully( header );
+		return new String( header );
+	}
+
+	private String readString() throws IOException{
+		byte[] data = new byte[ m_in.readInt() ];
+		m_in.readFully( data );
+		return new String( data );
+	}
+
+	private void writeString(String a_string) throws IOException{
+		m_out.writeInt( a_string.length() );
+		m_out.write( a_string.getBytes() );
+	}
+}
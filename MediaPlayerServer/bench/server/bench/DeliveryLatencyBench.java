@@ -0,0 +1,79 @@
+package server.bench;
+
+import java.io.IOException;
+import java.util.Random;
+
+import protocol.LatencyHistogram;
+
+/**
+ * Measures how long a chat message takes to reach an idle client through a
+ * running server.
+ * <p>
+ * One client sends timestamped chat messages at random intervals, while a
+ * second client does nothing but read them. Since the receiving client never
+ * sends anything itself, its connection on the server only writes when the
+ * server delivers the message to it, which is exactly the delay measured.
+ * <p>
+ * Usage: <code>DeliveryLatencyBench [host] [port] [samples] [serverPass]
+ * </code>. The server must allow multiple logins when run on the same
+ * machine.
+ *
+ * @author Andrzej Brynczka
+ */
+public class DeliveryLatencyBench {
+
+	/** Prefix of the benchmark's chat messages */
+	private static final String PREFIX = "t=";
+
+	public static void main(String[] args) throws Exception{
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt( args[1] ) : 5376;
+		final int samples = args.length > 2 ? Integer.parseInt( args[2] ) : 200;
+		String serverPass = args.length > 3 ? args[3] : "";
+
+		final BenchClient receiver =
+				new BenchClient( host, port, "benchRecv", serverPass );
+		BenchClient sender =
+				new BenchClient( host, port, "benchSend", serverPass );
+
+		final LatencyHistogram histogram = new LatencyHistogram();
+
+		//read the timestamped messages on their own thread
+		Thread reader = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try {
+					while( histogram.getCount() < samples ){
+						String message = receiver.readChat();
+						long received = System.nanoTime();
+
+						if( "benchSend".equals( receiver.getLastSender() )
+								&& message.startsWith( PREFIX ) ){
+							long sent = Long.parseLong(
+									message.substring( PREFIX.length() ) );
+							histogram.record( received - sent );
+						}
+					}
+				} catch (IOException e) {
+					System.out.println("Receiver failed: " + e.getMessage());
+				}
+			}
+		}, "BenchReceiver");
+		reader.start();
+
+		//send at random intervals, so that the sends are not lined up with
+		//any periodic behaviour of the server
+		Random random = new Random( 42 );
+		for( int i = 0; i < samples && reader.isAlive(); i++ ){
+			Thread.sleep( 20 + random.nextInt( 60 ) );
+			sender.sendChat( PREFIX + System.nanoTime() );
+		}
+
+		reader.join( 10000 );
+		System.out.println("Chat delivery latency to an idle client: "
+				+ histogram);
+
+		sender.close();
+		receiver.close();
+	}
+}
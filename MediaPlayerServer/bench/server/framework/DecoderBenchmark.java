@@ -0,0 +1,245 @@
+package server.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import protocol.MessageHeader;
+import protocol.ProtocolVersion;
+import protocol.messages.ChatMessage;
+
+/**
+ * Benchmark of the decoding of received chat messages, comparing the
+ * stream-based reads that <code>UserHandler</code> used before the
+ * <code>MessageDecoder</code> with the decoder's in place reads.
+ * <p>
+ * A buffer of encoded chat messages is decoded repeatedly in each format,
+ * reporting the messages decoded per second and the bytes allocated per
+ * message, as counted by the JVM for the benchmark's thread. Run from the
+ * server's compiled classes with
+ * <code>java server.framework.DecoderBenchmark [messages] [rounds]</code>.
+ *
+ * @author Andrzej Brynczka
+ */
+public class DecoderBenchmark {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Messages in the decoded buffer, unless given */
+	private static final int DEFAULT_MESSAGES = 10000;
+
+	/** Times the buffer is decoded for each result, unless given */
+	private static final int DEFAULT_ROUNDS = 200;
+
+	/** Times the buffer is decoded before measuring, to warm up the JIT */
+	private static final int WARMUP_ROUNDS = 100;
+
+	/** The ways in which the messages are decoded */
+	private enum Decoder {
+		/** Streams, with new arrays for every header and field */
+		STREAM,
+		/** <code>MessageDecoder</code>, building the message's strings */
+		IN_PLACE,
+		/** <code>MessageDecoder</code>, skipping a muted user's strings */
+		IN_PLACE_SKIPPED
+	}
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** Sum of the decoded strings' lengths, kept so that none are elided */
+	private static long s_sink;
+
+	// *********************************************************
+	// ******************** Main *******************************
+	// *********************************************************
+	/**
+	 * Run every decoder over chat messages in both formats and print the
+	 * results.
+	 * @param a_args <code>String[]</code>, optionally the number of messages
+	 * 	and the number of rounds
+	 * @throws IOException if a message cannot be decoded
+	 */
+	public static void main(String[] a_args) throws IOException{
+		int messages = a_args.length > 0
+				? Integer.parseInt( a_args[0] ) : DEFAULT_MESSAGES;
+		int rounds = a_args.length > 1
+				? Integer.parseInt( a_args[1] ) : DEFAULT_ROUNDS;
+
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean)
+				ManagementFactory.getThreadMXBean();
+		long threadID = Thread.currentThread().getId();
+
+		System.out.println( String.format( "%-8s %-16s %14s %12s",
+				"protocol", "decoder", "messages/s", "bytes/msg" ) );
+		for( ProtocolVersion protocol : ProtocolVersion.values() ){
+			byte[] input = encode( protocol, messages );
+
+			for( Decoder decoder : Decoder.values() ){
+				for( int i = 0; i < WARMUP_ROUNDS; i++ ){
+					decode( decoder, protocol, input, messages );
+				}
+
+				long allocated = threads.getThreadAllocatedBytes( threadID );
+				long start = System.nanoTime();
+				for( int i = 0; i < rounds; i++ ){
+					decode( decoder, protocol, input, messages );
+				}
+				long nanos = System.nanoTime() - start;
+				allocated =
+						threads.getThreadAllocatedBytes( threadID ) - allocated;
+
+				long decoded = (long) messages * rounds;
+				System.out.println( String.format( "%-8s %-16s %14.0f %12.1f",
+						protocol, decoder, decoded * 1e9 / nanos,
+						(double) allocated / decoded ) );
+			}
+		}
+
+		//keep the decoded strings observable
+		if( s_sink == 42 ){
+			System.out.println( s_sink );
+		}
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Encode chat messages as a client would send them.
+	 * @param a_protocol <code>ProtocolVersion</code>, the wire format
+	 * @param a_messages <code>int</code>, the number of messages
+	 * @return <code>byte[]</code>, the encoded messages, one after another
+	 * @throws IOException if a message cannot be encoded
+	 */
+	private static byte[] encode(ProtocolVersion a_protocol, int a_messages)
+			throws IOException{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for( int i = 0; i < a_messages; i++ ){
+			ChatMessage msg = new ChatMessage( MessageHeader.REG_SendChatMess,
+					"Message number " + i + " for everyone in the room",
+					"user" + ( i % 50 ) );
+			msg.getFrame( a_protocol ).writeTo( out );
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode every message in the given input.
+	 * @param a_decoder <code>Decoder</code>, the way to decode them
+	 * @param a_protocol <code>ProtocolVersion</code>, the wire format
+	 * @param a_input <code>byte[]</code>, the encoded messages
+	 * @param a_messages <code>int</code>, the number of messages
+	 * @throws IOException if a message cannot be decoded
+	 */
+	private static void decode(Decoder a_decoder, ProtocolVersion a_protocol,
+			byte[] a_input, int a_messages) throws IOException{
+		if( a_decoder == Decoder.STREAM ){
+			InputStream in = new ByteArrayInputStream( a_input );
+			for( int i = 0; i < a_messages; i++ ){
+				decodeFromStream( in, a_protocol );
+			}
+			return;
+		}
+
+		MessageDecoder decoder = new MessageDecoder();
+		decoder.setProtocol( a_protocol );
+		decoder.setBuffer( ByteBuffer.wrap( a_input ) );
+		boolean skip = a_decoder == Decoder.IN_PLACE_SKIPPED;
+		for( int i = 0; i < a_messages; i++ ){
+			decodeInPlace( decoder, skip );
+		}
+	}
+
+	/**
+	 * Decode a chat message the way <code>UserHandler</code> did before
+	 * <code>MessageDecoder</code>: a new array and string for the header, a
+	 * new <code>DataInputStream</code> for every int, a new array for every
+	 * string, and a copy of every V2 frame.
+	 * @param a_in <code>InputStream</code>, the stream to read from
+	 * @param a_protocol <code>ProtocolVersion</code>, the wire format
+	 * @throws IOException if the message cannot be decoded
+	 */
+	private static void decodeFromStream(InputStream a_in,
+			ProtocolVersion a_protocol) throws IOException{
+		MessageHeader header;
+		if( a_protocol == ProtocolVersion.V2 ){
+			byte[] frame = new byte[ ProtocolVersion.readVarInt( a_in ) ];
+			new DataInputStream( a_in ).readFully( frame );
+			a_in = new ByteArrayInputStream( frame );
+			header = MessageHeader.fromTypeCode( (byte) a_in.read() );
+		}
+		else{
+			byte[] headerCode = new byte[4];
+			new DataInputStream( a_in ).readFully( headerCode );
+			header = MessageHeader.fromString( new String( headerCode ) );
+		}
+		if( header != MessageHeader.REG_SendChatMess ){
+			throw new IOException("Unexpected header: " + header);
+		}
+
+		String sender = readStreamString( a_in, a_protocol );
+		String message = readStreamString( a_in, a_protocol );
+		s_sink += sender.length() + message.length();
+	}
+
+	/**
+	 * Read a string the way <code>UserHandler</code> did before
+	 * <code>MessageDecoder</code>.
+	 * @param a_in <code>InputStream</code>, the stream to read from
+	 * @param a_protocol <code>ProtocolVersion</code>, the wire format
+	 * @return <code>String</code>, the string
+	 * @throws IOException if the string cannot be read
+	 */
+	private static String readStreamString(InputStream a_in,
+			ProtocolVersion a_protocol) throws IOException{
+		int length;
+		if( a_protocol == ProtocolVersion.V2 ){
+			length = ProtocolVersion.readVarInt( a_in );
+		}
+		else{
+			length = new DataInputStream( a_in ).readInt();
+		}
+
+		byte[] data = new byte[length];
+		new DataInputStream( a_in ).readFully( data );
+		return new String( data, a_protocol.getCharset() );
+	}
+
+	/**
+	 * Decode a chat message the way <code>UserHandler</code> does, in place.
+	 * @param a_decoder <code>MessageDecoder</code>, the decoder to read with
+	 * @param a_skip <code>boolean</code>, true to skip the message's
+	 * 	strings, as for a muted user
+	 * @throws IOException if the message cannot be decoded
+	 */
+	private static void decodeInPlace(MessageDecoder a_decoder,
+			boolean a_skip) throws IOException{
+		MessageHeader header;
+		if( a_decoder.getProtocol() == ProtocolVersion.V2 ){
+			a_decoder.require( a_decoder.readFrameLength() );
+			header = MessageHeader.fromTypeCode( a_decoder.readByte() );
+		}
+		else{
+			header = a_decoder.readHeader();
+		}
+		if( header != MessageHeader.REG_SendChatMess ){
+			throw new IOException("Unexpected header: " + header);
+		}
+
+		if( a_skip ){
+			a_decoder.skip( a_decoder.readLength() );
+			a_decoder.skip( a_decoder.readLength() );
+			return;
+		}
+
+		String sender = a_decoder.readString( a_decoder.readLength() );
+		String message = a_decoder.readString( a_decoder.readLength() );
+		s_sink += sender.length() + message.length();
+	}
+}
@@ -0,0 +1,181 @@
+package server.framework;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import protocol.MessageFrame;
+import protocol.MessageHeader;
+import protocol.messages.ChannelChatMessage;
+import protocol.messages.ChannelMessage;
+import protocol.messages.ChatMessage;
+import protocol.messages.Message;
+import protocol.messages.PrivateChatMessage;
+import server.framework.ServerData.SlowConsumerPolicy;
+
+/**
+ * Checks of the slow consumer policies of the <code>OutboundQueue</code>,
+ * run against small queues without a server.
+ * <p>
+ * Each check fills a queue to its limit and offers one more message,
+ * checking which messages are dropped and whether the client would be
+ * disconnected. Run from the server's compiled classes with
+ * <code>java server.framework.OutboundQueueChecks</code>; it exits with
+ * status 1 if any check fails.
+ *
+ * @author Andrzej Brynczka
+ */
+public class OutboundQueueChecks {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Messages a checked queue holds */
+	private static final int MAX_MESSAGES = 4;
+
+	/** Bytes a checked queue holds, more than its messages need */
+	private static final int MAX_BYTES = 1 << 20;
+
+	/** The chat messages that may be dropped */
+	private enum Chat {
+		PUBLIC {
+			@Override
+			Message create(int a_index){
+				return new ChatMessage( MessageHeader.REG_SendChatMess,
+						"chat " + a_index, "user" );
+			}
+		},
+		PRIVATE {
+			@Override
+			Message create(int a_index){
+				return new PrivateChatMessage( MessageHeader.PRIV_SendChatMess,
+						"chat " + a_index, "user", "other" );
+			}
+		},
+		CHANNEL {
+			@Override
+			Message create(int a_index){
+				return new ChannelChatMessage(
+						MessageHeader.CHANNEL_SendChatMess, "lobby",
+						"chat " + a_index, "user" );
+			}
+		};
+
+		/**
+		 * Create a chat message of this kind.
+		 * @param a_index <code>int</code>, the message's number
+		 * @return <code>Message</code>, the message
+		 */
+		abstract Message create(int a_index);
+	}
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** Number of checks that failed */
+	private static int s_failures;
+
+	// *********************************************************
+	// ******************** Main *******************************
+	// *********************************************************
+	/**
+	 * Run every check and print the results.
+	 * @param a_args <code>String[]</code>, not used
+	 * @throws IOException if a message cannot be encoded
+	 */
+	public static void main(String[] a_args) throws IOException{
+		for( Chat chat : Chat.values() ){
+			checkOldestChatDropped( chat );
+			checkChatNotFittingDropped( chat );
+		}
+		checkDisconnectWithoutChat();
+
+		System.out.println( s_failures == 0 ? "All checks passed."
+				: s_failures + " checks failed." );
+		if( s_failures > 0 ){
+			System.exit( 1 );
+		}
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Check that a full queue drops its oldest chat to let in a message
+	 * that is not chat, under <code>DROPCHAT</code>.
+	 * @param a_chat <code>Chat</code>, the kind of chat filling the queue
+	 * @throws IOException if a message cannot be encoded
+	 */
+	private static void checkOldestChatDropped(Chat a_chat) throws IOException{
+		ServerMetrics metrics = new ServerMetrics();
+		OutboundQueue queue = new OutboundQueue( MAX_MESSAGES, MAX_BYTES,
+				SlowConsumerPolicy.DROPCHAT, metrics );
+
+		Message oldest = a_chat.create( 0 );
+		queue.offer( oldest );
+		for( int i = 1; i < MAX_MESSAGES; i++ ){
+			queue.offer( a_chat.create( i ) );
+		}
+
+		boolean kept = queue.offer( new ChannelMessage(
+				MessageHeader.CHANNEL_Join, "lobby", "user" ) );
+
+		List<MessageFrame> frames = new ArrayList<MessageFrame>();
+		queue.drainTo( frames, MAX_MESSAGES, MAX_BYTES );
+		check( a_chat + " chat: oldest dropped for other messages",
+				kept && metrics.getDroppedMessages() == 1 
+				&& frames.size() == MAX_MESSAGES
+				&& frames.get( 0 ) != queue.getFrame( oldest ) );
+	}
+
+	/**
+	 * Check that chat offered to a queue full of other messages is simply
+	 * not sent, rather than the client being disconnected.
+	 * @param a_chat <code>Chat</code>, the kind of chat offered
+	 * @throws IOException if a message cannot be encoded
+	 */
+	private static void checkChatNotFittingDropped(Chat a_chat) 
+			throws IOException{
+		ServerMetrics metrics = new ServerMetrics();
+		OutboundQueue queue = new OutboundQueue( MAX_MESSAGES, MAX_BYTES,
+				SlowConsumerPolicy.DROPCHAT, metrics );
+		for( int i = 0; i < MAX_MESSAGES; i++ ){
+			queue.offer( new ChannelMessage( MessageHeader.CHANNEL_Join,
+					"lobby", "user" + i ) );
+		}
+
+		boolean kept = queue.offer( a_chat.create( 0 ) );
+		check( a_chat + " chat: dropped when nothing else can be",
+				kept && metrics.getDroppedMessages() == 1 
+				&& queue.size() == MAX_MESSAGES );
+	}
+
+	/**
+	 * Check that a client whose full queue holds no chat is disconnected
+	 * rather than its messages dropped.
+	 * @throws IOException if a message cannot be encoded
+	 */
+	private static void checkDisconnectWithoutChat() throws IOException{
+		OutboundQueue queue = new OutboundQueue( MAX_MESSAGES, MAX_BYTES,
+				SlowConsumerPolicy.DROPCHAT, new ServerMetrics() );
+		for( int i = 0; i < MAX_MESSAGES; i++ ){
+			queue.offer( new ChannelMessage( MessageHeader.CHANNEL_Join,
+					"lobby", "user" + i ) );
+		}
+
+		boolean kept = queue.offer( new ChannelMessage( 
+				MessageHeader.CHANNEL_Leave, "lobby", "user" ) );
+		check( "no chat: disconnected when full", !kept );
+	}
+
+	/**
+	 * Print a check's result, counting it if it failed.
+	 * @param a_name <code>String</code>, the check's name
+	 * @param a_passed <code>boolean</code>, whether the check passed
+	 */
+	private static void check(String a_name, boolean a_passed){
+		System.out.println( ( a_passed ? "PASS " : "FAIL " ) + a_name );
+		if( !a_passed ){
+			s_failures++;
+		}
+	}
+}
@@ -0,0 +1,886 @@
+package server.framework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import protocol.MessageFrame;
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.ProtocolVersion;
+import protocol.bench.Benchmark;
+import protocol.bench.BenchmarkRunner;
+import protocol.messages.ChannelChatMessage;
+import protocol.messages.ChannelMessage;
+import protocol.messages.ChatMessage;
+import protocol.messages.Message;
+import protocol.messages.Message.MessageResponse;
+import protocol.messages.PrivateChatMessage;
+import server.messages.AdminLoginMessage;
+import server.messages.AdminPunishListMessage;
+import server.messages.AdminPunishMessage;
+import server.messages.ConnectedUserMessage;
+import server.messages.FileTransDataMessage;
+import server.messages.FileTransErrorMessage;
+import server.messages.FileTransRequestMessage;
+import server.messages.FileTransResponseMessage;
+import server.messages.FileTransferMessage;
+import server.messages.FileTransferMessage.TransferStage;
+import server.messages.LoginMessage;
+import server.messages.LoginMessage.LoginCondition;
+import server.messages.LogoutMessage;
+import server.messages.PresenceMessage;
+import server.messages.PunishmentInfo;
+import server.messages.PunishmentInfo.Direction;
+import server.messages.PunishmentInfo.Punishment;
+import server.messages.ServerMessage;
+import server.messages.UserListMessage;
+import server.messages.UserListSyncMessage;
+
+/**
+ * Benchmarks of the server's hot paths, run by a
+ * <code>BenchmarkRunner</code>:
+ * <ul>
+ * <li><code>header</code> - looking up a header by its V1 code and V2 type
+ * 	code</li>
+ * <li><code>encode</code> - encoding a new message of every server message
+ * 	class and writing it to a stream, as the writers do for every
+ * 	message</li>
+ * <li><code>parse</code> - a logged in <code>UserHandler</code> parsing
+ * 	client messages from an in-memory buffer, handing them to a running
+ * 	dispatcher whose deliveries are written to in-memory streams, or
+ * 	relaying file data straight to the queue of a receiver that has
+ * 	accepted the transfer</li>
+ * <li><code>route</code> - <code>MessageDispatcher.sendMessage</code>
+ * 	routing new messages over every partition to the queues of 100 users,
+ * 	whose messages are then written to in-memory streams</li>
+ * </ul>
+ * Each benchmark is run with both wire formats. The server is created
+ * without listening for clients, with presence announced right away;
+ * the handlers' sockets are loopback connections that are never read
+ * from or written to. Run from the server's compiled classes with
+ * <code>java server.framework.ServerBenchmarks [options]</code>, taking the
+ * options of <code>BenchmarkRunner</code>, such as
+ * <code>-rff results.json</code>.
+ *
+ * @author Andrzej Brynczka
+ */
+public class ServerBenchmarks {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Messages encoded, parsed or routed per call of a benchmark */
+	private static final int BATCH = 256;
+
+	/** Users the routing benchmarks deliver to */
+	private static final int USERS = 100;
+
+	/** Workers of the benchmarks' dispatchers */
+	private static final int WORKERS = 4;
+
+	/** Members of the channel the channel chat is sent to */
+	private static final int CHANNEL_MEMBERS = 10;
+
+	/** The channel the channel chat is sent to */
+	private static final String CHANNEL = "bench";
+
+	/** Bytes of file data in each data message */
+	private static final int SEGMENT_SIZE = 4096;
+
+	/** Text of the chat messages, about the length of a typical line */
+	private static final String TEXT =
+			"Has anyone listened to the new album yet? It is great";
+
+	/** The file data sent */
+	private static final byte[] SEGMENT = new byte[ SEGMENT_SIZE ];
+
+	/** Messages a user's queue holds before the user is too slow */
+	private static final int MAX_QUEUED_MESSAGES = 1 << 20;
+
+	/** Bytes a user's queue holds before the user is too slow */
+	private static final int MAX_QUEUED_BYTES = 1 << 30;
+
+	/** Flags of the user list page sent, one of several pages */
+	private static final byte PAGE_FLAGS = UserListSyncMessage.MORE;
+
+	/**
+	 * The messages clients send most, parsed by the handlers and routed by
+	 * the dispatcher.
+	 */
+	private enum Traffic {
+		/** Chat to every user */
+		CHAT,
+
+		/** Private message to another user */
+		PRIVATE,
+
+		/** Chat to the members of a channel */
+		CHANNEL_CHAT,
+
+		/** A segment of a file sent to another user */
+		FILE_DATA,
+
+		/**
+		 * A segment of a file sent to a user that has accepted the
+		 * transfer, relayed without the dispatcher
+		 */
+		FILE_RELAY
+	}
+
+	/**
+	 * A message of every server message class, filled in as the server
+	 * sends it.
+	 */
+	private enum Sample {
+		AdminLoginMessage {
+			@Override
+			Message create(int a_index){
+				return new AdminLoginMessage( MessageHeader.ADMIN_Login,
+						"admin", "password", MessageResponse.Success );
+			}
+		},
+		AdminPunishListMessage {
+			@Override
+			Message create(int a_index){
+				List<PunishmentInfo> punished = new ArrayList<PunishmentInfo>();
+				for( int i = 0; i < 20; i++ ){
+					punished.add( new PunishmentInfo( "user" + i, "10.0.0." + i,
+							i % 2 == 0 ? Punishment.BAN : Punishment.MUTE,
+							Direction.SET_PUNISHMENT ) );
+				}
+				return new AdminPunishListMessage(
+						MessageHeader.ADMIN_PunishList, punished );
+			}
+		},
+		AdminPunishMessage {
+			@Override
+			Message create(int a_index){
+				AdminPunishMessage msg = new AdminPunishMessage(
+						MessageHeader.ADMIN_PunishUser, Punishment.MUTE,
+						Direction.SET_PUNISHMENT, "admin", "user" + a_index,
+						"10.0.0.7" );
+				msg.setCommitStatus( true );
+				return msg;
+			}
+		},
+		ChannelChatMessage {
+			@Override
+			Message create(int a_index){
+				return new ChannelChatMessage(
+						MessageHeader.CHANNEL_SendChatMess, CHANNEL, TEXT,
+						"user" + a_index );
+			}
+		},
+		ChannelMessage {
+			@Override
+			Message create(int a_index){
+				return new ChannelMessage( MessageHeader.CHANNEL_Join,
+						CHANNEL, "user" + a_index );
+			}
+		},
+		ChatMessage {
+			@Override
+			Message create(int a_index){
+				return new ChatMessage( MessageHeader.REG_SendChatMess, TEXT,
+						"user" + a_index );
+			}
+		},
+		ConnectedUserMessage {
+			@Override
+			Message create(int a_index){
+				return new ConnectedUserMessage( MessageHeader.SERVER_AddNewUser,
+						"user" + a_index );
+			}
+		},
+		FileTransDataMessage {
+			@Override
+			Message create(int a_index) throws Exception{
+				return new FileTransDataMessage( MessageHeader.FILE_Transfer,
+						7, TransferStage.STAGE3_DataTransmission, "user1",
+						"user2", "song.mp3", a_index + 1, BATCH, SEGMENT_SIZE,
+						SEGMENT );
+			}
+		},
+		FileTransErrorMessage {
+			@Override
+			Message create(int a_index){
+				FileTransErrorMessage msg = new FileTransErrorMessage(
+						MessageHeader.FILE_Transfer, 7, TransferStage.ERROR,
+						"user1", "user2", "song.mp3" );
+				msg.setErrorMsg( "Unsupported file size" );
+				return msg;
+			}
+		},
+		FileTransRequestMessage {
+			@Override
+			Message create(int a_index) throws Exception{
+				return new FileTransRequestMessage( MessageHeader.FILE_Transfer,
+						7, TransferStage.STAGE1_RequestFromSender, "user1",
+						"user2", "song.mp3", 4 * 1024 * 1024 );
+			}
+		},
+		FileTransResponseMessage {
+			@Override
+			Message create(int a_index){
+				return new FileTransResponseMessage(
+						MessageHeader.FILE_Transfer, 7,
+						TransferStage.STAGE2_ResponseToRequest, "user2",
+						"user1", "song.mp3", MessageResponse.Success );
+			}
+		},
+		LoginMessage {
+			@Override
+			Message create(int a_index){
+				return new LoginMessage( MessageHeader.LOGIN,
+						LoginCondition.SUCCESS );
+			}
+		},
+		LogoutMessage {
+			@Override
+			Message create(int a_index){
+				return new LogoutMessage( MessageHeader.LOGOUT );
+			}
+		},
+		PresenceMessage {
+			@Override
+			Message create(int a_index){
+				return new PresenceMessage( MessageHeader.SERVER_Presence,
+						names( 10 ), names( 5 ) );
+			}
+		},
+		PrivateChatMessage {
+			@Override
+			Message create(int a_index){
+				return new PrivateChatMessage( MessageHeader.PRIV_SendChatMess,
+						TEXT, "user" + a_index, "user2" );
+			}
+		},
+		ServerMessage {
+			@Override
+			Message create(int a_index){
+				ServerMessage msg = new ServerMessage( MessageHeader.SERVER_Error );
+				msg.setMessage( "ERROR: Not in channel #" + CHANNEL + "." );
+				return msg;
+			}
+		},
+		UserListMessage {
+			@Override
+			Message create(int a_index){
+				return new UserListMessage( MessageHeader.SERVER_UserList,
+						"user1", names( USERS ) );
+			}
+		},
+		UserListSyncMessage {
+			@Override
+			Message create(int a_index){
+				return new UserListSyncMessage(
+						MessageHeader.SERVER_UserListSync, "user1", 1, 42,
+						PAGE_FLAGS, names( USERS ), names( 0 ) );
+			}
+		};
+
+		/**
+		 * Create a new sample message.
+		 * @param a_index <code>int</code>, the message's index in its batch
+		 * @return <code>Message</code>, the message
+		 * @throws Exception if the message cannot be created
+		 */
+		abstract Message create(int a_index) throws Exception;
+	}
+
+	/**
+	 * A stream that discards what is written to it, only counting the bytes.
+	 */
+	private static final class NullStream extends OutputStream {
+		/** Bytes written to the stream */
+		private long m_bytes;
+
+		@Override
+		public void write(int a_byte){
+			m_bytes++;
+		}
+
+		@Override
+		public void write(byte[] a_data, int a_offset, int a_length){
+			m_bytes += a_length;
+		}
+	}
+
+	/**
+	 * A thread writing the messages queued for a handler's user to an
+	 * in-memory stream, in place of the handler's writer thread.
+	 */
+	private static final class Drainer extends Thread {
+		/** The handler's queue */
+		private final OutboundQueue m_queue;
+
+		/** The stream the messages are written to */
+		private final NullStream m_out;
+
+		/**
+		 * Create a daemon thread draining the given handler's queue.
+		 * @param a_handler <code>UserHandler</code>, the handler
+		 */
+		Drainer(UserHandler a_handler){
+			super("Drainer");
+			setDaemon( true );
+			m_queue = a_handler.getOutboundQueue();
+			m_out = new NullStream();
+		}
+
+		@Override
+		public void run(){
+			List<MessageFrame> drained = new ArrayList<MessageFrame>();
+			try {
+				while( m_queue.take( drained, BATCH, Integer.MAX_VALUE ) > 0 ){
+					writeAll( drained, m_out );
+					drained.clear();
+				}
+			} catch (InterruptedException e) {
+				//benchmark done
+			} catch (IOException e) {
+				//not thrown by the stream
+			}
+		}
+	}
+
+	/**
+	 * A logged in <code>UserHandler</code> parsing a buffer of client
+	 * messages.
+	 */
+	private static final class ParseBenchmark extends Benchmark {
+		/** The server the handler belongs to */
+		private final Server m_server;
+
+		/** The running dispatcher the handler hands its messages to */
+		private final MessageDispatcher m_dispatcher;
+
+		/** The kind of messages parsed */
+		private final Traffic m_traffic;
+
+		/** The wire format the handler logs in with */
+		private final ProtocolVersion m_protocol;
+
+		/** Listener accepting the handlers' loopback connections */
+		private ServerSocket m_listener;
+
+		/** The client ends of the handlers' connections */
+		private final List<Socket> m_clients;
+
+		/** The handlers of the sending and receiving users */
+		private final List<UserHandler> m_handlers;
+
+		/** The threads draining the handlers' queues */
+		private final List<Drainer> m_drainers;
+
+		/** The encoded messages parsed by each call */
+		private byte[] m_input;
+
+		/**
+		 * Create the benchmark.
+		 * @param a_server <code>Server</code>, the server
+		 * @param a_dispatcher <code>MessageDispatcher</code>, a running
+		 * 	dispatcher
+		 * @param a_traffic <code>Traffic</code>, the kind of messages parsed
+		 * @param a_protocol <code>ProtocolVersion</code>, the wire format
+		 */
+		ParseBenchmark(Server a_server, MessageDispatcher a_dispatcher,
+				Traffic a_traffic, ProtocolVersion a_protocol){
+			super("parse." + a_traffic.name().toLowerCase(), "protocol",
+					a_protocol.name());
+			m_server = a_server;
+			m_dispatcher = a_dispatcher;
+			m_traffic = a_traffic;
+			m_protocol = a_protocol;
+			m_clients = new ArrayList<Socket>();
+			m_handlers = new ArrayList<UserHandler>();
+			m_drainers = new ArrayList<Drainer>();
+		}
+
+		@Override
+		protected void setUp() throws Exception{
+			m_listener = new ServerSocket( 0, 50,
+					InetAddress.getLoopbackAddress() );
+			for( String userName : new String[]{ "benchSender",
+					"benchReceiver" } ){
+				UserHandler handler = logIn( m_listener, m_clients, m_server,
+						m_dispatcher, m_protocol, userName );
+				if( m_traffic == Traffic.CHANNEL_CHAT ){
+					m_dispatcher.joinChannel( CHANNEL, handler );
+				}
+				Drainer drainer = new Drainer( handler );
+				drainer.start();
+				m_handlers.add( handler );
+				m_drainers.add( drainer );
+			}
+			if( m_traffic == Traffic.FILE_RELAY ){
+				acceptTransfer( m_handlers.get( 0 ), m_handlers.get( 1 ),
+						m_protocol, "benchSender", "benchReceiver" );
+			}
+			afterIteration();
+
+			ByteArrayOutputStream input = new ByteArrayOutputStream();
+			for( int i = 0; i < BATCH; i++ ){
+				writeClientMessage( input, m_protocol, m_traffic, i,
+						"benchSender", "benchReceiver" );
+			}
+			m_input = input.toByteArray();
+		}
+
+		@Override
+		protected int run() throws Exception{
+			ByteBuffer buffer = ByteBuffer.wrap( m_input );
+			m_handlers.get( 0 ).processInput( buffer );
+			if( buffer.hasRemaining() ){
+				throw new IOException("Handler stopped parsing");
+			}
+			return BATCH;
+		}
+
+		@Override
+		protected void afterIteration() throws Exception{
+			awaitDelivery( m_dispatcher, m_handlers );
+		}
+
+		@Override
+		protected void tearDown() throws Exception{
+			for( Drainer drainer : m_drainers ){
+				drainer.interrupt();
+			}
+			for( UserHandler handler : m_handlers ){
+				m_dispatcher.removeUser( handler.getUser().getUserName(),
+						handler );
+			}
+			for( Socket client : m_clients ){
+				client.close();
+			}
+			m_listener.close();
+		}
+	}
+
+	/**
+	 * The dispatcher routing new messages to the queues of its users, which
+	 * are then written to in-memory streams.
+	 */
+	private static final class RouteBenchmark extends Benchmark {
+		/** The server the users belong to */
+		private final Server m_server;
+
+		/** The kind of messages routed */
+		private final Traffic m_traffic;
+
+		/** The wire format of the users */
+		private final ProtocolVersion m_protocol;
+
+		/** The dispatcher, never started, driven by the benchmark itself */
+		private MessageDispatcher m_dispatcher;
+
+		/** Listener accepting the handlers' loopback connections */
+		private ServerSocket m_listener;
+
+		/** The client ends of the handlers' connections */
+		private final List<Socket> m_clients;
+
+		/** The handlers of the users */
+		private final List<UserHandler> m_handlers;
+
+		/** Frames taken from a queue, reused for every queue */
+		private final List<MessageFrame> m_drained;
+
+		/** The stream the users' messages are written to */
+		private final NullStream m_out;
+
+		/**
+		 * Create the benchmark.
+		 * @param a_server <code>Server</code>, the server
+		 * @param a_traffic <code>Traffic</code>, the kind of messages routed
+		 * @param a_protocol <code>ProtocolVersion</code>, the wire format
+		 */
+		RouteBenchmark(Server a_server, Traffic a_traffic,
+				ProtocolVersion a_protocol){
+			super("route." + a_traffic.name().toLowerCase(), "protocol",
+					a_protocol.name(), "users", String.valueOf( USERS ),
+					"workers", String.valueOf( WORKERS ) );
+			m_server = a_server;
+			m_traffic = a_traffic;
+			m_protocol = a_protocol;
+			m_clients = new ArrayList<Socket>();
+			m_handlers = new ArrayList<UserHandler>();
+			m_drained = new ArrayList<MessageFrame>();
+			m_out = new NullStream();
+		}
+
+		@Override
+		protected void setUp() throws Exception{
+			m_dispatcher = new MessageDispatcher( m_server, WORKERS );
+			m_listener = new ServerSocket( 0, USERS,
+					InetAddress.getLoopbackAddress() );
+			for( int i = 0; i < USERS; i++ ){
+				UserHandler handler = logIn( m_listener, m_clients, m_server,
+						m_dispatcher, m_protocol, "user" + i );
+				if( i < CHANNEL_MEMBERS ){
+					m_dispatcher.joinChannel( CHANNEL, handler );
+				}
+				m_handlers.add( handler );
+			}
+		}
+
+		@Override
+		protected int run() throws Exception{
+			for( int i = 0; i < BATCH; i++ ){
+				Message msg = createRoutedMessage( m_traffic, i );
+				for( int partition = 0; partition < WORKERS; partition++ ){
+					m_dispatcher.sendMessage( partition, msg );
+				}
+			}
+
+			for( UserHandler handler : m_handlers ){
+				OutboundQueue queue = handler.getOutboundQueue();
+				if( queue.drainTo( m_drained, Integer.MAX_VALUE,
+						Integer.MAX_VALUE ) > 0 ){
+					writeAll( m_drained, m_out );
+					m_drained.clear();
+				}
+			}
+			return BATCH;
+		}
+
+		@Override
+		protected void tearDown() throws Exception{
+			for( Socket client : m_clients ){
+				client.close();
+			}
+			m_listener.close();
+		}
+	}
+
+	// *********************************************************
+	// ******************** Main *******************************
+	// *********************************************************
+	/**
+	 * Run every benchmark passing the options' filter, and exit with
+	 * status 1 if any fails.
+	 * @param a_args <code>String[]</code>, the options of
+	 * 	<code>BenchmarkRunner</code>
+	 * @throws Exception if the server cannot be created, or the results
+	 * 	file cannot be written
+	 */
+	public static void main(String[] a_args) throws Exception{
+		BenchmarkRunner runner = new BenchmarkRunner( a_args );
+
+		ServerData data = new ServerData( "Bench", "", "", true,
+				ServerData.DEFAULT_PORT );
+		data.setPresenceWindow( 0 );
+		//the parsing outpaces the delivery while an iteration lasts
+		data.setMaxQueuedMessages( MAX_QUEUED_MESSAGES );
+		data.setMaxQueuedBytes( MAX_QUEUED_BYTES );
+		final Server server = new Server( data );
+		MessageDispatcher dispatcher = new MessageDispatcher( server, WORKERS );
+		dispatcher.start();
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		addHeaderBenchmarks( benchmarks );
+		for( final Sample sample : Sample.values() ){
+			for( final ProtocolVersion protocol : ProtocolVersion.values() ){
+				benchmarks.add( new Benchmark( "encode." + sample.name(),
+						"protocol", protocol.name() ){
+					private final NullStream m_out = new NullStream();
+
+					@Override
+					protected int run() throws Exception{
+						for( int i = 0; i < BATCH; i++ ){
+							sample.create( i ).getFrame( protocol )
+									.writeTo( m_out );
+						}
+						return BATCH;
+					}
+				});
+			}
+		}
+		for( Traffic traffic : Traffic.values() ){
+			for( ProtocolVersion protocol : ProtocolVersion.values() ){
+				benchmarks.add( new ParseBenchmark( server, dispatcher, traffic,
+						protocol ) );
+			}
+		}
+		for( Traffic traffic : Traffic.values() ){
+			if( traffic == Traffic.FILE_RELAY ){
+				//relayed data never reaches the dispatcher
+				continue;
+			}
+			for( ProtocolVersion protocol : ProtocolVersion.values() ){
+				benchmarks.add( new RouteBenchmark( server, traffic, protocol ) );
+			}
+		}
+
+		boolean passed = runner.run( benchmarks );
+
+		//also stops the running dispatcher, whose workers are not daemons
+		server.shutDownServer( null );
+		dispatcher.shutDown();
+		System.exit( passed ? 0 : 1 );
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Add the benchmarks of the header lookups.
+	 * @param a_benchmarks <code>List&lt;Benchmark&gt;</code>, the list to
+	 * 	add to
+	 */
+	private static void addHeaderBenchmarks(List<Benchmark> a_benchmarks){
+		final List<String> codes = new ArrayList<String>();
+		final List<Byte> types = new ArrayList<Byte>();
+		for( MessageHeader header : MessageHeader.values() ){
+			if( header != MessageHeader.INVALID ){
+				codes.add( header.getHeaderCode() );
+				types.add( header.getTypeCode() );
+			}
+		}
+
+		a_benchmarks.add( new Benchmark( "header.fromString" ){
+			private long m_sink;
+
+			@Override
+			protected int run(){
+				for( String code : codes ){
+					m_sink += MessageHeader.fromString( code ).ordinal();
+				}
+				return codes.size();
+			}
+		});
+		a_benchmarks.add( new Benchmark( "header.fromTypeCode" ){
+			private long m_sink;
+
+			@Override
+			protected int run(){
+				for( Byte type : types ){
+					m_sink += MessageHeader.fromTypeCode( type ).ordinal();
+				}
+				return types.size();
+			}
+		});
+	}
+
+	/**
+	 * Connect a handler over loopback and log it in.
+	 * @param a_listener <code>ServerSocket</code>, the listener accepting
+	 * 	the connection
+	 * @param a_clients <code>List&lt;Socket&gt;</code>, the client ends of
+	 * 	the connections, to add this one's to
+	 * @param a_server <code>Server</code>, the server
+	 * @param a_dispatcher <code>MessageDispatcher</code>, the dispatcher
+	 * 	the user is added to
+	 * @param a_protocol <code>ProtocolVersion</code>, the wire format
+	 * @param a_userName <code>String</code>, the user's name
+	 * @return <code>UserHandler</code>, the logged in handler
+	 * @throws IOException if the handler cannot connect or log in
+	 */
+	private static UserHandler logIn(ServerSocket a_listener,
+			List<Socket> a_clients, Server a_server,
+			MessageDispatcher a_dispatcher, ProtocolVersion a_protocol,
+			String a_userName) throws IOException{
+		a_clients.add( new Socket( a_listener.getInetAddress(),
+				a_listener.getLocalPort() ) );
+		UserHandler handler = new UserHandler( a_listener.accept(),
+				a_dispatcher, a_server );
+
+		ByteArrayOutputStream login = new ByteArrayOutputStream();
+		MessageWriter writer = new MessageWriter( a_protocol );
+		if( a_protocol == ProtocolVersion.V2 ){
+			writer.writeHeader( MessageHeader.LOGIN );
+		}
+		writer.writeString( a_userName );
+		writer.writeString( "" );
+		if( a_protocol == ProtocolVersion.V2 ){
+			writer.writeLength( UserListSyncMessage.PAGED
+					| UserListSyncMessage.PRESENCE );
+			new DataOutputStream( login ).writeInt( ProtocolVersion.V2_MAGIC );
+		}
+		writer.toFrame().writeTo( login );
+		handler.processInput( ByteBuffer.wrap( login.toByteArray() ) );
+		if( handler.getUser() == null ){
+			throw new IOException("Login of " + a_userName + " refused");
+		}
+		return handler;
+	}
+
+	/**
+	 * Have a sending user request the transfer of the file data sent by
+	 * the benchmarks, and its receiver accept it, so that the data is 
+	 * relayed to the receiver.
+	 * @param a_sender <code>UserHandler</code>, the sender's handler
+	 * @param a_receiver <code>UserHandler</code>, the receiver's handler
+	 * @param a_protocol <code>ProtocolVersion</code>, the wire format
+	 * @param a_senderName <code>String</code>, the sending user
+	 * @param a_receiverName <code>String</code>, the receiving user
+	 * @throws IOException if a handler refuses the request or response
+	 */
+	private static void acceptTransfer(UserHandler a_sender,
+			UserHandler a_receiver, ProtocolVersion a_protocol,
+			String a_senderName, String a_receiverName) throws IOException{
+		//the request is given the ID the benchmarks' data is sent with
+		FileTransferMessage.setTransferIDBase( 7 );
+		MessageWriter writer = new MessageWriter( a_protocol );
+		writer.writeHeader( MessageHeader.FILE_Transfer );
+		writer.writeByte( TransferStage.STAGE1_RequestFromSender.getCode() );
+		writer.writeInt( 0 );
+		writer.writeString( a_receiverName );
+		writer.writeString( "song.mp3" );
+		writer.writeInt( 4096 );
+
+		ByteArrayOutputStream request = new ByteArrayOutputStream();
+		writer.toFrame().writeTo( request );
+		a_sender.processInput( ByteBuffer.wrap( request.toByteArray() ) );
+
+		writer = new MessageWriter( a_protocol );
+		writer.writeHeader( MessageHeader.FILE_Transfer );
+		writer.writeByte( TransferStage.STAGE2_ResponseToRequest.getCode() );
+		writer.writeInt( 7 );
+		writer.writeString( a_senderName );
+		writer.writeString( "song.mp3" );
+		writer.writeByte( MessageResponse.Success.getCode() );
+
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		writer.toFrame().writeTo( response );
+		a_receiver.processInput( ByteBuffer.wrap( response.toByteArray() ) );
+	}
+
+	/**
+	 * Write a message as a client sends it.
+	 * @param a_out <code>ByteArrayOutputStream</code>, the stream to add
+	 * 	the message to
+	 * @param a_protocol <code>ProtocolVersion</code>, the wire format
+	 * @param a_traffic <code>Traffic</code>, the kind of message
+	 * @param a_index <code>int</code>, the message's index in its batch
+	 * @param a_sender <code>String</code>, the sending user
+	 * @param a_receiver <code>String</code>, the receiving user
+	 */
+	private static void writeClientMessage(ByteArrayOutputStream a_out,
+			ProtocolVersion a_protocol, Traffic a_traffic, int a_index,
+			String a_sender, String a_receiver){
+		MessageWriter writer = new MessageWriter( a_protocol );
+		switch( a_traffic ){
+		case CHAT:
+			writer.writeHeader( MessageHeader.REG_SendChatMess );
+			writer.writeString( a_sender );
+			writer.writeString( TEXT );
+			break;
+		case PRIVATE:
+			writer.writeHeader( MessageHeader.PRIV_SendChatMess );
+			writer.writeString( a_sender );
+			writer.writeString( a_receiver );
+			writer.writeString( TEXT );
+			break;
+		case CHANNEL_CHAT:
+			writer.writeHeader( MessageHeader.CHANNEL_SendChatMess );
+			writer.writeString( CHANNEL );
+			writer.writeString( a_sender );
+			writer.writeString( TEXT );
+			break;
+		case FILE_DATA:
+		case FILE_RELAY:
+			writer.writeHeader( MessageHeader.FILE_Transfer );
+			writer.writeByte( TransferStage.STAGE3_DataTransmission.getCode() );
+			writer.writeInt( 7 );
+			writer.writeString( a_receiver );
+			writer.writeString( "song.mp3" );
+			writer.writeInt( a_index + 1 );
+			writer.writeInt( BATCH );
+			writer.writeLength( SEGMENT_SIZE );
+			writer.writeRaw( SEGMENT );
+			break;
+		}
+
+		//each message is its own frame in V2
+		try {
+			writer.toFrame().writeTo( a_out );
+		} catch (IOException e) {
+			//not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * Create a message as a handler hands it to the dispatcher.
+	 * @param a_traffic <code>Traffic</code>, the kind of message
+	 * @param a_index <code>int</code>, the message's index in its batch
+	 * @return <code>Message</code>, the message
+	 * @throws Exception if the message cannot be created
+	 */
+	private static Message createRoutedMessage(Traffic a_traffic, int a_index)
+			throws Exception{
+		String sender = "user" + ( a_index % USERS );
+		String receiver = "user" + ( ( a_index + 1 ) % USERS );
+		switch( a_traffic ){
+		case PRIVATE:
+			return new PrivateChatMessage( MessageHeader.PRIV_SendChatMess,
+					TEXT, sender, receiver );
+		case CHANNEL_CHAT:
+			return new ChannelChatMessage( MessageHeader.CHANNEL_SendChatMess,
+					CHANNEL, TEXT, sender );
+		case FILE_DATA:
+			return new FileTransDataMessage( MessageHeader.FILE_Transfer, 7,
+					TransferStage.STAGE3_DataTransmission, sender, receiver,
+					"song.mp3", a_index + 1, BATCH, SEGMENT_SIZE, SEGMENT );
+		default:
+			return new ChatMessage( MessageHeader.REG_SendChatMess, TEXT,
+					sender );
+		}
+	}
+
+	/**
+	 * Write the frames taken from a queue to a stream, releasing them as a
+	 * handler's writer does.
+	 * @param a_frames <code>List&lt;MessageFrame&gt;</code>, the frames
+	 * @param a_out <code>OutputStream</code>, the stream
+	 * @throws IOException if a frame cannot be written
+	 */
+	private static void writeAll(List<MessageFrame> a_frames, 
+			OutputStream a_out) throws IOException{
+		for( MessageFrame frame : a_frames ){
+			frame.writeTo( a_out );
+			frame.release();
+		}
+	}
+
+	/**
+	 * Wait until the dispatcher has delivered every queued message, and
+	 * the handlers' queues have been drained.
+	 * @param a_dispatcher <code>MessageDispatcher</code>, the dispatcher
+	 * @param a_handlers <code>List&lt;UserHandler&gt;</code>, the handlers
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static void awaitDelivery(MessageDispatcher a_dispatcher,
+			List<UserHandler> a_handlers) throws InterruptedException{
+		boolean delivered;
+		do{
+			Thread.sleep( 1 );
+			delivered = a_dispatcher.isMessageListEmpty();
+			for( UserHandler handler : a_handlers ){
+				delivered &= handler.getOutboundQueue().isEmpty();
+			}
+		} while( !delivered );
+	}
+
+	/**
+	 * Create a list of user names.
+	 * @param a_count <code>int</code>, the number of names
+	 * @return <code>List&lt;String&gt;</code>, the names
+	 */
+	private static List<String> names(int a_count){
+		List<String> names = new ArrayList<String>( a_count );
+		for( int i = 0; i < a_count; i++ ){
+			names.add( "user" + i );
+		}
+		return names;
+	}
+}
@@ -0,0 +1,434 @@
+package server.framework;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import protocol.MessageFrame;
+
+/**
+ * A single client's non-blocking channel, owned by an <code>EventLoop</code>.
+ * <p>
+ * Holds the connection's read buffer, into which incoming bytes are
+ * collected until its <code>UserHandler</code> can parse complete messages.
+ * Messages waiting to be written are kept on the handler's 
+ * <code>OutboundQueue</code> until the socket can accept them.
+ * <p>
+ * Queued messages are written together with a single gathering write, up to
+ * the server's batch limits, rather than one write per message.
+ *
+ * @author Andrzej Brynczka
+ */
+public class ChannelConnection {
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The client's channel */
+	private final SocketChannel m_channel;
+
+	/** The loop that owns this connection */
+	private final EventLoop m_loop;
+
+	/** The channel's registration with the loop's selector */
+	private SelectionKey m_key;
+
+	/** The handler that parses and acts on this client's messages */
+	private UserHandler m_handler;
+
+	/** Bytes read from the channel that are not yet parsed */
+	private ByteBuffer m_readBuffer;
+
+	/** The handler's queue of messages waiting to be written */
+	private OutboundQueue m_outbound;
+
+	/** Reused list of the frames taken from the queue for each batch */
+	private final List<MessageFrame> m_drained;
+
+	/** Set while reading is paused, leaving the client's bytes unread */
+	private boolean m_readPaused;
+
+	/**
+	 * Messages taken from the outbound queue for the current gathering
+	 * write, the first possibly partially written. Accessed only by the
+	 * owning loop.
+	 */
+	private final ArrayDeque<ByteBuffer> m_inFlight;
+
+	/**
+	 * The frames of the messages in flight, in the same order, released 
+	 * once written in full. Accessed only by the owning loop.
+	 */
+	private final ArrayDeque<MessageFrame> m_inFlightFrames;
+
+	/** Reused array of the buffers handed to each gathering write */
+	private final ByteBuffer[] m_gather;
+
+	/** Largest number of bytes collected into a single write */
+	private final int m_maxBatchBytes;
+
+	/** Counters the connection's writes are recorded in */
+	private final ServerMetrics m_metrics;
+
+	/** Set while a write request for this connection is pending */
+	private final AtomicBoolean m_writeRequested;
+
+	/** Set when the channel is to be closed once its output is written */
+	private volatile boolean m_closeAfterFlush;
+
+	/** Set once the channel has been closed */
+	private volatile boolean m_closed;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create the connection for an accepted, non-blocking channel.
+	 *
+	 * @param a_channel <code>SocketChannel</code>, the client's channel
+	 * @param a_loop <code>EventLoop</code>, the loop that will own it
+	 * @param a_maxBatchMessages <code>int</code>, the largest number of
+	 * 	messages written in a single write
+	 * @param a_maxBatchBytes <code>int</code>, the largest number of bytes
+	 * 	collected into a single write
+	 * @param a_metrics <code>ServerMetrics</code>, the counters to record
+	 * 	writes in
+	 */
+	ChannelConnection(SocketChannel a_channel, EventLoop a_loop,
+			int a_maxBatchMessages, int a_maxBatchBytes,
+			ServerMetrics a_metrics){
+		m_channel = a_channel;
+		m_loop = a_loop;
+		m_key = null;
+		m_handler = null;
+		m_readBuffer = ByteBuffer.allocate( MessageDecoder.INITIAL_BUFFER_SIZE );
+		m_outbound = null;
+		m_drained = new ArrayList<MessageFrame>( a_maxBatchMessages );
+		m_readPaused = false;
+		m_inFlight = new ArrayDeque<ByteBuffer>();
+		m_inFlightFrames = new ArrayDeque<MessageFrame>();
+		m_gather = new ByteBuffer[a_maxBatchMessages];
+		m_maxBatchBytes = a_maxBatchBytes;
+		m_metrics = a_metrics;
+		m_writeRequested = new AtomicBoolean( false );
+		m_closeAfterFlush = false;
+		m_closed = false;
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the client's channel.
+	 * @return <code>SocketChannel</code>, the channel
+	 */
+	public SocketChannel getChannel(){
+		return m_channel;
+	}
+
+	/**
+	 * Check if the connection has been closed.
+	 * @return <code>boolean</code> - <code>true</code> if closed,
+	 * 	<code>false</code> otherwise
+	 */
+	public boolean isClosed(){
+		return m_closed;
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Set the handler that parses this connection's messages, and whose
+	 * queued messages are written to the channel.
+	 * @param a_handler <code>UserHandler</code>, the client's handler
+	 */
+	void setHandler(UserHandler a_handler){
+		m_handler = a_handler;
+		m_outbound = a_handler.getOutboundQueue();
+	}
+
+	/**
+	 * Set the channel's selection key. Called by the owning loop once the
+	 * channel is registered.
+	 * @param a_key <code>SelectionKey</code>, the key
+	 */
+	void setKey(SelectionKey a_key){
+		m_key = a_key;
+
+		//output may have been queued before registration completed
+		if( !m_outbound.isEmpty() || m_closeAfterFlush ){
+			enableWrite();
+		}
+	}
+
+	/**
+	 * Have the messages added to the handler's queue written to the client.
+	 * May be called from any thread.
+	 */
+	void outputQueued(){
+		if( m_closed ){
+			return;
+		}
+
+		requestWrite();
+	}
+
+	/**
+	 * Stop reading from the client, leaving its bytes in the socket's
+	 * buffer until <code>resumeReading</code> is called. Messages already
+	 * read but not yet handled wait in the read buffer.
+	 * Called only from the owning loop's thread.
+	 */
+	void pauseReading(){
+		if( m_key != null && m_key.isValid() && !m_readPaused ){
+			m_readPaused = true;
+			m_key.interestOps( m_key.interestOps() & ~SelectionKey.OP_READ );
+		}
+	}
+
+	/**
+	 * Start reading from the client again after <code>pauseReading</code>.
+	 * May be called from any thread.
+	 */
+	void resumeReading(){
+		m_loop.execute(new Runnable(){
+			@Override
+			public void run(){
+				if( m_readPaused && m_key.isValid() ){
+					m_readPaused = false;
+					m_key.interestOps( 
+							m_key.interestOps() | SelectionKey.OP_READ );
+					
+					//handle the messages left over when reading was paused
+					processBuffered();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Check if reading from the client is paused.
+	 * Called only from the owning loop's thread.
+	 * @return <code>boolean</code> - <code>true</code> if paused,
+	 * 	<code>false</code> otherwise
+	 */
+	boolean isReadPaused(){
+		return m_readPaused;
+	}
+
+	/**
+	 * Close the connection once all queued output has been written. May be
+	 * called from any thread.
+	 */
+	void shutdown(){
+		m_closeAfterFlush = true;
+		requestWrite();
+	}
+
+	/**
+	 * Ask the owning loop to service this connection's output, unless a
+	 * request is already pending.
+	 */
+	private void requestWrite(){
+		if( m_writeRequested.compareAndSet( false, true ) ){
+			m_loop.requestWrite( this );
+		}
+	}
+
+	/**
+	 * Register interest in the channel becoming writable.
+	 * Called only from the owning loop's thread.
+	 */
+	void enableWrite(){
+		if( m_key != null && m_key.isValid() ){
+			m_key.interestOps( m_key.interestOps() | SelectionKey.OP_WRITE );
+		}
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Read the available bytes from the channel and pass every complete
+	 * message to the handler. Incomplete messages stay in the buffer until
+	 * the rest of their bytes arrive.
+	 * Called only from the owning loop's thread.
+	 */
+	void handleRead(){
+		int read;
+		try {
+			read = m_channel.read( m_readBuffer );
+		} catch (IOException e) {
+			System.out.println("ERROR: Reading from " + describe() + ": "
+					+ e.getMessage());
+			m_handler.terminateConnection( null );
+			close();
+			return;
+		}
+
+		if( read == -1 ){
+			//client disconnected
+			m_handler.terminateConnection( null );
+			close();
+			return;
+		}
+		m_metrics.recordBytesIn( read );
+
+		processBuffered();
+	}
+
+	/**
+	 * Pass every complete message held in the read buffer to the handler,
+	 * stopping early if reading is paused.
+	 * Called only from the owning loop's thread.
+	 */
+	private void processBuffered(){
+		//parse as many complete messages as the buffer holds
+		m_readBuffer.flip();
+		try {
+			m_handler.processInput( m_readBuffer );
+		} catch (IOException e) {
+			System.out.println("ERROR: Handling input from " + describe()
+					+ ": " + e.getMessage());
+			m_handler.terminateConnection( null );
+		}
+		m_readBuffer.compact();
+
+		//a partial message filled the whole buffer, make room for the rest
+		if( !m_readBuffer.hasRemaining() && !m_readPaused ){
+			ByteBuffer larger = MessageDecoder.grow( m_readBuffer );
+			if( larger == null ){
+				System.out.println("ERROR: Message from " + describe()
+						+ " exceeds " + MessageDecoder.MAX_BUFFER_SIZE
+						+ " bytes");
+				m_handler.terminateConnection( null );
+				close();
+				return;
+			}
+			m_readBuffer = larger;
+		}
+	}
+
+	/**
+	 * Write as much queued output as the channel will accept, gathering
+	 * the queued messages into as few writes as the batch limits allow.
+	 * Write interest is dropped once the queue is empty.
+	 * Called only from the owning loop's thread.
+	 */
+	void handleWrite(){
+		try {
+			while( fillBatch() ){
+				int count = m_inFlight.size();
+				m_inFlight.toArray( m_gather );
+				long bytes = m_channel.write( m_gather, 0, count );
+
+				//release the messages that were written in full
+				int written = 0;
+				while( !m_inFlight.isEmpty()
+						&& !m_inFlight.peekFirst().hasRemaining() ){
+					m_inFlight.pollFirst();
+					m_inFlightFrames.pollFirst().release();
+					written++;
+				}
+				Arrays.fill( m_gather, 0, count, null );
+				m_metrics.recordSocketWrite( written, bytes );
+
+				if( !m_inFlight.isEmpty() ){
+					//socket buffer is full, wait until it is writable again
+					return;
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("ERROR: Writing to " + describe() + ": "
+					+ e.getMessage());
+			m_inFlight.clear();
+			m_inFlightFrames.clear();
+			m_outbound.clear();
+			m_handler.terminateConnection( null );
+			close();
+			return;
+		}
+
+		//all output written
+		if( m_closeAfterFlush ){
+			close();
+			return;
+		}
+
+		if( m_key.isValid() ){
+			m_key.interestOps( m_key.interestOps() & ~SelectionKey.OP_WRITE );
+		}
+		m_writeRequested.set( false );
+
+		//output queued after the drain but before the request was cleared
+		if( !m_outbound.isEmpty() && m_writeRequested.compareAndSet(false, true) ){
+			enableWrite();
+		}
+	}
+
+	/**
+	 * Top up the messages in flight from the outbound queue, up to the
+	 * batch limits. A message is always taken while the batch has room, 
+	 * however large.
+	 * Called only from the owning loop's thread.
+	 *
+	 * @return <code>boolean</code> - <code>true</code> if there is output to
+	 * 	write, <code>false</code> if all output has been written
+	 */
+	private boolean fillBatch(){
+		int bytes = 0;
+		for( ByteBuffer data : m_inFlight ){
+			bytes += data.remaining();
+		}
+
+		int room = m_gather.length - m_inFlight.size();
+		if( room > 0 && bytes < m_maxBatchBytes ){
+			m_outbound.drainTo( m_drained, room, m_maxBatchBytes - bytes );
+			for( MessageFrame frame : m_drained ){
+				if( !frame.isEmpty() ){
+					m_inFlight.addLast( frame.toByteBuffer() );
+					m_inFlightFrames.addLast( frame );
+				}
+			}
+			m_drained.clear();
+		}
+
+		return !m_inFlight.isEmpty();
+	}
+
+	/**
+	 * Close the channel and release its selector registration.
+	 */
+	void close(){
+		if( m_closed ){
+			return;
+		}
+		m_closed = true;
+
+		if( m_key != null ){
+			m_key.cancel();
+		}
+		try {
+			m_channel.close();
+		} catch (IOException e) {
+			//need to close connection in any case
+		}
+		if( m_handler != null ){
+			m_handler.inputClosed();
+		}
+	}
+
+	/**
+	 * Describe the connection's remote address for log messages.
+	 * @return <code>String</code>, the client's address
+	 */
+	private String describe(){
+		return m_channel.socket().getInetAddress().getHostAddress();
+	}
+}
@@ -0,0 +1,259 @@
+package server.framework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the named chat channels on the server and the users that
+ * joined them, used by the <code>MessageDispatcher</code> to send a
+ * channel's messages to its members only.
+ * <p>
+ * Like the <code>UserRegistry</code>, every channel keeps an immutable
+ * snapshot of its members' handlers for each partition, replaced whenever
+ * a member joins or leaves, so that the dispatcher's workers iterate a
+ * plain array without locking. A channel exists while it has members, and
+ * a message sent to it costs as many deliveries as it has members,
+ * however many users are logged in.
+ *
+ * @author Andrzej Brynczka
+ */
+public class ChannelRegistry {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** The most channels a single user may be a member of */
+	public static final int MAX_CHANNELS_PER_USER = 16;
+
+	/** Shared snapshot of a partition without members */
+	private static final UserHandler[] NO_MEMBERS = new UserHandler[0];
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The users, whose partitions the channels' members are spread over */
+	private final UserRegistry m_users;
+
+	/**
+	 * Snapshot of every channel's members, by channel name, then by
+	 * partition. Replaced on every change.
+	 */
+	private final ConcurrentHashMap<String, UserHandler[][]> m_channels;
+
+	/** The channels each handler is a member of, in the order joined */
+	private final Map<UserHandler, Set<String>> m_joined;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create a registry without channels.
+	 *
+	 * @param a_users <code>UserRegistry</code>, the logged in users
+	 */
+	ChannelRegistry(UserRegistry a_users){
+		m_users = a_users;
+		m_channels = new ConcurrentHashMap<String, UserHandler[][]>();
+		m_joined = new HashMap<UserHandler, Set<String>>();
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the handlers of a channel's members within a partition. The
+	 * returned array is a snapshot that is never changed, and must not be
+	 * changed by the caller.
+	 *
+	 * @param a_channel <code>String</code>, the channel's name
+	 * @param a_partition <code>int</code>, the partition's index
+	 * @return <code>UserHandler[]</code>, the members' handlers, empty if
+	 * 	the channel has no members in the partition
+	 */
+	public UserHandler[] getMembers(String a_channel, int a_partition){
+		UserHandler[][] members = m_channels.get( a_channel );
+		if( members == null ){
+			return NO_MEMBERS;
+		}
+		return members[ a_partition ];
+	}
+
+	/**
+	 * Check which partitions hold members of a channel.
+	 *
+	 * @param a_channel <code>String</code>, the channel's name
+	 * @param a_partitions <code>boolean[]</code>, set to <code>true</code>
+	 * 	for every partition holding a member, left as is for the others
+	 */
+	public void getPartitions(String a_channel, boolean[] a_partitions){
+		UserHandler[][] members = m_channels.get( a_channel );
+		if( members == null ){
+			return;
+		}
+		for( int i = 0; i < members.length; i++ ){
+			if( members[i].length > 0 ){
+				a_partitions[i] = true;
+			}
+		}
+	}
+
+	/**
+	 * Check if a user is a member of a channel.
+	 *
+	 * @param a_channel <code>String</code>, the channel's name
+	 * @param a_handler <code>UserHandler</code>, the user's handler
+	 * @return <code>boolean</code> - <code>true</code> if a member,
+	 * 	<code>false</code> otherwise
+	 */
+	public synchronized boolean isMember(String a_channel,
+			UserHandler a_handler){
+		Set<String> channels = m_joined.get( a_handler );
+		return channels != null && channels.contains( a_channel );
+	}
+
+	/**
+	 * Get the number of channels with members.
+	 * @return <code>int</code>, the number of channels
+	 */
+	public int size(){
+		return m_channels.size();
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Add a user to a channel, creating the channel if it has no members.
+	 *
+	 * @param a_channel <code>String</code>, the channel's name
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_handler <code>UserHandler</code>, the user's handler
+	 * @return <code>boolean</code> - <code>true</code> if added,
+	 * 	<code>false</code> if the user is already a member, or is a member
+	 * 	of <code>MAX_CHANNELS_PER_USER</code> channels
+	 */
+	public synchronized boolean join(String a_channel, String a_userName,
+			UserHandler a_handler){
+		Set<String> channels = m_joined.get( a_handler );
+		if( channels == null ){
+			channels = new LinkedHashSet<String>();
+		}
+		if( channels.contains( a_channel )
+				|| channels.size() >= MAX_CHANNELS_PER_USER ){
+			return false;
+		}
+		channels.add( a_channel );
+		m_joined.put( a_handler, channels );
+
+		//replace the partition's snapshot with a copy holding the member
+		int partition = m_users.partitionOf( a_userName );
+		UserHandler[][] members = m_channels.get( a_channel );
+		if( members == null ){
+			members = new UserHandler[ m_users.getPartitionCount() ][];
+			Arrays.fill( members, NO_MEMBERS );
+		}
+		else{
+			members = members.clone();
+		}
+		UserHandler[] current = members[ partition ];
+		UserHandler[] updated = Arrays.copyOf( current, current.length + 1 );
+		updated[ current.length ] = a_handler;
+		members[ partition ] = updated;
+		m_channels.put( a_channel, members );
+		return true;
+	}
+
+	/**
+	 * Remove a user from a channel, removing the channel if it is left
+	 * without members.
+	 *
+	 * @param a_channel <code>String</code>, the channel's name
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_handler <code>UserHandler</code>, the user's handler
+	 * @return <code>boolean</code> - <code>true</code> if removed,
+	 * 	<code>false</code> if the user was not a member
+	 */
+	public synchronized boolean leave(String a_channel, String a_userName,
+			UserHandler a_handler){
+		Set<String> channels = m_joined.get( a_handler );
+		if( channels == null || !channels.remove( a_channel ) ){
+			return false;
+		}
+		if( channels.isEmpty() ){
+			m_joined.remove( a_handler );
+		}
+
+		removeMember( a_channel, a_userName, a_handler );
+		return true;
+	}
+
+	/**
+	 * Remove a user from every channel it is a member of, such as when it
+	 * logs out.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_handler <code>UserHandler</code>, the user's handler
+	 * @return <code>List&lt;String&gt;</code>, the channels the user left,
+	 * 	empty if it was a member of none
+	 */
+	public synchronized List<String> leaveAll(String a_userName,
+			UserHandler a_handler){
+		Set<String> channels = m_joined.remove( a_handler );
+		if( channels == null ){
+			return Collections.emptyList();
+		}
+
+		for( String channel : channels ){
+			removeMember( channel, a_userName, a_handler );
+		}
+		return new ArrayList<String>( channels );
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Replace the snapshot of the user's partition within a channel with
+	 * a copy without the user.
+	 *
+	 * @param a_channel <code>String</code>, the channel's name
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_handler <code>UserHandler</code>, the user's handler
+	 */
+	private void removeMember(String a_channel, String a_userName,
+			UserHandler a_handler){
+		UserHandler[][] members = m_channels.get( a_channel );
+		if( members == null ){
+			return;
+		}
+
+		int partition = m_users.partitionOf( a_userName );
+		UserHandler[] current = members[ partition ];
+		List<UserHandler> remaining = new ArrayList<UserHandler>(
+				current.length );
+		for( UserHandler handler : current ){
+			if( handler != a_handler ){
+				remaining.add( handler );
+			}
+		}
+
+		members = members.clone();
+		members[ partition ] = remaining.isEmpty() ? NO_MEMBERS
+				: remaining.toArray( new UserHandler[ remaining.size() ] );
+
+		//forget the channel once its last member leaves
+		for( UserHandler[] partitionMembers : members ){
+			if( partitionMembers.length > 0 ){
+				m_channels.put( a_channel, members );
+				return;
+			}
+		}
+		m_channels.remove( a_channel );
+	}
+}
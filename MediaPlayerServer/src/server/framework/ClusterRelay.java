@@ -0,0 +1,684 @@
+package server.framework;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import server.messages.FileTransferMessage;
+import protocol.messages.Message;
+import protocol.messages.PrivateChatMessage;
+import server.messages.PunishmentInfo.Punishment;
+
+/**
+ * Relay joining this server node to the other nodes of its cluster, so that
+ * the users of every node can talk to one another as if they were all on
+ * the same server.
+ * <p>
+ * The relay listens for other nodes on the cluster port, opened on the
+ * configured cluster address, and keeps dialing every configured peer 
+ * until a <code>PeerLink</code> to it is up. Connections are only accepted
+ * from the hosts of the configured peers, and a link is only used once 
+ * both of its nodes have proven they know the cluster's secret. Each
+ * link first sends the other node the users logged in here, then every
+ * login and logout as it happens, so every node knows which node holds each
+ * user. Messages users send to one another are relayed by the
+ * <code>MessageDispatcher</code>: those to everyone, or to a channel, go to
+ * every node, while those to one user go only to the node holding it. Bans
+ * and mutes set by an admin on any node are saved and enacted by every
+ * node, and kicks reach the node holding the user.
+ * <p>
+ * Only one link is kept between two nodes. If both dial one another, the
+ * link opened by the node with the lesser name is kept.
+ *
+ * @author Andrzej Brynczka
+ */
+public class ClusterRelay extends Thread {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Milliseconds between attempts to reach a peer */
+	private static final int RECONNECT_DELAY = 3000;
+
+	/** Milliseconds allowed for a connection to a peer to open */
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	/** 
+	 * Times a client's queue limits that a link's queue holds, as a link
+	 * carries the messages of all of its node's users
+	 */
+	private static final int LINK_QUEUE_FACTOR = 16;
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The dispatcher of this node's messages */
+	private final MessageDispatcher m_dispatcher;
+
+	/** The server enacting the punishments of other nodes */
+	private final Server m_server;
+
+	/** This node's name, unique within the cluster */
+	private final String m_nodeName;
+
+	/** This node's number, unique within the cluster */
+	private final int m_nodeID;
+
+	/** The port other nodes connect to */
+	private final int m_port;
+
+	/** The local address the port is opened on */
+	private final String m_address;
+
+	/** The secret shared by the nodes of the cluster */
+	private final String m_secret;
+
+	/** The threads dialing the configured peers */
+	private final List<Thread> m_dialers;
+
+	/** The most frames that may wait to be written to another node */
+	private final int m_linkMaxFrames;
+
+	/** The most bytes that may wait to be written to another node */
+	private final long m_linkMaxBytes;
+
+	/** The registered links, by the name of the node at their other end */
+	private final Map<String, PeerLink> m_links;
+
+	/** The socket listening for other nodes, once opened */
+	private volatile ServerSocket m_listener;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create the relay of the given dispatcher, with the cluster settings
+	 * of its server.
+	 *
+	 * @param a_dispatcher <code>MessageDispatcher</code>, the dispatcher
+	 * 	whose messages are relayed
+	 * @param a_server <code>Server</code>, the server of this node
+	 */
+	ClusterRelay(MessageDispatcher a_dispatcher, Server a_server){
+		super("ClusterRelay");
+		setDaemon( true );
+		m_dispatcher = a_dispatcher;
+		m_server = a_server;
+		m_nodeName = a_server.getNodeName();
+		m_nodeID = a_server.getNodeID();
+		m_port = a_server.getClusterPort();
+		m_address = a_server.getClusterAddress();
+		m_secret = a_server.getClusterSecret();
+		m_linkMaxFrames = a_server.getMaxQueuedMessages() * LINK_QUEUE_FACTOR;
+		m_linkMaxBytes = 
+				(long) a_server.getMaxQueuedBytes() * LINK_QUEUE_FACTOR;
+		m_links = new HashMap<String, PeerLink>();
+
+		//transfers between nodes must not share IDs, start from the node's
+		//own range
+		FileTransferMessage.setTransferIDBase( ( m_nodeID << 24 ) | 1 );
+
+		m_dialers = new ArrayList<Thread>();
+		for( final InetSocketAddress peer : a_server.getPeers() ){
+			Thread dialer = new Thread( "PeerDialer-" + peer ){
+				@Override
+				public void run(){
+					dial( peer );
+				}
+			};
+			dialer.setDaemon( true );
+			m_dialers.add( dialer );
+		}
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the name of this node.
+	 * @return <code>String</code>, the node's name
+	 */
+	String getNodeName(){
+		return m_nodeName;
+	}
+
+	/**
+	 * Get the number of this node.
+	 * @return <code>int</code>, the node's number
+	 */
+	int getNodeID(){
+		return m_nodeID;
+	}
+
+	/**
+	 * Check if a link is registered, rather than closed or replaced.
+	 * @param a_link <code>PeerLink</code>, the link
+	 * @return <code>boolean</code> - <code>true</code> if registered,
+	 * 	<code>false</code> otherwise
+	 */
+	synchronized boolean isLinked(PeerLink a_link){
+		String peerName = a_link.getPeerName();
+		return peerName != null && m_links.get( peerName ) == a_link;
+	}
+
+	/**
+	 * Get the number of nodes this node is linked to.
+	 * @return <code>int</code>, the number of links
+	 */
+	synchronized int getLinkCount(){
+		return m_links.size();
+	}
+
+	/**
+	 * Get the most frames that may wait to be written to another node.
+	 * @return <code>int</code>, the number of frames
+	 */
+	int getLinkMaxFrames(){
+		return m_linkMaxFrames;
+	}
+
+	/**
+	 * Get the most bytes that may wait to be written to another node.
+	 * @return <code>long</code>, the number of bytes
+	 */
+	long getLinkMaxBytes(){
+		return m_linkMaxBytes;
+	}
+
+	/**
+	 * Check if chat that does not fit in a link's queue is dropped, rather
+	 * than the link closed.
+	 * @return <code>boolean</code> - <code>true</code> unless the server 
+	 * 	disconnects slow consumers
+	 */
+	boolean dropsChat(){
+		return m_server.getSlowConsumerPolicy() 
+				!= ServerData.SlowConsumerPolicy.DISCONNECT;
+	}
+
+	/**
+	 * Count a frame dropped from a link that fell behind.
+	 */
+	void recordDroppedFrame(){
+		m_server.getMetrics().recordDroppedMessages( 1 );
+	}
+
+	/**
+	 * Compute this node's proof that it knows the cluster's secret, for a
+	 * link whose other node sent the given challenge.
+	 * @param a_ownNonce <code>byte[]</code>, this node's challenge
+	 * @param a_peerNonce <code>byte[]</code>, the other node's challenge
+	 * @return <code>byte[]</code>, the proof
+	 * @throws IOException if the proof cannot be encoded
+	 */
+	byte[] prove(byte[] a_ownNonce, byte[] a_peerNonce) throws IOException{
+		return RelayCodec.prove( m_secret, m_nodeName, a_ownNonce, 
+				a_peerNonce );
+	}
+
+	/**
+	 * Compute the proof expected from the other node of a link, if it 
+	 * knows the cluster's secret.
+	 * @param a_peerName <code>String</code>, the other node's name
+	 * @param a_peerNonce <code>byte[]</code>, the other node's challenge
+	 * @param a_ownNonce <code>byte[]</code>, this node's challenge
+	 * @return <code>byte[]</code>, the proof
+	 * @throws IOException if the proof cannot be encoded
+	 */
+	byte[] expectProof(String a_peerName, byte[] a_peerNonce, 
+			byte[] a_ownNonce) throws IOException{
+		return RelayCodec.prove( m_secret, a_peerName, a_peerNonce, 
+				a_ownNonce );
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Register a link whose other node has named itself, sending it the
+	 * users logged in here. If another link to the same node is already
+	 * registered, only the one opened by the node with the lesser name is
+	 * kept.
+	 *
+	 * @param a_link <code>PeerLink</code>, the link
+	 * @return <code>boolean</code> - <code>true</code> if registered,
+	 * 	<code>false</code> if the link is not to be used
+	 */
+	synchronized boolean register(PeerLink a_link){
+		String peerName = a_link.getPeerName();
+		if( peerName.equals( m_nodeName ) ){
+			System.out.println("Node " + peerName + " has this node's name, "
+					+ "not linking to it.");
+			return false;
+		}
+		if( a_link.getPeerID() == m_nodeID ){
+			System.out.println("Node " + peerName + " has this node's number, "
+					+ "not linking to it.");
+			return false;
+		}
+		for( PeerLink link : m_links.values() ){
+			if( link.getPeerID() == a_link.getPeerID() 
+					&& !link.getPeerName().equals( peerName ) ){
+				System.out.println("Node " + peerName + " has the number of "
+						+ "node " + link.getPeerName() + ", not linking to it.");
+				return false;
+			}
+		}
+
+		PeerLink existing = m_links.get( peerName );
+		if( existing != null ){
+			if( !isPreferred( a_link ) ){
+				return false;
+			}
+			//the other link's users are taken over by this one
+			existing.close();
+		}
+		m_links.put( peerName, a_link );
+
+		//the users logged in before now, later ones are sent as they join
+		for( String userName : m_dispatcher.getUserCollection() ){
+			InetAddress address = m_dispatcher.getLocalIP( userName );
+			if( address != null ){
+				sendFrame( a_link, encodeUserJoined( userName, address ) );
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Unregister a closed link, and log out every user it still held.
+	 * @param a_link <code>PeerLink</code>, the link
+	 */
+	void unregister(PeerLink a_link){
+		synchronized( this ){
+			String peerName = a_link.getPeerName();
+			if( peerName != null && m_links.get( peerName ) == a_link ){
+				m_links.remove( peerName );
+				notifyAll();
+			}
+		}
+
+		//users the node announced again over a newer link are kept
+		m_dispatcher.removeRemoteUsers( a_link );
+	}
+
+	/**
+	 * Announce a login on this node to the other nodes.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_IP <code>InetAddress</code>, the address the user connected
+	 * 	from
+	 */
+	synchronized void userJoined(String a_userName, InetAddress a_IP){
+		sendToAll( encodeUserJoined( a_userName, a_IP ) );
+	}
+
+	/**
+	 * Announce a logout from this node to the other nodes.
+	 * @param a_userName <code>String</code>, the user's name
+	 */
+	synchronized void userLeft(String a_userName){
+		try {
+			sendToAll( RelayCodec.encodeUserLeft( a_userName ) );
+		} catch (IOException e) {
+			System.out.println("Unable to relay logout: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Relay a message added to this node's dispatcher to the nodes holding
+	 * its receivers, if it is one that users send to one another.
+	 * @param a_message <code>Message</code>, the message
+	 */
+	void forward(Message a_message){
+		if( !RelayCodec.isRelayed( a_message ) ){
+			return;
+		}
+
+		String receiverName = null;
+		switch( a_message.getHeader() ){
+		case PRIV_SendChatMess:
+			receiverName = ((PrivateChatMessage) a_message).getReceiverName();
+			break;
+		case FILE_Transfer:
+			receiverName =
+					((FileTransferMessage) a_message).getReceiverName();
+			break;
+		default:
+			break;
+		}
+
+		PeerLink receiverLink = null;
+		if( receiverName != null ){
+			receiverLink = m_dispatcher.getRemoteLink( receiverName );
+			if( receiverLink == null ){
+				//the receiver is on this node, or nowhere
+				return;
+			}
+		}
+
+		byte[] frame;
+		try {
+			frame = RelayCodec.encodeMessage( a_message );
+		} catch (IOException e) {
+			System.out.println("Unable to relay message: " + e.getMessage());
+			return;
+		}
+
+		//chat may be dropped from a link that fell behind
+		boolean droppable = OutboundQueue.isChat( a_message.getHeader() );
+		if( receiverLink != null ){
+			receiverLink.send( frame, droppable );
+			return;
+		}
+		synchronized( this ){
+			for( PeerLink link : m_links.values() ){
+				link.send( frame, droppable );
+			}
+		}
+	}
+
+	/**
+	 * Relay a ban or mute set or removed on this node to the other nodes.
+	 *
+	 * @param a_punishment <code>Punishment</code>, <code>BAN</code> or
+	 * 	<code>MUTE</code>
+	 * @param a_set <code>boolean</code>, true if it was set, false if it
+	 * 	was removed
+	 * @param a_targetName <code>String</code>, the punished user's name
+	 * @param a_IP <code>String</code>, the punished address or range
+	 */
+	synchronized void punish(Punishment a_punishment, boolean a_set,
+			String a_targetName, String a_IP){
+		try {
+			sendToAll( RelayCodec.encodePunishment( a_punishment, a_set,
+					a_targetName, a_IP ) );
+		} catch (IOException e) {
+			System.out.println("Unable to relay punishment: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Relay an admin's kick to the node holding the user.
+	 * @param a_targetName <code>String</code>, the user's name
+	 */
+	void kick(String a_targetName){
+		PeerLink link = m_dispatcher.getRemoteLink( a_targetName );
+		if( link == null ){
+			return;
+		}
+
+		try {
+			link.send( RelayCodec.encodeKick( a_targetName ) );
+		} catch (IOException e) {
+			System.out.println("Unable to relay kick: " + e.getMessage());
+		}
+	}
+
+	// *********************************************************
+	// ******************** Frame Handlers *********************
+	// *********************************************************
+	/**
+	 * Handle a login on another node.
+	 *
+	 * @param a_link <code>PeerLink</code>, the link to the node
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_IP <code>InetAddress</code>, the address the user connected
+	 * 	from
+	 */
+	void remoteUserJoined(PeerLink a_link, String a_userName,
+			InetAddress a_IP){
+		m_dispatcher.addRemoteUser( a_link, a_userName, a_IP );
+	}
+
+	/**
+	 * Handle a logout from another node.
+	 *
+	 * @param a_link <code>PeerLink</code>, the link to the node
+	 * @param a_userName <code>String</code>, the user's name
+	 */
+	void remoteUserLeft(PeerLink a_link, String a_userName){
+		m_dispatcher.removeRemoteUser( a_link, a_userName );
+	}
+
+	/**
+	 * Handle a message relayed by another node, dispatching it to this
+	 * node's users.
+	 * @param a_message <code>Message</code>, the message
+	 */
+	void remoteMessage(Message a_message){
+		m_dispatcher.addRelayedMessage( a_message );
+	}
+
+	/**
+	 * Handle a ban or mute set or removed on another node.
+	 *
+	 * @param a_code <code>String</code>, the punishment's code
+	 * @param a_set <code>boolean</code>, true if it was set, false if it
+	 * 	was removed
+	 * @param a_targetName <code>String</code>, the punished user's name
+	 * @param a_IP <code>String</code>, the punished address or range
+	 */
+	void remotePunishment(String a_code, boolean a_set, String a_targetName,
+			String a_IP){
+		Punishment punishment = Punishment.fromString( a_code );
+		if( punishment != Punishment.BAN && punishment != Punishment.MUTE ){
+			return;
+		}
+		m_server.applyPeerPunishment( punishment, a_set, a_targetName, a_IP );
+	}
+
+	/**
+	 * Handle an admin's kick of one of this node's users.
+	 * @param a_targetName <code>String</code>, the user's name
+	 */
+	void remoteKick(String a_targetName){
+		m_server.kickLocalUser( a_targetName, Server.KICK_MESSAGE );
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Start dialing the configured peers, and accept the connections of
+	 * other nodes until the relay is shut down.
+	 */
+	@Override
+	public void run(){
+		for( Thread dialer : m_dialers ){
+			dialer.start();
+		}
+
+		try {
+			m_listener = new ServerSocket( m_port, 0, 
+					InetAddress.getByName( m_address ) );
+			System.out.println("Cluster node " + m_nodeName
+					+ " listening on " + m_address + ":" + m_port);
+			while( !isInterrupted() ){
+				Socket socket = m_listener.accept();
+				if( !isPeerHost( socket.getInetAddress() ) ){
+					System.out.println("Refused cluster connection from "
+							+ socket.getInetAddress().getHostAddress()
+							+ ", not a configured peer");
+					socket.close();
+					continue;
+				}
+				new PeerLink( this, socket, false ).start();
+			}
+		} catch (IOException e) {
+			if( !isInterrupted() ){
+				System.out.println("Cluster port closed: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting and dialing other nodes, and close every link.
+	 */
+	void shutDown(){
+		interrupt();
+		for( Thread dialer : m_dialers ){
+			dialer.interrupt();
+		}
+
+		ServerSocket listener = m_listener;
+		if( listener != null ){
+			try {
+				listener.close();
+			} catch (IOException e) {
+				//already closed
+			}
+		}
+
+		List<PeerLink> links;
+		synchronized( this ){
+			links = new ArrayList<PeerLink>( m_links.values() );
+		}
+		for( PeerLink link : links ){
+			link.close();
+		}
+	}
+
+	/**
+	 * Keep a link to the given peer up, connecting again a while after
+	 * each link ends, until the relay is shut down.
+	 * @param a_peer <code>InetSocketAddress</code>, the peer's unresolved
+	 * 	address
+	 */
+	private void dial(InetSocketAddress a_peer){
+		try {
+			while( !Thread.currentThread().isInterrupted() ){
+				PeerLink link = null;
+				try {
+					Socket socket = new Socket();
+					socket.connect( new InetSocketAddress(
+							a_peer.getHostString(), a_peer.getPort() ),
+							CONNECT_TIMEOUT );
+					link = new PeerLink( this, socket, true );
+					link.start();
+					link.join();
+				} catch (IOException e) {
+					//peer not up yet
+				}
+
+				//a link the peer opened may have been kept in place of ours
+				if( link != null ){
+					awaitUnlinked( link.getPeerName() );
+				}
+				Thread.sleep( RECONNECT_DELAY );
+			}
+		} catch (InterruptedException e) {
+			//relay shut down
+		}
+	}
+
+	/**
+	 * Check if an address is that of one of the configured peers' hosts.
+	 * The hosts are resolved again on every check, so that a peer whose
+	 * address changed is still let in.
+	 * @param a_address <code>InetAddress</code>, the connecting address
+	 * @return <code>boolean</code> - <code>true</code> if it is a peer's,
+	 * 	<code>false</code> otherwise
+	 */
+	private boolean isPeerHost(InetAddress a_address){
+		for( InetSocketAddress peer : m_server.getPeers() ){
+			try {
+				for( InetAddress address : 
+						InetAddress.getAllByName( peer.getHostString() ) ){
+					if( address.equals( a_address ) ){
+						return true;
+					}
+				}
+			} catch (UnknownHostException e) {
+				//the peer cannot be resolved, so is not this one
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Wait until no link to the given node is registered.
+	 * @param a_peerName <code>String</code>, the node's name, or
+	 * 	<code>null</code> if it never named itself
+	 * @throws InterruptedException if the relay is shut down
+	 */
+	private synchronized void awaitUnlinked(String a_peerName)
+			throws InterruptedException{
+		while( a_peerName != null && m_links.containsKey( a_peerName ) ){
+			wait();
+		}
+	}
+
+	/**
+	 * Check if a link is to be kept over another one to the same node,
+	 * which is so if it was opened by the node with the lesser name.
+	 * @param a_link <code>PeerLink</code>, the link
+	 * @return <code>boolean</code> - <code>true</code> if preferred,
+	 * 	<code>false</code> otherwise
+	 */
+	private boolean isPreferred(PeerLink a_link){
+		boolean lesser = m_nodeName.compareTo( a_link.getPeerName() ) < 0;
+		return a_link.isDialed() == lesser;
+	}
+
+	/**
+	 * Check if this node's local user keeps its name over a user of the
+	 * same name that logged into another node meanwhile, which is so if
+	 * this node's name is the lesser.
+	 * @param a_link <code>PeerLink</code>, the link to the other node
+	 * @return <code>boolean</code> - <code>true</code> if the local user
+	 * 	keeps the name, <code>false</code> if it is to be logged out
+	 */
+	boolean keepsLocalUser(PeerLink a_link){
+		return m_nodeName.compareTo( a_link.getPeerName() ) < 0;
+	}
+
+	/**
+	 * Queue a frame to every registered link. Called with the relay's lock
+	 * held.
+	 * @param a_frame <code>byte[]</code>, the frame
+	 */
+	private void sendToAll(byte[] a_frame){
+		if( a_frame == null ){
+			return;
+		}
+		for( PeerLink link : m_links.values() ){
+			link.send( a_frame );
+		}
+	}
+
+	/**
+	 * Queue a frame to a link, if it could be encoded.
+	 * @param a_link <code>PeerLink</code>, the link
+	 * @param a_frame <code>byte[]</code>, the frame, or <code>null</code>
+	 */
+	private void sendFrame(PeerLink a_link, byte[] a_frame){
+		if( a_frame != null ){
+			a_link.send( a_frame );
+		}
+	}
+
+	/**
+	 * Encode a login, logging the failure if it cannot be encoded.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_IP <code>InetAddress</code>, the user's address
+	 * @return <code>byte[]</code>, the frame, or <code>null</code> if it
+	 * 	cannot be encoded
+	 */
+	private byte[] encodeUserJoined(String a_userName, InetAddress a_IP){
+		try {
+			return RelayCodec.encodeUserJoined( a_userName, a_IP );
+		} catch (IOException e) {
+			System.out.println("Unable to relay login: " + e.getMessage());
+			return null;
+		}
+	}
+}
@@ -2,6 +2,7 @@ package server.framework;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -15,6 +16,12 @@ import server.messages.PunishmentInfo.Punishment;
 
 /**
  * Class to handle data exchange between the server and database
+ * <p>
+ * All statements are parameterized, and every method is synchronized as the
+ * accessor shares a single connection. The server answers its frequent 
+ * punishment checks from a <code>PunishmentIndex</code> loaded from here, so
+ * the database is only read at startup and when an admin lists or changes
+ * punishments.
  * @author Andrzej Brynczka
  *
  */
@@ -96,24 +103,22 @@ public class DatabaseAccess {
 	 * @throws SQLException if a database access error occurs
 	 * @author Andrzej Brynczka
 	 */
-	private boolean isPunished(String a_IP, String a_punCode) 
+	private synchronized boolean isPunished(String a_IP, String a_punCode) 
 			throws SQLException{
 		String query = "SELECT PUNISHMENT FROM " 
 				+ ServerTables.SERVER_PUNISHMENTS.toString()
-				+" WHERE " + IP_ADDRESS + " = '" + a_IP + "'"
-				+" AND " + PUNISHMENT +" = '" + a_punCode +"'";
+				+" WHERE " + IP_ADDRESS + " = ? AND " + PUNISHMENT +" = ?";
 	
-		Statement stmt = m_dbConn.createStatement();
-		ResultSet rs = stmt.executeQuery(query);
-		
-		//If a punishment for a ban(code 003) exists for this IP,
-		//than this IP is banned
-		if(rs.next())
-		{
-			return true;
+		try( PreparedStatement stmt = m_dbConn.prepareStatement(query) ){
+			stmt.setString( 1, a_IP );
+			stmt.setString( 2, a_punCode );
+			
+			//If a punishment for a ban(code 003) exists for this IP,
+			//than this IP is banned
+			try( ResultSet rs = stmt.executeQuery() ){
+				return rs.next();
+			}
 		}
-	
-		return false;
 	}
 	
 	/**
@@ -156,17 +161,19 @@ public class DatabaseAccess {
 	 * @throws SQLException if a database access error occurs
 	 * @author Andrzej Brynczka
 	 */
-	private void setPunishment(String a_IP, String a_username, String a_punCode) 
-			throws SQLException{
+	private synchronized void setPunishment(String a_IP, String a_username, 
+			String a_punCode) throws SQLException{
 		String insert = "INSERT INTO " 
 				+ ServerTables.SERVER_PUNISHMENTS.toString() 
 				+ "(" + IP_ADDRESS + ", " + USERNAME + ", " + PUNISHMENT 
-				+ ") VALUES('" + a_IP + "', '" + a_username + "', '" 
-				+ a_punCode +"')";
+				+ ") VALUES(?, ?, ?)";
 
-			
-		Statement stmt = m_dbConn.createStatement();
-		stmt.execute(insert);
+		try( PreparedStatement stmt = m_dbConn.prepareStatement(insert) ){
+			stmt.setString( 1, a_IP );
+			stmt.setString( 2, a_username );
+			stmt.setString( 3, a_punCode );
+			stmt.execute();
+		}
 	}
 	
 	/**
@@ -208,15 +215,17 @@ public class DatabaseAccess {
 	 * @throws SQLException if a database access error occurs
 	 * @author Andrzej Brynczka
 	 */
-	private void removePunishment(String a_IP, String a_punCode) 
+	private synchronized void removePunishment(String a_IP, String a_punCode) 
 			throws SQLException{
 		String delete = "DELETE FROM " 
 				+ ServerTables.SERVER_PUNISHMENTS.toString() + " WHERE "
-				+ "IP_ADD = '" + a_IP +"' AND PUNISHMENT = '"
-				+ a_punCode + "'";
+				+ IP_ADDRESS + " = ? AND " + PUNISHMENT + " = ?";
 			
-		Statement stmt = m_dbConn.createStatement();
-		stmt.execute( delete );
+		try( PreparedStatement stmt = m_dbConn.prepareStatement(delete) ){
+			stmt.setString( 1, a_IP );
+			stmt.setString( 2, a_punCode );
+			stmt.execute();
+		}
 	}
 	
 	/**
@@ -256,25 +265,56 @@ public class DatabaseAccess {
 	 * 	for the information
 	 * @author Andrzej Brynczka
 	 */
-	public Collection<PunishmentInfo> getAllPunished() throws SQLException{
+	public synchronized Collection<PunishmentInfo> getAllPunished() 
+			throws SQLException{
 		String query = "SELECT * FROM SERVER_PUNISHMENTS";
 		
 		ArrayList<PunishmentInfo> punishments = new ArrayList<PunishmentInfo>();
 		
-		Statement stmt = m_dbConn.createStatement();
-		ResultSet rs = stmt.executeQuery(query);
-		
-		while( rs.next() )
-		{	
-			PunishmentInfo currentPun = new PunishmentInfo();
-			currentPun.setTargetName( rs.getString( USERNAME ) );
-			currentPun.setTargetIP( rs.getString( IP_ADDRESS ) );
-			currentPun.setPunishment( Punishment.fromString( 
-					rs.getString( PUNISHMENT ) ) );
-			
-			punishments.add( currentPun );
+		try( Statement stmt = m_dbConn.createStatement();
+				ResultSet rs = stmt.executeQuery(query) ){
+			while( rs.next() )
+			{	
+				PunishmentInfo currentPun = new PunishmentInfo();
+				currentPun.setTargetName( rs.getString( USERNAME ) );
+				currentPun.setTargetIP( rs.getString( IP_ADDRESS ) );
+				currentPun.setPunishment( Punishment.fromString( 
+						rs.getString( PUNISHMENT ) ) );
+				
+				punishments.add( currentPun );
+			}
 		}
 
 		return punishments;
 	}
+	
+	//********************************************************
+	//Connection Management
+	//********************************************************
+	/**
+	 * Check if the database was connected to when the server started.
+	 * 
+	 * @return <code>boolean</code> - <code>true</code> if connected, 
+	 * 	<code>false</code> if the server runs without the database
+	 */
+	public boolean isConnected(){
+		return m_dbConn != null;
+	}
+	
+	/**
+	 * Close the connection to the database. Used when the server shuts down.
+	 * 
+	 * @author Andrzej Brynczka
+	 */
+	public void close(){
+		if( m_dbConn == null ){
+			return;
+		}
+		
+		try {
+			m_dbConn.close();
+		} catch (SQLException e) {
+			System.out.println( e.getMessage() );
+		}
+	}
 }
@@ -0,0 +1,225 @@
+package server.framework;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector thread that owns a share of the server's client channels when
+ * the server runs in the <code>NIO</code> connection mode.
+ * <p>
+ * Every channel registered with the loop is read from and written to only
+ * by the loop's thread. Other threads hand work to the loop through its
+ * registration and write-request queues, then wake the selector.
+ *
+ * @author Andrzej Brynczka
+ */
+public class EventLoop extends Thread {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/**
+	 * Time given to the channels to write their final messages when the
+	 * loop is shut down, in milliseconds
+	 */
+	private static final long SHUTDOWN_GRACE = 2000;
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** Selector multiplexing all of this loop's channels */
+	private final Selector m_selector;
+
+	/** Connections waiting to be registered with the selector */
+	private final Queue<ChannelConnection> m_newConnections;
+
+	/** Connections that have queued data and need write interest set */
+	private final Queue<ChannelConnection> m_writeRequests;
+
+	/** Tasks handed from other threads to be run on the loop's thread */
+	private final Queue<Runnable> m_tasks;
+
+	/** Set once the loop is to stop after its channels are closed */
+	private volatile boolean m_stopping;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create an event loop with its own selector.
+	 *
+	 * @param a_index <code>int</code>, the loop's index, used for its name
+	 * @throws IOException if the selector cannot be opened
+	 */
+	EventLoop(int a_index) throws IOException{
+		super("EventLoop-" + a_index);
+		m_selector = Selector.open();
+		m_newConnections = new ConcurrentLinkedQueue<ChannelConnection>();
+		m_writeRequests = new ConcurrentLinkedQueue<ChannelConnection>();
+		m_tasks = new ConcurrentLinkedQueue<Runnable>();
+		m_stopping = false;
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Hand a newly accepted connection to this loop. The connection is
+	 * registered for reading on the loop's own thread.
+	 *
+	 * @param a_connection <code>ChannelConnection</code>, the connection
+	 */
+	void register(ChannelConnection a_connection){
+		m_newConnections.add( a_connection );
+		m_selector.wakeup();
+	}
+
+	/**
+	 * Ask the loop to start writing a connection's queued data.
+	 *
+	 * @param a_connection <code>ChannelConnection</code>, the connection
+	 * 	with pending output
+	 */
+	void requestWrite(ChannelConnection a_connection){
+		m_writeRequests.add( a_connection );
+		m_selector.wakeup();
+	}
+
+	/**
+	 * Run a task on the loop's own thread, such as changing a connection's
+	 * selector interest from another thread.
+	 *
+	 * @param a_task <code>Runnable</code>, the task to run
+	 */
+	void execute(Runnable a_task){
+		m_tasks.add( a_task );
+		m_selector.wakeup();
+	}
+
+	/**
+	 * Stop the loop once all of its channels have been closed, giving them
+	 * up to <code>SHUTDOWN_GRACE</code> milliseconds to write their
+	 * remaining output.
+	 */
+	void shutDown(){
+		m_stopping = true;
+		m_selector.wakeup();
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Wait on the selector and service every channel that is ready to be
+	 * read from or written to, until the loop is interrupted or shut down.
+	 */
+	@Override
+	public void run(){
+		long stopDeadline = 0;
+		while( !isInterrupted() ){
+			if( m_stopping ){
+				//stop once every channel is closed, or the grace period ends
+				if( stopDeadline == 0 ){
+					stopDeadline = System.currentTimeMillis() + SHUTDOWN_GRACE;
+				}
+				if( m_selector.keys().isEmpty()
+						|| System.currentTimeMillis() >= stopDeadline ){
+					break;
+				}
+			}
+
+			try {
+				if( m_stopping ){
+					m_selector.select( 100 );
+				}
+				else{
+					m_selector.select();
+				}
+			} catch (IOException e) {
+				System.out.println("ERROR: Selector failure in " + getName()
+						+ ": " + e.getMessage());
+				break;
+			}
+
+			registerNewConnections();
+			processWriteRequests();
+			runTasks();
+
+			Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+			while( keys.hasNext() ){
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				ChannelConnection connection =
+						(ChannelConnection) key.attachment();
+				try{
+					if( key.isValid() && key.isReadable() ){
+						connection.handleRead();
+					}
+					if( key.isValid() && key.isWritable() ){
+						connection.handleWrite();
+					}
+				}
+				catch( CancelledKeyException e ){
+					//connection was closed while being serviced
+					connection.close();
+				}
+			}
+		}
+
+		//close every channel still owned by this loop
+		for( SelectionKey key : m_selector.keys() ){
+			((ChannelConnection) key.attachment()).close();
+		}
+		try {
+			m_selector.close();
+		} catch (IOException e) {
+			//closing anyway
+		}
+	}
+
+	/**
+	 * Register all newly handed connections with the selector for reading.
+	 */
+	private void registerNewConnections(){
+		ChannelConnection connection;
+		while( (connection = m_newConnections.poll()) != null ){
+			try {
+				connection.setKey( connection.getChannel().register(
+						m_selector, SelectionKey.OP_READ, connection ) );
+			} catch (ClosedChannelException e) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Run every task handed to the loop by other threads.
+	 */
+	private void runTasks(){
+		Runnable task;
+		while( (task = m_tasks.poll()) != null ){
+			try{
+				task.run();
+			}
+			catch( CancelledKeyException e ){
+				//the task's connection was closed in the meantime
+			}
+		}
+	}
+
+	/**
+	 * Add write interest to every connection that has asked to be written.
+	 */
+	private void processWriteRequests(){
+		ChannelConnection connection;
+		while( (connection = m_writeRequests.poll()) != null ){
+			connection.enableWrite();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package server.framework;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creator of the threads that run the server's <code>UserHandler</code>s in
+ * the <code>THREAD</code> and <code>VIRTUAL</code> connection modes.
+ * <p>
+ * Virtual threads are created through reflection, as the server is built to
+ * run on Java 7. When the running JVM does not provide them, platform
+ * threads are created instead.
+ *
+ * @author Andrzej Brynczka
+ */
+public class HandlerThreadFactory {
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/**
+	 * The JVM's virtual thread builder, or <code>null</code> if platform
+	 * threads are to be created
+	 */
+	private final Object m_virtualBuilder;
+
+	/** The builder's method for creating an unstarted thread */
+	private final Method m_unstarted;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create a factory for handler threads.
+	 *
+	 * @param a_virtual <code>boolean</code> - <code>true</code> to create
+	 * 	virtual threads when the JVM supports them, <code>false</code> to
+	 * 	always create platform threads
+	 */
+	HandlerThreadFactory(boolean a_virtual){
+		Object builder = null;
+		Method unstarted = null;
+
+		if( a_virtual ){
+			try {
+				builder = Thread.class.getMethod("ofVirtual").invoke( null );
+				unstarted = Class.forName("java.lang.Thread$Builder")
+						.getMethod("unstarted", Runnable.class);
+			} catch (ReflectiveOperationException e) {
+				System.out.println("Virtual threads are not supported by this "
+						+ "JVM, using platform threads instead.");
+				builder = null;
+				unstarted = null;
+			}
+		}
+
+		m_virtualBuilder = builder;
+		m_unstarted = unstarted;
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Check if the factory creates virtual threads.
+	 * @return <code>boolean</code> - <code>true</code> if virtual,
+	 * 	<code>false</code> if platform threads are created
+	 */
+	public boolean isVirtual(){
+		return m_virtualBuilder != null;
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Create an unstarted thread for the given task.
+	 *
+	 * @param a_task <code>Runnable</code>, the task the thread runs
+	 * @param a_name <code>String</code>, the thread's name
+	 * @return <code>Thread</code>, the new thread
+	 */
+	Thread newThread(Runnable a_task, String a_name){
+		Thread thread = null;
+		if( m_virtualBuilder != null ){
+			try {
+				thread = (Thread) m_unstarted.invoke( m_virtualBuilder, a_task );
+			} catch (ReflectiveOperationException e) {
+				//fall back to a platform thread
+				thread = null;
+			}
+		}
+
+		if( thread == null ){
+			thread = new Thread( a_task );
+		}
+		thread.setName( a_name );
+		return thread;
+	}
+}
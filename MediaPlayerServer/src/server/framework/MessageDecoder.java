@@ -0,0 +1,408 @@
+package server.framework;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Inflater;
+
+import protocol.FrameCompression;
+import protocol.MessageHeader;
+import protocol.ProtocolVersion;
+
+/**
+ * Decoder of the messages sent by a single client, reading their fields in
+ * place from the connection's read buffer.
+ * <p>
+ * Each connection keeps one decoder and one read buffer for its whole life.
+ * Headers, ints and lengths are parsed straight from the buffer, and
+ * strings are built directly from its backing array, so decoding a message
+ * allocates nothing beyond the strings and data that the message's handler
+ * chooses to keep. Fields that are not needed can be skipped without being
+ * built at all.
+ * <p>
+ * Reading past the bytes received so far throws the shared
+ * <code>IncompleteMessageException</code>, so that the caller can rewind the
+ * buffer and retry the message once more data arrives.
+ * <p>
+ * Compressed V2 frames, once agreed on, are decompressed into an array kept
+ * by the decoder and read from there.
+ *
+ * @author Andrzej Brynczka
+ */
+public class MessageDecoder {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Starting size of a connection's read buffer, in bytes */
+	static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Largest size a read buffer may grow to while waiting for a single
+	 * message to complete. Comfortably holds a full file data segment.
+	 */
+	static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * Thrown when a message is read past the bytes received so far. A single
+	 * instance without a stack trace is shared, as running out of bytes is
+	 * expected whenever a message arrives in several reads.
+	 */
+	public static final class IncompleteMessageException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private IncompleteMessageException(){
+			super("Message is not yet complete");
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace(){
+			return this;
+		}
+	}
+
+	/** The exception thrown whenever a message is incomplete */
+	private static final IncompleteMessageException INCOMPLETE =
+			new IncompleteMessageException();
+
+	/** Every header, in the order of <code>V1_CODES</code> */
+	private static final MessageHeader[] HEADERS = MessageHeader.values();
+
+	/** Every header's 4 character V1 code, read as a big-endian int */
+	private static final int[] V1_CODES = new int[HEADERS.length];
+	static{
+		for( int i = 0; i < HEADERS.length; i++ ){
+			V1_CODES[i] = ByteBuffer.wrap(
+					HEADERS[i].getHeaderCode().getBytes() ).getInt();
+		}
+	}
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The buffer being read from, positioned at the next field */
+	private ByteBuffer m_buffer;
+
+	/** The wire format in which the client's messages are sent */
+	private ProtocolVersion m_protocol;
+
+	/** Set if the client may send compressed frames */
+	private boolean m_compression;
+
+	/** Decompressor of compressed frames, created on first use */
+	private Inflater m_inflater;
+
+	/** The last compressed frame's decompressed bytes */
+	private byte[] m_inflated;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create a decoder for a new connection, reading V1 messages until the
+	 * client asks for another format.
+	 */
+	MessageDecoder(){
+		m_buffer = null;
+		m_protocol = ProtocolVersion.V1;
+		m_compression = false;
+		m_inflater = null;
+		m_inflated = null;
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the wire format in which the client's messages are read.
+	 * @return <code>ProtocolVersion</code>, the wire format
+	 */
+	ProtocolVersion getProtocol(){
+		return m_protocol;
+	}
+
+	/**
+	 * Get the buffer being read from.
+	 * @return <code>ByteBuffer</code>, the buffer
+	 */
+	ByteBuffer getBuffer(){
+		return m_buffer;
+	}
+
+	/**
+	 * Check if any bytes remain before the buffer's limit, such as optional
+	 * fields at the end of a frame.
+	 * @return <code>boolean</code> - <code>true</code> if bytes remain,
+	 * 	<code>false</code> otherwise
+	 */
+	boolean hasRemaining(){
+		return m_buffer.hasRemaining();
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Set the wire format in which the client's messages are read.
+	 * @param a_protocol <code>ProtocolVersion</code>, the wire format
+	 */
+	void setProtocol(ProtocolVersion a_protocol){
+		m_protocol = a_protocol;
+	}
+
+	/**
+	 * Read from the given buffer, starting at its position. The buffer must
+	 * be backed by an array.
+	 * @param a_buffer <code>ByteBuffer</code>, the bytes read from the client
+	 */
+	void setBuffer(ByteBuffer a_buffer){
+		m_buffer = a_buffer;
+	}
+
+	/**
+	 * Set whether the client may send compressed frames, as agreed on
+	 * during login.
+	 * @param a_compression <code>boolean</code>, true to accept them
+	 */
+	void setCompression(boolean a_compression){
+		m_compression = a_compression;
+	}
+
+	/**
+	 * Check that the buffer holds at least the given number of bytes, such
+	 * as the rest of a frame.
+	 * @param a_bytes <code>int</code>, the number of bytes needed
+	 * @throws IncompleteMessageException if fewer bytes have arrived
+	 */
+	void require(int a_bytes) throws IncompleteMessageException{
+		if( m_buffer.remaining() < a_bytes ){
+			throw INCOMPLETE;
+		}
+	}
+
+	/**
+	 * Read a V1 message's 4 character header code, without building it as a
+	 * string.
+	 * @return <code>MessageHeader</code>, the header, or
+	 * 	<code>INVALID</code> if the code is unknown
+	 * @throws IOException if the header has not yet arrived
+	 */
+	MessageHeader readHeader() throws IOException{
+		require( 4 );
+		int code = m_buffer.getInt();
+		for( int i = 0; i < V1_CODES.length; i++ ){
+			if( V1_CODES[i] == code ){
+				return HEADERS[i];
+			}
+		}
+		return MessageHeader.INVALID;
+	}
+
+	/**
+	 * Read the length of a V2 frame, checking that the frame holds at least
+	 * its type code and is not too large.
+	 * @return <code>int</code>, the number of bytes in the frame after its
+	 * 	length
+	 * @throws IOException if the length has not yet arrived, or is invalid
+	 */
+	int readFrameLength() throws IOException{
+		int length = readVarInt();
+		if( length < 1 || length > ProtocolVersion.MAX_FRAME_SIZE ){
+			throw new IOException("Invalid frame length: " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Read a single byte, such as a code or a response.
+	 * @return <code>byte</code>, the byte
+	 * @throws IOException if the byte has not yet arrived
+	 */
+	byte readByte() throws IOException{
+		require( 1 );
+		return m_buffer.get();
+	}
+
+	/**
+	 * Read an int.
+	 * @return <code>int</code>, the value
+	 * @throws IOException if the int has not yet arrived
+	 */
+	int readInt() throws IOException{
+		if( m_protocol == ProtocolVersion.V2 ){
+			return ProtocolVersion.fromZigZag( readVarInt() );
+		}
+
+		require( 4 );
+		return m_buffer.getInt();
+	}
+
+	/**
+	 * Read a long, written as 8 bytes in either version.
+	 * @return <code>long</code>, the value
+	 * @throws IOException if the long has not yet arrived
+	 */
+	long readLong() throws IOException{
+		require( 8 );
+		return m_buffer.getLong();
+	}
+
+	/**
+	 * Read the length of the bytes or items that follow.
+	 * @return <code>int</code>, the length
+	 * @throws IOException if the length has not yet arrived, or is negative
+	 */
+	int readLength() throws IOException{
+		int length;
+		if( m_protocol == ProtocolVersion.V2 ){
+			length = readVarInt();
+		}
+		else{
+			require( 4 );
+			length = m_buffer.getInt();
+		}
+
+		if( length < 0 ){
+			throw new IOException("Invalid length: " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Read a string, building it straight from the buffer's bytes.
+	 * @param a_length <code>int</code>, the string's length in bytes
+	 * @return <code>String</code>, the string
+	 * @throws IOException if the string has not yet arrived
+	 */
+	String readString(int a_length) throws IOException{
+		require( a_length );
+		String string = new String( m_buffer.array(),
+				m_buffer.arrayOffset() + m_buffer.position(), a_length,
+				m_protocol.getCharset() );
+		m_buffer.position( m_buffer.position() + a_length );
+		return string;
+	}
+
+	/**
+	 * Read bytes into a new array, for data that outlives the buffer.
+	 * @param a_length <code>int</code>, the number of bytes
+	 * @return <code>byte[]</code>, the bytes
+	 * @throws IOException if the bytes have not yet arrived
+	 */
+	byte[] readBytes(int a_length) throws IOException{
+		require( a_length );
+		byte[] data = new byte[a_length];
+		m_buffer.get( data );
+		return data;
+	}
+
+	/**
+	 * Read bytes as a view of the buffer rather than a copy, for data that
+	 * is copied on, such as relayed file data, before the buffer changes.
+	 * @param a_length <code>int</code>, the number of bytes
+	 * @return <code>ByteBuffer</code>, the bytes, from its position to its
+	 * 	limit
+	 * @throws IOException if the bytes have not yet arrived
+	 */
+	ByteBuffer readSlice(int a_length) throws IOException{
+		require( a_length );
+		ByteBuffer slice = m_buffer.duplicate();
+		slice.limit( slice.position() + a_length );
+		m_buffer.position( m_buffer.position() + a_length );
+		return slice;
+	}
+
+	/**
+	 * Decompress the rest of a compressed frame, whose type code has been
+	 * read, leaving the buffer positioned at the frame's end.
+	 * @return <code>ByteBuffer</code>, the frame's original type code and
+	 * 	fields, valid until the next compressed frame is read
+	 * @throws IOException if compression was not agreed on, or the frame
+	 * 	is invalid
+	 */
+	ByteBuffer inflate() throws IOException{
+		if( !m_compression ){
+			throw new IOException("Compressed frames were not agreed on");
+		}
+
+		int size = readLength();
+		if( size < 1 || size > ProtocolVersion.MAX_FRAME_SIZE ){
+			throw new IOException("Invalid decompressed length: " + size);
+		}
+		if( m_inflater == null ){
+			m_inflater = new Inflater();
+		}
+		if( m_inflated == null || m_inflated.length < size ){
+			m_inflated = new byte[size];
+		}
+
+		FrameCompression.inflate( m_inflater, m_buffer.array(),
+				m_buffer.arrayOffset() + m_buffer.position(),
+				m_buffer.remaining(), m_inflated, size );
+		m_buffer.position( m_buffer.limit() );
+		return ByteBuffer.wrap( m_inflated, 0, size );
+	}
+
+	/**
+	 * Release the decompressor's native memory once the connection has
+	 * stopped reading. Compressed frames are refused afterwards.
+	 * Called only from the thread that reads the connection.
+	 */
+	void close(){
+		m_compression = false;
+		if( m_inflater != null ){
+			m_inflater.end();
+			m_inflater = null;
+		}
+		m_inflated = null;
+	}
+
+	/**
+	 * Skip bytes that are not needed, such as a string that would be
+	 * discarded.
+	 * @param a_length <code>int</code>, the number of bytes
+	 * @throws IOException if the bytes have not yet arrived
+	 */
+	void skip(int a_length) throws IOException{
+		require( a_length );
+		m_buffer.position( m_buffer.position() + a_length );
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Get a buffer with room for more bytes, holding the given buffer's
+	 * unread bytes, for a message too large for the buffer it arrived in.
+	 * @param a_buffer <code>ByteBuffer</code>, the full buffer, ready to be
+	 * 	written to
+	 * @return <code>ByteBuffer</code>, a buffer twice as large, ready to be
+	 * 	written to, or <code>null</code> if the buffer may grow no further
+	 */
+	static ByteBuffer grow(ByteBuffer a_buffer){
+		if( a_buffer.capacity() >= MAX_BUFFER_SIZE ){
+			return null;
+		}
+
+		ByteBuffer larger = ByteBuffer.allocate( a_buffer.capacity() * 2 );
+		a_buffer.flip();
+		larger.put( a_buffer );
+		return larger;
+	}
+
+	/**
+	 * Read an unsigned varint.
+	 * @return <code>int</code>, the value
+	 * @throws IOException if the varint has not yet arrived, or is longer
+	 * 	than an int allows
+	 */
+	private int readVarInt() throws IOException{
+		int value = 0;
+		for( int shift = 0; shift < 35; shift += 7 ){
+			byte read = readByte();
+			value |= ( read & 0x7F ) << shift;
+			if( read >= 0 ){
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+}
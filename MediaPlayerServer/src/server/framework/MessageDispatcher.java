@@ -2,89 +2,410 @@ package server.framework;
 
 import java.net.InetAddress;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Hashtable;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import protocol.HeaderTable;
+import protocol.MessageHeader;
+import protocol.messages.ChannelChatMessage;
+import protocol.messages.ChannelMessage;
+import protocol.messages.ChatMessage;
+import protocol.messages.Message;
+import protocol.messages.PrivateChatMessage;
 import server.messages.AdminLoginMessage;
 import server.messages.AdminPunishMessage;
 import server.messages.ConnectedUserMessage;
 import server.messages.FileTransferMessage;
-import server.messages.Message;
-import server.messages.Message.MessageHeader;
-import server.messages.PrivateChatMessage;
+import server.messages.PresenceMessage;
+import server.messages.PunishmentInfo.Punishment;
 import server.messages.UserListMessage;
-import server.messages.ChatMessage;
+import server.messages.UserListSyncMessage;
 
 /**
  * The class serving as a dispatcher of messages between clients on the server.
+ * <p>
+ * Dispatching is spread over several worker threads. Every user belongs to
+ * the partition of one worker, chosen by the user's name, and only that
+ * worker passes messages to the user. A message is queued to the workers
+ * whose partitions hold its receivers, or to all workers if it goes to
+ * everyone, so each user receives its messages in the order they were added.
+ * <p>
+ * The logged in users are kept in a <code>UserRegistry</code>, which the
+ * workers read without locking. Requests for pages of the user list, or for
+ * its changes, are answered by the requesting user's worker when it reaches
+ * them, so that the answer is never queued behind a notice of a login or
+ * logout that it already reflects.
+ * <p>
+ * Logins and logouts are collected by a <code>PresenceBatcher</code> over a
+ * short window and announced together in a <code>PresenceMessage</code>,
+ * unless the window is set to 0.
+ * <p>
+ * Users may also join named channels, kept in a <code>ChannelRegistry</code>.
+ * A channel's messages are only queued to the workers whose partitions hold
+ * its members, and each of those only passes them to the members, so their
+ * cost follows the size of the channel rather than that of the server.
+ * <p>
+ * If the server is a node of a cluster, the messages users send to one 
+ * another are also handed to its <code>ClusterRelay</code>, which passes
+ * them to the nodes holding their other receivers. The users logged into
+ * the other nodes are known by name, and are listed, announced and messaged
+ * like those logged in here, but only this node's users are delivered to.
  * @author Andrzej Brynczka
  */
-public class MessageDispatcher extends Thread{
+public class MessageDispatcher{
+
+	/**
+	 * A message waiting in a worker's queue, with the time it was queued so
+	 * that its wait can be measured. One is shared by every worker a 
+	 * message is queued to.
+	 */
+	private static class QueuedMessage{
+		private final Message m_message;
+		private final long m_queuedNanos;
+		
+		QueuedMessage(Message a_message){
+			m_message = a_message;
+			m_queuedNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * A user logged into another node of the cluster.
+	 */
+	private static class RemoteUser{
+		/** The link to the node holding the user */
+		private final PeerLink m_link;
+		
+		/** The address the user connected to its node from */
+		private final InetAddress m_IP;
+		
+		RemoteUser(PeerLink a_link, InetAddress a_IP){
+			m_link = a_link;
+			m_IP = a_IP;
+		}
+	}
+
+	/**
+	 * Route of the messages with a given header to their receivers within
+	 * a partition.
+	 */
+	private interface Route{
+		/**
+		 * Dispatch a message to its receivers within a partition.
+		 * @param a_dispatcher <code>MessageDispatcher</code>, the dispatcher
+		 * @param a_partition <code>int</code>, the partition's index
+		 * @param a_msg <code>Message</code>, the message to send
+		 */
+		void send(MessageDispatcher a_dispatcher, int a_partition, 
+				Message a_msg);
+	}
+	
+	/** 
+	 * The routes of the messages the dispatcher sends, by header, 
+	 * <code>null</code> for headers that are not sent 
+	 */
+	private static final HeaderTable<Route> ROUTES = 
+			new HeaderTable<Route>( null );
 	
+	static{
+		ROUTES.put( new Route(){
+			@Override
+			public void send(MessageDispatcher a_dispatcher, int a_partition,
+					Message a_msg){
+				a_dispatcher.sendMessageToAll( a_partition, a_msg );
+			}
+		}, MessageHeader.REG_SendChatMess );
+		ROUTES.put( new Route(){
+			@Override
+			public void send(MessageDispatcher a_dispatcher, int a_partition,
+					Message a_msg){
+				a_dispatcher.sendMessageToChannel( a_partition, 
+						((ChannelChatMessage) a_msg).getChannel(), a_msg );
+			}
+		}, MessageHeader.CHANNEL_SendChatMess );
+		ROUTES.put( new Route(){
+			@Override
+			public void send(MessageDispatcher a_dispatcher, int a_partition,
+					Message a_msg){
+				a_dispatcher.sendMessageToChannel( a_partition, 
+						((ChannelMessage) a_msg).getChannel(), a_msg );
+			}
+		}, MessageHeader.CHANNEL_Join );
+		ROUTES.put( new Route(){
+			@Override
+			public void send(MessageDispatcher a_dispatcher, int a_partition,
+					Message a_msg){
+				a_dispatcher.sendChannelLeave( a_partition, 
+						(ChannelMessage) a_msg );
+			}
+		}, MessageHeader.CHANNEL_Leave );
+		ROUTES.put( new Route(){
+			@Override
+			public void send(MessageDispatcher a_dispatcher, int a_partition,
+					Message a_msg){
+				a_dispatcher.sendPrivateMessage( a_partition, 
+						(PrivateChatMessage) a_msg );
+			}
+		}, MessageHeader.PRIV_SendChatMess );
+		ROUTES.put( new Route(){
+			@Override
+			public void send(MessageDispatcher a_dispatcher, int a_partition,
+					Message a_msg){
+				a_dispatcher.sendMessageToUser( a_partition, 
+						((FileTransferMessage) a_msg).getReceiverName(), a_msg );
+			}
+		}, MessageHeader.FILE_Transfer );
+		ROUTES.put( new Route(){
+			@Override
+			public void send(MessageDispatcher a_dispatcher, int a_partition,
+					Message a_msg){
+				a_dispatcher.sendMessageToUser( a_partition, 
+						((AdminLoginMessage) a_msg).getSenderName(), a_msg );
+			}
+		}, MessageHeader.ADMIN_Login );
+		ROUTES.put( new Route(){
+			@Override
+			public void send(MessageDispatcher a_dispatcher, int a_partition,
+					Message a_msg){
+				a_dispatcher.sendPunishment( a_partition, 
+						(AdminPunishMessage) a_msg );
+			}
+		}, MessageHeader.ADMIN_PunishUser, 
+				MessageHeader.ADMIN_RemovePunishment );
+		ROUTES.put( new Route(){
+			@Override
+			public void send(MessageDispatcher a_dispatcher, int a_partition,
+					Message a_msg){
+				a_dispatcher.sendMessageToUser( a_partition, 
+						((UserListMessage) a_msg).getReceiverName(), a_msg );
+			}
+		}, MessageHeader.SERVER_UserList );
+		ROUTES.put( new Route(){
+			@Override
+			public void send(MessageDispatcher a_dispatcher, int a_partition,
+					Message a_msg){
+				a_dispatcher.sendUserListSync( a_partition, 
+						(UserListSyncMessage) a_msg );
+			}
+		}, MessageHeader.SERVER_UserListSync );
+		ROUTES.put( new Route(){
+			@Override
+			public void send(MessageDispatcher a_dispatcher, int a_partition,
+					Message a_msg){
+				a_dispatcher.sendMessagesToAllButSelf( a_partition, a_msg );
+			}
+		}, MessageHeader.SERVER_AddNewUser, 
+				MessageHeader.SERVER_RemoveUser );
+		ROUTES.put( new Route(){
+			@Override
+			public void send(MessageDispatcher a_dispatcher, int a_partition,
+					Message a_msg){
+				a_dispatcher.sendPresence( a_partition, (PresenceMessage) a_msg );
+			}
+		}, MessageHeader.SERVER_Presence );
+	}
+
 	/**
-	 * Hashtable container for user threads. 
-	 * Paired on &lt;UserName, UserHandler&gt;.
+	 * Worker thread that delivers the messages queued to it to the users
+	 * within its partition.
+	 * @author Andrzej Brynczka
 	 */
-	private Hashtable<String, UserHandler> m_users;
-	private Queue<Message> m_messageList;
+	private class DispatchWorker extends Thread{
+		/** Index of the worker, and of its partition of users */
+		private final int m_index;
+		
+		/** Messages waiting to be delivered by this worker */
+		private final MpscQueue<QueuedMessage> m_messageList;
+		
+		/** Number of messages in the worker's queue */
+		private final AtomicInteger m_depth;
+		
+		DispatchWorker(int a_index){
+			super("DispatchWorker-" + a_index);
+			m_index = a_index;
+			m_messageList = new MpscQueue<QueuedMessage>();
+			m_depth = new AtomicInteger( 0 );
+		}
+		
+		/**
+		 * Add a message to the worker's queue.
+		 * @param a_queued <code>QueuedMessage</code>, the message
+		 */
+		void offer(QueuedMessage a_queued){
+			m_depth.incrementAndGet();
+			m_messageList.offer( a_queued );
+		}
+		
+		/**
+		 * The worker sits in a loop and waits for messages to be placed into
+		 * its message list. When a message is added, the thread wakes up and
+		 * sends the message to the users within its partition that make up
+		 * the message's receiver list.
+		 * @author Andrzej Brynczka
+		 */
+		@Override
+		public void run(){
+			try{
+				while( !isInterrupted() ){
+					//retrieve the first message in the queue and send it,
+					//waiting for more messages to be placed in the queue if
+					//it is empty
+					QueuedMessage queued = m_messageList.take();
+					m_depth.decrementAndGet();
+					System.out.println(getName() + " about to send message");
+					sendMessage( m_index, queued.m_message );
+					m_server.getMetrics().recordMessageDispatched( 
+							queued.m_message.getHeader(), queued.m_queuedNanos );
+				}
+			}catch (InterruptedException e) {
+				//end the users' connections, unless the server is already
+				//shutting down
+				m_server.shutDownServer("Dispatcher interrupted, "
+						+ "shuting down server...");
+			}
+		}
+	}
+	
+	/** The logged in users, partitioned over the workers */
+	private final UserRegistry m_users;
+	
+	/** The chat channels and their members */
+	private final ChannelRegistry m_channels;
+	
+	/** The worker threads, one for each partition */
+	private final DispatchWorker[] m_workers;
 	
 	/** Reference to the main server */
 	private final Server m_server;
 	
+	/** 
+	 * Collector of logins and logouts to announce together, or 
+	 * <code>null</code> if each is announced on its own
+	 */
+	private final PresenceBatcher m_presence;
+	
+	/** 
+	 * Relay to the other nodes of the cluster, or <code>null</code> if the
+	 * server is not a node of one
+	 */
+	private final ClusterRelay m_cluster;
+	
+	/** The users logged into the other nodes of the cluster, by username */
+	private final Map<String, RemoteUser> m_remoteUsers;
+	
+	/** 
+	 * The names of the users logged into the other nodes, by the IP 
+	 * address they connected from
+	 */
+	private final Map<InetAddress, Set<String>> m_remoteAddresses;
+	
 	/**
 	 * Create a dispatcher for the given server, which accepts messages
 	 * 	from its <code>UserHandler</code>'s and distributes them based on
 	 * 	type among the clients.
-	 * Used only within the public <code>getDispatcher()</code> to ensure 
-	 * that only one dispatcher thread is active at a time.
+	 * @param a_server <code>Server</code>, the main server
+	 * @param a_workers <code>int</code>, the number of worker threads to
+	 * 	dispatch with(at least 1)
 	 */
-	public MessageDispatcher(Server a_server){
-		m_messageList = new LinkedList<Message>();
-		m_users = new Hashtable<String, UserHandler>();
+	public MessageDispatcher(Server a_server, int a_workers){
+		int workers = Math.max( 1, a_workers );
+		
+		m_users = new UserRegistry( workers );
+		m_channels = new ChannelRegistry( m_users );
+		m_workers = new DispatchWorker[ workers ];
+		for( int i = 0; i < workers; i++ ){
+			m_workers[i] = new DispatchWorker( i );
+		}
 		m_server = a_server;
+		
+		int window = a_server.getPresenceWindow();
+		m_presence = window > 0 ? new PresenceBatcher( this, window ) : null;
+		
+		m_remoteUsers = new ConcurrentHashMap<String, RemoteUser>();
+		m_remoteAddresses = new ConcurrentHashMap<InetAddress, Set<String>>();
+		m_cluster = a_server.getClusterPort() > 0 
+				? new ClusterRelay( this, a_server ) : null;
 	}
 	
 	/**
-	 * The dispatcher sits in a loop and waits for messages to be placed into
-	 * its message list. When a message is added, the thread wakes up and
-	 * sends the message to the users that make up its receiver list.
+	 * Start the dispatcher's worker threads.
 	 * @author Andrzej Brynczka
 	 */
-	@Override
-	public void run(){
-		try{
-			while( !isInterrupted() ){	
-					if( !m_messageList.isEmpty() ){			
-						//retrieve the first message in the queue and send it
-						System.out.println("Dispatcher about to send message");
-						Message msg = m_messageList.poll();
-						sendMessage( msg );			
-						
-					}
-					else{
-						synchronized( this ){
-							//wait for more messages to be placed in queue
-							wait();
-						}
-					}
+	public void start(){
+		for( DispatchWorker worker : m_workers ){
+			worker.start();
+		}
+		if( m_presence != null ){
+			m_presence.start();
+		}
+		if( m_cluster != null ){
+			m_cluster.start();
+		}
+	}
+	
+	/**
+	 * Stop the dispatcher's worker threads. Messages still queued are
+	 * 	dropped.
+	 * @author Andrzej Brynczka
+	 */
+	public void shutDown(){
+		for( DispatchWorker worker : m_workers ){
+			if( worker != Thread.currentThread() ){
+				worker.interrupt();
 			}
-		}catch (InterruptedException e) {
-			m_server.shutDownServer("Dispatcher interrupted, " 
-					+ "shuting down server...");
 		}
+		if( m_presence != null ){
+			m_presence.interrupt();
+		}
+		if( m_cluster != null ){
+			m_cluster.shutDown();
+		}
+	}
+	
+	/**
+	 * Get the index of the partition that the given user belongs to.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @return <code>int</code>, the index of the user's partition
+	 * @author Andrzej Brynczka
+	 */
+	private int partitionOf(String a_userName){
+		return m_users.partitionOf( a_userName );
 	}
 	
 	/**
-	 * Dispatch a message to all client threads.
-	 * 
+	 * Get the handler of the given user, if it belongs to the given
+	 * 	partition.
+	 *
+	 * @param a_partition <code>int</code>, the partition's index
+	 * @param a_userName <code>String</code>, the user's name
+	 * @return <code>UserHandler</code> of the user, or <code>null</code> if
+	 * 	the user is not connected or belongs to another partition
+	 * @author Andrzej Brynczka
+	 */
+	private UserHandler getLocalHandler(int a_partition, String a_userName){
+		if( a_userName == null || partitionOf( a_userName ) != a_partition ){
+			return null;
+		}
+		return m_users.get( a_userName );
+	}
+	
+	/**
+	 * Dispatch a message to all client handlers within a partition.
+	 *
+	 * @param a_partition <code>int</code>, the partition's index
 	 * @param a_msg <code>Message</code>, the message to send to all client
-	 * 	threads
+	 * 	handlers
 	 * @author Andrzej Brynczka
 	 */
-	private void sendMessageToAll(Message a_msg){
-		for(UserHandler userHandler : m_users.values() ){
+	private void sendMessageToAll(int a_partition, Message a_msg){
+		for(UserHandler userHandler : m_users.getPartition( a_partition ) ){
 			System.out.println("dispatcher sent regchat/userRemove/userAdd "
 					+ " to userhandler");
 			userHandler.addMessageToQueue( a_msg );
@@ -92,13 +413,15 @@ public class MessageDispatcher extends Thread{
 	}
 	
 	/**
-	 * Dispatch a message to all clients except to the client that sent the
-	 * message. ( Unlike <code>sendMessageToAll(Message)</code> which sends the
-	 * message to ALL client threads )
+	 * Dispatch a message to all clients within a partition except to the
+	 * client that sent the message. ( Unlike
+	 * <code>sendMessageToAll(int, Message)</code> which sends the message to
+	 * ALL client handlers )
+	 * @param a_partition <code>int</code>, the partition's index
 	 * @param a_msg Message, the message to send
 	 * @author Andrzej Brynczka
 	 */
-	private void sendMessagesToAllButSelf(Message a_msg){
+	private void sendMessagesToAllButSelf(int a_partition, Message a_msg){
 		String sender;
 		//find the sender
 		switch( a_msg.getHeader() ){
@@ -114,7 +437,7 @@ public class MessageDispatcher extends Thread{
 		}
 		
 		//send the message to all but the sender
-		for(UserHandler userHandler : m_users.values() ){
+		for(UserHandler userHandler : m_users.getPartition( a_partition ) ){
 			System.out.println("dispatcher sending user connect status");
 			if( !userHandler.getUser().getUserName().equals( sender ) ){
 				userHandler.addMessageToQueue( a_msg );
@@ -122,227 +445,836 @@ public class MessageDispatcher extends Thread{
 		}
 	}
 	/**
-	 * Dispatch a message to the message's designated receiver.
-	 * 
-	 * @param a_msg <code>Message</code>, a valid message with receiver 
-	 * 	information(<code>PrivateChatMessage</code>, 
-	 * 	<code>FileTransferMessage</code>, etc)
+	 * Dispatch a presence message to all client handlers within a
+	 * partition: the whole message to those that accept it, and a notice
+	 * for each user to the others, leaving out notices of their own login.
+	 *
+	 * @param a_partition <code>int</code>, the partition's index
+	 * @param a_msg <code>PresenceMessage</code>, the message to send
 	 * @author Andrzej Brynczka
 	 */
-	private void sendMessage( Message a_msg ){
-		String receiverName = "";
-		UserHandler receiverThread = null;
-		
-		switch( a_msg.getHeader() ){
-		case REG_SendChatMess:
-			sendMessageToAll( a_msg );
-			break;
-		case PRIV_SendChatMess:
-			receiverName = ((PrivateChatMessage) a_msg).getReceiverName();
-			
-			//send the message back to the sender as well, as private messages
-			//are two-way conversations
-			String senderName = ((PrivateChatMessage) a_msg).getSenderName();
-			System.out.println("send pm to " + senderName 
-					+ " and " + receiverName);
+	private void sendPresence(int a_partition, PresenceMessage a_msg){
+		for(UserHandler userHandler : m_users.getPartition( a_partition ) ){
+			if( userHandler.acceptsPresenceBatches() ){
+				userHandler.addMessageToQueue( a_msg );
+				continue;
+			}
 			
-			//get the users' thread and add the message to their queues
-			UserHandler senderThread = m_users.get( senderName );
-			receiverThread = m_users.get( receiverName );
-			if( senderThread == null || receiverThread == null ){
-				break;
+			String name = userHandler.getUser().getUserName();
+			for( ConnectedUserMessage notice : a_msg.getNotices() ){
+				if( !notice.getUserName().equals( name ) ){
+					userHandler.addMessageToQueue( notice );
+				}
 			}
+		}
+	}
+	
+	/**
+	 * Dispatch a message to the members of a channel within a partition.
+	 *
+	 * @param a_partition <code>int</code>, the partition's index
+	 * @param a_channel <code>String</code>, the channel's name
+	 * @param a_msg <code>Message</code>, the message to send
+	 * @author Andrzej Brynczka
+	 */
+	private void sendMessageToChannel(int a_partition, String a_channel,
+			Message a_msg){
+		for(UserHandler userHandler : 
+				m_channels.getMembers( a_channel, a_partition ) ){
+			userHandler.addMessageToQueue( a_msg );
+		}
+	}
+	
+	/**
+	 * Dispatch a message to the message's designated receivers within a
+	 * 	partition, as routed by its header.
+	 *
+	 * @param a_partition <code>int</code>, the partition's index
+	 * @param a_msg <code>Message</code>, a valid message with receiver
+	 * 	information(<code>PrivateChatMessage</code>,
+	 * 	<code>FileTransferMessage</code>, etc)
+	 * @author Andrzej Brynczka
+	 */
+	void sendMessage(int a_partition, Message a_msg){
+		Route route = ROUTES.get( a_msg.getHeader() );
+		if( route != null ){
+			route.send( this, a_partition, a_msg );
+		}
+	}
+	
+	/**
+	 * Dispatch a message to a single user, if within the partition.
+	 *
+	 * @param a_partition <code>int</code>, the partition's index
+	 * @param a_userName <code>String</code>, the receiving user's name
+	 * @param a_msg <code>Message</code>, the message to send
+	 */
+	private void sendMessageToUser(int a_partition, String a_userName,
+			Message a_msg){
+		//get the user's handler and add the message to its queue
+		UserHandler receiverThread = getLocalHandler( a_partition, a_userName );
+		if( receiverThread != null ){
+			receiverThread.addMessageToQueue( a_msg );
+		}
+	}
+	
+	/**
+	 * Dispatch a member's leaving of a channel to the remaining members, 
+	 * 	and the member that left, within a partition.
+	 *
+	 * @param a_partition <code>int</code>, the partition's index
+	 * @param a_msg <code>ChannelMessage</code>, the leave message
+	 */
+	private void sendChannelLeave(int a_partition, ChannelMessage a_msg){
+		//aware the remaining members, and the user that left
+		sendMessageToChannel( a_partition, a_msg.getChannel(), a_msg );
+		
+		UserHandler receiverThread = getLocalHandler( a_partition, 
+				a_msg.getUserName() );
+		if( receiverThread != null && !m_channels.isMember( 
+				a_msg.getChannel(), receiverThread ) ){
+			receiverThread.addMessageToQueue( a_msg );
+		}
+	}
+	
+	/**
+	 * Dispatch a private message to its sender and receiver within a 
+	 * 	partition.
+	 *
+	 * @param a_partition <code>int</code>, the partition's index
+	 * @param a_msg <code>PrivateChatMessage</code>, the message to send
+	 */
+	private void sendPrivateMessage(int a_partition, PrivateChatMessage a_msg){
+		//send the message back to the sender as well, as private messages
+		//are two-way conversations
+		String senderName = a_msg.getSenderName();
+		String receiverName = a_msg.getReceiverName();
+		System.out.println("send pm to " + senderName
+				+ " and " + receiverName);
+		
+		//both users must be connected for the conversation to take 
+		//place, to this node or another
+		if( !existsUserName( senderName ) ||
+				!existsUserName( receiverName ) ){
+			return;
+		}
+		
+		//add the message to the queues of the users in this partition
+		UserHandler senderThread =
+				getLocalHandler( a_partition, senderName );
+		if( senderThread != null ){
 			senderThread.addMessageToQueue( a_msg );
+		}
+		UserHandler receiverThread = 
+				getLocalHandler( a_partition, receiverName );
+		if( receiverThread != null && receiverThread != senderThread ){
 			receiverThread.addMessageToQueue( a_msg );
-			break;
-		case FILE_Transfer:
-			//get the name of the user to send the message to
-			receiverName = ((FileTransferMessage) a_msg).getReceiverName();
+		}
+	}
+	
+	/**
+	 * Dispatch the outcome of an admin's punishment request within a 
+	 * 	partition.
+	 *
+	 * @param a_partition <code>int</code>, the partition's index
+	 * @param a_msg <code>AdminPunishMessage</code>, the outcome
+	 */
+	private void sendPunishment(int a_partition, AdminPunishMessage a_msg){
+		if( a_msg.getCommitStatus() == true ){
+			//punishment enacted, send the response to both the target
+			//and the admin
+			
+			sendMessageToAll( a_partition, a_msg );
+		}
+		else{
+			//punishment not enacted, simply aware the admin of the failure
 			
-			//get the user's thread and add the message to its queue
-			receiverThread = m_users.get( receiverName );
-			if( receiverThread == null ){ 
-				break;
+			sendMessageToUser( a_partition, a_msg.getAdminName(), a_msg );
+		}
+	}
+	
+	/**
+	 * Answer a client's request for the user list, if the client is 
+	 * 	within the partition.
+	 *
+	 * @param a_partition <code>int</code>, the partition's index
+	 * @param a_request <code>UserListSyncMessage</code>, the request
+	 */
+	private void sendUserListSync(int a_partition, 
+			UserListSyncMessage a_request){
+		//answer the request with the roster as it is now
+		UserHandler receiverThread = getLocalHandler( a_partition,
+				a_request.getReceiverName() );
+		if( receiverThread != null ){
+			receiverThread.addMessageToQueue( createUserListSync( a_request ) );
+		}
+	}
+	
+	/**
+	 * Create the answer to a client's request for the user list: the names
+	 * changed since the client's version, if the client synced to this
+	 * roster recently enough, or else the page of names the client asked
+	 * for.
+	 *
+	 * @param a_request <code>UserListSyncMessage</code>, the request
+	 * @return <code>UserListSyncMessage</code>, the answer
+	 * @author Andrzej Brynczka
+	 */
+	private UserListSyncMessage createUserListSync(
+			UserListSyncMessage a_request){
+		int pageSize = m_server.getUserListPageSize();
+		
+		//read before the names, as changes made meanwhile may be included
+		int version = m_users.getVersion();
+		
+		if( a_request.getAfter().isEmpty()
+				&& a_request.getRosterID() == m_users.getRosterID() ){
+			Map<String, Boolean> changes = m_users.getChangesSince( 
+					a_request.getVersion(), pageSize );
+			if( changes != null ){
+				//only send the names that changed since the client's version
+				List<String> added = new ArrayList<String>();
+				List<String> removed = new ArrayList<String>();
+				for( Map.Entry<String, Boolean> change : changes.entrySet() ){
+					if( change.getValue() ){
+						added.add( change.getKey() );
+					}
+					else{
+						removed.add( change.getKey() );
+					}
+				}
+				
+				return new UserListSyncMessage( 
+						MessageHeader.SERVER_UserListSync,
+						a_request.getReceiverName(), m_users.getRosterID(),
+						version, (byte) 0, added, removed );
+			}
+		}
+		
+		//send the requested page, starting the list over if it is the first
+		List<String> page = new ArrayList<String>( pageSize );
+		byte flags = 0;
+		if( m_users.getPage( a_request.getAfter(), pageSize, page ) ){
+			flags |= UserListSyncMessage.MORE;
+		}
+		if( a_request.getAfter().isEmpty() ){
+			flags |= UserListSyncMessage.RESET;
+		}
+		
+		return new UserListSyncMessage( MessageHeader.SERVER_UserListSync,
+				a_request.getReceiverName(), m_users.getRosterID(), version,
+				flags, page, new ArrayList<String>( 0 ) );
+	}
+	
+	/**
+	 * Determine if the dispatcher's message queues are empty.
+	 *
+	 * @return <code>boolean</code> - <code>true</code> if empty,
+	 * 	<code>false</code> otherwise
+	 * @author Andrzej Brynczka
+	 */
+	public boolean isMessageListEmpty(){
+		for( DispatchWorker worker : m_workers ){
+			if( !worker.m_messageList.isEmpty() ){
+				return false;
 			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Get the number of messages waiting in the dispatcher's queues. A
+	 * 	message sent to everyone is counted once for every worker.
+	 *
+	 * @return <code>int</code>, the number of messages
+	 * @author Andrzej Brynczka
+	 */
+	public int getQueueDepth(){
+		int depth = 0;
+		for( DispatchWorker worker : m_workers ){
+			depth += worker.m_depth.get();
+		}
+		return depth;
+	}
+	
+	/**
+	 * Get the number of logged in users.
+	 *
+	 * @return <code>int</code>, the number of users
+	 * @author Andrzej Brynczka
+	 */
+	public int getUserCount(){
+		return m_users.size();
+	}
+	
+	/**
+	 * Add a message to the message queues of the workers whose partitions
+	 * hold its receivers, waking those workers up if they are waiting for
+	 * more messages, and relay it to the other nodes of the cluster holding
+	 * any of its receivers. Never blocks.
+	 *
+	 * @param a_message <code>Message</code>, a message to add to the queue
+	 * @author Andrzej Brynczka
+	 */
+	public void addMessage(Message a_message){
+		System.out.println("dispatcher received message");
+		
+		if( m_cluster != null ){
+			m_cluster.forward( a_message );
+		}
+		queueMessage( a_message );
+	}
+	
+	/**
+	 * Add a message relayed by another node of the cluster to the message
+	 * queues of the workers whose partitions hold its receivers, without
+	 * relaying it any further.
+	 *
+	 * @param a_message <code>Message</code>, the relayed message
+	 * @author Andrzej Brynczka
+	 */
+	void addRelayedMessage(Message a_message){
+		queueMessage( a_message );
+	}
+	
+	/**
+	 * Add a message to the message queues of the workers whose partitions
+	 * hold its receivers on this node.
+	 *
+	 * @param a_message <code>Message</code>, a message to add to the queue
+	 * @author Andrzej Brynczka
+	 */
+	private void queueMessage(Message a_message){
+		QueuedMessage queued = new QueuedMessage( a_message );
+		String receiverName = null;
+		boolean[] partitions;
+		switch( a_message.getHeader() ){
+		case CHANNEL_SendChatMess:
+			//only the workers of the channel's members handle it
+			partitions = new boolean[ m_workers.length ];
+			m_channels.getPartitions( 
+					((ChannelChatMessage) a_message).getChannel(), 
+					partitions );
+			offerToPartitions( queued, partitions );
+			return;
+		case CHANNEL_Join:
+		case CHANNEL_Leave:
+			//the workers of the channel's members, and of the user itself
+			ChannelMessage channelMsg = (ChannelMessage) a_message;
+			partitions = new boolean[ m_workers.length ];
+			m_channels.getPartitions( channelMsg.getChannel(), partitions );
+			partitions[ partitionOf( channelMsg.getUserName() ) ] = true;
+			offerToPartitions( queued, partitions );
+			return;
+		case PRIV_SendChatMess:
+			PrivateChatMessage privMsg = (PrivateChatMessage) a_message;
+			int senderPartition = partitionOf( privMsg.getSenderName() );
+			int receiverPartition = partitionOf( privMsg.getReceiverName() );
 			
-			receiverThread.addMessageToQueue( a_msg );
+			m_workers[ senderPartition ].offer( queued );
+			if( receiverPartition != senderPartition ){
+				m_workers[ receiverPartition ].offer( queued );
+			}
+			return;
+		case FILE_Transfer:
+			receiverName = ((FileTransferMessage) a_message).getReceiverName();
 			break;
 		case ADMIN_Login:
-			//get the name of the user to send the response to
-			receiverName = ((AdminLoginMessage) a_msg).getSenderName();
-			
-			//get the user's writer thread and add the message to its queue
-			receiverThread = m_users.get( receiverName );
-			if( receiverThread == null ){
-				break;
-			}
-			
-			receiverThread.addMessageToQueue( a_msg );
+			receiverName = ((AdminLoginMessage) a_message).getSenderName();
 			break;
 		case ADMIN_PunishUser:
 		case ADMIN_RemovePunishment:
-			AdminPunishMessage apMsg = (AdminPunishMessage) a_msg;
-			if( apMsg.getCommitStatus() == true ){
-				//punishment enacted, send the response to both the target
-				//and the admin
-				
-				sendMessageToAll( a_msg );
-			}
-			else{
-				//punishment not enacted, simply aware the admin of the failure
-				
-				receiverThread = m_users.get( apMsg.getAdminName() );
-				if( receiverThread == null ){
-					break;
-				}
-				receiverThread.addMessageToQueue(a_msg);
-				
+			AdminPunishMessage apMsg = (AdminPunishMessage) a_message;
+			if( apMsg.getCommitStatus() == false ){
+				receiverName = apMsg.getAdminName();
 			}
 			break;
 		case SERVER_UserList:
-			//send the list of connected users to the receiver
-			receiverName = ((UserListMessage) a_msg).getReceiverName();
-			receiverThread = m_users.get( receiverName );
-			if( receiverThread == null ){ 
-				break;
-			}
-			receiverThread.addMessageToQueue( a_msg );
+			receiverName = ((UserListMessage) a_message).getReceiverName();
 			break;
-		case SERVER_AddNewUser:
-		case SERVER_RemoveUser:			
-			sendMessagesToAllButSelf( a_msg );
+		case SERVER_UserListSync:
+			receiverName = 
+					((UserListSyncMessage) a_message).getReceiverName();
 			break;
 		default:
 			break;
-			
+		}
+		
+		if( receiverName != null ){
+			//a single receiver, handled by its partition's worker
+			m_workers[ partitionOf( receiverName ) ].offer( queued );
+			return;
+		}
+		
+		//sent to everyone, every worker handles its own users
+		for( DispatchWorker worker : m_workers ){
+			worker.offer( queued );
+		}
+	}
+	
+	/**
+	 * Add a queued message to the workers of the given partitions.
+	 *
+	 * @param a_queued <code>QueuedMessage</code>, the message
+	 * @param a_partitions <code>boolean[]</code>, <code>true</code> for
+	 * 	every partition whose worker is to handle the message
+	 * @author Andrzej Brynczka
+	 */
+	private void offerToPartitions(QueuedMessage a_queued, 
+			boolean[] a_partitions){
+		for( int i = 0; i < m_workers.length; i++ ){
+			if( a_partitions[i] ){
+				m_workers[i].offer( a_queued );
+			}
 		}
 	}
 	
 	/**
-	 * Determine if the dispatcher's message queue is empty.
-	 * 
-	 * @return <code>boolean</code> - <code>true</code> if empty, 
+	 * Add a user to a channel, creating the channel if it has no members,
+	 * and aware the channel's members, including the user, of the join.
+	 *
+	 * @param a_channel <code>String</code>, the channel's name
+	 * @param a_handler <code>UserHandler</code>, the user's handler
+	 * @return <code>boolean</code> - <code>true</code> if joined,
+	 * 	<code>false</code> if the user is already a member, or is a member
+	 * 	of too many channels
+	 * @author Andrzej Brynczka
+	 */
+	public boolean joinChannel(String a_channel, UserHandler a_handler){
+		String userName = a_handler.getUser().getUserName();
+		if( !m_channels.join( a_channel, userName, a_handler ) ){
+			return false;
+		}
+		
+		addMessage( new ChannelMessage( MessageHeader.CHANNEL_Join, 
+				a_channel, userName ) );
+		return true;
+	}
+	
+	/**
+	 * Remove a user from a channel, and aware the channel's remaining 
+	 * members, and the user, of the leave.
+	 *
+	 * @param a_channel <code>String</code>, the channel's name
+	 * @param a_handler <code>UserHandler</code>, the user's handler
+	 * @return <code>boolean</code> - <code>true</code> if left,
+	 * 	<code>false</code> if the user was not a member
+	 * @author Andrzej Brynczka
+	 */
+	public boolean leaveChannel(String a_channel, UserHandler a_handler){
+		String userName = a_handler.getUser().getUserName();
+		if( !m_channels.leave( a_channel, userName, a_handler ) ){
+			return false;
+		}
+		
+		addMessage( new ChannelMessage( MessageHeader.CHANNEL_Leave, 
+				a_channel, userName ) );
+		return true;
+	}
+	
+	/**
+	 * Check if a user is a member of a channel.
+	 *
+	 * @param a_channel <code>String</code>, the channel's name
+	 * @param a_handler <code>UserHandler</code>, the user's handler
+	 * @return <code>boolean</code> - <code>true</code> if a member,
 	 * 	<code>false</code> otherwise
 	 * @author Andrzej Brynczka
 	 */
-	public boolean isMessageListEmpty(){
-		return m_messageList.isEmpty();
+	public boolean isChannelMember(String a_channel, UserHandler a_handler){
+		return m_channels.isMember( a_channel, a_handler );
 	}
 	
 	/**
-	 * Add a message to the dispatcher's message queue.
-	 * Blocks multiple threads from accessing it due to synchronization.
-	 * 
-	 * @param a_message <code>Message</code>, a message to add to the queue
+	 * Get the number of channels with members.
+	 *
+	 * @return <code>int</code>, the number of channels
 	 * @author Andrzej Brynczka
 	 */
-	public synchronized void addMessage(Message a_message){	
-		System.out.println("dispatcher received message");
-		m_messageList.add( a_message );
-		notify();//wake dispatcher up if it is waiting for more messages
+	public int getChannelCount(){
+		return m_channels.size();
 	}
 	
 	/**
 	 * Add user information to the dispatcher's collection of users, to ensure
-	 * the client receives messages from the dispatcher. Use to register a 
+	 * the client receives messages from the dispatcher. Use to register a
 	 * user's login.
-	 * Also sends a message to all other clients notifying them of the new
-	 * user.
-	 
-	 * 
+	 * Also notifies all other clients of the new user, right away or along
+	 * with the other logins and logouts of the current window.
+	 *
 	 * @param a_userName <code>String</code>, the client's username
-	 * @param a_handler <code>UserHandler</code>, the client's handler thread
+	 * @param a_handler <code>UserHandler</code>, the client's handler
+	 * @return <code>boolean</code> - <code>true</code> if added, 
+	 * 	<code>false</code> if another client already has the username
 	 * @author Andrzej Brynczka
 	 */
-	public synchronized void addUser(String a_userName, UserHandler a_handler){
+	public synchronized boolean addUser(String a_userName, 
+			UserHandler a_handler){
 		System.out.println("dispatcher received user");
-		m_users.put( a_userName, a_handler );
+		if( m_remoteUsers.containsKey( a_userName ) 
+				|| !m_users.add( a_userName, a_handler ) ){
+			return false;
+		}
 		
 		//aware the other client's about the user's connection
-		ConnectedUserMessage connectedUser = new ConnectedUserMessage(
-				MessageHeader.SERVER_AddNewUser, 
-				a_userName );
-		addMessage( connectedUser );
+		recordPresence( a_userName, true );
+		if( m_cluster != null ){
+			m_cluster.userJoined( a_userName, a_handler.getUser().getIP() );
+		}
+		return true;
 	}
 	
 	/**
-	 * Remove a client from the dispatcher's collection of users.
-	 * Sends a message indicating the removal of the user to all other clients.
-	 * 
-	 * @param a_userName <code>String</code>, the username of the client 
+	 * Remove a client from the dispatcher's collection of users, if the
+	 * username is still registered to the given handler.
+	 * Notifies all other clients of the user's removal, right away or along
+	 * with the other logins and logouts of the current window, and the 
+	 * members of every channel the user was in of its leaving them.
+	 *
+	 * @param a_userName <code>String</code>, the username of the client
 	 * 	to remove
+	 * @param a_handler <code>UserHandler</code>, the client's handler
 	 * @author Andrzej Brynczka
 	 */
-	public synchronized void removeUser(String a_userName){
+	public synchronized void removeUser(String a_userName, 
+			UserHandler a_handler){
 		System.out.println("removing user: " + a_userName );
-		m_users.remove( a_userName );
+		for( String channel : m_channels.leaveAll( a_userName, a_handler ) ){
+			addMessage( new ChannelMessage( MessageHeader.CHANNEL_Leave, 
+					channel, a_userName ) );
+		}
+		
+		if( !m_users.remove( a_userName, a_handler ) ){
+			return;
+		}
+		
+		if( m_cluster != null ){
+			m_cluster.userLeft( a_userName );
+			if( m_remoteUsers.containsKey( a_userName ) ){
+				//the name was taken over by a user of another node
+				return;
+			}
+		}
 		
 		//aware the other clients about the user's disconnection
-		ConnectedUserMessage disconnectedUser = new ConnectedUserMessage(
-				MessageHeader.SERVER_RemoveUser, 
-				a_userName ); 
-		addMessage( disconnectedUser );
+		recordPresence( a_userName, false );
 	}
 	
-	protected UserHandler getUserHandler( String a_userName ){
-		return m_users.get( a_userName );
+	/**
+	 * Add a user logged into another node of the cluster, and notify the
+	 * clients of this node of the new user. If a user of this node has the
+	 * same name, only the user of the node with the lesser name keeps it,
+	 * and the other is logged out.
+	 *
+	 * @param a_link <code>PeerLink</code>, the link to the user's node
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_IP <code>InetAddress</code>, the address the user connected
+	 * 	to its node from
+	 * @author Andrzej Brynczka
+	 */
+	synchronized void addRemoteUser(PeerLink a_link, String a_userName,
+			InetAddress a_IP){
+		if( !m_cluster.isLinked( a_link ) ){
+			return;
+		}
+		
+		RemoteUser previous = putRemoteUser( a_userName, 
+				new RemoteUser( a_link, a_IP ) );
+		if( previous != null ){
+			//already known, keep the user of the node with the lesser name
+			//if two nodes hold the name
+			if( previous.m_link != a_link && previous.m_link.getPeerName()
+					.compareTo( a_link.getPeerName() ) < 0 ){
+				putRemoteUser( a_userName, previous );
+			}
+			return;
+		}
+		
+		if( m_users.get( a_userName ) != null ){
+			if( m_cluster.keepsLocalUser( a_link ) ){
+				dropRemoteUser( a_userName );
+				return;
+			}
+			
+			//the name stays listed, now for the user of the other node
+			m_server.kickLocalUser( a_userName, 
+					"Your username was taken on another server." );
+			return;
+		}
+		
+		recordPresence( a_userName, true );
 	}
+	
 	/**
-	 * Get a <u>copy</u> of the usernames for all connected clients
-	 * 
-	 * @return <code>String[]</code>, the copy of names
+	 * Remove a user that logged out of another node of the cluster, if it
+	 * is still held by that node, and notify the clients of this node of 
+	 * the user's removal.
+	 *
+	 * @param a_link <code>PeerLink</code>, the link to the user's node
+	 * @param a_userName <code>String</code>, the user's name
 	 * @author Andrzej Brynczka
 	 */
-	public synchronized Collection<String> getUserCollection(){
+	synchronized void removeRemoteUser(PeerLink a_link, String a_userName){
+		RemoteUser remoteUser = m_remoteUsers.get( a_userName );
+		if( remoteUser == null || remoteUser.m_link != a_link ){
+			return;
+		}
 		
-		//get the collection of names
-		Collection<String> collection = m_users.keySet();
+		dropRemoteUser( a_userName );
+		recordPresence( a_userName, false );
+	}
+	
+	/**
+	 * Remove every user held by a node whose link has closed.
+	 *
+	 * @param a_link <code>PeerLink</code>, the closed link
+	 * @author Andrzej Brynczka
+	 */
+	synchronized void removeRemoteUsers(PeerLink a_link){
+		for( Map.Entry<String, RemoteUser> remoteUser 
+				: m_remoteUsers.entrySet() ){
+			if( remoteUser.getValue().m_link == a_link ){
+				removeRemoteUser( a_link, remoteUser.getKey() );
+			}
+		}
+	}
+	
+	/**
+	 * List a user of another node, replacing any user of the same name, and
+	 * index the user's address.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_remoteUser <code>RemoteUser</code>, the user
+	 * @return <code>RemoteUser</code>, the replaced user, or 
+	 * 	<code>null</code> if there was none
+	 * @author Andrzej Brynczka
+	 */
+	private RemoteUser putRemoteUser(String a_userName, 
+			RemoteUser a_remoteUser){
+		RemoteUser previous = m_remoteUsers.put( a_userName, a_remoteUser );
+		if( previous != null ){
+			unindexRemoteAddress( a_userName, previous.m_IP );
+		}
+		
+		Set<String> names = m_remoteAddresses.get( a_remoteUser.m_IP );
+		if( names == null ){
+			names = Collections.newSetFromMap(
+					new ConcurrentHashMap<String, Boolean>() );
+			m_remoteAddresses.put( a_remoteUser.m_IP, names );
+		}
+		names.add( a_userName );
+		return previous;
+	}
+	
+	/**
+	 * Stop listing a user of another node, and remove it from the index of
+	 * addresses.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @author Andrzej Brynczka
+	 */
+	private void dropRemoteUser(String a_userName){
+		RemoteUser remoteUser = m_remoteUsers.remove( a_userName );
+		if( remoteUser != null ){
+			unindexRemoteAddress( a_userName, remoteUser.m_IP );
+		}
+	}
+	
+	/**
+	 * Remove a user of another node from the names indexed under its 
+	 * address.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_IP <code>InetAddress</code>, the user's address
+	 * @author Andrzej Brynczka
+	 */
+	private void unindexRemoteAddress(String a_userName, InetAddress a_IP){
+		Set<String> names = m_remoteAddresses.get( a_IP );
+		if( names != null ){
+			names.remove( a_userName );
+			if( names.isEmpty() ){
+				m_remoteAddresses.remove( a_IP );
+			}
+		}
+	}
+	
+	/**
+	 * Get the link to the node of the cluster holding a user.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @return <code>PeerLink</code>, the link, or <code>null</code> if the
+	 * 	user is not logged into another node
+	 * @author Andrzej Brynczka
+	 */
+	PeerLink getRemoteLink(String a_userName){
+		RemoteUser remoteUser = m_remoteUsers.get( a_userName );
+		return remoteUser != null ? remoteUser.m_link : null;
+	}
+	
+	/**
+	 * Relay a ban or mute set or removed on this node to the other nodes of
+	 * the cluster, if the server is a node of one.
+	 *
+	 * @param a_punishment <code>Punishment</code>, <code>BAN</code> or
+	 * 	<code>MUTE</code>
+	 * @param a_set <code>boolean</code>, true if it was set, false if it
+	 * 	was removed
+	 * @param a_targetName <code>String</code>, the punished user's name
+	 * @param a_IP <code>String</code>, the punished address or range
+	 * @author Andrzej Brynczka
+	 */
+	void relayPunishment(Punishment a_punishment, boolean a_set,
+			String a_targetName, String a_IP){
+		if( m_cluster != null ){
+			m_cluster.punish( a_punishment, a_set, a_targetName, a_IP );
+		}
+	}
+	
+	/**
+	 * Relay an admin's kick to the node of the cluster holding the user,
+	 * if it is logged into another node.
+	 *
+	 * @param a_targetName <code>String</code>, the user's name
+	 * @author Andrzej Brynczka
+	 */
+	void relayKick(String a_targetName){
+		if( m_cluster != null ){
+			m_cluster.kick( a_targetName );
+		}
+	}
+	
+	/**
+	 * Announce a login or logout, or collect it to be announced with the
+	 * others of the current window.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_joined <code>boolean</code>, true if the user logged in,
+	 * 	false if it logged out
+	 * @author Andrzej Brynczka
+	 */
+	private void recordPresence(String a_userName, boolean a_joined){
+		if( m_presence != null ){
+			m_presence.record( a_userName, a_joined );
+			return;
+		}
 		
-		//convert the collection to a copy, within array format, and return it
-		return collection;
+		m_users.publish( Collections.singletonMap( a_userName, a_joined ) );
+		ConnectedUserMessage connectedUser = new ConnectedUserMessage(
+				a_joined ? MessageHeader.SERVER_AddNewUser 
+						: MessageHeader.SERVER_RemoveUser,
+				a_userName );
+		addMessage( connectedUser );
+	}
+	
+	/**
+	 * Announce the logins and logouts collected over a window to every 
+	 * user, adding them to the roster first.
+	 *
+	 * @param a_changes <code>Map&lt;String, Boolean&gt;</code>, the names
+	 * 	that logged in or out, mapped to <code>true</code> if they logged in
+	 * @author Andrzej Brynczka
+	 */
+	void announcePresence(Map<String, Boolean> a_changes){
+		m_users.publish( a_changes );
+		
+		List<String> joined = new ArrayList<String>();
+		List<String> left = new ArrayList<String>();
+		for( Map.Entry<String, Boolean> change : a_changes.entrySet() ){
+			if( change.getValue() ){
+				joined.add( change.getKey() );
+			}
+			else{
+				left.add( change.getKey() );
+			}
+		}
+		
+		addMessage( new PresenceMessage( MessageHeader.SERVER_Presence, 
+				joined, left ) );
+	}
+	
+	protected UserHandler getUserHandler( String a_userName ){
+		return m_users.get( a_userName );
+	}
+	/**
+	 * Get an immutable snapshot of the usernames for all connected clients
+	 *
+	 * @return <code>Collection&lt;String&gt;</code>, the snapshot of names
+	 * @author Andrzej Brynczka
+	 */
+	public Collection<String> getUserCollection(){
+		return m_users.getNames();
+	}
+	
+	/**
+	 * Get the usernames of the clients whose logins have been announced to
+	 * 	the other users, and whose logouts have not, as the other users 
+	 * 	currently know them
+	 *
+	 * @return <code>Collection&lt;String&gt;</code>, a copy of the names
+	 * @author Andrzej Brynczka
+	 */
+	public Collection<String> getAnnouncedUserCollection(){
+		return m_users.getAnnouncedNames();
 	}
 	
 	/**
 	 * Check if the given IP address matches that of a connected user
-	 * 
+	 *
 	 * @param a_IP <code>InetAddress</code>, an IP address
 	 * @return <code>boolean</code> - <code>true</code> if a connected user
-	 * 	has the same IP address as the one provided, 
+	 * 	has the same IP address as the one provided,
 	 *  <code>false</code> otherwise
 	 *  @author Andrzej Brynczka
 	 */
 	public boolean existsIP(InetAddress a_IP){
-		for(UserHandler userHandler : m_users.values() ){
-			if( a_IP.equals( userHandler.getUser().getIP() ) ){
-				return true;
-			}
-		}
-		
-		return false;
+		return m_users.containsAddress( a_IP ) 
+				|| m_remoteAddresses.containsKey( a_IP );
 	}
 	
 	/**
-	 * Checks if the given username has already been taken by a previous client
-	 * 
+	 * Checks if the given username has already been taken by a previous 
+	 * client, of this node or another node of the cluster
+	 *
 	 * @param a_name <code>String</code>, the username to check
-	 * @return <code>boolean</code> - <code>true</code> if the username is 
+	 * @return <code>boolean</code> - <code>true</code> if the username is
 	 * 	already in use, <code>false</code> otherwise
 	 * @author Andrzej Brynczka
 	 */
 	public boolean existsUserName(String a_name){
-		return m_users.containsKey( a_name );
+		return getUserHandler( a_name ) != null 
+				|| m_remoteUsers.containsKey( a_name );
 	}
 	
 	/**
-	 * Get the <code>InetAddress</code> IP address of a the desired user. 
-	 * 
+	 * Get the <code>InetAddress</code> IP address of a the desired user.
+	 *
 	 * @param a_userName String, the user whose IP is to be accessed
 	 * @return <code>InetAddress</code> of the user, or null if the
-	 * desired user's <code>UserHandler</code> cannot be found
+	 * desired user is not logged into this node or another node of the 
+	 * cluster
 	 * @author Andrzej Brynczka
 	 */
 	public InetAddress getIP(String a_userName){
-		UserHandler userHandler = m_users.get( a_userName );
+		InetAddress address = getLocalIP( a_userName );
+		if( address != null ){
+			return address;
+		}
+		
+		RemoteUser remoteUser = m_remoteUsers.get( a_userName );
+		return remoteUser != null ? remoteUser.m_IP : null;
+	}
+	
+	/**
+	 * Get the <code>InetAddress</code> IP address of a user logged into
+	 * 	this node.
+	 *
+	 * @param a_userName String, the user whose IP is to be accessed
+	 * @return <code>InetAddress</code> of the user, or null if the
+	 * desired user's <code>UserHandler</code> cannot be found
+	 * @author Andrzej Brynczka
+	 */
+	public InetAddress getLocalIP(String a_userName){
+		UserHandler userHandler = getUserHandler( a_userName );
 		if( userHandler == null ){
 			return null;
 		}
@@ -0,0 +1,123 @@
+package server.framework;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Thread serving the server's metrics as plain text on a local port, so
+ * that they can be read with a browser, <code>curl</code> or a monitoring
+ * agent's scraper.
+ * <p>
+ * The port is bound to the loopback address only. Every connection is
+ * answered with a minimal HTTP response holding the
+ * <code>ServerMonitor</code>'s report, whatever was asked for, and then
+ * closed.
+ *
+ * @author Andrzej Brynczka
+ */
+public class MetricsEndpoint extends Thread {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Time given to a client to send its request, in milliseconds */
+	private static final int REQUEST_TIMEOUT = 2000;
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The socket listening for requests */
+	private final ServerSocket m_listener;
+
+	/** The monitor whose report is served */
+	private final ServerMonitor m_monitor;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create an endpoint listening on the given local port. Requests are
+	 * served once the thread is started.
+	 *
+	 * @param a_port <code>int</code>, the port to listen on
+	 * @param a_monitor <code>ServerMonitor</code>, the monitor to report
+	 * @throws IOException if the port cannot be bound
+	 */
+	MetricsEndpoint(int a_port, ServerMonitor a_monitor) throws IOException{
+		super("MetricsEndpoint-" + a_port);
+		setDaemon( true );
+
+		m_listener = new ServerSocket();
+		m_listener.bind( new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), a_port ) );
+		m_monitor = a_monitor;
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Answer requests until the endpoint is shut down.
+	 */
+	@Override
+	public void run(){
+		while( !m_listener.isClosed() ){
+			try( Socket socket = m_listener.accept() ){
+				serve( socket );
+			} catch (IOException e) {
+				if( !m_listener.isClosed() ){
+					System.out.println("ERROR: Serving metrics: "
+							+ e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop listening for requests.
+	 */
+	void shutDown(){
+		try {
+			m_listener.close();
+		} catch (IOException e) {
+			//stopping in any case
+		}
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Answer a single request with the monitor's report.
+	 * @param a_socket <code>Socket</code>, the requesting client
+	 * @throws IOException if the request cannot be read or answered
+	 */
+	private void serve(Socket a_socket) throws IOException{
+		a_socket.setSoTimeout( REQUEST_TIMEOUT );
+
+		//skip the request's headers, ending at the first empty line
+		BufferedReader request = new BufferedReader( new InputStreamReader(
+				a_socket.getInputStream(), StandardCharsets.US_ASCII ) );
+		String line = request.readLine();
+		while( line != null && !line.isEmpty() ){
+			line = request.readLine();
+		}
+
+		byte[] body = m_monitor.getReport().getBytes( StandardCharsets.UTF_8 );
+		String header = "HTTP/1.0 200 OK\r\n"
+				+ "Content-Type: text/plain; charset=utf-8\r\n"
+				+ "Content-Length: " + body.length + "\r\n"
+				+ "Connection: close\r\n\r\n";
+
+		OutputStream out = a_socket.getOutputStream();
+		out.write( header.getBytes( StandardCharsets.US_ASCII ) );
+		out.write( body );
+		out.flush();
+	}
+}
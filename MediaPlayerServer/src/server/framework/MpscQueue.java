@@ -0,0 +1,154 @@
+package server.framework;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Unbounded, lock-free queue with many producers and a single consumer, used
+ * to hand messages to the <code>MessageDispatcher</code>'s workers.
+ * <p>
+ * Producers link their node onto the tail with a single atomic swap and
+ * never block. The consumer thread parks while the queue is empty and is
+ * unparked by the producer that ends the wait.
+ * <p>
+ * A producer briefly leaves its node unlinked between the swap and setting
+ * the previous node's link, so the consumer may see the queue as empty for
+ * that moment; the element becomes visible as soon as the link is set.
+ *
+ * @author Andrzej Brynczka
+ *
+ * @param <E> the type of elements held in the queue
+ */
+public class MpscQueue<E> {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/**
+	 * Link in the queue's chain of elements.
+	 */
+	private static class Node<E>{
+		private E m_item;
+		private final AtomicReference<Node<E>> m_next;
+
+		Node(E a_item){
+			m_item = a_item;
+			m_next = new AtomicReference<Node<E>>();
+		}
+	}
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/**
+	 * The last consumed node, whose successor is the queue's first element.
+	 * Accessed only by the consumer.
+	 */
+	private Node<E> m_head;
+
+	/** The most recently added node, swapped in by producers */
+	private final AtomicReference<Node<E>> m_tail;
+
+	/** The consumer thread, recorded when it first waits */
+	private volatile Thread m_consumer;
+
+	/** Set while the consumer is parked, or about to park */
+	private final AtomicBoolean m_waiting;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create an empty queue.
+	 */
+	public MpscQueue(){
+		Node<E> stub = new Node<E>( null );
+		m_head = stub;
+		m_tail = new AtomicReference<Node<E>>( stub );
+		m_consumer = null;
+		m_waiting = new AtomicBoolean( false );
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Check if the queue has no elements visible to the consumer.
+	 * @return <code>boolean</code> - <code>true</code> if empty,
+	 * 	<code>false</code> otherwise
+	 */
+	public boolean isEmpty(){
+		return m_tail.get() == m_head;
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Add an element to the end of the queue, waking the consumer if it is
+	 * waiting. May be called from any thread.
+	 *
+	 * @param a_item <code>E</code>, the element to add, not
+	 * 	<code>null</code>
+	 */
+	public void offer(E a_item){
+		Node<E> node = new Node<E>( a_item );
+		Node<E> previous = m_tail.getAndSet( node );
+		previous.m_next.set( node );
+
+		if( m_waiting.get() && m_waiting.compareAndSet( true, false ) ){
+			LockSupport.unpark( m_consumer );
+		}
+	}
+
+	/**
+	 * Remove the first element of the queue. Called only by the consumer.
+	 *
+	 * @return <code>E</code>, the first element, or <code>null</code> if the
+	 * 	queue is empty
+	 */
+	public E poll(){
+		Node<E> next = m_head.m_next.get();
+		if( next == null ){
+			return null;
+		}
+
+		E item = next.m_item;
+		next.m_item = null;//let the element be collected
+		m_head = next;
+		return item;
+	}
+
+	/**
+	 * Remove the first element of the queue, parking the calling thread until
+	 * one is added if the queue is empty. Called only by the consumer.
+	 *
+	 * @return <code>E</code>, the first element
+	 * @throws InterruptedException if the consumer is interrupted while
+	 * 	waiting
+	 */
+	public E take() throws InterruptedException{
+		E item = poll();
+		while( item == null ){
+			if( Thread.interrupted() ){
+				throw new InterruptedException();
+			}
+
+			m_consumer = Thread.currentThread();
+			m_waiting.set( true );
+
+			//an element added before the flag was set did not unpark us
+			item = poll();
+			if( item != null ){
+				m_waiting.set( false );
+				break;
+			}
+
+			LockSupport.park( this );
+			m_waiting.set( false );
+			item = poll();
+		}
+
+		return item;
+	}
+}
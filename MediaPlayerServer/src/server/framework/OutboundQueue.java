@@ -0,0 +1,668 @@
+package server.framework;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import protocol.MessageFrame;
+import protocol.MessageHeader;
+import protocol.ProtocolVersion;
+import protocol.messages.Message;
+import server.framework.ServerData.SlowConsumerPolicy;
+import server.messages.FileTransDataMessage;
+
+/**
+ * Queue of the messages waiting to be sent to a single client, bounded by
+ * both a number of messages and a number of encoded bytes.
+ * <p>
+ * Messages are encoded in the client's wire format as they are queued, and
+ * wait as frames, ready to be written. Frames relayed to the client as they
+ * are, such as file data built straight from its sender's bytes, are queued
+ * alongside them with <code>offerFrame</code>.
+ * <p>
+ * Once either limit is reached, new messages are handled according to the
+ * server's <code>SlowConsumerPolicy</code>: the oldest waiting chat messages
+ * may be dropped to make room, file data may be let in past the limits while
+ * its senders are paused, and otherwise <code>offer</code> refuses the
+ * message so that the client can be disconnected.
+ * <p>
+ * Users paused for sending file data register with <code>whenSpace</code>
+ * and are resumed once the queue has drained to half of its limits.
+ * <p>
+ * The queue is guarded by a <code>ReentrantLock</code> rather than its
+ * monitor, and its writer waits on a <code>Condition</code>, so that a
+ * writer on a virtual thread, idle while its client has nothing to be
+ * sent, gives up its carrier thread instead of pinning it.
+ *
+ * @author Andrzej Brynczka
+ */
+public class OutboundQueue {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/**
+	 * How many times past its limits the queue may grow with file data
+	 * while that data's senders are paused, covering the segments already
+	 * on their way through the dispatcher.
+	 */
+	private static final int PAUSED_OVERFLOW = 2;
+
+	/**
+	 * A waiting message's encoded bytes along with its header.
+	 */
+	private static class Entry{
+		private final MessageFrame m_frame;
+		private final MessageHeader m_header;
+		private final int m_size;
+
+		Entry(MessageFrame a_frame, MessageHeader a_header){
+			m_frame = a_frame;
+			m_header = a_header;
+			m_size = a_frame.length();
+		}
+	}
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** Lock guarding every other field but the client's wire format */
+	private final ReentrantLock m_lock;
+
+	/** Signalled once a message has been added or the queue closed */
+	private final Condition m_changed;
+
+	/** The waiting messages' frames, oldest first */
+	private final ArrayDeque<Entry> m_entries;
+
+	/** Total encoded size of the waiting messages */
+	private long m_bytes;
+
+	/**
+	 * Encoded size of the file data sent to this queue's client that is
+	 * still on its way through the dispatcher
+	 */
+	private long m_incomingBytes;
+
+	/** Largest number of messages that may wait */
+	private final int m_maxMessages;
+
+	/** Largest number of bytes that may wait */
+	private final int m_maxBytes;
+
+	/** What to do with new messages once the queue is full */
+	private final SlowConsumerPolicy m_policy;
+
+	/** Counters that dropped messages are recorded in */
+	private final ServerMetrics m_metrics;
+
+	/** Tasks to run once the queue has room again */
+	private final List<Runnable> m_spaceWaiters;
+
+	/** Set once no more messages are to be added */
+	private boolean m_closed;
+
+	/** The wire format in which the client's messages are encoded */
+	private volatile ProtocolVersion m_protocol;
+
+	/**
+	 * Size from which the client's messages are compressed, or 0 if the
+	 * client does not use compressed frames
+	 */
+	private volatile int m_compressThreshold;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create an empty queue.
+	 *
+	 * @param a_maxMessages <code>int</code>, the largest number of messages
+	 * 	that may wait
+	 * @param a_maxBytes <code>int</code>, the largest number of bytes that
+	 * 	may wait
+	 * @param a_policy <code>SlowConsumerPolicy</code>, what to do once the
+	 * 	queue is full
+	 * @param a_metrics <code>ServerMetrics</code>, the counters to record
+	 * 	dropped messages in
+	 */
+	OutboundQueue(int a_maxMessages, int a_maxBytes,
+			SlowConsumerPolicy a_policy, ServerMetrics a_metrics){
+		m_lock = new ReentrantLock();
+		m_changed = m_lock.newCondition();
+		m_entries = new ArrayDeque<Entry>();
+		m_bytes = 0;
+		m_incomingBytes = 0;
+		m_maxMessages = a_maxMessages;
+		m_maxBytes = a_maxBytes;
+		m_policy = a_policy;
+		m_metrics = a_metrics;
+		m_spaceWaiters = new ArrayList<Runnable>();
+		m_closed = false;
+		m_protocol = ProtocolVersion.V1;
+		m_compressThreshold = 0;
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the wire format in which the client's messages are encoded.
+	 * @return <code>ProtocolVersion</code>, the wire format
+	 */
+	public ProtocolVersion getProtocol(){
+		return m_protocol;
+	}
+
+	/**
+	 * Get a message's encoded bytes as they are sent to this queue's
+	 * client, in its wire format and compressed if the client accepts it.
+	 * @param a_msg <code>Message</code>, the message
+	 * @return <code>MessageFrame</code>, the encoded message
+	 * @throws IOException if the message cannot be encoded
+	 */
+	public MessageFrame getFrame(Message a_msg) throws IOException{
+		int threshold = m_compressThreshold;
+		if( threshold > 0 ){
+			return a_msg.getCompressedFrame( threshold );
+		}
+		return a_msg.getFrame( m_protocol );
+	}
+
+	/**
+	 * Get the number of waiting messages.
+	 * @return <code>int</code>, the number of messages
+	 */
+	public int size(){
+		m_lock.lock();
+		try {
+			return m_entries.size();
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the total encoded size of the waiting messages.
+	 * @return <code>long</code>, the number of bytes
+	 */
+	public long getBytes(){
+		m_lock.lock();
+		try {
+			return m_bytes;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Check if no messages are waiting.
+	 * @return <code>boolean</code> - <code>true</code> if empty,
+	 * 	<code>false</code> otherwise
+	 */
+	public boolean isEmpty(){
+		m_lock.lock();
+		try {
+			return m_entries.isEmpty();
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Check if either of the queue's limits has been reached.
+	 * @return <code>boolean</code> - <code>true</code> if full,
+	 * 	<code>false</code> otherwise
+	 */
+	public boolean isFull(){
+		m_lock.lock();
+		try {
+			return m_entries.size() >= m_maxMessages 
+					|| m_bytes >= m_maxBytes;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Check if users sending file data to this queue's client are to be
+	 * paused, as the queue is full, counting the data still on its way, and
+	 * the policy is <code>PAUSESENDERS</code>.
+	 * @return <code>boolean</code> - <code>true</code> if senders are to be
+	 * 	paused, <code>false</code> otherwise
+	 */
+	public boolean shouldPauseSenders(){
+		m_lock.lock();
+		try {
+			return m_policy == SlowConsumerPolicy.PAUSESENDERS && !m_closed 
+					&& isBacklogged( 1 );
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Set the wire format in which the client's messages are encoded. Must
+	 * be set before the first message is added.
+	 * @param a_protocol <code>ProtocolVersion</code>, the wire format
+	 */
+	void setProtocol(ProtocolVersion a_protocol){
+		m_protocol = a_protocol;
+	}
+
+	/**
+	 * Compress the client's text-heavy messages from the given size on, as
+	 * agreed on during a V2 login. Must be set before the first message is
+	 * added.
+	 * @param a_threshold <code>int</code>, the size in bytes, or 0 to send
+	 * 	the messages as they are
+	 * @see FrameCompression
+	 */
+	void setCompressThreshold(int a_threshold){
+		m_compressThreshold = a_threshold;
+	}
+
+	/**
+	 * Add a message to the end of the queue, applying the slow consumer
+	 * policy if the queue is full. Messages offered after the queue has been
+	 * closed are discarded.
+	 *
+	 * @param a_msg <code>Message</code>, the message to add
+	 * @return <code>boolean</code> - <code>true</code> if the message was
+	 * 	queued or dropped as the policy allows, <code>false</code> if the
+	 * 	client is to be disconnected
+	 * @throws IOException if the message cannot be encoded
+	 */
+	public boolean offer(Message a_msg) throws IOException{
+		MessageFrame frame = getFrame( a_msg );
+
+		m_lock.lock();
+		try {
+			if( a_msg instanceof FileTransDataMessage ){
+				//the expected data has arrived
+				m_incomingBytes = 
+						Math.max( 0, m_incomingBytes - frame.length() );
+			}
+
+			return offerFrame( frame, a_msg.getHeader() );
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Add an encoded message to the end of the queue as it is, applying the
+	 * slow consumer policy if the queue is full. Used for frames relayed to
+	 * the client without a message, which must already be in the client's 
+	 * wire format. Frames offered after the queue has been closed are 
+	 * released and discarded.
+	 *
+	 * @param a_frame <code>MessageFrame</code>, the frame to add
+	 * @param a_header <code>MessageHeader</code>, the frame's header
+	 * @return <code>boolean</code> - <code>true</code> if the frame was
+	 * 	queued or dropped as the policy allows, <code>false</code> if the
+	 * 	client is to be disconnected
+	 */
+	public boolean offerFrame(MessageFrame a_frame, MessageHeader a_header){
+		m_lock.lock();
+		try {
+			return offerFrameLocked( a_frame, a_header );
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Add an encoded message as <code>offerFrame</code> does, while holding
+	 * the queue's lock.
+	 *
+	 * @param a_frame <code>MessageFrame</code>, the frame to add
+	 * @param a_header <code>MessageHeader</code>, the frame's header
+	 * @return <code>boolean</code> - <code>true</code> if the frame was
+	 * 	queued or dropped as the policy allows, <code>false</code> if the
+	 * 	client is to be disconnected
+	 */
+	private boolean offerFrameLocked(MessageFrame a_frame, 
+			MessageHeader a_header){
+		int size = a_frame.length();
+
+		if( m_closed ){
+			a_frame.release();
+			return true;
+		}
+
+		if( hasRoomFor( size, 1 ) ){
+			append( a_frame, a_header );
+			return true;
+		}
+
+		if( m_policy != SlowConsumerPolicy.DISCONNECT ){
+			//make room by dropping the oldest waiting chat
+			dropOldestChat( size );
+			if( hasRoomFor( size, 1 ) ){
+				append( a_frame, a_header );
+				return true;
+			}
+
+			//a chat message that does not fit is simply not sent
+			if( isChat( a_header ) ){
+				m_metrics.recordDroppedMessages( 1 );
+				return true;
+			}
+		}
+
+		//file data is let in while its sender is paused
+		if( m_policy == SlowConsumerPolicy.PAUSESENDERS
+				&& a_header == MessageHeader.FILE_Transfer
+				&& hasRoomFor( size, PAUSED_OVERFLOW ) ){
+			append( a_frame, a_header );
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Count file data that has been handed to the dispatcher for this
+	 * queue's client, so that its senders can be paused before the data 
+	 * reaches the queue. The count is released when the data is offered.
+	 *
+	 * @param a_data <code>FileTransDataMessage</code>, the data on its way
+	 * @throws IOException if the message cannot be encoded
+	 */
+	public void expect(FileTransDataMessage a_data) throws IOException{
+		int size = getFrame( a_data ).length();
+
+		m_lock.lock();
+		try {
+			m_incomingBytes += size;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Add a message to the end of the queue regardless of its limits. Used
+	 * for the final message sent to a client that is being disconnected.
+	 *
+	 * @param a_msg <code>Message</code>, the message to add
+	 * @throws IOException if the message cannot be encoded
+	 */
+	public void add(Message a_msg) throws IOException{
+		MessageFrame frame = getFrame( a_msg );
+
+		m_lock.lock();
+		try {
+			if( !m_closed ){
+				append( frame, a_msg.getHeader() );
+			}
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove waiting messages, without waiting for any to be added. At least
+	 * one message is removed if any are waiting, however large. The removed
+	 * frames are to be released once written.
+	 *
+	 * @param a_dest <code>Collection</code>, where the removed messages'
+	 * 	frames are added, oldest first
+	 * @param a_maxMessages <code>int</code>, the most messages to remove
+	 * @param a_maxBytes <code>int</code>, the most bytes to remove
+	 * @return <code>int</code>, the number of messages removed
+	 */
+	public int drainTo(Collection<? super MessageFrame> a_dest, 
+			int a_maxMessages, int a_maxBytes){
+		List<Runnable> resumed;
+		int count = 0;
+
+		m_lock.lock();
+		try {
+			int bytes = 0;
+			while( count < a_maxMessages && !m_entries.isEmpty() ){
+				Entry entry = m_entries.peekFirst();
+				if( count > 0 && bytes + entry.m_size > a_maxBytes ){
+					break;
+				}
+
+				m_entries.pollFirst();
+				m_bytes -= entry.m_size;
+				bytes += entry.m_size;
+				a_dest.add( entry.m_frame );
+				count++;
+			}
+
+			resumed = takeSpaceWaiters();
+		} finally {
+			m_lock.unlock();
+		}
+
+		runAll( resumed );
+		return count;
+	}
+
+	/**
+	 * Remove waiting messages as <code>drainTo</code> does, first waiting
+	 * until a message is added if the queue is empty.
+	 *
+	 * @param a_dest <code>Collection</code>, where the removed messages'
+	 * 	frames are added, oldest first
+	 * @param a_maxMessages <code>int</code>, the most messages to remove
+	 * @param a_maxBytes <code>int</code>, the most bytes to remove
+	 * @return <code>int</code>, the number of messages removed, 0 only once
+	 * 	the queue has been closed and emptied
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public int take(Collection<? super MessageFrame> a_dest, 
+			int a_maxMessages, int a_maxBytes) throws InterruptedException{
+		m_lock.lock();
+		try {
+			while( m_entries.isEmpty() && !m_closed ){
+				m_changed.await();
+			}
+		} finally {
+			m_lock.unlock();
+		}
+
+		return drainTo( a_dest, a_maxMessages, a_maxBytes );
+	}
+
+	/**
+	 * Discard every waiting message.
+	 * @return <code>int</code>, the number of messages discarded
+	 */
+	public int clear(){
+		List<Runnable> resumed;
+		int count;
+
+		m_lock.lock();
+		try {
+			count = m_entries.size();
+			for( Entry entry : m_entries ){
+				entry.m_frame.release();
+			}
+			m_entries.clear();
+			m_bytes = 0;
+
+			resumed = takeSpaceWaiters();
+		} finally {
+			m_lock.unlock();
+		}
+
+		runAll( resumed );
+		return count;
+	}
+
+	/**
+	 * Stop accepting messages. Those already waiting can still be removed,
+	 * and every paused sender is resumed.
+	 */
+	public void close(){
+		List<Runnable> resumed;
+
+		m_lock.lock();
+		try {
+			m_closed = true;
+			m_changed.signalAll();
+
+			resumed = takeSpaceWaiters();
+		} finally {
+			m_lock.unlock();
+		}
+
+		runAll( resumed );
+	}
+
+	/**
+	 * Run a task once the queue has drained to half of its limits, or has
+	 * been closed, counting the file data still on its way. The task is run
+	 * right away if the queue is not full, and otherwise on the thread that
+	 * removes the messages.
+	 *
+	 * @param a_task <code>Runnable</code>, the task to run
+	 */
+	public void whenSpace(Runnable a_task){
+		m_lock.lock();
+		try {
+			if( !m_closed && isBacklogged( 1 ) ){
+				m_spaceWaiters.add( a_task );
+				return;
+			}
+		} finally {
+			m_lock.unlock();
+		}
+
+		a_task.run();
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Check if a message fits within a multiple of the queue's limits. A
+	 * message always fits into an empty queue.
+	 *
+	 * @param a_size <code>int</code>, the message's encoded size
+	 * @param a_multiple <code>int</code>, how many times the limits to allow
+	 * @return <code>boolean</code> - <code>true</code> if it fits,
+	 * 	<code>false</code> otherwise
+	 */
+	private boolean hasRoomFor(int a_size, int a_multiple){
+		if( m_entries.isEmpty() ){
+			return true;
+		}
+		return m_entries.size() < (long) m_maxMessages * a_multiple
+				&& m_bytes + a_size <= (long) m_maxBytes * a_multiple;
+	}
+
+	/**
+	 * Check if the waiting messages, along with the file data still on its
+	 * way, have reached a fraction of the queue's limits. Called while
+	 * holding the queue's lock.
+	 *
+	 * @param a_divisor <code>int</code>, what to divide the limits by
+	 * @return <code>boolean</code> - <code>true</code> if either limit has
+	 * 	been reached, <code>false</code> otherwise
+	 */
+	private boolean isBacklogged(int a_divisor){
+		return m_entries.size() >= m_maxMessages / a_divisor
+				|| m_bytes + m_incomingBytes >= m_maxBytes / a_divisor;
+	}
+
+	/**
+	 * Add a message's frame to the end of the queue, waking a waiting 
+	 * writer.
+	 *
+	 * @param a_frame <code>MessageFrame</code>, the message's frame
+	 * @param a_header <code>MessageHeader</code>, the message's header
+	 */
+	private void append(MessageFrame a_frame, MessageHeader a_header){
+		Entry entry = new Entry( a_frame, a_header );
+		m_entries.addLast( entry );
+		m_bytes += entry.m_size;
+		m_changed.signalAll();
+	}
+
+	/**
+	 * Remove the oldest waiting chat messages until a message of the given
+	 * size fits, or no chat is left.
+	 *
+	 * @param a_size <code>int</code>, the size of the message to fit
+	 */
+	private void dropOldestChat(int a_size){
+		int dropped = 0;
+
+		Iterator<Entry> entries = m_entries.iterator();
+		while( entries.hasNext() && !hasRoomFor( a_size, 1 ) ){
+			Entry entry = entries.next();
+			if( isChat( entry.m_header ) ){
+				entries.remove();
+				m_bytes -= entry.m_size;
+				entry.m_frame.release();
+				dropped++;
+			}
+		}
+
+		if( dropped > 0 ){
+			m_metrics.recordDroppedMessages( dropped );
+		}
+	}
+
+	/**
+	 * Take the tasks waiting for room if the queue has drained to half of
+	 * its limits, or has been closed. Called while holding the queue's lock.
+	 *
+	 * @return <code>List&lt;Runnable&gt;</code>, the tasks to run, or
+	 * 	<code>null</code> if there are none
+	 */
+	private List<Runnable> takeSpaceWaiters(){
+		if( m_spaceWaiters.isEmpty() ){
+			return null;
+		}
+
+		if( !m_closed && isBacklogged( 2 ) ){
+			return null;
+		}
+
+		List<Runnable> tasks = new ArrayList<Runnable>( m_spaceWaiters );
+		m_spaceWaiters.clear();
+		return tasks;
+	}
+
+	/**
+	 * Run the given tasks, outside of the queue's lock.
+	 *
+	 * @param a_tasks <code>List&lt;Runnable&gt;</code>, the tasks, or
+	 * 	<code>null</code>
+	 */
+	private static void runAll(List<Runnable> a_tasks){
+		if( a_tasks == null ){
+			return;
+		}
+
+		for( Runnable task : a_tasks ){
+			task.run();
+		}
+	}
+
+	/**
+	 * Check if a message is a chat message, which may be dropped.
+	 *
+	 * @param a_header <code>MessageHeader</code>, the message's header
+	 * @return <code>boolean</code> - <code>true</code> if it is public,
+	 * 	private or channel chat, <code>false</code> otherwise
+	 */
+	static boolean isChat(MessageHeader a_header){
+		return a_header == MessageHeader.REG_SendChatMess
+				|| a_header == MessageHeader.PRIV_SendChatMess
+				|| a_header == MessageHeader.CHANNEL_SendChatMess;
+	}
+}
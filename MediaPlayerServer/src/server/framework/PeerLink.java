@@ -0,0 +1,322 @@
+package server.framework;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection between this server node and another node of its cluster.
+ * <p>
+ * Both ends first send their node's name and a random challenge in a
+ * <code>HELLO</code> frame, then prove they know the cluster's secret by
+ * signing the other's challenge in an <code>AUTH</code> frame. Only then
+ * is the link registered with the <code>ClusterRelay</code>, and the
+ * thread reads the other node's frames until the connection ends,
+ * handing each to the relay. Frames to the other node are queued and
+ * written by a second thread, so that no dispatcher or user handler ever
+ * waits on a slow node.
+ * <p>
+ * The queue is bounded, as a client's is, by the server's queue limits
+ * scaled to the many users a link carries. Once it is full, chat is 
+ * dropped as under the <code>DROPCHAT</code> policy; any other frame, or 
+ * any frame at all under <code>DISCONNECT</code>, closes the link, whose
+ * node is linked to again and sends its users anew.
+ *
+ * @author Andrzej Brynczka
+ */
+class PeerLink extends Thread {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Milliseconds the other node has to name itself */
+	private static final int HANDSHAKE_TIMEOUT = 5000;
+
+	/** Source of the links' challenges */
+	private static final SecureRandom NONCES = new SecureRandom();
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The relay that the link's frames are handed to */
+	private final ClusterRelay m_relay;
+
+	/** The connection to the other node */
+	private final Socket m_socket;
+
+	/** True if this node opened the connection */
+	private final boolean m_dialed;
+
+	/** Frames waiting to be written to the other node */
+	private final LinkedBlockingQueue<byte[]> m_frames;
+
+	/** The number of bytes of the frames waiting */
+	private final AtomicLong m_queuedBytes;
+
+	/** True once the link has been closed */
+	private volatile boolean m_closed;
+
+	/** The thread writing the queued frames */
+	private final Thread m_writer;
+
+	/** The other node's name, once it has been received */
+	private volatile String m_peerName;
+
+	/** The other node's number, once it has been received */
+	private volatile int m_peerID;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create a link over an open connection to another node.
+	 *
+	 * @param a_relay <code>ClusterRelay</code>, the relay to hand the
+	 * 	link's frames to
+	 * @param a_socket <code>Socket</code>, the connection
+	 * @param a_dialed <code>boolean</code>, true if this node opened the
+	 * 	connection, false if it accepted it
+	 */
+	PeerLink(ClusterRelay a_relay, Socket a_socket, boolean a_dialed){
+		super("PeerLink-" + a_socket.getRemoteSocketAddress());
+		setDaemon( true );
+		m_relay = a_relay;
+		m_socket = a_socket;
+		m_dialed = a_dialed;
+		m_frames = new LinkedBlockingQueue<byte[]>( a_relay.getLinkMaxFrames() );
+		m_queuedBytes = new AtomicLong();
+		m_closed = false;
+
+		m_writer = new Thread( getName() + "-Writer" ){
+			@Override
+			public void run(){
+				writeFrames();
+			}
+		};
+		m_writer.setDaemon( true );
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the name of the node at the other end of the link.
+	 * @return <code>String</code>, the node's name, or <code>null</code>
+	 * 	if it has not yet named itself
+	 */
+	String getPeerName(){
+		return m_peerName;
+	}
+
+	/**
+	 * Get the number of the node at the other end of the link.
+	 * @return <code>int</code>, the node's number, or 0 before it has
+	 * 	proven it knows the cluster's secret
+	 */
+	int getPeerID(){
+		return m_peerID;
+	}
+
+	/**
+	 * Check which node opened the link's connection.
+	 * @return <code>boolean</code> - <code>true</code> if this node did,
+	 * 	<code>false</code> if the other node did
+	 */
+	boolean isDialed(){
+		return m_dialed;
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Queue a frame to be written to the other node, closing the link if
+	 * its queue is full. Never blocks.
+	 * @param a_frame <code>byte[]</code>, a frame encoded by
+	 * 	<code>RelayCodec</code>
+	 */
+	void send(byte[] a_frame){
+		send( a_frame, false );
+	}
+
+	/**
+	 * Queue a frame to be written to the other node. Never blocks. If the
+	 * queue is full, a droppable frame is dropped, unless the server 
+	 * disconnects slow consumers, and the link is closed otherwise.
+	 * @param a_frame <code>byte[]</code>, a frame encoded by
+	 * 	<code>RelayCodec</code>
+	 * @param a_droppable <code>boolean</code>, true if the frame holds chat,
+	 * 	which may be dropped
+	 */
+	void send(byte[] a_frame, boolean a_droppable){
+		if( m_closed ){
+			return;
+		}
+
+		if( m_queuedBytes.get() + a_frame.length <= m_relay.getLinkMaxBytes()
+				&& m_frames.offer( a_frame ) ){
+			m_queuedBytes.addAndGet( a_frame.length );
+			return;
+		}
+
+		if( a_droppable && m_relay.dropsChat() ){
+			m_relay.recordDroppedFrame();
+			return;
+		}
+
+		System.out.println("Link to node " + m_peerName 
+				+ " fell behind, closing it");
+		close();
+	}
+
+	/**
+	 * Close the link's connection, ending both of its threads. Frames still
+	 * queued are dropped.
+	 */
+	void close(){
+		m_closed = true;
+		m_frames.clear();
+		try {
+			m_socket.close();
+		} catch (IOException e) {
+			//already closed
+		}
+		m_writer.interrupt();
+	}
+
+	/**
+	 * Exchange names with the other node, register the link, and read the
+	 * other node's frames until the connection ends, unregistering the
+	 * link once it does.
+	 */
+	@Override
+	public void run(){
+		try {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream( m_socket.getInputStream() ) );
+			m_socket.setTcpNoDelay( true );
+			m_socket.setSoTimeout( HANDSHAKE_TIMEOUT );
+
+			//name this node before the writer thread takes over the stream
+			OutputStream out = m_socket.getOutputStream();
+			byte[] nonce = new byte[ RelayCodec.NONCE_SIZE ];
+			NONCES.nextBytes( nonce );
+			out.write( RelayCodec.encodeHello( m_relay.getNodeName(), 
+					m_relay.getNodeID(), nonce ) );
+			out.flush();
+
+			if( in.readByte() != RelayCodec.HELLO
+					|| in.readInt() != RelayCodec.MAGIC ){
+				throw new IOException("Not a cluster node");
+			}
+			String peerName = in.readUTF();
+			int peerID = in.readUnsignedByte();
+			byte[] peerNonce = new byte[ RelayCodec.NONCE_SIZE ];
+			in.readFully( peerNonce );
+
+			//both nodes prove they know the secret before any frame is used
+			out.write( RelayCodec.encodeAuth( m_relay.prove( nonce, 
+					peerNonce ) ) );
+			out.flush();
+			byte[] proof = new byte[ RelayCodec.PROOF_SIZE ];
+			if( in.readByte() != RelayCodec.AUTH ){
+				throw new IOException("Node " + peerName + " sent no proof");
+			}
+			in.readFully( proof );
+			if( !MessageDigest.isEqual( proof, 
+					m_relay.expectProof( peerName, peerNonce, nonce ) ) ){
+				throw new IOException("Node " + peerName 
+						+ " does not know the cluster's secret");
+			}
+			m_peerName = peerName;
+			m_peerID = peerID;
+			m_socket.setSoTimeout( 0 );
+
+			m_writer.start();
+			if( !m_relay.register( this ) ){
+				return;
+			}
+			System.out.println("Linked to node " + m_peerName);
+
+			readFrames( in );
+		} catch (EOFException e) {
+			System.out.println("Link to node " + m_peerName + " ended");
+		} catch (IOException e) {
+			System.out.println("Link to node "
+					+ ( m_peerName != null ? m_peerName
+							: m_socket.getRemoteSocketAddress() )
+					+ " closed: " + e.getMessage());
+		} finally {
+			close();
+			m_relay.unregister( this );
+		}
+	}
+
+	/**
+	 * Read frames from the other node and hand them to the relay.
+	 * @param a_in <code>DataInputStream</code>, the link's stream
+	 * @throws IOException if the connection ends, or a frame is invalid
+	 */
+	private void readFrames(DataInputStream a_in) throws IOException{
+		while( true ){
+			byte type = a_in.readByte();
+			switch( type ){
+			case RelayCodec.USER_JOINED:
+				String userName = a_in.readUTF();
+				InetAddress address = RelayCodec.readAddress( a_in );
+				m_relay.remoteUserJoined( this, userName, address );
+				break;
+			case RelayCodec.USER_LEFT:
+				m_relay.remoteUserLeft( this, a_in.readUTF() );
+				break;
+			case RelayCodec.MESSAGE:
+				m_relay.remoteMessage( RelayCodec.readMessage( a_in ) );
+				break;
+			case RelayCodec.PUNISHMENT:
+				String code = a_in.readUTF();
+				boolean set = a_in.readBoolean();
+				String targetName = a_in.readUTF();
+				String targetIP = a_in.readUTF();
+				m_relay.remotePunishment( code, set, targetName, targetIP );
+				break;
+			case RelayCodec.KICK:
+				m_relay.remoteKick( a_in.readUTF() );
+				break;
+			default:
+				throw new IOException("Invalid frame type: " + type);
+			}
+		}
+	}
+
+	/**
+	 * Write the queued frames to the other node, flushing whenever the
+	 * queue runs empty, until the link is closed.
+	 */
+	private void writeFrames(){
+		try {
+			OutputStream out = new BufferedOutputStream(
+					m_socket.getOutputStream() );
+			while( true ){
+				byte[] frame = m_frames.take();
+				m_queuedBytes.addAndGet( -frame.length );
+				out.write( frame );
+				if( m_frames.isEmpty() ){
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+			//the reading thread sees the connection end as well
+			close();
+		} catch (InterruptedException e) {
+			//link closed
+		}
+	}
+}
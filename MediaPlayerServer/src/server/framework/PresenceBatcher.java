@@ -0,0 +1,108 @@
+package server.framework;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collector of the users logging in and out of the server, so that the
+ * <code>MessageDispatcher</code> can announce all of them at once.
+ * <p>
+ * The first login or logout after a quiet period opens a window of the
+ * configured length, and every login and logout within it is collected.
+ * A login and logout of the same name within the window cancel out, as if
+ * neither had happened. Once the window closes, the remaining changes are
+ * handed to the dispatcher together, so that a mass reconnect costs each
+ * user a few messages rather than one for every other user.
+ *
+ * @author Andrzej Brynczka
+ */
+public class PresenceBatcher extends Thread {
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The dispatcher that announces the collected changes */
+	private final MessageDispatcher m_dispatcher;
+
+	/** Milliseconds for which changes are collected */
+	private final long m_window;
+
+	/**
+	 * Names that logged in or out within the current window, mapped to
+	 * <code>true</code> if they logged in
+	 */
+	private Map<String, Boolean> m_pending;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create a batcher for the given dispatcher.
+	 *
+	 * @param a_dispatcher <code>MessageDispatcher</code>, the dispatcher to
+	 * 	hand the changes to
+	 * @param a_window <code>long</code>, the milliseconds for which changes
+	 * 	are collected
+	 */
+	PresenceBatcher(MessageDispatcher a_dispatcher, long a_window){
+		super("PresenceBatcher");
+		setDaemon( true );
+		m_dispatcher = a_dispatcher;
+		m_window = a_window;
+		m_pending = new LinkedHashMap<String, Boolean>();
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Collect a user's login or logout, opening a window if none is open.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_joined <code>boolean</code>, true if the user logged in,
+	 * 	false if it logged out
+	 */
+	synchronized void record(String a_userName, boolean a_joined){
+		Boolean pending = m_pending.get( a_userName );
+		if( pending != null && pending != a_joined ){
+			//the name returned to where it was before the window
+			m_pending.remove( a_userName );
+			return;
+		}
+
+		m_pending.put( a_userName, a_joined );
+		notify();
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Wait for a change, collect changes until the window closes, and hand
+	 * them to the dispatcher, until interrupted.
+	 */
+	@Override
+	public void run(){
+		try{
+			while( !isInterrupted() ){
+				synchronized( this ){
+					while( m_pending.isEmpty() ){
+						wait();
+					}
+				}
+
+				Thread.sleep( m_window );
+
+				Map<String, Boolean> changes;
+				synchronized( this ){
+					changes = m_pending;
+					m_pending = new LinkedHashMap<String, Boolean>();
+				}
+				if( !changes.isEmpty() ){
+					m_dispatcher.announcePresence( changes );
+				}
+			}
+		} catch (InterruptedException e) {
+			//the server is shutting down, nobody is left to announce to
+		}
+	}
+}
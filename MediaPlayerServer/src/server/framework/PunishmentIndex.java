@@ -0,0 +1,312 @@
+package server.framework;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.SQLException;
+
+import server.messages.PunishmentInfo;
+import server.messages.PunishmentInfo.Punishment;
+
+/**
+ * In-memory index of the bans and mutes stored in the database, so that a
+ * user's punishments are found at login without any database access.
+ * <p>
+ * The index is loaded from the <code>DatabaseAccess</code> when the server
+ * starts, and kept up to date by the <code>Server</code> writing every
+ * change through to both. Punishments may be set on single addresses, or on
+ * whole IPv4 or IPv6 ranges written as a prefix, such as
+ * <code>10.1.0.0/16</code>; these are kept in a binary trie of address bits,
+ * where an address is punished if any prefix along its path is marked.
+ * <p>
+ * Lookups take no locks, while changes are synchronized.
+ *
+ * @author Andrzej Brynczka
+ */
+public class PunishmentIndex {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/**
+	 * Binary trie of address prefixes. IPv4 and IPv6 addresses are kept
+	 * under separate roots.
+	 */
+	private static class AddressTrie{
+		/** Root for 4-byte IPv4 addresses */
+		private final Node m_root4 = new Node();
+
+		/** Root for 16-byte IPv6 addresses */
+		private final Node m_root6 = new Node();
+
+		/**
+		 * Check if an address falls within any marked prefix.
+		 * @param a_address <code>byte[]</code>, the address's bytes
+		 * @return <code>boolean</code> - <code>true</code> if matched,
+		 * 	<code>false</code> otherwise
+		 */
+		boolean matches(byte[] a_address){
+			Node node = rootFor( a_address );
+			int bits = a_address.length * 8;
+			for( int i = 0; node != null; i++ ){
+				if( node.m_marked ){
+					return true;
+				}
+				if( i == bits ){
+					break;
+				}
+				node = bitAt( a_address, i ) ? node.m_one : node.m_zero;
+			}
+			return false;
+		}
+
+		/**
+		 * Mark or unmark a prefix. Called while holding the index's lock.
+		 * @param a_address <code>byte[]</code>, the prefix's address bytes
+		 * @param a_length <code>int</code>, the prefix's length in bits
+		 * @param a_marked <code>boolean</code> - <code>true</code> to mark,
+		 * 	<code>false</code> to unmark
+		 */
+		void set(byte[] a_address, int a_length, boolean a_marked){
+			Node node = rootFor( a_address );
+			for( int i = 0; i < a_length; i++ ){
+				Node next = bitAt( a_address, i ) ? node.m_one : node.m_zero;
+				if( next == null ){
+					if( !a_marked ){
+						//nothing marked below, nothing to remove
+						return;
+					}
+					next = new Node();
+					if( bitAt( a_address, i ) ){
+						node.m_one = next;
+					}
+					else{
+						node.m_zero = next;
+					}
+				}
+				node = next;
+			}
+			node.m_marked = a_marked;
+		}
+
+		private Node rootFor(byte[] a_address){
+			return a_address.length == 4 ? m_root4 : m_root6;
+		}
+
+		private static boolean bitAt(byte[] a_address, int a_bit){
+			return ( a_address[ a_bit / 8 ] & ( 0x80 >>> ( a_bit % 8 ) ) ) != 0;
+		}
+	}
+
+	/**
+	 * Node of an <code>AddressTrie</code>. Its fields are volatile so that
+	 * lookups see nodes fully built by the changing thread.
+	 */
+	private static class Node{
+		private volatile Node m_zero;
+		private volatile Node m_one;
+		private volatile boolean m_marked;
+	}
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The banned addresses and ranges */
+	private final AddressTrie m_banned;
+
+	/** The muted addresses and ranges */
+	private final AddressTrie m_muted;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create an index of the punishments stored in the database. If the
+	 * database cannot be read, the index starts out empty.
+	 *
+	 * @param a_dataBase <code>DatabaseAccess</code>, the database to load
+	 */
+	PunishmentIndex(DatabaseAccess a_dataBase){
+		m_banned = new AddressTrie();
+		m_muted = new AddressTrie();
+
+		if( a_dataBase == null || !a_dataBase.isConnected() ){
+			System.out.println("Unable to load punishments: "
+					+ "no database connection");
+			return;
+		}
+
+		try {
+			int loaded = 0;
+			for( PunishmentInfo info : a_dataBase.getAllPunished() ){
+				if( set( info.getPunishment(), info.getTargetIP(), true ) ){
+					loaded++;
+				}
+			}
+			System.out.println("Loaded " + loaded + " punishments.");
+		} catch (SQLException e) {
+			System.out.println("Unable to load punishments: "
+					+ e.getMessage());
+		}
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Check if the given IP is banned, directly or as part of a range.
+	 *
+	 * @param a_IP <code>InetAddress</code>, the IP to check
+	 * @return <code>boolean</code> - <code>true</code> if the IP is banned
+	 * 	<code>false</code> otherwise
+	 */
+	public boolean isBanned(InetAddress a_IP){
+		return m_banned.matches( a_IP.getAddress() );
+	}
+
+	/**
+	 * Check if the given IP is muted, directly or as part of a range.
+	 *
+	 * @param a_IP <code>InetAddress</code>, the IP to check
+	 * @return <code>boolean</code> - <code>true</code> if the IP is muted
+	 * 	<code>false</code> otherwise
+	 */
+	public boolean isMuted(InetAddress a_IP){
+		return m_muted.matches( a_IP.getAddress() );
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Set or remove a punishment on an address or range.
+	 *
+	 * @param a_punishment <code>Punishment</code>, <code>BAN</code> or
+	 * 	<code>MUTE</code>; others are ignored
+	 * @param a_range <code>String</code>, a single IP address, or a range
+	 * 	written as address/prefix length
+	 * @param a_set <code>boolean</code> - <code>true</code> to set the
+	 * 	punishment, <code>false</code> to remove it
+	 * @return <code>boolean</code> - <code>true</code> if the index was
+	 * 	changed, <code>false</code> if the range or punishment is not valid
+	 */
+	public synchronized boolean set(Punishment a_punishment, String a_range,
+			boolean a_set){
+		AddressTrie trie;
+		if( a_punishment == Punishment.BAN ){
+			trie = m_banned;
+		}
+		else if( a_punishment == Punishment.MUTE ){
+			trie = m_muted;
+		}
+		else{
+			return false;
+		}
+
+		byte[] address = parseAddress( a_range );
+		int length = address == null ? -1 : parsePrefixLength( a_range, address );
+		if( length < 0 ){
+			System.out.println("Ignoring invalid punished address: "
+					+ a_range);
+			return false;
+		}
+
+		trie.set( address, length, a_set );
+		return true;
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Check if a string is an IP address or range that can be punished.
+	 *
+	 * @param a_range <code>String</code>, the string to check
+	 * @return <code>boolean</code> - <code>true</code> if it is an address
+	 * 	or range, <code>false</code> otherwise
+	 */
+	public static boolean isAddressRange(String a_range){
+		byte[] address = parseAddress( a_range );
+		return address != null && parsePrefixLength( a_range, address ) >= 0;
+	}
+
+	/**
+	 * Get the address part of an address or range.
+	 *
+	 * @param a_range <code>String</code>, the address or range
+	 * @return <code>byte[]</code>, the address's bytes, or <code>null</code>
+	 * 	if it is not a numeric IPv4 or IPv6 address
+	 */
+	private static byte[] parseAddress(String a_range){
+		if( a_range == null ){
+			return null;
+		}
+
+		int slash = a_range.indexOf('/');
+		String address = slash == -1 ? a_range : a_range.substring(0, slash);
+
+		//accept only numeric addresses, so that no name is ever looked up
+		if( address.indexOf(':') == -1 ){
+			return parseIPv4( address );
+		}
+		if( !address.matches("[0-9a-fA-F.:]+") ){
+			return null;
+		}
+
+		//an address with a colon is only ever parsed as an IPv6 literal
+		try {
+			return InetAddress.getByName( address ).getAddress();
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Parse an IPv4 address written as a dotted quad.
+	 *
+	 * @param a_address <code>String</code>, the address
+	 * @return <code>byte[]</code>, the address's 4 bytes, or 
+	 * 	<code>null</code> if it is not a dotted quad
+	 */
+	private static byte[] parseIPv4(String a_address){
+		if( !a_address.matches("[0-9]{1,3}(\\.[0-9]{1,3}){3}") ){
+			return null;
+		}
+
+		String[] parts = a_address.split("\\.");
+		byte[] address = new byte[ 4 ];
+		for( int i = 0; i < 4; i++ ){
+			int value = Integer.parseInt( parts[i] );
+			if( value > 255 ){
+				return null;
+			}
+			address[i] = (byte) value;
+		}
+		return address;
+	}
+
+	/**
+	 * Get the prefix length of an address or range.
+	 *
+	 * @param a_range <code>String</code>, the address or range
+	 * @param a_address <code>byte[]</code>, the range's parsed address
+	 * @return <code>int</code>, the number of leading bits that must match,
+	 * 	the full address if no length is given, or -1 if it is invalid
+	 */
+	private static int parsePrefixLength(String a_range, byte[] a_address){
+		int bits = a_address.length * 8;
+
+		int slash = a_range.indexOf('/');
+		if( slash == -1 ){
+			return bits;
+		}
+
+		try {
+			int length = Integer.parseInt( a_range.substring( slash + 1 ) );
+			if( length < 0 || length > bits ){
+				return -1;
+			}
+			return length;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,521 @@
+package server.framework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import protocol.MessageHeader;
+import protocol.TransferResume;
+import protocol.messages.ChannelChatMessage;
+import protocol.messages.ChannelMessage;
+import protocol.messages.ChatMessage;
+import protocol.messages.Message;
+import protocol.messages.Message.MessageResponse;
+import protocol.messages.PrivateChatMessage;
+import server.messages.AdminPunishMessage;
+import server.messages.FileTransCreditMessage;
+import server.messages.FileTransDataMessage;
+import server.messages.FileTransErrorMessage;
+import server.messages.FileTransRequestMessage;
+import server.messages.FileTransResponseMessage;
+import server.messages.FileTransResumeMessage;
+import server.messages.FileTransferMessage;
+import server.messages.FileTransferMessage.TransferStage;
+import server.messages.PunishmentInfo.Direction;
+import server.messages.PunishmentInfo.Punishment;
+
+/**
+ * Encoding of the frames relayed between the nodes of a cluster by their
+ * <code>PeerLink</code>'s.
+ * <p>
+ * Every frame starts with its type byte, followed by its fields written
+ * by a <code>DataOutputStream</code>: strings in modified UTF-8, ints as 4
+ * bytes and byte arrays after their int size. A relayed message carries its
+ * header's type code and the fields needed to build it again on the other
+ * node, which then dispatches it to its own users as if it had been sent
+ * there. Only the messages users send to one another are relayed; answers
+ * meant for their sender stay on the sender's node.
+ * @author Andrzej Brynczka
+ *
+ */
+final class RelayCodec {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** First int sent by both ends of a new link, "JMCL" */
+	static final int MAGIC = 0x4A4D434C;
+
+	/** Frame naming the node at the other end of a link, sent first */
+	static final byte HELLO = 1;
+
+	/** Frame proving the sending node knows the cluster's secret */
+	static final byte AUTH = 7;
+
+	/** Size of the random challenge sent in a <code>HELLO</code> */
+	static final int NONCE_SIZE = 16;
+
+	/** Size of the proof sent in an <code>AUTH</code>, an HMAC-SHA256 */
+	static final int PROOF_SIZE = 32;
+
+	/** The algorithm of the proof of the cluster's secret */
+	private static final String PROOF_ALGORITHM = "HmacSHA256";
+
+	/** Frame of a user that logged into the sending node */
+	static final byte USER_JOINED = 2;
+
+	/** Frame of a user that logged out of the sending node */
+	static final byte USER_LEFT = 3;
+
+	/** Frame holding a message to dispatch to the receiving node's users */
+	static final byte MESSAGE = 4;
+
+	/** Frame of a ban or mute set or removed on the sending node */
+	static final byte PUNISHMENT = 5;
+
+	/** Frame of an admin kicking a user of the receiving node */
+	static final byte KICK = 6;
+
+	/** Largest byte array accepted in a frame, above any file segment */
+	private static final int MAX_BYTES = 1 << 20;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Not instantiable, only holds the encoding's constants and methods.
+	 */
+	private RelayCodec(){
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Encode the first frame of a link.
+	 * @param a_nodeName <code>String</code>, the sending node's name
+	 * @param a_nodeID <code>int</code>, the sending node's number
+	 * @param a_nonce <code>byte[]</code>, the random challenge the other
+	 * 	node is to sign, <code>NONCE_SIZE</code> bytes
+	 * @return <code>byte[]</code>, the frame
+	 * @throws IOException if the frame cannot be encoded
+	 */
+	static byte[] encodeHello(String a_nodeName, int a_nodeID, 
+			byte[] a_nonce) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( HELLO );
+		out.writeInt( MAGIC );
+		out.writeUTF( a_nodeName );
+		out.writeByte( a_nodeID );
+		out.write( a_nonce );
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encode the proof that follows the <code>HELLO</code>s of a link.
+	 * @param a_proof <code>byte[]</code>, the proof, from 
+	 * 	<code>prove</code>
+	 * @return <code>byte[]</code>, the frame
+	 */
+	static byte[] encodeAuth(byte[] a_proof){
+		byte[] frame = new byte[ 1 + a_proof.length ];
+		frame[0] = AUTH;
+		System.arraycopy( a_proof, 0, frame, 1, a_proof.length );
+		return frame;
+	}
+
+	/**
+	 * Compute a node's proof that it knows the cluster's secret: the
+	 * HMAC-SHA256, keyed by the secret, of the node's name, its own 
+	 * challenge and the other node's challenge, so that a proof is only
+	 * good for the one link and direction it was made for.
+	 * @param a_secret <code>String</code>, the cluster's secret
+	 * @param a_nodeName <code>String</code>, the proving node's name
+	 * @param a_ownNonce <code>byte[]</code>, the proving node's challenge
+	 * @param a_peerNonce <code>byte[]</code>, the other node's challenge
+	 * @return <code>byte[]</code>, the proof, <code>PROOF_SIZE</code> bytes
+	 * @throws IOException if the proof cannot be encoded
+	 */
+	static byte[] prove(String a_secret, String a_nodeName, 
+			byte[] a_ownNonce, byte[] a_peerNonce) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		out.writeUTF( a_nodeName );
+		out.write( a_ownNonce );
+		out.write( a_peerNonce );
+
+		try {
+			Mac mac = Mac.getInstance( PROOF_ALGORITHM );
+			mac.init( new SecretKeySpec( 
+					a_secret.getBytes( Charset.forName("UTF-8") ), 
+					PROOF_ALGORITHM ) );
+			return mac.doFinal( bytes.toByteArray() );
+		} catch (GeneralSecurityException e) {
+			//every Java platform supports HmacSHA256
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * Encode a user's login.
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_IP <code>InetAddress</code>, the address the user connected
+	 * 	from
+	 * @return <code>byte[]</code>, the frame
+	 * @throws IOException if the frame cannot be encoded
+	 */
+	static byte[] encodeUserJoined(String a_userName, InetAddress a_IP)
+			throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( USER_JOINED );
+		out.writeUTF( a_userName );
+		writeBytes( out, a_IP.getAddress() );
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encode a user's logout.
+	 * @param a_userName <code>String</code>, the user's name
+	 * @return <code>byte[]</code>, the frame
+	 * @throws IOException if the frame cannot be encoded
+	 */
+	static byte[] encodeUserLeft(String a_userName) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( USER_LEFT );
+		out.writeUTF( a_userName );
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encode a ban or mute being set or removed.
+	 * @param a_punishment <code>Punishment</code>, <code>BAN</code> or
+	 * 	<code>MUTE</code>
+	 * @param a_set <code>boolean</code>, true if it is set, false if it is
+	 * 	removed
+	 * @param a_targetName <code>String</code>, the punished user's name
+	 * @param a_IP <code>String</code>, the punished address or range
+	 * @return <code>byte[]</code>, the frame
+	 * @throws IOException if the frame cannot be encoded
+	 */
+	static byte[] encodePunishment(Punishment a_punishment,
+			boolean a_set, String a_targetName, String a_IP)
+			throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( PUNISHMENT );
+		out.writeUTF( a_punishment.getCode() );
+		out.writeBoolean( a_set );
+		out.writeUTF( a_targetName );
+		out.writeUTF( a_IP );
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encode an admin's kick of a user.
+	 * @param a_targetName <code>String</code>, the kicked user's name
+	 * @return <code>byte[]</code>, the frame
+	 * @throws IOException if the frame cannot be encoded
+	 */
+	static byte[] encodeKick(String a_targetName) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( KICK );
+		out.writeUTF( a_targetName );
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Check if a message is one that is relayed to other nodes.
+	 * @param a_message <code>Message</code>, the message
+	 * @return <code>boolean</code> - <code>true</code> if it can be
+	 * 	encoded by <code>encodeMessage</code>, <code>false</code> otherwise
+	 */
+	static boolean isRelayed(Message a_message){
+		switch( a_message.getHeader() ){
+		case REG_SendChatMess:
+		case PRIV_SendChatMess:
+		case CHANNEL_Join:
+		case CHANNEL_Leave:
+		case CHANNEL_SendChatMess:
+		case FILE_Transfer:
+			return true;
+		case ADMIN_PunishUser:
+		case ADMIN_RemovePunishment:
+			//only punishments that took place are announced to everyone
+			return ((AdminPunishMessage) a_message).getCommitStatus();
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Encode a message to be dispatched by another node.
+	 * @param a_message <code>Message</code>, a message for which
+	 * 	<code>isRelayed</code> is <code>true</code>
+	 * @return <code>byte[]</code>, the frame
+	 * @throws IOException if the frame cannot be encoded
+	 */
+	static byte[] encodeMessage(Message a_message) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		out.writeByte( MESSAGE );
+		out.writeByte( a_message.getHeader().getTypeCode() );
+
+		switch( a_message.getHeader() ){
+		case REG_SendChatMess:
+			ChatMessage chatMsg = (ChatMessage) a_message;
+			out.writeUTF( chatMsg.getSenderName() );
+			out.writeUTF( chatMsg.getMessage() );
+			break;
+		case PRIV_SendChatMess:
+			PrivateChatMessage privMsg = (PrivateChatMessage) a_message;
+			out.writeUTF( privMsg.getSenderName() );
+			out.writeUTF( privMsg.getReceiverName() );
+			out.writeUTF( privMsg.getMessage() );
+			break;
+		case CHANNEL_Join:
+		case CHANNEL_Leave:
+			ChannelMessage channelMsg = (ChannelMessage) a_message;
+			out.writeUTF( channelMsg.getChannel() );
+			out.writeUTF( channelMsg.getUserName() );
+			break;
+		case CHANNEL_SendChatMess:
+			ChannelChatMessage chanChatMsg = (ChannelChatMessage) a_message;
+			out.writeUTF( chanChatMsg.getChannel() );
+			out.writeUTF( chanChatMsg.getSenderName() );
+			out.writeUTF( chanChatMsg.getMessage() );
+			break;
+		case FILE_Transfer:
+			encodeFileTransfer( out, (FileTransferMessage) a_message );
+			break;
+		case ADMIN_PunishUser:
+		case ADMIN_RemovePunishment:
+			AdminPunishMessage punMsg = (AdminPunishMessage) a_message;
+			out.writeUTF( punMsg.getPunishment().getCode() );
+			out.writeByte( punMsg.getDirection().getCode() );
+			out.writeUTF( punMsg.getAdminName() );
+			out.writeUTF( punMsg.getTargetName() );
+			out.writeUTF( punMsg.getTargetIP() == null
+					? "" : punMsg.getTargetIP() );
+			break;
+		default:
+			throw new IOException("Message not relayed: "
+					+ a_message.getHeader());
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Read the fields of a <code>MESSAGE</code> frame following its type
+	 * byte, and build its message again.
+	 * @param a_in <code>DataInputStream</code>, the link's stream
+	 * @return <code>Message</code>, the message
+	 * @throws IOException if the frame is invalid, or the link fails
+	 */
+	static Message readMessage(DataInputStream a_in) throws IOException{
+		MessageHeader header = MessageHeader.fromTypeCode( a_in.readByte() );
+
+		switch( header ){
+		case REG_SendChatMess:
+			String sender = a_in.readUTF();
+			return new ChatMessage( header, a_in.readUTF(), sender );
+		case PRIV_SendChatMess:
+			sender = a_in.readUTF();
+			String receiver = a_in.readUTF();
+			return new PrivateChatMessage( header, a_in.readUTF(), sender,
+					receiver );
+		case CHANNEL_Join:
+		case CHANNEL_Leave:
+			String channel = a_in.readUTF();
+			return new ChannelMessage( header, channel, a_in.readUTF() );
+		case CHANNEL_SendChatMess:
+			channel = a_in.readUTF();
+			sender = a_in.readUTF();
+			return new ChannelChatMessage( header, channel, a_in.readUTF(),
+					sender );
+		case FILE_Transfer:
+			return readFileTransfer( a_in );
+		case ADMIN_PunishUser:
+		case ADMIN_RemovePunishment:
+			Punishment punishment = Punishment.fromString( a_in.readUTF() );
+			Direction direction = Direction.fromByte( a_in.readByte() );
+			String admin = a_in.readUTF();
+			String target = a_in.readUTF();
+			String targetIP = a_in.readUTF();
+			AdminPunishMessage punMsg = new AdminPunishMessage( header,
+					punishment, direction, admin, target,
+					targetIP.isEmpty() ? null : targetIP );
+			punMsg.setCommitStatus( true );
+			return punMsg;
+		default:
+			throw new IOException("Invalid relayed message: " + header);
+		}
+	}
+
+	/**
+	 * Read an address written after its size.
+	 * @param a_in <code>DataInputStream</code>, the link's stream
+	 * @return <code>InetAddress</code>, the address
+	 * @throws IOException if the address is invalid, or the link fails
+	 */
+	static InetAddress readAddress(DataInputStream a_in) throws IOException{
+		return InetAddress.getByAddress( readBytes( a_in ) );
+	}
+
+	/**
+	 * Write the fields of a file transfer message of any stage.
+	 * @param a_out <code>DataOutputStream</code>, the frame's stream
+	 * @param a_message <code>FileTransferMessage</code>, the message
+	 * @throws IOException if the message cannot be written
+	 */
+	private static void encodeFileTransfer(DataOutputStream a_out,
+			FileTransferMessage a_message) throws IOException{
+		TransferStage stage = a_message.getTransferStage();
+		a_out.writeByte( stage.getCode() );
+		a_out.writeInt( a_message.getTransferID() );
+		a_out.writeUTF( a_message.getSenderName() );
+		a_out.writeUTF( a_message.getReceiverName() );
+		a_out.writeUTF( a_message.getFileName() );
+
+		switch( stage ){
+		case STAGE1_RequestFromSender:
+			a_out.writeLong( ((FileTransRequestMessage) a_message)
+					.getFileSize() );
+			break;
+		case STAGE2_ResponseToRequest:
+		case STAGE4_TransEndResponse:
+			a_out.writeByte( ((FileTransResponseMessage) a_message)
+					.getResponse().getCode() );
+			break;
+		case STAGE3_DataTransmission:
+			FileTransDataMessage dataMsg = (FileTransDataMessage) a_message;
+			a_out.writeInt( dataMsg.getCurDataSegNumber() );
+			a_out.writeInt( dataMsg.getTotalDataSegments() );
+			writeBytes( a_out, dataMsg.getDataSegment() );
+			break;
+		case STAGE3_DataCredit:
+			a_out.writeInt( ((FileTransCreditMessage) a_message)
+					.getCredits() );
+			break;
+		case STAGE2_ResumeRequest:
+			List<int[]> ranges = 
+					((FileTransResumeMessage) a_message).getRanges();
+			a_out.writeInt( ranges.size() );
+			for( int[] range : ranges ){
+				a_out.writeInt( range[0] );
+				a_out.writeInt( range[1] );
+			}
+			break;
+		default:
+			a_out.writeUTF( ((FileTransErrorMessage) a_message)
+					.getErrorMsg() );
+			break;
+		}
+	}
+
+	/**
+	 * Read the fields of a file transfer message of any stage, and build
+	 * the message of that stage.
+	 * @param a_in <code>DataInputStream</code>, the link's stream
+	 * @return <code>FileTransferMessage</code>, the message
+	 * @throws IOException if the message is invalid, or the link fails
+	 */
+	private static FileTransferMessage readFileTransfer(DataInputStream a_in)
+			throws IOException{
+		TransferStage stage = TransferStage.fromNum( a_in.readByte() );
+		int transferID = a_in.readInt();
+		String sender = a_in.readUTF();
+		String receiver = a_in.readUTF();
+		String fileName = a_in.readUTF();
+
+		try {
+			switch( stage ){
+			case STAGE1_RequestFromSender:
+				return new FileTransRequestMessage( MessageHeader.FILE_Transfer,
+						transferID, stage, sender, receiver, fileName,
+						a_in.readLong() );
+			case STAGE2_ResponseToRequest:
+			case STAGE4_TransEndResponse:
+				return new FileTransResponseMessage(
+						MessageHeader.FILE_Transfer, transferID, stage, sender,
+						receiver, fileName,
+						MessageResponse.fromByte( a_in.readByte() ) );
+			case STAGE3_DataTransmission:
+				int curSeg = a_in.readInt();
+				int totSeg = a_in.readInt();
+				byte[] data = readBytes( a_in );
+				return new FileTransDataMessage( MessageHeader.FILE_Transfer,
+						transferID, stage, sender, receiver, fileName, curSeg,
+						totSeg, data.length, data );
+			case STAGE3_DataCredit:
+				return new FileTransCreditMessage( MessageHeader.FILE_Transfer,
+						transferID, stage, sender, receiver, fileName,
+						a_in.readInt() );
+			case STAGE2_ResumeRequest:
+				int count = a_in.readInt();
+				if( count < 0 || count > TransferResume.MAX_RANGES ){
+					throw new IOException("Invalid relayed resume ranges");
+				}
+				List<int[]> ranges = new ArrayList<int[]>( count );
+				for( int i = 0; i < count; i++ ){
+					ranges.add( new int[]{ a_in.readInt(), a_in.readInt() } );
+				}
+				return new FileTransResumeMessage( MessageHeader.FILE_Transfer,
+						transferID, stage, sender, receiver, fileName, ranges );
+			default:
+				FileTransErrorMessage errorMsg = new FileTransErrorMessage(
+						MessageHeader.FILE_Transfer, transferID, stage, sender,
+						receiver, fileName );
+				errorMsg.setErrorMsg( a_in.readUTF() );
+				return errorMsg;
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			//the sending node already checked the same limits
+			throw new IOException("Invalid relayed file transfer: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Write a byte array after its size.
+	 * @param a_out <code>DataOutputStream</code>, the frame's stream
+	 * @param a_bytes <code>byte[]</code>, the bytes
+	 * @throws IOException if the bytes cannot be written
+	 */
+	private static void writeBytes(DataOutputStream a_out, byte[] a_bytes)
+			throws IOException{
+		a_out.writeInt( a_bytes.length );
+		a_out.write( a_bytes );
+	}
+
+	/**
+	 * Read a byte array written after its size.
+	 * @param a_in <code>DataInputStream</code>, the link's stream
+	 * @return <code>byte[]</code>, the bytes
+	 * @throws IOException if the size is invalid, or the link fails
+	 */
+	private static byte[] readBytes(DataInputStream a_in) throws IOException{
+		int size = a_in.readInt();
+		if( size < 0 || size > MAX_BYTES ){
+			throw new IOException("Invalid relayed size: " + size);
+		}
+
+		byte[] bytes = new byte[size];
+		a_in.readFully( bytes );
+		return bytes;
+	}
+}
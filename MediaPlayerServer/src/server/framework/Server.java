@@ -1,22 +1,41 @@
 package server.framework;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import server.messages.Message.MessageHeader;
+import protocol.FramePool;
+import protocol.MessageHeader;
+import server.messages.FileTransDataMessage;
 import server.messages.PunishmentInfo;
 import server.messages.PunishmentInfo.Direction;
+import server.messages.PunishmentInfo.Punishment;
 import server.messages.ServerMessage;
 
 
 /**
  * The main class that accepts connections from users, sends users
- * to UserHandler threads to be dealt with, and engages with the database
+ * to UserHandlers to be dealt with, and engages with the database
  * to manage punishment.
  * 
  * @author Andrzej Brynczka
@@ -24,6 +43,19 @@ import server.messages.ServerMessage;
  */
 public class Server {
 
+	/** The reason given to users kicked by an admin */
+	static final String KICK_MESSAGE = "You've been kicked by an admin!";
+	
+	/** 
+	 * Size of the pooled arrays relayed file data is built in, holding a
+	 * full segment along with the fields before it 
+	 */
+	private static final int RELAY_FRAME_SIZE = 
+			FileTransDataMessage.MAX_SEGMENT_SIZE + 1024;
+	
+	/** Largest number of released relay arrays kept for reuse */
+	private static final int RELAY_FRAME_BUFFERS = 64;
+
 	/** Reference to the message dispatcher */
 	private MessageDispatcher m_dispatcher;
 	
@@ -32,6 +64,45 @@ public class Server {
 	
 	/** Database accessor containing client punishment */
 	private static DatabaseAccess m_dataBase;
+	
+	/** In-memory index of the database's punishments, checked at login */
+	private final PunishmentIndex m_punishments;
+	
+	/** 
+	 * Single thread doing the database work users ask for, one task at a 
+	 * time, so that no handler or event loop waits on the database
+	 */
+	private final ExecutorService m_databaseTasks;
+	
+	/** Creator of the threads that run the user handlers */
+	private HandlerThreadFactory m_handlerThreads;
+	
+	/** 
+	 * All handlers whose connections are open, including those of users 
+	 * that have not yet logged in 
+	 */
+	private final Set<UserHandler> m_handlers;
+	
+	/** The socket or channel listening for new connections */
+	private volatile Closeable m_listener;
+	
+	/** The event loops used in the <code>NIO</code> connection mode */
+	private EventLoop[] m_eventLoops;
+	
+	/** Set once the server has begun shutting down */
+	private final AtomicBoolean m_shuttingDown;
+	
+	/** Counters describing the server's activity */
+	private final ServerMetrics m_metrics;
+	
+	/** View of the metrics, registered with JMX while the server runs */
+	private final ServerMonitor m_monitor;
+	
+	/** Thread serving the metrics as text, or <code>null</code> if none */
+	private volatile MetricsEndpoint m_metricsEndpoint;
+	
+	/** Pool of the arrays that file data relayed between users is built in */
+	private final FramePool m_relayFrames;
 
 	/**
 	 * Create a server with provided <code>ServerData</code> to use as
@@ -41,8 +112,17 @@ public class Server {
 	 */
 	Server(ServerData a_data){
 		m_data = a_data;
-		m_dispatcher = new MessageDispatcher( this );
+		m_dispatcher = new MessageDispatcher( this, m_data.getDispatchers() );
 		m_dataBase = new DatabaseAccess();
+		m_punishments = new PunishmentIndex( m_dataBase );
+		m_databaseTasks = newDatabaseExecutor();
+		m_handlers = Collections.newSetFromMap( 
+				new ConcurrentHashMap<UserHandler, Boolean>() );
+		m_eventLoops = new EventLoop[0];
+		m_shuttingDown = new AtomicBoolean( false );
+		m_metrics = new ServerMetrics();
+		m_monitor = new ServerMonitor( this );
+		m_relayFrames = new FramePool( RELAY_FRAME_SIZE, RELAY_FRAME_BUFFERS );
 	}
 	
 	/**
@@ -53,8 +133,17 @@ public class Server {
 	 */
 	Server(String a_fileName){
 		m_data = initServer( a_fileName );
-		m_dispatcher = new MessageDispatcher( this );
+		m_dispatcher = new MessageDispatcher( this, m_data.getDispatchers() );
 		m_dataBase = new DatabaseAccess();
+		m_punishments = new PunishmentIndex( m_dataBase );
+		m_databaseTasks = newDatabaseExecutor();
+		m_handlers = Collections.newSetFromMap( 
+				new ConcurrentHashMap<UserHandler, Boolean>() );
+		m_eventLoops = new EventLoop[0];
+		m_shuttingDown = new AtomicBoolean( false );
+		m_metrics = new ServerMetrics();
+		m_monitor = new ServerMonitor( this );
+		m_relayFrames = new FramePool( RELAY_FRAME_SIZE, RELAY_FRAME_BUFFERS );
 	}
 	
 	//********************************************************
@@ -103,41 +192,339 @@ public class Server {
 		return m_data.allowMultiLogin();
 	}
 	
+	/**
+	 * Get the largest number of queued messages written to a client in a
+	 * 	single write.
+	 * 
+	 * @return <code>int</code>, the number of messages
+	 * @author Andrzej Brynczka
+	 */
+	public int getMaxBatchMessages(){
+		return m_data.getMaxBatchMessages();
+	}
+	
+	/**
+	 * Get the largest number of bytes collected into a single write to a
+	 * 	client.
+	 * 
+	 * @return <code>int</code>, the number of bytes
+	 * @author Andrzej Brynczka
+	 */
+	public int getMaxBatchBytes(){
+		return m_data.getMaxBatchBytes();
+	}
+	
+	/**
+	 * Get the size from which frames sent to clients that accept 
+	 * 	compression are compressed.
+	 * 
+	 * @return <code>int</code>, the size in bytes, or 0 if frames are not
+	 * 	compressed
+	 * @author Andrzej Brynczka
+	 */
+	public int getCompressThreshold(){
+		return m_data.getCompressThreshold();
+	}
+	
+	/**
+	 * Get the largest number of usernames sent in a single page of the
+	 * 	user list.
+	 * 
+	 * @return <code>int</code>, the number of usernames
+	 * @author Andrzej Brynczka
+	 */
+	public int getUserListPageSize(){
+		return m_data.getUserListPageSize();
+	}
+	
+	/**
+	 * Get the milliseconds for which users logging in and out are 
+	 * 	collected before being announced together.
+	 * 
+	 * @return <code>int</code>, the milliseconds, or 0 if every login and
+	 * 	logout is announced on its own
+	 * @author Andrzej Brynczka
+	 */
+	public int getPresenceWindow(){
+		return m_data.getPresenceWindow();
+	}
+	
+	/**
+	 * Get whether clients asking for it may stream files to one another
+	 * 	directly, the server only passing the receiver's endpoint and a 
+	 * 	one-time token to the sender.
+	 * 
+	 * @return <code>boolean</code>, <code>true</code> if direct transfers
+	 * 	are brokered, <code>false</code> if every file is relayed
+	 * @author Andrzej Brynczka
+	 */
+	public boolean allowDirectTransfers(){
+		return m_data.allowDirectTransfers();
+	}
+	
+	/**
+	 * Get the server's name within its cluster.
+	 * 
+	 * @return <code>String</code>, the node's name
+	 * @author Andrzej Brynczka
+	 */
+	public String getNodeName(){
+		return m_data.getNodeName();
+	}
+	
+	/**
+	 * Get the server's number within its cluster.
+	 * 
+	 * @return <code>int</code>, the node's number
+	 * @author Andrzej Brynczka
+	 */
+	public int getNodeID(){
+		return m_data.getNodeID();
+	}
+	
+	/**
+	 * Get the port that the other nodes of the server's cluster connect to.
+	 * 
+	 * @return <code>int</code>, the port, or 0 if the server is not a node
+	 * 	of a cluster
+	 * @author Andrzej Brynczka
+	 */
+	public int getClusterPort(){
+		return m_data.getClusterPort();
+	}
+	
+	/**
+	 * Get the addresses of the other nodes that the server connects to.
+	 * 
+	 * @return <code>List&lt;InetSocketAddress&gt;</code>, the unresolved
+	 * 	addresses of the nodes' cluster ports
+	 * @author Andrzej Brynczka
+	 */
+	public List<InetSocketAddress> getPeers(){
+		return m_data.getPeers();
+	}
+	
+	/**
+	 * Get the local address on which the cluster port is opened.
+	 * 
+	 * @return <code>String</code>, the address
+	 * @author Andrzej Brynczka
+	 */
+	public String getClusterAddress(){
+		return m_data.getClusterAddress();
+	}
+	
+	/**
+	 * Get the secret shared by the nodes of the server's cluster.
+	 * 
+	 * @return <code>String</code>, the secret
+	 * @author Andrzej Brynczka
+	 */
+	String getClusterSecret(){
+		return m_data.getClusterSecret();
+	}
+	
+	/**
+	 * Get the largest number of messages that may wait to be sent to a
+	 * single client.
+	 * 
+	 * @return <code>int</code>, the number of messages
+	 * @author Andrzej Brynczka
+	 */
+	int getMaxQueuedMessages(){
+		return m_data.getMaxQueuedMessages();
+	}
+	
+	/**
+	 * Get the largest number of bytes that may wait to be sent to a single
+	 * client.
+	 * 
+	 * @return <code>int</code>, the number of bytes
+	 * @author Andrzej Brynczka
+	 */
+	int getMaxQueuedBytes(){
+		return m_data.getMaxQueuedBytes();
+	}
+	
+	/**
+	 * Get the way in which clients, and links to other nodes, with a full
+	 * queue are treated.
+	 * 
+	 * @return <code>SlowConsumerPolicy</code>, the policy
+	 * @author Andrzej Brynczka
+	 */
+	ServerData.SlowConsumerPolicy getSlowConsumerPolicy(){
+		return m_data.getSlowConsumerPolicy();
+	}
+	
+	/**
+	 * Create an empty queue for the messages waiting to be sent to a 
+	 * client, limited as set in the server's initialization file.
+	 * 
+	 * @return <code>OutboundQueue</code>, the new queue
+	 * @author Andrzej Brynczka
+	 */
+	OutboundQueue createOutboundQueue(){
+		return new OutboundQueue( m_data.getMaxQueuedMessages(), 
+				m_data.getMaxQueuedBytes(), m_data.getSlowConsumerPolicy(),
+				m_metrics );
+	}
+	
+	/**
+	 * Get the handlers with the most bytes waiting to be sent to their 
+	 * users, to find the connections holding the most memory.
+	 * 
+	 * @param a_count <code>int</code>, the most handlers to return
+	 * @return <code>List&lt;UserHandler&gt;</code>, the handlers, largest
+	 * 	queue first
+	 * @author Andrzej Brynczka
+	 */
+	public List<UserHandler> getLargestOutboundQueues(int a_count){
+		List<UserHandler> handlers = new ArrayList<UserHandler>( m_handlers );
+		Collections.sort( handlers, new Comparator<UserHandler>(){
+			@Override
+			public int compare(UserHandler a_first, UserHandler a_second){
+				long first = a_first.getQueuedBytes();
+				long second = a_second.getQueuedBytes();
+				return first > second ? -1 : (first == second ? 0 : 1);
+			}
+		});
+		
+		return handlers.subList( 0, Math.min( a_count, handlers.size() ) );
+	}
+	
+	/**
+	 * Get the counters describing the server's activity.
+	 * 
+	 * @return <code>ServerMetrics</code>, the server's metrics
+	 * @author Andrzej Brynczka
+	 */
+	public ServerMetrics getMetrics(){
+		return m_metrics;
+	}
+	
+	/**
+	 * Get the pool of the arrays that file data relayed from one user to
+	 * another is built in.
+	 * 
+	 * @return <code>FramePool</code>, the pool
+	 * @author Andrzej Brynczka
+	 */
+	FramePool getRelayFramePool(){
+		return m_relayFrames;
+	}
+	
+	/**
+	 * Get the number of open connections, logged in or not.
+	 * 
+	 * @return <code>int</code>, the number of connections
+	 * @author Andrzej Brynczka
+	 */
+	public int getConnectionCount(){
+		return m_handlers.size();
+	}
+	
+	/**
+	 * Get the number of logged in users.
+	 * 
+	 * @return <code>int</code>, the number of users
+	 * @author Andrzej Brynczka
+	 */
+	public int getUserCount(){
+		return m_dispatcher.getUserCount();
+	}
+	
+	/**
+	 * Get the number of messages waiting in the dispatcher's queues.
+	 * 
+	 * @return <code>int</code>, the number of messages
+	 * @author Andrzej Brynczka
+	 */
+	public int getDispatcherQueueDepth(){
+		return m_dispatcher.getQueueDepth();
+	}
+	
+	/**
+	 * Get the number of messages waiting to be sent to all clients.
+	 * 
+	 * @return <code>long</code>, the number of messages
+	 * @author Andrzej Brynczka
+	 */
+	public long getQueuedMessages(){
+		long messages = 0;
+		for( UserHandler handler : m_handlers ){
+			messages += handler.getQueuedMessages();
+		}
+		return messages;
+	}
+	
+	/**
+	 * Get the total size of the messages waiting to be sent to all clients.
+	 * 
+	 * @return <code>long</code>, the number of bytes
+	 * @author Andrzej Brynczka
+	 */
+	public long getQueuedBytes(){
+		long bytes = 0;
+		for( UserHandler handler : m_handlers ){
+			bytes += handler.getQueuedBytes();
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Get the number of file transfers between users that are sending data.
+	 * 
+	 * @return <code>int</code>, the number of transfers
+	 * @author Andrzej Brynczka
+	 */
+	public int getActiveTransfers(){
+		//every transfer is counted by the handler of the user sending it
+		int transfers = 0;
+		for( UserHandler handler : m_handlers ){
+			transfers += handler.getActiveTransfers();
+		}
+		return transfers;
+	}
+	
 	//********************************************************
 	//Database functions
 	//********************************************************
 	/**
-	 * Check if the provided IP is banned
+	 * Check if the provided IP is banned, directly or as part of a banned
+	 * 	range. Answered from memory, without accessing the database.
 	 * 
 	 * @param a_IP <code>InetAddress</code>, the IP to check
 	 * @return <code>boolean</code> - <code>true</code> if the IP is banned
 	 * 	<code>false</code> otherwise
-	 * @throws SQLException if a database access error occurs
 	 * @author Andrzej Brynczka
 	 */
-	public boolean isBanned(InetAddress a_IP) throws SQLException{
-		return m_dataBase.isBanned( a_IP.getHostAddress() );
+	public boolean isBanned(InetAddress a_IP){
+		return m_punishments.isBanned( a_IP );
 	}
 	
 	/**
-	 * Check if the given IP is muted
+	 * Check if the given IP is muted, directly or as part of a muted
+	 * 	range. Answered from memory, without accessing the database.
 	 * 
 	 * @param a_IP <code>InetAddress</code>, the IP to check
 	 * @return <code>boolean</code> - <code>true</code> if the IP is muted
 	 * 	<code>false</code> otherwise
-	 * @throws SQLException if a database access error occurs
 	 * @author Andrzej Brynczka
 	 */
-	public boolean isMuted(InetAddress a_IP) throws SQLException{
-		return m_dataBase.isMuted( a_IP.getHostAddress() );
+	public boolean isMuted(InetAddress a_IP){
+		return m_punishments.isMuted( a_IP );
 	}
 	
 	/**
 	 * Set the given IP's ban status in the database and kick the user
-	 * if the ban is set.
+	 * if the ban is set. The IP may also be a range written as
+	 * 	address/prefix length, in which case every user connected from 
+	 * 	within the range is kicked. The change is relayed to the other 
+	 * 	nodes of the server's cluster.
 	 * 
 	 * @param a_targetName <code>String</code>, the target's name
-	 * @param a_IP <code>String</code>, the IP to modify
+	 * @param a_IP <code>String</code>, the IP or range to modify
 	 * @param a_direction <code>Direction</code>, the desired change to status(
 	 * 	<code>SET_PUNISHMENT</code> to ban, <code>REMOVE_PUNISHMENT</code> 
 	 * 	to un-ban)
@@ -151,23 +538,32 @@ public class Server {
 			//save the user's ban status in the database, ensuring that
 			//it will not be allowed to login in the future
 			m_dataBase.setBanned( a_IP, a_targetName ); 
+			m_punishments.set( Punishment.BAN, a_IP, true );
 			
-			//kick the user from the server
+			//kick the user, and anyone else within a banned range
 			kickUser( a_targetName );
+			applyPunishments();
 		}
 		else{ 
 			//remove the user's ban status from the server, allowing future
 			//logins
 			m_dataBase.removeBan( a_IP ); 
+			m_punishments.set( Punishment.BAN, a_IP, false );
 		}
+		
+		m_dispatcher.relayPunishment( Punishment.BAN, 
+				a_direction == Direction.SET_PUNISHMENT, a_targetName, a_IP );
 	}
 	
 	/**
 	 * Set the given IP's mute status in the database and modify the user's 
-	 * current mute status on the server.
+	 * current mute status on the server. The IP may also be a range written
+	 * 	as address/prefix length, in which case every user connected from 
+	 * 	within the range has their mute status updated. The change is 
+	 * 	relayed to the other nodes of the server's cluster.
 	 * 
 	 * @param a_targetName <code>String</code>, the target's name
-	 * @param a_IP <code>String</code>, the IP to modify
+	 * @param a_IP <code>String</code>, the IP or range to modify
 	 * @param a_direction <code>Direction</code>, the desired change to status(
 	 * 	<code>SET_PUNISHMENT</code> to mute, <code>REMOVE_PUNISHMENT</code> 
 	 * 	to un-mute)
@@ -180,19 +576,74 @@ public class Server {
 		if( a_direction == Direction.SET_PUNISHMENT ){	
 			//save the user's mute status for the future
 			m_dataBase.setMuted( a_IP, a_targetName ); 
+			m_punishments.set( Punishment.MUTE, a_IP, true );
 			
 			//set the user's current mute status on the server
 			muteUser( a_targetName, true );
+			applyPunishments();
 		}
 		else{ 
 			//remove the user's mute status, ensuring future logins don't
 			//enable a mute
 			m_dataBase.removeMute( a_IP ); 
+			m_punishments.set( Punishment.MUTE, a_IP, false );
 			
 			//remove the user's current mute status on the server
 			muteUser( a_targetName, false );
-			
+			applyPunishments();
 		}
+		
+		m_dispatcher.relayPunishment( Punishment.MUTE, 
+				a_direction == Direction.SET_PUNISHMENT, a_targetName, a_IP );
+	}
+	
+	/**
+	 * Save and enact a ban or mute set or removed on another node of the 
+	 * 	server's cluster, without relaying it any further. The database 
+	 * 	is only written if it does not already hold the change, as nodes 
+	 * 	may share it.
+	 * 
+	 * @param a_punishment <code>Punishment</code>, <code>BAN</code> or
+	 * 	<code>MUTE</code>
+	 * @param a_set <code>boolean</code>, true if it was set, false if it
+	 * 	was removed
+	 * @param a_targetName <code>String</code>, the target's name
+	 * @param a_IP <code>String</code>, the IP or range punished
+	 * @author Andrzej Brynczka
+	 */
+	void applyPeerPunishment(Punishment a_punishment, boolean a_set,
+			String a_targetName, String a_IP){
+		boolean ban = a_punishment == Punishment.BAN;
+		try {
+			boolean saved = ban ? m_dataBase.isBanned( a_IP ) 
+					: m_dataBase.isMuted( a_IP );
+			if( a_set && !saved ){
+				if( ban ){
+					m_dataBase.setBanned( a_IP, a_targetName );
+				}
+				else{
+					m_dataBase.setMuted( a_IP, a_targetName );
+				}
+			}
+			else if( !a_set && saved ){
+				if( ban ){
+					m_dataBase.removeBan( a_IP );
+				}
+				else{
+					m_dataBase.removeMute( a_IP );
+				}
+			}
+		} catch (SQLException e) {
+			//still enact it for as long as the server runs
+			System.out.println("ERROR: Saving punishment from another node.");
+			System.out.println( e.getMessage() );
+		}
+		
+		m_punishments.set( a_punishment, a_IP, a_set );
+		if( !ban ){
+			muteUser( a_targetName, a_set );
+		}
+		applyPunishments();
 	}
 	
 	/**
@@ -209,6 +660,40 @@ public class Server {
 		return m_dataBase.getAllPunished();
 	}
 	
+	/**
+	 * Run a task using the database on the server's database thread, after
+	 * 	those already given to it. Its results are to be queued to the 
+	 * 	users it answers, as the thread never writes to them directly.
+	 * 
+	 * @param a_task <code>Runnable</code>, the task
+	 * @author Andrzej Brynczka
+	 */
+	void runDatabaseTask(Runnable a_task){
+		try {
+			m_databaseTasks.execute( a_task );
+		} catch (RejectedExecutionException e) {
+			//the server is shutting down, its users no longer answered
+			System.out.println("Server shutting down, database task dropped.");
+		}
+	}
+	
+	/**
+	 * Create the single daemon thread executing the database tasks.
+	 * 
+	 * @return <code>ExecutorService</code>, the executor
+	 * @author Andrzej Brynczka
+	 */
+	private static ExecutorService newDatabaseExecutor(){
+		return Executors.newSingleThreadExecutor( new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable a_task){
+				Thread thread = new Thread( a_task, "DatabaseTasks" );
+				thread.setDaemon( true );
+				return thread;
+			}
+		});
+	}
+	
 	//********************************************************
 	//Utility Functions
 	//********************************************************
@@ -234,39 +719,106 @@ public class Server {
 	}
 	
 	/**
-	 * Kick the given user from the server, terminating their connection.
+	 * Bring the connected users in line with the punishment index after a
+	 * 	change, kicking those now banned and setting every user's mute status
+	 * 	from their IP, so that range punishments reach everyone they cover.
+	 * @author Andrzej Brynczka
+	 */
+	private void applyPunishments(){
+		for( String name : m_dispatcher.getUserCollection() ){
+			UserHandler handler = m_dispatcher.getUserHandler( name );
+			if( handler == null || handler.getUser() == null ){
+				continue;
+			}
+			
+			InetAddress address = handler.getUser().getIP();
+			if( m_punishments.isBanned( address ) ){
+				kickLocalUser( name, KICK_MESSAGE );
+			}
+			else{
+				handler.getUser().setMuted( m_punishments.isMuted( address ) );
+			}
+		}
+	}
+	
+	/**
+	 * Kick the given user from the server, terminating their connection,
+	 * or from the node of the server's cluster it is logged into.
 	 * @param a_targetName String, the target user's name
 	 * @author Andrzej Brynczka
 	 */
 	protected void kickUser(String a_targetName){
+		if( !kickLocalUser( a_targetName, KICK_MESSAGE ) ){
+			m_dispatcher.relayKick( a_targetName );
+		}
+	}
+	
+	/**
+	 * Kick the given user from this server, terminating their connection.
+	 * @param a_targetName String, the target user's name
+	 * @param a_message String, the reason given to the user
+	 * @return <code>boolean</code> - <code>true</code> if kicked,
+	 * 	<code>false</code> if the user is not connected to this server
+	 * @author Andrzej Brynczka
+	 */
+	boolean kickLocalUser(String a_targetName, String a_message){
 		UserHandler targetHandler = m_dispatcher.getUserHandler( a_targetName );
 		
 		if( targetHandler == null ){
-			//user already disconnected
-			return;
+			//user already disconnected, or on another node
+			return false;
 		}
 		
 		//kick the target and remove it from the dispatcher's records
 		ServerMessage servMsg = new ServerMessage(MessageHeader.SERVER_Kicked);
 		servMsg.setReceiverName( a_targetName );
-		servMsg.setMessage("You've been kicked by an admin!");
+		servMsg.setMessage( a_message );
 		
 		targetHandler.terminateConnection( servMsg );
+		return true;
 	}
 	
 	/**
-	 * Begin execution of the server.
+	 * Begin execution of the server. Returns once the server has been shut
+	 * 	down.
 	 * @throws IOException if the server cannot be started.
 	 * @author Andrzej Brynczka
 	 */
 	public void run() throws IOException{
-		ServerSocket listenSocket = new ServerSocket( m_data.getPort() );
 		m_dispatcher.start();
+		startMonitoring();
+		
+		if( m_data.getConnectionMode() == ServerData.ConnectionMode.NIO ){
+			runEventLoops();
+			return;
+		}
+		
+		m_handlerThreads = new HandlerThreadFactory( 
+				m_data.getConnectionMode() == ServerData.ConnectionMode.VIRTUAL );
+		if( m_handlerThreads.isVirtual() ){
+			System.out.println("Running user handlers on virtual threads.");
+		}
 		
-		while ( true ) {		
-			Socket socket = listenSocket.accept();
-			UserHandler userThread = new UserHandler(socket, m_dispatcher,this);
-			userThread.start();
+		ServerSocket listenSocket = new ServerSocket( m_data.getPort() );
+		m_listener = listenSocket;
+		
+		while ( !m_shuttingDown.get() ) {
+			Socket socket;
+			try {
+				socket = listenSocket.accept();
+			} catch (IOException e) {
+				if( m_shuttingDown.get() ){
+					//listening socket closed by the shut down
+					break;
+				}
+				throw e;
+			}
+			
+			socket.setTcpNoDelay( true );
+			UserHandler userHandler = new UserHandler(socket, m_dispatcher,this);
+			m_handlers.add( userHandler );
+			newHandlerThread( userHandler, "UserHandler-" 
+					+ socket.getInetAddress().getHostAddress() ).start();
 			System.out.println("Launched thread for new user with IP: " 
 					+ socket.getInetAddress());
 			
@@ -274,16 +826,170 @@ public class Server {
 	}
 	
 	/**
-	 * Signal the main server to stop accepting new connections and exit.
+	 * Register the server's metrics with JMX, and start serving them as 
+	 * 	text if a metrics port is set. The server runs on without them if 
+	 * 	either fails.
+	 * @author Andrzej Brynczka
+	 */
+	private void startMonitoring(){
+		m_monitor.register();
+		
+		if( m_data.getMetricsPort() == 0 ){
+			return;
+		}
+		
+		try {
+			MetricsEndpoint endpoint = 
+					new MetricsEndpoint( m_data.getMetricsPort(), m_monitor );
+			endpoint.start();
+			m_metricsEndpoint = endpoint;
+			System.out.println("Serving metrics on local port " 
+					+ m_data.getMetricsPort());
+		} catch (IOException e) {
+			System.out.println("Unable to serve metrics on port " 
+					+ m_data.getMetricsPort() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Accept connections as non-blocking channels and spread them among a
+	 * 	fixed set of <code>EventLoop</code> threads, rather than starting a 
+	 * 	thread for each user.
+	 * @throws IOException if the server cannot be started.
+	 * @author Andrzej Brynczka
+	 */
+	private void runEventLoops() throws IOException{
+		ServerSocketChannel listenChannel = ServerSocketChannel.open();
+		listenChannel.socket().bind( 
+				new InetSocketAddress( m_data.getPort() ) );
+		m_listener = listenChannel;
+		
+		//start the loops that will own the accepted channels
+		EventLoop[] loops = new EventLoop[ m_data.getEventLoops() ];
+		for( int i = 0; i < loops.length; i++ ){
+			loops[i] = new EventLoop( i );
+			loops[i].start();
+		}
+		m_eventLoops = loops;
+		System.out.println("Started " + loops.length + " event loops.");
+		
+		int nextLoop = 0;
+		while ( !m_shuttingDown.get() ) {
+			SocketChannel channel;
+			try {
+				channel = listenChannel.accept();
+			} catch (IOException e) {
+				if( m_shuttingDown.get() ){
+					//listening channel closed by the shut down
+					break;
+				}
+				throw e;
+			}
+			
+			channel.configureBlocking( false );
+			channel.socket().setTcpNoDelay( true );
+			
+			//hand the connections out to the loops in turn
+			EventLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+			
+			ChannelConnection connection = new ChannelConnection(channel, loop,
+					m_data.getMaxBatchMessages(), m_data.getMaxBatchBytes(), 
+					m_metrics);
+			m_handlers.add( new UserHandler( connection, m_dispatcher, this ) );
+			loop.register( connection );
+			System.out.println("Registered channel for new user with IP: " 
+					+ channel.socket().getInetAddress() + " on " 
+					+ loop.getName());
+		}
+	}
+	
+	/**
+	 * Create an unstarted thread to run part of a user handler, of the kind
+	 * 	chosen by the server's connection mode.
+	 * @param a_task <code>Runnable</code>, the task to run
+	 * @param a_name <code>String</code>, the thread's name
+	 * @return <code>Thread</code>, the new thread
+	 * @author Andrzej Brynczka
+	 */
+	Thread newHandlerThread(Runnable a_task, String a_name){
+		return m_handlerThreads.newThread( a_task, a_name );
+	}
+	
+	/**
+	 * Remove a handler whose connection has been terminated from the 
+	 * 	server's records.
+	 * @param a_handler <code>UserHandler</code>, the terminated handler
+	 * @author Andrzej Brynczka
+	 */
+	void handlerTerminated(UserHandler a_handler){
+		m_handlers.remove( a_handler );
+	}
+	
+	/**
+	 * Shut the server down: stop accepting new connections, end every 
+	 * 	user's connection after notifying the user, and stop the dispatcher 
+	 * 	and event loops. The server's <code>run()</code> then returns, 
+	 * 	letting the process exit once the remaining output is written.
+	 * 	Only the first call has any effect.
+	 * @param a_reason <code>String</code>, the reason for the shut down, 
+	 * 	logged and sent to the users, or <code>null</code>
 	 * @author Andrzej Brynczka
 	 */
 	public void shutDownServer(String a_reason){
+		if( !m_shuttingDown.compareAndSet( false, true ) ){
+			//already shutting down
+			return;
+		}
+		
 		if( a_reason != null ){
 			System.out.println( a_reason );
 		}
-		System.exit(1);
 		
+		//stop accepting new connections
+		Closeable listener = m_listener;
+		if( listener != null ){
+			try {
+				listener.close();
+			} catch (IOException e) {
+				//stopping in any case
+			}
+		}
+		
+		//end every connection, logged in or not
+		for( UserHandler handler : new ArrayList<UserHandler>( m_handlers ) ){
+			ServerMessage servMsg = 
+					new ServerMessage(MessageHeader.SERVER_Error);
+			servMsg.setMessage( "Server shutting down." 
+					+ (a_reason != null ? " " + a_reason : "") );
+			
+			handler.terminateConnection( servMsg );
+		}
+		
+		//the loops stop once their channels have written the final messages
+		for( EventLoop loop : m_eventLoops ){
+			loop.shutDown();
+		}
+		
+		m_dispatcher.shutDown();
+		
+		//let the database work already asked for finish before closing it
+		m_databaseTasks.shutdown();
+		try {
+			m_databaseTasks.awaitTermination( 5, TimeUnit.SECONDS );
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		m_dataBase.close();
+		
+		MetricsEndpoint endpoint = m_metricsEndpoint;
+		if( endpoint != null ){
+			endpoint.shutDown();
+		}
+		m_monitor.unregister();
+		System.out.println( m_metrics );
 	}
+	
 	/**
 	 * Initialize the server with parameters provided within a given .ini file.
 	 * 
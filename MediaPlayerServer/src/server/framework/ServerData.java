@@ -5,7 +5,10 @@ import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 
 /**
  * Handles server variables, and the creation and loading of the
@@ -46,7 +49,225 @@ public class ServerData {
 		/**
 		 * Int. Any number from 1025 to 65535.
 		 */
-		PORT;
+		PORT,
+		
+		/**
+		 * String. The way client connections are serviced, one of the
+		 * <code>ConnectionMode</code> names. Defaults to <code>THREAD</code>.
+		 */
+		CONNECTIONMODE,
+		
+		/**
+		 * Int. Number of selector threads used in the <code>NIO</code>
+		 * connection mode. Any value below 1 uses the number of 
+		 * available processors.
+		 */
+		EVENTLOOPS,
+		
+		/**
+		 * Int. Number of worker threads used by the message dispatcher. Any
+		 * value below 1 uses the number of available processors.
+		 */
+		DISPATCHERS,
+		
+		/**
+		 * Int. Largest number of queued messages written to a client in a 
+		 * single write. Defaults to 64.
+		 */
+		MAXBATCHMESSAGES,
+		
+		/**
+		 * Int. Largest number of bytes collected into a single write to a
+		 * client. Defaults to 65536. A single larger message is written on
+		 * its own.
+		 */
+		MAXBATCHBYTES,
+		
+		/**
+		 * Int. Largest number of messages that may wait to be sent to a 
+		 * single client. Defaults to 1024.
+		 */
+		MAXQUEUEDMESSAGES,
+		
+		/**
+		 * Int. Largest number of bytes that may wait to be sent to a single
+		 * client. Defaults to 4194304.
+		 */
+		MAXQUEUEDBYTES,
+		
+		/**
+		 * String. What to do when a client's queue of waiting messages is 
+		 * full, one of the <code>SlowConsumerPolicy</code> names. Defaults
+		 * to <code>PAUSESENDERS</code>.
+		 */
+		SLOWCONSUMERPOLICY,
+		
+		/**
+		 * Int. Local port on which the server's metrics are served as plain
+		 * text, reachable only from the server's own machine. Defaults to 0,
+		 * serving no metrics; they can still be read over JMX.
+		 */
+		METRICSPORT,
+		
+		/**
+		 * Int. Size, in bytes, from which chat messages and lists sent to
+		 * V2 clients that accept compression are compressed. Defaults to 
+		 * 128. 0 turns compression off.
+		 */
+		COMPRESSTHRESHOLD,
+		
+		/**
+		 * Int. Most usernames sent in a single page of the user list to 
+		 * clients that fetch it in pages. Defaults to 500.
+		 */
+		USERLISTPAGESIZE,
+		
+		/**
+		 * Int. Milliseconds for which users logging in and out are collected
+		 * before being announced to the other users together. Defaults to 
+		 * 200. 0 announces every login and logout on its own.
+		 */
+		PRESENCEWINDOW,
+		
+		/**
+		 * Boolean. True if V2 clients asking for it may stream files to one
+		 * another over a connection of their own, brokered by the server,
+		 * which passes the receiver's address to the sender. Defaults to 
+		 * true; false relays every file through the server.
+		 */
+		DIRECTTRANSFERS,
+		
+		/**
+		 * String. Maximum of <code>MAX_STRING_SIZE</code> characters. Name 
+		 * of this server among the nodes of a cluster, which must differ 
+		 * between the nodes. Defaults to the server's name.
+		 */
+		NODENAME,
+		
+		/**
+		 * Int. 1 to <code>MAX_NODE_ID</code>. Number of this server among
+		 * the nodes of a cluster, which must differ between the nodes, and 
+		 * from which the node's range of file transfer IDs is taken. 
+		 * Required for the server to join a cluster.
+		 */
+		NODEID,
+		
+		/**
+		 * Int. Port on which other nodes of the cluster connect to this 
+		 * one. Defaults to 0, running as a single server outside of any
+		 * cluster.
+		 */
+		CLUSTERPORT,
+		
+		/**
+		 * String. Comma separated host:port cluster addresses of the other 
+		 * nodes of the cluster. This node connects to each of them, and 
+		 * only accepts links from their hosts, so every node must list the
+		 * others. Defaults to none.
+		 */
+		PEERS,
+		
+		/**
+		 * String. Local address on which the cluster port is opened. 
+		 * Defaults to <code>DEFAULT_CLUSTER_ADDRESS</code>, the loopback
+		 * address, so nodes on other hosts need it set.
+		 */
+		CLUSTERADDRESS,
+		
+		/**
+		 * String. Secret shared by the nodes of the cluster, which each 
+		 * node proves it knows before a link is used. Required for the 
+		 * server to join a cluster.
+		 */
+		CLUSTERSECRET;
+	}
+	
+	/**
+	 * The ways in which the server can service its client connections.
+	 */
+	enum ConnectionMode{
+		/**
+		 * Every client's <code>UserHandler</code> is given its own reader
+		 * and writer threads that block on the client's socket.
+		 */
+		THREAD,
+		
+		/**
+		 * Like <code>THREAD</code>, but the handlers are run on virtual 
+		 * threads, letting a large number of mostly idle users be served 
+		 * without a platform thread for each. Falls back to 
+		 * <code>THREAD</code> on JVMs without virtual threads.
+		 */
+		VIRTUAL,
+		
+		/**
+		 * All clients share a small number of <code>EventLoop</code> threads
+		 * that multiplex the non-blocking client channels with selectors.
+		 */
+		NIO;
+		
+		/**
+		 * Get the connection mode for the given initialization value.
+		 * @param a_value <code>String</code>, the value read from the .ini file
+		 * @return <code>ConnectionMode</code> - the matching mode, or 
+		 * 	<code>THREAD</code> if the value is not a known mode
+		 */
+		static ConnectionMode fromString(String a_value){
+			if( a_value == null ){
+				return THREAD;
+			}
+			
+			for( ConnectionMode mode : values() ){
+				if( mode.toString().equalsIgnoreCase( a_value.trim() ) ){
+					return mode;
+				}
+			}
+			return THREAD;
+		}
+	}
+	
+	/**
+	 * The ways in which the server can treat a client that does not read its
+	 * messages as fast as they are sent to it, once the client's queue of
+	 * waiting messages is full.
+	 */
+	enum SlowConsumerPolicy{
+		/**
+		 * The oldest waiting chat messages are dropped to make room. The 
+		 * client is disconnected if there is no chat left to drop.
+		 */
+		DROPCHAT,
+		
+		/**
+		 * As <code>DROPCHAT</code>, but users sending file data to the 
+		 * client are paused until its queue has room again, rather than 
+		 * the client being disconnected.
+		 */
+		PAUSESENDERS,
+		
+		/**
+		 * The client is disconnected with an error message.
+		 */
+		DISCONNECT;
+		
+		/**
+		 * Get the policy for the given initialization value.
+		 * @param a_value <code>String</code>, the value read from the .ini file
+		 * @return <code>SlowConsumerPolicy</code> - the matching policy, or 
+		 * 	<code>PAUSESENDERS</code> if the value is not a known policy
+		 */
+		static SlowConsumerPolicy fromString(String a_value){
+			if( a_value == null ){
+				return PAUSESENDERS;
+			}
+			
+			for( SlowConsumerPolicy policy : values() ){
+				if( policy.toString().equalsIgnoreCase( a_value.trim() ) ){
+					return policy;
+				}
+			}
+			return PAUSESENDERS;
+		}
 	}
 	
 	/**
@@ -60,11 +281,75 @@ public class ServerData {
 	 */
 	public final static int DEFAULT_PORT = 5376;
 	
+	/**
+	 * Default largest number of messages written to a client at once.
+	 */
+	public final static int DEFAULT_MAX_BATCH_MESSAGES = 64;
+	
+	/**
+	 * Default largest number of bytes written to a client at once.
+	 */
+	public final static int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+	
+	/**
+	 * Default largest number of messages waiting to be sent to a client.
+	 */
+	public final static int DEFAULT_MAX_QUEUED_MESSAGES = 1024;
+	
+	/**
+	 * Default largest number of bytes waiting to be sent to a client.
+	 */
+	public final static int DEFAULT_MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+	
+	/**
+	 * Default size from which frames sent to clients are compressed.
+	 */
+	public final static int DEFAULT_COMPRESS_THRESHOLD = 128;
+	
+	/**
+	 * Default largest number of usernames in a page of the user list.
+	 */
+	public final static int DEFAULT_USER_LIST_PAGE_SIZE = 500;
+	
+	/**
+	 * Default milliseconds for which logins and logouts are collected.
+	 */
+	public final static int DEFAULT_PRESENCE_WINDOW = 200;
+	
+	/**
+	 * Default local address on which the cluster port is opened.
+	 */
+	public final static String DEFAULT_CLUSTER_ADDRESS = "127.0.0.1";
+	
+	/**
+	 * Largest number of a node of a cluster.
+	 */
+	public final static int MAX_NODE_ID = 127;
+	
 	private String m_serverName;
 	private String m_serverPass;
 	private String m_adminPass;
 	private boolean m_multiLogin;
 	private int m_port;
+	private ConnectionMode m_connectionMode;
+	private int m_eventLoops;
+	private int m_dispatchers;
+	private int m_maxBatchMessages;
+	private int m_maxBatchBytes;
+	private int m_maxQueuedMessages;
+	private int m_maxQueuedBytes;
+	private SlowConsumerPolicy m_slowConsumerPolicy;
+	private int m_metricsPort;
+	private int m_compressThreshold;
+	private int m_userListPageSize;
+	private int m_presenceWindow;
+	private boolean m_directTransfers;
+	private String m_nodeName;
+	private int m_nodeID;
+	private int m_clusterPort;
+	private List<InetSocketAddress> m_peers;
+	private String m_clusterAddress;
+	private String m_clusterSecret;
 	
 	/**
 	 * An object to hold server initialization variables.
@@ -90,6 +375,26 @@ public class ServerData {
 		else{ m_port = a_port; }
 		
 		m_multiLogin = a_multiLogin;
+		
+		m_connectionMode = ConnectionMode.THREAD;
+		m_eventLoops = 0;
+		m_dispatchers = 0;
+		m_maxBatchMessages = DEFAULT_MAX_BATCH_MESSAGES;
+		m_maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+		m_maxQueuedMessages = DEFAULT_MAX_QUEUED_MESSAGES;
+		m_maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+		m_slowConsumerPolicy = SlowConsumerPolicy.PAUSESENDERS;
+		m_metricsPort = 0;
+		m_compressThreshold = DEFAULT_COMPRESS_THRESHOLD;
+		m_userListPageSize = DEFAULT_USER_LIST_PAGE_SIZE;
+		m_presenceWindow = DEFAULT_PRESENCE_WINDOW;
+		m_directTransfers = true;
+		m_nodeName = m_serverName;
+		m_nodeID = 0;
+		m_clusterPort = 0;
+		m_peers = new ArrayList<InetSocketAddress>();
+		m_clusterAddress = DEFAULT_CLUSTER_ADDRESS;
+		m_clusterSecret = "";
 	}
 	
 	/**
@@ -144,6 +449,438 @@ public class ServerData {
 		return m_port;
 	}
 	
+	/**
+	 * Get the way in which client connections are serviced.
+	 * @return <code>ConnectionMode</code>, the connection mode
+	 * @author Andrzej Brynczka
+	 */
+	public ConnectionMode getConnectionMode(){
+		return m_connectionMode;
+	}
+	
+	/**
+	 * Get the number of selector threads to use in the <code>NIO</code>
+	 * connection mode.
+	 * @return <code>int</code>, the number of event loops(at least 1)
+	 * @author Andrzej Brynczka
+	 */
+	public int getEventLoops(){
+		if( m_eventLoops < 1 ){
+			return Runtime.getRuntime().availableProcessors();
+		}
+		return m_eventLoops;
+	}
+	
+	/**
+	 * Get the number of worker threads used by the message dispatcher.
+	 * @return <code>int</code>, the number of dispatcher workers(at least 1)
+	 * @author Andrzej Brynczka
+	 */
+	public int getDispatchers(){
+		if( m_dispatchers < 1 ){
+			return Runtime.getRuntime().availableProcessors();
+		}
+		return m_dispatchers;
+	}
+	
+	/**
+	 * Get the largest number of queued messages written to a client in a
+	 * single write.
+	 * @return <code>int</code>, the number of messages
+	 * @author Andrzej Brynczka
+	 */
+	public int getMaxBatchMessages(){
+		return m_maxBatchMessages;
+	}
+	
+	/**
+	 * Get the largest number of bytes collected into a single write to a 
+	 * client.
+	 * @return <code>int</code>, the number of bytes
+	 * @author Andrzej Brynczka
+	 */
+	public int getMaxBatchBytes(){
+		return m_maxBatchBytes;
+	}
+	
+	/**
+	 * Get the largest number of messages that may wait to be sent to a 
+	 * single client.
+	 * @return <code>int</code>, the number of messages
+	 * @author Andrzej Brynczka
+	 */
+	public int getMaxQueuedMessages(){
+		return m_maxQueuedMessages;
+	}
+	
+	/**
+	 * Get the largest number of bytes that may wait to be sent to a single
+	 * client.
+	 * @return <code>int</code>, the number of bytes
+	 * @author Andrzej Brynczka
+	 */
+	public int getMaxQueuedBytes(){
+		return m_maxQueuedBytes;
+	}
+	
+	/**
+	 * Get the way in which clients with a full queue are treated.
+	 * @return <code>SlowConsumerPolicy</code>, the policy
+	 * @author Andrzej Brynczka
+	 */
+	public SlowConsumerPolicy getSlowConsumerPolicy(){
+		return m_slowConsumerPolicy;
+	}
+	
+	/**
+	 * Get the local port on which the server's metrics are served.
+	 * @return <code>int</code>, the port, or 0 if the metrics are not served
+	 * @author Andrzej Brynczka
+	 */
+	public int getMetricsPort(){
+		return m_metricsPort;
+	}
+	
+	/**
+	 * Get the size from which frames sent to clients are compressed.
+	 * @return <code>int</code>, the size in bytes, or 0 if frames are not
+	 * 	compressed
+	 * @author Andrzej Brynczka
+	 */
+	public int getCompressThreshold(){
+		return m_compressThreshold;
+	}
+	
+	/**
+	 * Get the largest number of usernames in a page of the user list.
+	 * @return <code>int</code>, the number of usernames
+	 * @author Andrzej Brynczka
+	 */
+	public int getUserListPageSize(){
+		return m_userListPageSize;
+	}
+	
+	/**
+	 * Get the milliseconds for which logins and logouts are collected 
+	 * before being announced.
+	 * @return <code>int</code>, the milliseconds, or 0 if each is announced
+	 * 	on its own
+	 * @author Andrzej Brynczka
+	 */
+	public int getPresenceWindow(){
+		return m_presenceWindow;
+	}
+	
+	/**
+	 * Get whether clients may stream files to one another directly, 
+	 * 	brokered by the server.
+	 * @return <code>boolean</code>, <code>true</code> if direct transfers 
+	 * 	are brokered, <code>false</code> if every file is relayed
+	 * @author Andrzej Brynczka
+	 */
+	public boolean allowDirectTransfers(){
+		return m_directTransfers;
+	}
+	
+	/**
+	 * Get the name of this server among the nodes of its cluster.
+	 * @return <code>String</code>, the node's name
+	 * @author Andrzej Brynczka
+	 */
+	public String getNodeName(){
+		return m_nodeName;
+	}
+	
+	/**
+	 * Get the number of this server among the nodes of its cluster.
+	 * @return <code>int</code>, the node's number, or 0 if none is set
+	 * @author Andrzej Brynczka
+	 */
+	public int getNodeID(){
+		return m_nodeID;
+	}
+	
+	/**
+	 * Get the port on which the other nodes of the cluster connect.
+	 * @return <code>int</code>, the port, or 0 if the server is not part of
+	 * 	a cluster
+	 * @author Andrzej Brynczka
+	 */
+	public int getClusterPort(){
+		return m_clusterPort;
+	}
+	
+	/**
+	 * Get the cluster addresses of the nodes this node connects to.
+	 * @return <code>List&lt;InetSocketAddress&gt;</code>, the addresses, 
+	 * 	empty if there are none
+	 * @author Andrzej Brynczka
+	 */
+	public List<InetSocketAddress> getPeers(){
+		return m_peers;
+	}
+	
+	/**
+	 * Get the local address on which the cluster port is opened.
+	 * @return <code>String</code>, the address
+	 * @author Andrzej Brynczka
+	 */
+	public String getClusterAddress(){
+		return m_clusterAddress;
+	}
+	
+	/**
+	 * Get the secret shared by the nodes of the cluster.
+	 * @return <code>String</code>, the secret, empty if none is set
+	 * @author Andrzej Brynczka
+	 */
+	public String getClusterSecret(){
+		return m_clusterSecret;
+	}
+	
+	/**
+	 * Set the way in which client connections are serviced.
+	 * @param a_mode <code>ConnectionMode</code>, the mode to set. 
+	 * 	<code>null</code> is treated as <code>THREAD</code>
+	 * @author Andrzej Brynczka
+	 */
+	void setConnectionMode(ConnectionMode a_mode){
+		if( a_mode == null ){ m_connectionMode = ConnectionMode.THREAD; }
+		else{ m_connectionMode = a_mode; }
+	}
+	
+	/**
+	 * Set the number of selector threads to use in the <code>NIO</code>
+	 * connection mode.
+	 * @param a_eventLoops <code>int</code>, the number of threads. Values
+	 * 	below 1 use the number of available processors
+	 * @author Andrzej Brynczka
+	 */
+	void setEventLoops(int a_eventLoops){
+		m_eventLoops = a_eventLoops;
+	}
+	
+	/**
+	 * Set the number of worker threads used by the message dispatcher.
+	 * @param a_dispatchers <code>int</code>, the number of threads. Values
+	 * 	below 1 use the number of available processors
+	 * @author Andrzej Brynczka
+	 */
+	void setDispatchers(int a_dispatchers){
+		m_dispatchers = a_dispatchers;
+	}
+	
+	/**
+	 * Set the largest number of queued messages written to a client in a
+	 * single write.
+	 * @param a_messages <code>int</code>, the number of messages. Values
+	 * 	below 1 use the default
+	 * @author Andrzej Brynczka
+	 */
+	void setMaxBatchMessages(int a_messages){
+		if( a_messages < 1 ){ m_maxBatchMessages = DEFAULT_MAX_BATCH_MESSAGES; }
+		else{ m_maxBatchMessages = a_messages; }
+	}
+	
+	/**
+	 * Set the largest number of bytes collected into a single write to a 
+	 * client.
+	 * @param a_bytes <code>int</code>, the number of bytes. Values below 1
+	 * 	use the default
+	 * @author Andrzej Brynczka
+	 */
+	void setMaxBatchBytes(int a_bytes){
+		if( a_bytes < 1 ){ m_maxBatchBytes = DEFAULT_MAX_BATCH_BYTES; }
+		else{ m_maxBatchBytes = a_bytes; }
+	}
+	
+	/**
+	 * Set the largest number of messages that may wait to be sent to a 
+	 * single client.
+	 * @param a_messages <code>int</code>, the number of messages. Values
+	 * 	below 1 use the default
+	 * @author Andrzej Brynczka
+	 */
+	void setMaxQueuedMessages(int a_messages){
+		if( a_messages < 1 ){ m_maxQueuedMessages = DEFAULT_MAX_QUEUED_MESSAGES; }
+		else{ m_maxQueuedMessages = a_messages; }
+	}
+	
+	/**
+	 * Set the largest number of bytes that may wait to be sent to a single
+	 * client.
+	 * @param a_bytes <code>int</code>, the number of bytes. Values below 1
+	 * 	use the default
+	 * @author Andrzej Brynczka
+	 */
+	void setMaxQueuedBytes(int a_bytes){
+		if( a_bytes < 1 ){ m_maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES; }
+		else{ m_maxQueuedBytes = a_bytes; }
+	}
+	
+	/**
+	 * Set the way in which clients with a full queue are treated.
+	 * @param a_policy <code>SlowConsumerPolicy</code>, the policy to set.
+	 * 	<code>null</code> is treated as <code>PAUSESENDERS</code>
+	 * @author Andrzej Brynczka
+	 */
+	void setSlowConsumerPolicy(SlowConsumerPolicy a_policy){
+		if( a_policy == null ){ 
+			m_slowConsumerPolicy = SlowConsumerPolicy.PAUSESENDERS;
+		}
+		else{ m_slowConsumerPolicy = a_policy; }
+	}
+	
+	/**
+	 * Set the local port on which the server's metrics are served.
+	 * @param a_port <code>int</code>, the port. Values outside of the valid
+	 * 	port range serve no metrics
+	 * @author Andrzej Brynczka
+	 */
+	void setMetricsPort(int a_port){
+		if( a_port < 1 || a_port > 65535 ){ m_metricsPort = 0; }
+		else{ m_metricsPort = a_port; }
+	}
+	
+	/**
+	 * Set the size from which frames sent to clients are compressed.
+	 * @param a_bytes <code>int</code>, the size. 0 compresses no frames,
+	 * 	while negative values set the default
+	 * @author Andrzej Brynczka
+	 */
+	void setCompressThreshold(int a_bytes){
+		if( a_bytes < 0 ){ m_compressThreshold = DEFAULT_COMPRESS_THRESHOLD; }
+		else{ m_compressThreshold = a_bytes; }
+	}
+	
+	/**
+	 * Set the largest number of usernames in a page of the user list.
+	 * @param a_size <code>int</code>, the number of usernames. Values 
+	 * 	below 1 set the default
+	 * @author Andrzej Brynczka
+	 */
+	void setUserListPageSize(int a_size){
+		if( a_size < 1 ){ m_userListPageSize = DEFAULT_USER_LIST_PAGE_SIZE; }
+		else{ m_userListPageSize = a_size; }
+	}
+	
+	/**
+	 * Set the milliseconds for which logins and logouts are collected 
+	 * before being announced.
+	 * @param a_millis <code>int</code>, the milliseconds. 0 announces each
+	 * 	on its own, while negative values set the default
+	 * @author Andrzej Brynczka
+	 */
+	void setPresenceWindow(int a_millis){
+		if( a_millis < 0 ){ m_presenceWindow = DEFAULT_PRESENCE_WINDOW; }
+		else{ m_presenceWindow = a_millis; }
+	}
+	
+	/**
+	 * Set whether clients may stream files to one another directly, 
+	 * 	brokered by the server.
+	 * @param a_allow <code>boolean</code>, <code>true</code> to broker 
+	 * 	direct transfers, <code>false</code> to relay every file
+	 * @author Andrzej Brynczka
+	 */
+	void setDirectTransfers(boolean a_allow){
+		m_directTransfers = a_allow;
+	}
+	
+	/**
+	 * Set the name of this server among the nodes of its cluster.
+	 * @param a_name <code>String</code>, the name. <code>null</code> or an
+	 * 	empty name sets the server's name
+	 * @author Andrzej Brynczka
+	 */
+	void setNodeName(String a_name){
+		if( a_name == null || a_name.isEmpty() ){ m_nodeName = m_serverName; }
+		else if( a_name.length() > MAX_NAME_SIZE ){ 
+			m_nodeName = a_name.substring(0, MAX_NAME_SIZE);
+		}
+		else{ m_nodeName = a_name; }
+	}
+	
+	/**
+	 * Set the number of this server among the nodes of its cluster.
+	 * @param a_nodeID <code>int</code>, the number. Any value outside of
+	 * 	1 to <code>MAX_NODE_ID</code> sets none
+	 * @author Andrzej Brynczka
+	 */
+	void setNodeID(int a_nodeID){
+		if( a_nodeID > MAX_NODE_ID || a_nodeID < 1 ){ m_nodeID = 0; }
+		else{ m_nodeID = a_nodeID; }
+	}
+	
+	/**
+	 * Set the port on which the other nodes of the cluster connect.
+	 * @param a_port <code>int</code>, the port. 0, or any value outside of
+	 * 	1025 to 65535, keeps the server out of any cluster
+	 * @author Andrzej Brynczka
+	 */
+	void setClusterPort(int a_port){
+		if( a_port > 65535 || a_port < 1025){ m_clusterPort = 0; }
+		else{ m_clusterPort = a_port; }
+	}
+	
+	/**
+	 * Set the cluster addresses of the nodes this node connects to.
+	 * @param a_peers <code>String</code>, comma separated host:port 
+	 * 	addresses. Invalid addresses are skipped, <code>null</code> sets 
+	 * 	none
+	 * @author Andrzej Brynczka
+	 */
+	void setPeers(String a_peers){
+		m_peers = new ArrayList<InetSocketAddress>();
+		if( a_peers == null ){
+			return;
+		}
+		
+		for( String peer : a_peers.split(",") ){
+			peer = peer.trim();
+			if( peer.isEmpty() ){
+				continue;
+			}
+			
+			int separator = peer.lastIndexOf(':');
+			try{
+				if( separator < 1 ){
+					throw new NumberFormatException();
+				}
+				int port = Integer.parseInt( peer.substring(separator + 1) );
+				m_peers.add( InetSocketAddress.createUnresolved( 
+						peer.substring(0, separator), port ) );
+			}
+			catch(IllegalArgumentException e){
+				System.out.println("Invalid peer address given: " + peer);
+			}
+		}
+	}
+	
+	/**
+	 * Set the local address on which the cluster port is opened.
+	 * @param a_address <code>String</code>, the address. <code>null</code>
+	 * 	or an empty address sets <code>DEFAULT_CLUSTER_ADDRESS</code>
+	 * @author Andrzej Brynczka
+	 */
+	void setClusterAddress(String a_address){
+		if( a_address == null || a_address.isEmpty() ){ 
+			m_clusterAddress = DEFAULT_CLUSTER_ADDRESS; 
+		}
+		else{ m_clusterAddress = a_address; }
+	}
+	
+	/**
+	 * Set the secret shared by the nodes of the cluster.
+	 * @param a_secret <code>String</code>, the secret. <code>null</code> 
+	 * 	sets none
+	 * @author Andrzej Brynczka
+	 */
+	void setClusterSecret(String a_secret){
+		if( a_secret == null ){ m_clusterSecret = ""; }
+		else{ m_clusterSecret = a_secret; }
+	}
+	
 	/**
 	 * Create a <code>ServerData</code> object with its default initialization
 	 * parameters.
@@ -182,6 +919,73 @@ public class ServerData {
 		fileOut.write(Init_Vars.PORT.toString() + " = " + DEFAULT_PORT);
 		fileOut.newLine();
 		
+		fileOut.write(Init_Vars.CONNECTIONMODE.toString() + " = " 
+				+ ConnectionMode.THREAD.toString());
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.EVENTLOOPS.toString() + " = 0");
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.DISPATCHERS.toString() + " = 0");
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.MAXBATCHMESSAGES.toString() + " = " 
+				+ DEFAULT_MAX_BATCH_MESSAGES);
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.MAXBATCHBYTES.toString() + " = " 
+				+ DEFAULT_MAX_BATCH_BYTES);
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.MAXQUEUEDMESSAGES.toString() + " = " 
+				+ DEFAULT_MAX_QUEUED_MESSAGES);
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.MAXQUEUEDBYTES.toString() + " = " 
+				+ DEFAULT_MAX_QUEUED_BYTES);
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.SLOWCONSUMERPOLICY.toString() + " = " 
+				+ SlowConsumerPolicy.PAUSESENDERS.toString());
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.METRICSPORT.toString() + " = 0");
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.COMPRESSTHRESHOLD.toString() + " = " 
+				+ DEFAULT_COMPRESS_THRESHOLD);
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.USERLISTPAGESIZE.toString() + " = " 
+				+ DEFAULT_USER_LIST_PAGE_SIZE);
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.PRESENCEWINDOW.toString() + " = " 
+				+ DEFAULT_PRESENCE_WINDOW);
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.DIRECTTRANSFERS.toString() + " = true");
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.NODENAME.toString() + " = Server1");
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.NODEID.toString() + " = 1");
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.CLUSTERPORT.toString() + " = 0");
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.PEERS.toString() + " = ");
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.CLUSTERADDRESS.toString() + " = " 
+				+ DEFAULT_CLUSTER_ADDRESS);
+		fileOut.newLine();
+		
+		fileOut.write(Init_Vars.CLUSTERSECRET.toString() + " = ");
+		fileOut.newLine();
+		
 		fileOut.flush();
 		fileOut.close();
 	}
@@ -209,7 +1013,7 @@ public class ServerData {
 		
 		System.out.println("Loading " + a_fileName + ": ");
 		while( (line = fileIn.readLine()) != null ){
-			String[] lineInfo = line.split("=");
+			String[] lineInfo = line.split("=", 2);
 			String variable = lineInfo[0].trim().toUpperCase();
 			String value = "";
 			
@@ -217,7 +1021,14 @@ public class ServerData {
 				value = lineInfo[1].trim();
 			}
 			
-			System.out.println(variable + " = " + value);
+			//the cluster's secret is not shown
+			if( variable.equals( Init_Vars.CLUSTERSECRET.toString() ) 
+					&& !value.isEmpty() ){
+				System.out.println(variable + " = ********");
+			}
+			else{
+				System.out.println(variable + " = " + value);
+			}
 			
 			data.put( variable, value );
 		}
@@ -279,7 +1090,110 @@ public class ServerData {
 		
 		servData = new ServerData(serverName, serverPass, adminPass, 
 				multiLogin, port);
+		
+		//get the connection mode, THREAD if not provided or unknown
+		servData.setConnectionMode( ConnectionMode.fromString( 
+				a_data.get( Init_Vars.CONNECTIONMODE.toString() ) ) );
+		
+		//get the number of event loops for the NIO connection mode
+		servData.setEventLoops( parseIntValue( a_data, Init_Vars.EVENTLOOPS, 0 ) );
+		
+		//get the number of message dispatcher workers
+		servData.setDispatchers( 
+				parseIntValue( a_data, Init_Vars.DISPATCHERS, 0 ) );
+		
+		//get the limits on the size of a single write to a client
+		servData.setMaxBatchMessages( parseIntValue( a_data, 
+				Init_Vars.MAXBATCHMESSAGES, DEFAULT_MAX_BATCH_MESSAGES ) );
+		servData.setMaxBatchBytes( parseIntValue( a_data, 
+				Init_Vars.MAXBATCHBYTES, DEFAULT_MAX_BATCH_BYTES ) );
+		
+		//get the limits on the messages waiting to be sent to a client, and
+		//what to do once they are reached
+		servData.setMaxQueuedMessages( parseIntValue( a_data, 
+				Init_Vars.MAXQUEUEDMESSAGES, DEFAULT_MAX_QUEUED_MESSAGES ) );
+		servData.setMaxQueuedBytes( parseIntValue( a_data, 
+				Init_Vars.MAXQUEUEDBYTES, DEFAULT_MAX_QUEUED_BYTES ) );
+		servData.setSlowConsumerPolicy( SlowConsumerPolicy.fromString( 
+				a_data.get( Init_Vars.SLOWCONSUMERPOLICY.toString() ) ) );
+		
+		//get the local port serving the metrics, if any
+		servData.setMetricsPort( 
+				parseIntValue( a_data, Init_Vars.METRICSPORT, 0 ) );
+		
+		//get the size from which frames are compressed
+		servData.setCompressThreshold( parseIntValue( a_data, 
+				Init_Vars.COMPRESSTHRESHOLD, DEFAULT_COMPRESS_THRESHOLD ) );
+		
+		//get the size of the user list's pages
+		servData.setUserListPageSize( parseIntValue( a_data, 
+				Init_Vars.USERLISTPAGESIZE, DEFAULT_USER_LIST_PAGE_SIZE ) );
+		
+		//get the time for which logins and logouts are collected
+		servData.setPresenceWindow( parseIntValue( a_data, 
+				Init_Vars.PRESENCEWINDOW, DEFAULT_PRESENCE_WINDOW ) );
+		
+		//broker direct transfers unless turned off
+		String directTransfers = 
+				a_data.get( Init_Vars.DIRECTTRANSFERS.toString() );
+		servData.setDirectTransfers( directTransfers == null 
+				|| directTransfers.isEmpty() 
+				|| Boolean.parseBoolean( directTransfers ) );
+		
+		//get this node's place in a cluster, if any
+		servData.setNodeName( a_data.get( Init_Vars.NODENAME.toString() ) );
+		servData.setNodeID( parseIntValue( a_data, Init_Vars.NODEID, 0 ) );
+		servData.setClusterPort( 
+				parseIntValue( a_data, Init_Vars.CLUSTERPORT, 0 ) );
+		servData.setPeers( a_data.get( Init_Vars.PEERS.toString() ) );
+		servData.setClusterAddress( 
+				a_data.get( Init_Vars.CLUSTERADDRESS.toString() ) );
+		servData.setClusterSecret( 
+				a_data.get( Init_Vars.CLUSTERSECRET.toString() ) );
+		
+		//links between nodes are only used once both know the secret
+		if( servData.getClusterPort() > 0 
+				&& servData.getClusterSecret().isEmpty() ){
+			System.out.println("No " + Init_Vars.CLUSTERSECRET.toString() 
+					+ " given, running outside of any cluster.");
+			servData.setClusterPort( 0 );
+		}
+		
+		//each node generates transfer IDs from the range of its number
+		if( servData.getClusterPort() > 0 && servData.getNodeID() == 0 ){
+			System.out.println("No " + Init_Vars.NODEID.toString() 
+					+ " from 1 to " + MAX_NODE_ID 
+					+ " given, running outside of any cluster.");
+			servData.setClusterPort( 0 );
+		}
 
 		return servData;
 	}
+	
+	/**
+	 * Parse an optional integer initialization value.
+	 * @param a_data <code>Hashtable&lt;String, String&gt;</code> containing 
+	 * 			&lt;variable, value&gt; pairs of the data read from the file
+	 * @param a_var <code>Init_Vars</code>, the variable to parse
+	 * @param a_default <code>int</code>, the value to use if the variable
+	 * 	is missing or is not a number
+	 * @return <code>int</code>, the parsed value
+	 * @author Andrzej Brynczka
+	 */
+	private static int parseIntValue(Hashtable<String, String> a_data, 
+			Init_Vars a_var, int a_default){
+		String value = a_data.get( a_var.toString() );
+		if( value == null || value.isEmpty() ){
+			return a_default;
+		}
+		
+		try{
+			return Integer.parseInt( value );
+		}
+		catch(NumberFormatException e){
+			System.out.println("Invalid value given for " + a_var.toString()
+					+ ", using default: " + a_default);
+			return a_default;
+		}
+	}
 }
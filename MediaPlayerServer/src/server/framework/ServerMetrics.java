@@ -0,0 +1,389 @@
+package server.framework;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import protocol.LatencyHistogram;
+import protocol.MessageHeader;
+
+/**
+ * Counters and latency histograms describing the server's activity, shared
+ * by all of its connections.
+ * <p>
+ * Every counter may be updated from any thread. Messages are counted and 
+ * timed by their <code>MessageHeader</code>, both while being read and acted
+ * on by their sender's handler and while waiting for the dispatcher to 
+ * deliver them. Values that describe the server's current state, such as 
+ * queue depths, are not kept here but read from the server when needed by
+ * the <code>ServerMonitor</code>.
+ *
+ * @author Andrzej Brynczka
+ */
+public class ServerMetrics {
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** Number of messages written to clients */
+	private final AtomicLong m_messagesWritten;
+
+	/** Number of write calls made to client sockets */
+	private final AtomicLong m_socketWrites;
+
+	/** Number of waiting chat messages dropped from full client queues */
+	private final AtomicLong m_droppedMessages;
+
+	/** Number of clients disconnected for not reading their messages */
+	private final AtomicLong m_slowConsumerDisconnects;
+
+	/** Number of times a file sender was paused for a full client queue */
+	private final AtomicLong m_pausedSenders;
+
+	/** Number of file data segments relayed straight to their receivers */
+	private final AtomicLong m_relayedSegments;
+
+	/** Number of file transfers brokered to stream directly between users */
+	private final AtomicLong m_directTransfers;
+
+	/** Number of bytes read from clients */
+	private final AtomicLong m_bytesIn;
+
+	/** Number of bytes written to clients */
+	private final AtomicLong m_bytesOut;
+
+	/** Number of messages received from clients, by header */
+	private final AtomicLongArray m_messagesReceived;
+
+	/** Time taken to read and act on received messages, by header */
+	private final LatencyHistogram[] m_handleTimes;
+
+	/** Time messages waited to be delivered by the dispatcher, by header */
+	private final LatencyHistogram[] m_dispatchTimes;
+
+	/** Time from a connection's start until its login was answered */
+	private final LatencyHistogram m_loginTimes;
+
+	/** Time spent waiting for the login's bytes to arrive on the socket */
+	private final LatencyHistogram m_loginSocketTimes;
+
+	/** Time spent checking the login's punishments */
+	private final LatencyHistogram m_loginDatabaseTimes;
+
+	/** Number of login attempts that were refused */
+	private final AtomicLong m_failedLogins;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create a set of metrics with every counter at zero.
+	 */
+	ServerMetrics(){
+		m_messagesWritten = new AtomicLong( 0 );
+		m_socketWrites = new AtomicLong( 0 );
+		m_droppedMessages = new AtomicLong( 0 );
+		m_slowConsumerDisconnects = new AtomicLong( 0 );
+		m_pausedSenders = new AtomicLong( 0 );
+		m_relayedSegments = new AtomicLong( 0 );
+		m_directTransfers = new AtomicLong( 0 );
+		m_bytesIn = new AtomicLong( 0 );
+		m_bytesOut = new AtomicLong( 0 );
+
+		int headers = MessageHeader.values().length;
+		m_messagesReceived = new AtomicLongArray( headers );
+		m_handleTimes = new LatencyHistogram[ headers ];
+		m_dispatchTimes = new LatencyHistogram[ headers ];
+		for( int i = 0; i < headers; i++ ){
+			m_handleTimes[i] = new LatencyHistogram();
+			m_dispatchTimes[i] = new LatencyHistogram();
+		}
+
+		m_loginTimes = new LatencyHistogram();
+		m_loginSocketTimes = new LatencyHistogram();
+		m_loginDatabaseTimes = new LatencyHistogram();
+		m_failedLogins = new AtomicLong( 0 );
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the number of messages written to clients.
+	 * @return <code>long</code>, the number of messages
+	 */
+	public long getMessagesWritten(){
+		return m_messagesWritten.get();
+	}
+
+	/**
+	 * Get the number of write calls made to client sockets.
+	 * @return <code>long</code>, the number of writes
+	 */
+	public long getSocketWrites(){
+		return m_socketWrites.get();
+	}
+
+	/**
+	 * Get the average number of messages sent by each socket write. Higher
+	 * values mean that more messages are being coalesced into each write.
+	 * @return <code>double</code>, the messages per write, or 0 if nothing
+	 * 	has been written
+	 */
+	public double getMessagesPerWrite(){
+		long writes = m_socketWrites.get();
+		if( writes == 0 ){
+			return 0;
+		}
+		return (double) m_messagesWritten.get() / writes;
+	}
+
+	/**
+	 * Get the number of waiting chat messages dropped from full client
+	 * queues.
+	 * @return <code>long</code>, the number of messages
+	 */
+	public long getDroppedMessages(){
+		return m_droppedMessages.get();
+	}
+
+	/**
+	 * Get the number of clients disconnected for not reading their messages
+	 * fast enough.
+	 * @return <code>long</code>, the number of clients
+	 */
+	public long getSlowConsumerDisconnects(){
+		return m_slowConsumerDisconnects.get();
+	}
+
+	/**
+	 * Get the number of times a user sending file data was paused until its
+	 * receiver's queue had room.
+	 * @return <code>long</code>, the number of pauses
+	 */
+	public long getPausedSenders(){
+		return m_pausedSenders.get();
+	}
+
+	/**
+	 * Get the number of file data segments relayed from their senders'
+	 * bytes straight to their receivers, bypassing the dispatcher.
+	 * @return <code>long</code>, the number of segments
+	 */
+	public long getRelayedSegments(){
+		return m_relayedSegments.get();
+	}
+
+	/**
+	 * Get the number of file transfers whose senders were given their
+	 * receivers' endpoints, to stream the files without the server.
+	 * @return <code>long</code>, the number of transfers
+	 */
+	public long getDirectTransfers(){
+		return m_directTransfers.get();
+	}
+
+	/**
+	 * Get the number of bytes read from clients.
+	 * @return <code>long</code>, the number of bytes
+	 */
+	public long getBytesIn(){
+		return m_bytesIn.get();
+	}
+
+	/**
+	 * Get the number of bytes written to clients.
+	 * @return <code>long</code>, the number of bytes
+	 */
+	public long getBytesOut(){
+		return m_bytesOut.get();
+	}
+
+	/**
+	 * Get the number of messages with the given header received from 
+	 * clients.
+	 * @param a_header <code>MessageHeader</code>, the messages' header
+	 * @return <code>long</code>, the number of messages
+	 */
+	public long getMessagesReceived(MessageHeader a_header){
+		return m_messagesReceived.get( a_header.ordinal() );
+	}
+
+	/**
+	 * Get the times taken by handlers to read and act on the received
+	 * messages with the given header.
+	 * @param a_header <code>MessageHeader</code>, the messages' header
+	 * @return <code>LatencyHistogram</code>, the times
+	 */
+	public LatencyHistogram getHandleTimes(MessageHeader a_header){
+		return m_handleTimes[ a_header.ordinal() ];
+	}
+
+	/**
+	 * Get the times that messages with the given header waited to be 
+	 * delivered by the dispatcher.
+	 * @param a_header <code>MessageHeader</code>, the messages' header
+	 * @return <code>LatencyHistogram</code>, the times
+	 */
+	public LatencyHistogram getDispatchTimes(MessageHeader a_header){
+		return m_dispatchTimes[ a_header.ordinal() ];
+	}
+
+	/**
+	 * Get the times from connections' starts until their logins were 
+	 * answered.
+	 * @return <code>LatencyHistogram</code>, the times
+	 */
+	public LatencyHistogram getLoginTimes(){
+		return m_loginTimes;
+	}
+
+	/**
+	 * Get the times that logins spent waiting for their bytes to arrive.
+	 * @return <code>LatencyHistogram</code>, the times
+	 */
+	public LatencyHistogram getLoginSocketTimes(){
+		return m_loginSocketTimes;
+	}
+
+	/**
+	 * Get the times that logins spent checking the users' punishments.
+	 * @return <code>LatencyHistogram</code>, the times
+	 */
+	public LatencyHistogram getLoginDatabaseTimes(){
+		return m_loginDatabaseTimes;
+	}
+
+	/**
+	 * Get the number of login attempts that were refused.
+	 * @return <code>long</code>, the number of logins
+	 */
+	public long getFailedLogins(){
+		return m_failedLogins.get();
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Record a single write call to a client socket.
+	 * @param a_messages <code>int</code>, the number of messages completed
+	 * 	by the write
+	 * @param a_bytes <code>long</code>, the number of bytes written
+	 */
+	void recordSocketWrite(int a_messages, long a_bytes){
+		m_socketWrites.incrementAndGet();
+		if( a_messages > 0 ){
+			m_messagesWritten.addAndGet( a_messages );
+		}
+		if( a_bytes > 0 ){
+			m_bytesOut.addAndGet( a_bytes );
+		}
+	}
+
+	/**
+	 * Record bytes read from a client.
+	 * @param a_bytes <code>long</code>, the number of bytes read
+	 */
+	void recordBytesIn(long a_bytes){
+		if( a_bytes > 0 ){
+			m_bytesIn.addAndGet( a_bytes );
+		}
+	}
+
+	/**
+	 * Record a message read and acted on by its sender's handler.
+	 * @param a_header <code>MessageHeader</code>, the message's header
+	 * @param a_startNanos <code>long</code>, when handling started, as
+	 * 	given by <code>System.nanoTime()</code>
+	 */
+	void recordMessageHandled(MessageHeader a_header, long a_startNanos){
+		m_messagesReceived.incrementAndGet( a_header.ordinal() );
+		m_handleTimes[ a_header.ordinal() ].recordSince( a_startNanos );
+	}
+
+	/**
+	 * Record a message delivered by the dispatcher.
+	 * @param a_header <code>MessageHeader</code>, the message's header
+	 * @param a_queuedNanos <code>long</code>, when the message was queued,
+	 * 	as given by <code>System.nanoTime()</code>
+	 */
+	void recordMessageDispatched(MessageHeader a_header, long a_queuedNanos){
+		m_dispatchTimes[ a_header.ordinal() ].recordSince( a_queuedNanos );
+	}
+
+	/**
+	 * Record an answered login.
+	 * @param a_startNanos <code>long</code>, when the connection started
+	 * @param a_socketNanos <code>long</code>, time spent waiting for the
+	 * 	login's bytes
+	 * @param a_databaseNanos <code>long</code>, time spent checking the
+	 * 	user's punishments
+	 * @param a_succeeded <code>boolean</code> - <code>true</code> if the 
+	 * 	user was logged in, <code>false</code> if refused
+	 */
+	void recordLogin(long a_startNanos, long a_socketNanos, 
+			long a_databaseNanos, boolean a_succeeded){
+		m_loginTimes.recordSince( a_startNanos );
+		m_loginSocketTimes.record( a_socketNanos );
+		m_loginDatabaseTimes.record( a_databaseNanos );
+		if( !a_succeeded ){
+			m_failedLogins.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Record waiting messages dropped from a full client queue.
+	 * @param a_messages <code>int</code>, the number of messages dropped
+	 */
+	void recordDroppedMessages(int a_messages){
+		m_droppedMessages.addAndGet( a_messages );
+	}
+
+	/**
+	 * Record a client disconnected for not reading its messages.
+	 */
+	void recordSlowConsumerDisconnect(){
+		m_slowConsumerDisconnects.incrementAndGet();
+	}
+
+	/**
+	 * Record a file sender paused until its receiver's queue had room.
+	 */
+	void recordPausedSender(){
+		m_pausedSenders.incrementAndGet();
+	}
+
+	/**
+	 * Record a file data segment relayed straight to its receiver.
+	 */
+	void recordRelayedSegment(){
+		m_relayedSegments.incrementAndGet();
+	}
+
+	/**
+	 * Record a file transfer brokered to stream directly between its users.
+	 */
+	void recordDirectTransfer(){
+		m_directTransfers.incrementAndGet();
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Describe the metrics for the server's log.
+	 * @return <code>String</code>, the metrics' values
+	 */
+	@Override
+	public String toString(){
+		return String.format( "Wrote %d messages in %d socket writes "
+				+ "(%.2f messages per write); read %d bytes, wrote %d bytes; "
+				+ "dropped %d messages, disconnected %d slow clients, "
+				+ "paused %d file senders, relayed %d file segments, "
+				+ "brokered %d direct transfers; logins %s",
+				getMessagesWritten(), getSocketWrites(), getMessagesPerWrite(),
+				getBytesIn(), getBytesOut(), getDroppedMessages(), 
+				getSlowConsumerDisconnects(), getPausedSenders(), 
+				getRelayedSegments(), getDirectTransfers(), 
+				getLoginTimes() );
+	}
+}
@@ -0,0 +1,376 @@
+package server.framework;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import protocol.LatencyHistogram;
+import protocol.MessageHeader;
+
+/**
+ * Read-only view of the server's metrics, registered with the platform
+ * <code>MBeanServer</code> so that they can be watched over JMX, and
+ * written out as plain text for the <code>MetricsEndpoint</code>.
+ * <p>
+ * Counters and histograms come from the server's <code>ServerMetrics</code>;
+ * values describing the server's current state, such as queue depths, are
+ * read from the server each time they are asked for.
+ *
+ * @author Andrzej Brynczka
+ */
+public class ServerMonitor implements ServerMonitorMXBean {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Name under which the monitor is registered */
+	public static final String OBJECT_NAME = 
+			"server.framework:type=ServerMonitor";
+
+	/** Number of clients listed with the largest outbound queues */
+	private static final int LARGEST_QUEUES = 10;
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The monitored server */
+	private final Server m_server;
+
+	/** The server's counters and histograms */
+	private final ServerMetrics m_metrics;
+
+	/** The name the monitor is registered under, or <code>null</code> */
+	private ObjectName m_name;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create a monitor of the given server.
+	 *
+	 * @param a_server <code>Server</code>, the server to monitor
+	 */
+	ServerMonitor(Server a_server){
+		m_server = a_server;
+		m_metrics = a_server.getMetrics();
+		m_name = null;
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	@Override
+	public int getConnections(){
+		return m_server.getConnectionCount();
+	}
+
+	@Override
+	public int getLoggedInUsers(){
+		return m_server.getUserCount();
+	}
+
+	@Override
+	public int getDispatcherQueueDepth(){
+		return m_server.getDispatcherQueueDepth();
+	}
+
+	@Override
+	public long getQueuedMessages(){
+		return m_server.getQueuedMessages();
+	}
+
+	@Override
+	public long getQueuedBytes(){
+		return m_server.getQueuedBytes();
+	}
+
+	@Override
+	public Map<String, Long> getLargestOutboundQueues(){
+		Map<String, Long> queues = new LinkedHashMap<String, Long>();
+		for( UserHandler handler
+				: m_server.getLargestOutboundQueues( LARGEST_QUEUES ) ){
+			long bytes = handler.getQueuedBytes();
+			if( bytes == 0 ){
+				//sorted largest first, the rest are empty as well
+				break;
+			}
+			queues.put( handler.describe(), bytes );
+		}
+		return queues;
+	}
+
+	@Override
+	public int getActiveTransfers(){
+		return m_server.getActiveTransfers();
+	}
+
+	@Override
+	public long getBytesIn(){
+		return m_metrics.getBytesIn();
+	}
+
+	@Override
+	public long getBytesOut(){
+		return m_metrics.getBytesOut();
+	}
+
+	@Override
+	public long getMessagesWritten(){
+		return m_metrics.getMessagesWritten();
+	}
+
+	@Override
+	public long getSocketWrites(){
+		return m_metrics.getSocketWrites();
+	}
+
+	@Override
+	public long getDroppedMessages(){
+		return m_metrics.getDroppedMessages();
+	}
+
+	@Override
+	public long getSlowConsumerDisconnects(){
+		return m_metrics.getSlowConsumerDisconnects();
+	}
+
+	@Override
+	public long getPausedSenders(){
+		return m_metrics.getPausedSenders();
+	}
+
+	@Override
+	public long getRelayedSegments(){
+		return m_metrics.getRelayedSegments();
+	}
+
+	@Override
+	public long getDirectTransfers(){
+		return m_metrics.getDirectTransfers();
+	}
+
+	@Override
+	public Map<String, Long> getMessagesReceived(){
+		Map<String, Long> received = new LinkedHashMap<String, Long>();
+		for( MessageHeader header : MessageHeader.values() ){
+			long count = m_metrics.getMessagesReceived( header );
+			if( count > 0 ){
+				received.put( header.name(), count );
+			}
+		}
+		return received;
+	}
+
+	@Override
+	public Map<String, LatencyHistogram> getHandleTimes(){
+		Map<String, LatencyHistogram> times =
+				new LinkedHashMap<String, LatencyHistogram>();
+		for( MessageHeader header : MessageHeader.values() ){
+			LatencyHistogram histogram = m_metrics.getHandleTimes( header );
+			if( histogram.getCount() > 0 ){
+				times.put( header.name(), histogram );
+			}
+		}
+		return times;
+	}
+
+	@Override
+	public Map<String, LatencyHistogram> getDispatchTimes(){
+		Map<String, LatencyHistogram> times =
+				new LinkedHashMap<String, LatencyHistogram>();
+		for( MessageHeader header : MessageHeader.values() ){
+			LatencyHistogram histogram = m_metrics.getDispatchTimes( header );
+			if( histogram.getCount() > 0 ){
+				times.put( header.name(), histogram );
+			}
+		}
+		return times;
+	}
+
+	@Override
+	public LatencyHistogram getLoginTimes(){
+		return m_metrics.getLoginTimes();
+	}
+
+	@Override
+	public LatencyHistogram getLoginSocketTimes(){
+		return m_metrics.getLoginSocketTimes();
+	}
+
+	@Override
+	public LatencyHistogram getLoginDatabaseTimes(){
+		return m_metrics.getLoginDatabaseTimes();
+	}
+
+	@Override
+	public long getFailedLogins(){
+		return m_metrics.getFailedLogins();
+	}
+
+	/**
+	 * Get every metric as plain text, one <code>name value</code> pair per
+	 * line. Values measured per header or per client carry it as a label,
+	 * as in <code>messages_received{header="REG_SendChatMess"} 12</code>.
+	 * Histograms are written as their count, mean, percentiles and maximum,
+	 * in microseconds.
+	 *
+	 * @return <code>String</code>, the metrics
+	 */
+	@Override
+	public String getReport(){
+		StringBuilder report = new StringBuilder();
+
+		appendValue( report, "connections", getConnections() );
+		appendValue( report, "logged_in_users", getLoggedInUsers() );
+		appendValue( report, "dispatcher_queue_depth",
+				getDispatcherQueueDepth() );
+		appendValue( report, "queued_messages", getQueuedMessages() );
+		appendValue( report, "queued_bytes", getQueuedBytes() );
+		for( Map.Entry<String, Long> queue
+				: getLargestOutboundQueues().entrySet() ){
+			appendValue( report, "largest_queued_bytes{client=\""
+					+ queue.getKey() + "\"}", queue.getValue() );
+		}
+		appendValue( report, "active_transfers", getActiveTransfers() );
+
+		appendValue( report, "bytes_in", getBytesIn() );
+		appendValue( report, "bytes_out", getBytesOut() );
+		appendValue( report, "messages_written", getMessagesWritten() );
+		appendValue( report, "socket_writes", getSocketWrites() );
+		appendValue( report, "dropped_messages", getDroppedMessages() );
+		appendValue( report, "slow_consumer_disconnects",
+				getSlowConsumerDisconnects() );
+		appendValue( report, "paused_senders", getPausedSenders() );
+		appendValue( report, "relayed_segments", getRelayedSegments() );
+		appendValue( report, "direct_transfers", getDirectTransfers() );
+
+		for( Map.Entry<String, Long> received
+				: getMessagesReceived().entrySet() ){
+			appendValue( report, "messages_received{header=\""
+					+ received.getKey() + "\"}", received.getValue() );
+		}
+		for( Map.Entry<String, LatencyHistogram> times
+				: getHandleTimes().entrySet() ){
+			appendHistogram( report, "handle_time_us",
+					"header=\"" + times.getKey() + "\"", times.getValue() );
+		}
+		for( Map.Entry<String, LatencyHistogram> times
+				: getDispatchTimes().entrySet() ){
+			appendHistogram( report, "dispatch_time_us",
+					"header=\"" + times.getKey() + "\"", times.getValue() );
+		}
+
+		appendHistogram( report, "login_time_us", "", getLoginTimes() );
+		appendHistogram( report, "login_socket_time_us", "",
+				getLoginSocketTimes() );
+		appendHistogram( report, "login_database_time_us", "",
+				getLoginDatabaseTimes() );
+		appendValue( report, "failed_logins", getFailedLogins() );
+
+		return report.toString();
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Register the monitor with the platform <code>MBeanServer</code>. A
+	 * failure is logged, leaving the server running without JMX.
+	 */
+	void register(){
+		try {
+			MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName( OBJECT_NAME );
+			if( mbeans.isRegistered( name ) ){
+				//left behind by an earlier server in the same JVM
+				mbeans.unregisterMBean( name );
+			}
+			mbeans.registerMBean( this, name );
+			m_name = name;
+			System.out.println("Registered JMX metrics as " + OBJECT_NAME);
+		} catch (JMException | RuntimeException e) {
+			System.out.println("Unable to register JMX metrics: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Remove the monitor from the platform <code>MBeanServer</code>, if it
+	 * was registered.
+	 */
+	void unregister(){
+		if( m_name == null ){
+			return;
+		}
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean( m_name );
+		} catch (JMException e) {
+			//already gone
+		}
+		m_name = null;
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Append a single value to a report.
+	 * @param a_report <code>StringBuilder</code>, the report
+	 * @param a_name <code>String</code>, the value's name and labels
+	 * @param a_value <code>long</code>, the value
+	 */
+	private static void appendValue(StringBuilder a_report, String a_name,
+			long a_value){
+		a_report.append( a_name ).append( ' ' ).append( a_value ).append( '\n' );
+	}
+
+	/**
+	 * Append a histogram's summary to a report, one line per statistic.
+	 * @param a_report <code>StringBuilder</code>, the report
+	 * @param a_name <code>String</code>, the histogram's name
+	 * @param a_labels <code>String</code>, the histogram's labels, without
+	 * 	braces, or an empty string if it has none
+	 * @param a_histogram <code>LatencyHistogram</code>, the histogram
+	 */
+	private static void appendHistogram(StringBuilder a_report, String a_name,
+			String a_labels, LatencyHistogram a_histogram){
+		appendValue( a_report, a_name + "_count" 
+				+ ( a_labels.isEmpty() ? "" : "{" + a_labels + "}" ),
+				a_histogram.getCount() );
+
+		//every statistic adds its own label to the histogram's
+		String labels = a_labels.isEmpty() ? "" : a_labels + ",";
+		appendStatistic( a_report, a_name, labels, "mean",
+				a_histogram.getMeanMicros() );
+		appendStatistic( a_report, a_name, labels, "0.5",
+				a_histogram.getP50Micros() );
+		appendStatistic( a_report, a_name, labels, "0.9",
+				a_histogram.getP90Micros() );
+		appendStatistic( a_report, a_name, labels, "0.99",
+				a_histogram.getP99Micros() );
+		appendStatistic( a_report, a_name, labels, "max",
+				a_histogram.getMaxMicros() );
+	}
+
+	/**
+	 * Append one statistic of a histogram to a report.
+	 * @param a_report <code>StringBuilder</code>, the report
+	 * @param a_name <code>String</code>, the histogram's name
+	 * @param a_labels <code>String</code>, the histogram's labels, each
+	 * 	followed by a comma
+	 * @param a_statistic <code>String</code>, the statistic's name
+	 * @param a_value <code>double</code>, the statistic's value
+	 */
+	private static void appendStatistic(StringBuilder a_report, String a_name,
+			String a_labels, String a_statistic, double a_value){
+		a_report.append( a_name ).append( '{' ).append( a_labels )
+				.append( "quantile=\"" ).append( a_statistic ).append( "\"} " )
+				.append( String.format( Locale.ROOT, "%.1f", a_value ) )
+				.append( '\n' );
+	}
+}
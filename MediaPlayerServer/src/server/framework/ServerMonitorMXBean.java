@@ -0,0 +1,169 @@
+package server.framework;
+
+import java.util.Map;
+
+import protocol.LatencyHistogram;
+
+/**
+ * Management interface of the <code>ServerMonitor</code>, through which the
+ * server's metrics are read over JMX.
+ * <p>
+ * Durations are given as <code>LatencyHistogram</code>s, which JMX clients
+ * see as composite values of their count, mean, percentiles and maximum,
+ * in microseconds.
+ *
+ * @author Andrzej Brynczka
+ */
+public interface ServerMonitorMXBean {
+	/**
+	 * Get the number of open connections, logged in or not.
+	 * @return <code>int</code>, the number of connections
+	 */
+	int getConnections();
+
+	/**
+	 * Get the number of logged in users.
+	 * @return <code>int</code>, the number of users
+	 */
+	int getLoggedInUsers();
+
+	/**
+	 * Get the number of messages waiting in the dispatcher's queues.
+	 * @return <code>int</code>, the number of messages
+	 */
+	int getDispatcherQueueDepth();
+
+	/**
+	 * Get the number of messages waiting to be sent to all clients.
+	 * @return <code>long</code>, the number of messages
+	 */
+	long getQueuedMessages();
+
+	/**
+	 * Get the size of the messages waiting to be sent to all clients.
+	 * @return <code>long</code>, the number of bytes
+	 */
+	long getQueuedBytes();
+
+	/**
+	 * Get the clients with the most bytes waiting to be sent to them.
+	 * @return <code>Map&lt;String, Long&gt;</code>, the clients' names, or
+	 * 	addresses if not logged in, and their queued bytes
+	 */
+	Map<String, Long> getLargestOutboundQueues();
+
+	/**
+	 * Get the number of file transfers sending data.
+	 * @return <code>int</code>, the number of transfers
+	 */
+	int getActiveTransfers();
+
+	/**
+	 * Get the number of bytes read from clients.
+	 * @return <code>long</code>, the number of bytes
+	 */
+	long getBytesIn();
+
+	/**
+	 * Get the number of bytes written to clients.
+	 * @return <code>long</code>, the number of bytes
+	 */
+	long getBytesOut();
+
+	/**
+	 * Get the number of messages written to clients.
+	 * @return <code>long</code>, the number of messages
+	 */
+	long getMessagesWritten();
+
+	/**
+	 * Get the number of write calls made to client sockets.
+	 * @return <code>long</code>, the number of writes
+	 */
+	long getSocketWrites();
+
+	/**
+	 * Get the number of waiting chat messages dropped from full queues.
+	 * @return <code>long</code>, the number of messages
+	 */
+	long getDroppedMessages();
+
+	/**
+	 * Get the number of clients disconnected for not reading their messages.
+	 * @return <code>long</code>, the number of clients
+	 */
+	long getSlowConsumerDisconnects();
+
+	/**
+	 * Get the number of times a file sender was paused for its receiver.
+	 * @return <code>long</code>, the number of pauses
+	 */
+	long getPausedSenders();
+
+	/**
+	 * Get the number of file data segments relayed straight to their
+	 * receivers.
+	 * @return <code>long</code>, the number of segments
+	 */
+	long getRelayedSegments();
+
+	/**
+	 * Get the number of file transfers brokered to stream directly between
+	 * their users.
+	 * @return <code>long</code>, the number of transfers
+	 */
+	long getDirectTransfers();
+
+	/**
+	 * Get the number of messages received from clients, by header.
+	 * @return <code>Map&lt;String, Long&gt;</code>, the number of messages
+	 * 	for every header received at least once
+	 */
+	Map<String, Long> getMessagesReceived();
+
+	/**
+	 * Get the times taken to read and act on received messages, by header.
+	 * @return <code>Map&lt;String, LatencyHistogram&gt;</code>, the times
+	 * 	for every header received at least once
+	 */
+	Map<String, LatencyHistogram> getHandleTimes();
+
+	/**
+	 * Get the times messages waited to be delivered by the dispatcher, by
+	 * header.
+	 * @return <code>Map&lt;String, LatencyHistogram&gt;</code>, the times
+	 * 	for every header dispatched at least once
+	 */
+	Map<String, LatencyHistogram> getDispatchTimes();
+
+	/**
+	 * Get the times from connections' starts until their logins were
+	 * answered.
+	 * @return <code>LatencyHistogram</code>, the times
+	 */
+	LatencyHistogram getLoginTimes();
+
+	/**
+	 * Get the times that logins spent waiting for their bytes to arrive.
+	 * @return <code>LatencyHistogram</code>, the times
+	 */
+	LatencyHistogram getLoginSocketTimes();
+
+	/**
+	 * Get the times that logins spent checking the users' punishments.
+	 * @return <code>LatencyHistogram</code>, the times
+	 */
+	LatencyHistogram getLoginDatabaseTimes();
+
+	/**
+	 * Get the number of login attempts that were refused.
+	 * @return <code>long</code>, the number of logins
+	 */
+	long getFailedLogins();
+
+	/**
+	 * Get every metric as plain text, as served by the metrics port.
+	 * @return <code>String</code>, the metrics, one per line
+	 */
+	String getReport();
+}
@@ -1,49 +1,181 @@
 package server.framework;
 
 
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import protocol.DirectTransfer;
+import protocol.FrameCompression;
+import protocol.HeaderTable;
+import protocol.LargeFiles;
+import protocol.MessageFrame;
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.ProtocolVersion;
+import protocol.TransferCredits;
+import protocol.TransferResume;
+import protocol.messages.ChannelChatMessage;
+import protocol.messages.ChannelMessage;
+import protocol.messages.ChatMessage;
+import protocol.messages.Message;
+import protocol.messages.Message.MessageResponse;
+import protocol.messages.PrivateChatMessage;
 import server.messages.AdminLoginMessage;
 import server.messages.AdminPunishListMessage;
 import server.messages.AdminPunishMessage;
+import server.messages.FileTransCreditMessage;
 import server.messages.FileTransDataMessage;
 import server.messages.FileTransErrorMessage;
 import server.messages.FileTransResponseMessage;
+import server.messages.FileTransResumeMessage;
 import server.messages.LoginMessage;
 import server.messages.LoginMessage.LoginCondition;
-import server.messages.Message;
-import server.messages.ChatMessage;
-import server.messages.Message.MessageResponse;
-import server.messages.PrivateChatMessage;
 import server.messages.FileTransferMessage;
 import server.messages.FileTransRequestMessage;
-import server.messages.Message.MessageHeader;
 import server.messages.FileTransferMessage.TransferStage;
 import server.messages.PunishmentInfo.Direction;
 import server.messages.PunishmentInfo.Punishment;
 import server.messages.ServerMessage;
 import server.messages.UserListMessage;
+import server.messages.UserListSyncMessage;
 
 /**
- * Thread-based handler of an individual user client.
+ * Handler of an individual user client.
+ * <p>
+ * In the <code>THREAD</code> connection mode the handler is run on its own
+ * thread, blocking on reads from the client's socket, while a second writer
+ * thread sends queued messages as soon as they arrive. In the <code>NIO</code>
+ * mode it is driven by the <code>EventLoop</code> that owns the client's
+ * channel, which passes it the bytes read through <code>processInput</code>.
  * @author Andrzej Brynczka
  *
  */
-public class UserHandler extends Thread{
+public class UserHandler implements Runnable{
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/**
+	 * Reader of the remainder of a client message with a given header, 
+	 * acting on the message once read.
+	 */
+	private interface MessageReader {
+		/**
+		 * Read the remainder of a message and act on it.
+		 * @param a_handler <code>UserHandler</code>, the handler of the 
+		 * 	client that sent the message
+		 * @param a_header <code>MessageHeader</code>, the message's header
+		 * @throws IOException if the message has not fully arrived, or is
+		 * 	invalid
+		 */
+		void read(UserHandler a_handler, MessageHeader a_header) 
+				throws IOException;
+	}
+	
+	/** Most requests to send a file that a user may have awaiting an answer */
+	private static final int MAX_TRANSFER_OFFERS = 32;
+	
+	/** 
+	 * The readers of the messages clients send after logging in, by 
+	 * header, <code>null</code> for headers clients do not send 
+	 */
+	private static final HeaderTable<MessageReader> READERS = 
+			new HeaderTable<MessageReader>( null );
+	
+	static{
+		READERS.put( new MessageReader(){
+			@Override
+			public void read(UserHandler a_handler, MessageHeader a_header)
+					throws IOException{
+				a_handler.handleRegChatMessage();
+			}
+		}, MessageHeader.REG_SendChatMess );
+		READERS.put( new MessageReader(){
+			@Override
+			public void read(UserHandler a_handler, MessageHeader a_header)
+					throws IOException{
+				a_handler.handlePrivMessage();
+			}
+		}, MessageHeader.PRIV_SendChatMess );
+		READERS.put( new MessageReader(){
+			@Override
+			public void read(UserHandler a_handler, MessageHeader a_header)
+					throws IOException{
+				a_handler.handleChannelMessage( a_header );
+			}
+		}, MessageHeader.CHANNEL_Join, MessageHeader.CHANNEL_Leave );
+		READERS.put( new MessageReader(){
+			@Override
+			public void read(UserHandler a_handler, MessageHeader a_header)
+					throws IOException{
+				a_handler.handleChannelChatMessage();
+			}
+		}, MessageHeader.CHANNEL_SendChatMess );
+		READERS.put( new MessageReader(){
+			@Override
+			public void read(UserHandler a_handler, MessageHeader a_header)
+					throws IOException{
+				a_handler.handleFileTransMessage();
+			}
+		}, MessageHeader.FILE_Transfer );
+		READERS.put( new MessageReader(){
+			@Override
+			public void read(UserHandler a_handler, MessageHeader a_header)
+					throws IOException{
+				a_handler.handleAdminLogin();
+			}
+		}, MessageHeader.ADMIN_Login );
+		READERS.put( new MessageReader(){
+			@Override
+			public void read(UserHandler a_handler, MessageHeader a_header)
+					throws IOException{
+				a_handler.handleAdminPunishList();
+			}
+		}, MessageHeader.ADMIN_PunishList );
+		READERS.put( new MessageReader(){
+			@Override
+			public void read(UserHandler a_handler, MessageHeader a_header)
+					throws IOException{
+				a_handler.handleAdminPunish( a_header );
+			}
+		}, MessageHeader.ADMIN_PunishUser, 
+				MessageHeader.ADMIN_RemovePunishment );
+		READERS.put( new MessageReader(){
+			@Override
+			public void read(UserHandler a_handler, MessageHeader a_header)
+					throws IOException{
+				a_handler.handleUserListSync();
+			}
+		}, MessageHeader.SERVER_UserListSync );
+	}
+	
 	// *********************************************************
 	// ******************** Class Variables ********************
 	// *********************************************************
 	
 	private final Socket m_socket;
 	
+	/** 
+	 * The non-blocking connection driving this handler, or 
+	 * <code>null</code> if the handler runs on its own thread 
+	 */
+	private final ChannelConnection m_connection;
+	
 	/** Container for the client's individual data */
 	private User m_user;
 	
@@ -53,15 +185,73 @@ public class UserHandler extends Thread{
 	/** Reference to the main server thread */
 	private final Server m_server;
 	
-	/** Queue of messages to be sent to this client */
-	private Queue<Message> m_messagesToReceive;
+	/** 
+	 * Queue of messages to be sent to this client, taken by the writer
+	 * thread, or by the event loop in the <code>NIO</code> connection mode
+	 */
+	private final OutboundQueue m_outbound;
+	
+	/** Set once the connection has been terminated */
+	private final AtomicBoolean m_terminated;
+	
+	/** When the connection started, as given by <code>System.nanoTime</code> */
+	private final long m_connectedNanos;
+	
+	/** When the login's bytes had all been read, or 0 if not yet read */
+	private long m_loginReadNanos;
+	
+	/** Time spent checking the user's punishments during login */
+	private long m_loginCheckNanos;
+	
+	/** 
+	 * IDs of the file transfers this user has started sending data for, 
+	 * 	that have not yet ended 
+	 */
+	private final Set<Integer> m_activeTransfers;
+	
+	/** 
+	 * Handlers of the users receiving the file transfers this user sends,
+	 * 	by transfer ID, added once the receiver accepts the transfer so that
+	 * 	its data can be relayed straight to the receiver 
+	 */
+	private final Map<Integer, UserHandler> m_relays;
+	
+	/** 
+	 * Requests of this user to send files, by transfer ID, kept until the
+	 * 	receiver answers so that only the intended receiver is relayed the
+	 * 	data and has its endpoint passed back with a direct transfer's 
+	 * 	token, and a window is only passed to a sender that asked for 
+	 * 	credits
+	 */
+	private final Map<Integer, FileTransRequestMessage> m_transferOffers;
+	
+	/** 
+	 * Names of the users that have asked to send this user a file, whose
+	 * 	requests are dropped once this user logs out
+	 */
+	private final Set<String> m_offerSenders;
+	
+	/** 
+	 * Decoder of the client's messages, in the wire format chosen by the
+	 * client when logging in 
+	 */
+	private final MessageDecoder m_decoder;
+	
+	/** 
+	 * Set if the client accepts logins and logouts announced together, in
+	 * a single presence message 
+	 */
+	private boolean m_presenceBatches;
+	
+	/** Set if the client accepts files of 2GB and over */
+	private boolean m_largeFiles;
 	
 	// *********************************************************
 	// ******************** Constructors ***********************
 	// *********************************************************
 	/**
-	 * Creates the UserHandler thread that handles an individual client's
-	 * 	communication with the server
+	 * Creates the UserHandler that handles an individual client's
+	 * 	communication with the server on its own thread
 	 * @param a_userSocket <code>Socket</code>, the client's socket
 	 * @param a_dispatcher <code>MessageDispatcher</code>, the message 
 	 * 	dispatcher thread
@@ -70,10 +260,56 @@ public class UserHandler extends Thread{
 	UserHandler(Socket a_userSocket, MessageDispatcher a_dispatcher, 
 			Server a_server){
 		m_socket = a_userSocket;
+		m_connection = null;
 		m_dispatcher = a_dispatcher;
 		m_server = a_server;
 		m_user = null;//user information has not yet been acquired
-		m_messagesToReceive = new LinkedList<Message>();
+		m_outbound = a_server.createOutboundQueue();
+		m_terminated = new AtomicBoolean( false );
+		m_connectedNanos = System.nanoTime();
+		m_activeTransfers = Collections.newSetFromMap( 
+				new ConcurrentHashMap<Integer, Boolean>() );
+		m_relays = new ConcurrentHashMap<Integer, UserHandler>();
+		m_transferOffers = 
+				new ConcurrentHashMap<Integer, FileTransRequestMessage>();
+		m_offerSenders = Collections.newSetFromMap( 
+				new ConcurrentHashMap<String, Boolean>() );
+		m_decoder = new MessageDecoder();
+		m_presenceBatches = false;
+		m_largeFiles = false;
+	}
+	
+	/**
+	 * Creates the UserHandler that handles an individual client's
+	 * 	communication with the server through an event loop's channel
+	 * @param a_connection <code>ChannelConnection</code>, the client's 
+	 * 	non-blocking connection
+	 * @param a_dispatcher <code>MessageDispatcher</code>, the message 
+	 * 	dispatcher thread
+	 * @param a_server <code>Server</code>, a reference to the main server
+	 */
+	UserHandler(ChannelConnection a_connection, MessageDispatcher a_dispatcher,
+			Server a_server){
+		m_socket = a_connection.getChannel().socket();
+		m_connection = a_connection;
+		m_dispatcher = a_dispatcher;
+		m_server = a_server;
+		m_user = null;//user information has not yet been acquired
+		m_outbound = a_server.createOutboundQueue();
+		m_terminated = new AtomicBoolean( false );
+		m_connectedNanos = System.nanoTime();
+		m_activeTransfers = Collections.newSetFromMap( 
+				new ConcurrentHashMap<Integer, Boolean>() );
+		m_relays = new ConcurrentHashMap<Integer, UserHandler>();
+		m_transferOffers = 
+				new ConcurrentHashMap<Integer, FileTransRequestMessage>();
+		m_offerSenders = Collections.newSetFromMap( 
+				new ConcurrentHashMap<String, Boolean>() );
+		m_decoder = new MessageDecoder();
+		m_presenceBatches = false;
+		m_largeFiles = false;
+		
+		a_connection.setHandler( this );
 	}
 	
 	@Override
@@ -83,128 +319,281 @@ public class UserHandler extends Thread{
 		try {
 			clientIn = m_socket.getInputStream();
 		} catch (IOException e) {
-			//error accessing stream, warn the client if possible and exit
+			//error accessing stream, exit
 			System.out.println("Unable to access input stream for " 
 					+ m_socket.getInetAddress().getHostAddress() );
-
-			//create an error message to send, if possible
-			ServerMessage errorMsg = 
-					new ServerMessage(MessageHeader.SERVER_Error);
-			errorMsg.setMessage("ERROR: Unable to access input stream");
 			
-			terminateConnection( errorMsg );
-		}
-	
-		//handle login
-		try {
-			handleLogIn( clientIn );
-		} catch (IOException e1) {
-			//error handling login information, warn the client and exit
-			ServerMessage errorMsg = 
-					new ServerMessage(MessageHeader.SERVER_Error);
-			
-			errorMsg.setMessage("ERROR: Unable to process login information"
-					+ e1.getMessage() );
-			terminateConnection( errorMsg );
-		}
-		
-		//set 2 second timeout on the read
-		try {	
-			m_socket.setSoTimeout(2000);
-			
-		} catch (SocketException e1) {
-			System.out.println("Error with setting socket timeout.");
-			ServerMessage errorMsg = 
-					new ServerMessage(MessageHeader.SERVER_Error);
-			
-			errorMsg.setMessage("ERROR: Error with socket protocol."
-					+ e1.getMessage() );
-			
-			terminateConnection( errorMsg );
+			terminateConnection( null );
+			closeSocket();
+			return;
 		}
 		
-		//reader for message headers
-		DataInputStream headerReader = new DataInputStream( clientIn );
-		
-		//read from the client and sent it messages, for as long as the user's
-		//thread lives
-		while( !isInterrupted() ){
+		//start writing queued messages to the client, as soon as they arrive
+		Thread writer = m_server.newHandlerThread(new Runnable(){
+			@Override
+			public void run(){
+				writeQueuedMessages();
+			}
+		}, "UserWriter-" + m_socket.getInetAddress().getHostAddress() );
+		writer.start();
+		
+		//bytes read from the client that are not yet parsed, kept for the
+		//whole connection and parsed in place as in the NIO mode
+		ServerMetrics metrics = m_server.getMetrics();
+		ByteBuffer readBuffer = 
+				ByteBuffer.allocate( MessageDecoder.INITIAL_BUFFER_SIZE );
+	
+		//read from the client for as long as the user's connection lives,
+		//blocking until more bytes arrive
+		while( !m_terminated.get() ){
 			try {
-				
-				//send a message to the user if there are any in the backlog
-				if( !m_messagesToReceive.isEmpty() )
-				{
-					do{
-						//send the first message in the queue
-						Message msg = m_messagesToReceive.poll();
-						sendMessage( msg );
-						
-						//if there is nothing to read, simply continue
-						//to send messages
-						System.out.println("sent a message");
-					}while( headerReader.available() < 4 && 
-							!m_messagesToReceive.isEmpty());
-				}
-				
-
-				//get the message header, if available
-				byte[] headerCode = new byte[4];
-				int readBytes = headerReader.read( headerCode, 0, 4);
-
-				//check that the client did not disconnect
-				if( readBytes == -1 ){
+				int read = clientIn.read( readBuffer.array(), 
+						readBuffer.arrayOffset() + readBuffer.position(), 
+						readBuffer.remaining() );
+				if( read == -1 ){
+					//client disconnected
 					terminateConnection( null );
-				}
-				
-
-				MessageHeader header = MessageHeader.fromString( 
-						new String(headerCode) );
-
-				System.out.println( "Read header: " + header.toString() );
-
-				//handle the message based on type
-				switch( header ){
-				case REG_SendChatMess:
-					handleRegChatMessage( m_socket.getInputStream() );
-					break;
-				case PRIV_SendChatMess:
-					handlePrivMessage( m_socket.getInputStream() );
-					break;
-				case FILE_Transfer:
-					handleFileTransMessage( m_socket.getInputStream() );
-					break;
-				case ADMIN_Login:
-					handleAdminLogin( m_socket.getInputStream() );
-					break;
-				case ADMIN_PunishList:
-					handleAdminPunishList();
-					break;
-				case ADMIN_PunishUser:
-				case ADMIN_RemovePunishment:
-					handleAdminPunish( header, m_socket.getInputStream() );
-					break;
-				default:
-					System.out.println("problem header" );
 					break;
 				}
+				metrics.recordBytesIn( read );
+				readBuffer.position( readBuffer.position() + read );
 				
-
-			} catch( SocketTimeoutException timeOutEx ){
-				//socket timed out on read, continue onward
+				//handle every complete message, keeping the rest
+				readBuffer.flip();
+				processInput( readBuffer );
+				readBuffer.compact();
+				
+				//a partial message filled the whole buffer, make room for it
+				if( !readBuffer.hasRemaining() ){
+					readBuffer = MessageDecoder.grow( readBuffer );
+					if( readBuffer == null ){
+						throw new IOException("Message exceeds " 
+								+ MessageDecoder.MAX_BUFFER_SIZE + " bytes");
+					}
+				}
 			} catch (IOException e) {
-				System.out.println( "ERROR: Handling streams for user " + 
-						m_user.getUserName() + " at: " + 
-						m_socket.getInetAddress().getHostAddress() );
+				if( m_terminated.get() ){
+					//the connection was closed while reading
+					break;
+				}
 				
 				ServerMessage errorMsg = 
 						new ServerMessage(MessageHeader.SERVER_Error);
-				
-				errorMsg.setMessage("ERROR: Unable to process message input." 
-						+ e.getMessage());
+				if( m_user == null ){
+					//error handling login information, warn the client
+					errorMsg.setMessage(
+							"ERROR: Unable to process login information"
+							+ e.getMessage() );
+				}
+				else{
+					System.out.println( "ERROR: Handling streams for user " + 
+							m_user.getUserName() + " at: " + 
+							m_socket.getInetAddress().getHostAddress() );
+					
+					errorMsg.setMessage(
+							"ERROR: Unable to process message input." 
+							+ e.getMessage());
+				}
 				terminateConnection( errorMsg );
 			}
 		}
+		
+		//no more input will be parsed
+		m_decoder.close();
+	}
+	
+	/**
+	 * Write the messages queued for this client, waiting on the queue while 
+	 * it is empty, until the queue is closed. The socket is closed once all
+	 * output has been written.
+	 * <p>
+	 * All messages queued by the time the writer wakes up are written 
+	 * together, in as few writes as the batch limits allow.
+	 * Used in the <code>THREAD</code> connection mode, run on its own 
+	 * writer thread.
+	 * @author Andrzej Brynczka
+	 */
+	private void writeQueuedMessages(){
+		ServerMetrics metrics = m_server.getMetrics();
+		int maxMessages = m_server.getMaxBatchMessages();
+		
+		//buffer reused for every write, into which the queued messages are
+		//collected so that they reach the socket in a single write
+		byte[] batch = new byte[ m_server.getMaxBatchBytes() ];
+		List<MessageFrame> drained = new ArrayList<MessageFrame>( maxMessages );
+		
+		try {
+			OutputStream clientOut = m_socket.getOutputStream();
+			
+			//wait for a message, then take everything else already queued
+			while( m_outbound.take( drained, maxMessages, batch.length ) > 0 ){
+				int batchSize = 0;//bytes collected in the buffer
+				int batchMessages = 0;//messages collected in the buffer
+				for( MessageFrame frame : drained ){
+					if( frame.isEmpty() ){
+						continue;
+					}
+					if( batchSize + frame.length() > batch.length ){
+						//no room left, write what has been collected so far
+						if( batchSize > 0 ){
+							clientOut.write( batch, 0, batchSize );
+							metrics.recordSocketWrite( batchMessages, batchSize );
+							batchSize = 0;
+							batchMessages = 0;
+						}
+						
+						//too large for the buffer, write it on its own
+						if( frame.length() > batch.length ){
+							frame.writeTo( clientOut );
+							metrics.recordSocketWrite( 1, frame.length() );
+							frame.release();
+							continue;
+						}
+					}
+					
+					batchSize = frame.copyTo( batch, batchSize );
+					batchMessages++;
+					frame.release();
+				}
+				drained.clear();
+				
+				if( batchSize > 0 ){
+					clientOut.write( batch, 0, batchSize );
+					metrics.recordSocketWrite( batchMessages, batchSize );
+				}
+			}
+		} catch (InterruptedException e) {
+			//stop writing and close the connection
+		} catch (IOException e) {
+			System.out.println("ERROR: Writing to " 
+					+ m_socket.getInetAddress().getHostAddress() + ": "
+					+ e.getMessage());
+			terminateConnection( null );
+		}
+		
+		closeSocket();
+	}
+	
+	/**
+	 * Release the resources used to parse the client's input, once the 
+	 * <code>NIO</code> connection's channel has been closed. Called only
+	 * from the owning <code>EventLoop</code>.
+	 */
+	void inputClosed(){
+		m_decoder.close();
+	}
+	
+	/**
+	 * Parse and act on every complete message held in the given buffer.
+	 * Called each time new bytes are read: by the owning 
+	 * <code>EventLoop</code> in the <code>NIO</code> connection mode, and by
+	 * the handler's own thread in the <code>THREAD</code> mode.
+	 * <p>
+	 * An incomplete message at the end of the buffer is left unconsumed, 
+	 * with the buffer's position set to its start. Parsing also stops once 
+	 * reading has been paused, leaving the rest of the buffer unconsumed.
+	 * 
+	 * @param a_buffer <code>ByteBuffer</code>, the bytes read from the client
+	 * @throws IOException if a message is invalid
+	 * @author Andrzej Brynczka
+	 */
+	void processInput(ByteBuffer a_buffer) throws IOException{
+		m_decoder.setBuffer( a_buffer );
+		
+		while( a_buffer.hasRemaining() && !m_terminated.get() 
+				&& ( m_connection == null || !m_connection.isReadPaused() ) ){
+			int messageStart = a_buffer.position();
+			try{
+				if( m_user == null ){
+					//the first message is always the login, without a header
+					handleLogIn();
+				}
+				else if( m_decoder.getProtocol() == ProtocolVersion.V2 ){
+					//handle the frame in place once all of it has arrived
+					int length = m_decoder.readFrameLength();
+					m_decoder.require( length );
+					handleFrame( length );
+				}
+				else{
+					handleMessage( m_decoder.readHeader() );
+				}
+			}
+			catch( MessageDecoder.IncompleteMessageException e ){
+				//wait for the rest of the message to arrive
+				a_buffer.position( messageStart );
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Read the remainder of a message with the given header and act on it.
+	 * 
+	 * @param a_header <code>MessageHeader</code>, the message's header
+	 * @throws IOException if the message has not fully arrived, or is
+	 * 	invalid
+	 * @author Andrzej Brynczka
+	 */
+	private void handleMessage(MessageHeader a_header) throws IOException{
+		long start = System.nanoTime();
+		MessageReader reader = READERS.get( a_header );
+		if( reader == null ){
+			System.out.println("problem header" );
+			return;
+		}
+		reader.read( this, a_header );
+		
+		m_server.getMetrics().recordMessageHandled( a_header, start );
+	}
+	
+	/**
+	 * Act on the message held in a whole V2 frame, read in place from the
+	 * decoder's buffer, or from its decompressed bytes if the frame is 
+	 * compressed. The first frame must be the login.
+	 * 
+	 * @param a_length <code>int</code>, the number of bytes in the frame 
+	 * 	after its length, all of which have arrived
+	 * @throws IOException if the message is invalid, or does not fit in
+	 * 	its frame
+	 * @author Andrzej Brynczka
+	 */
+	private void handleFrame(int a_length) throws IOException{
+		//keep the message from reading past the end of its frame
+		ByteBuffer buffer = m_decoder.getBuffer();
+		int limit = buffer.limit();
+		int end = buffer.position() + a_length;
+		buffer.limit( end );
+		
+		MessageHeader header = MessageHeader.INVALID;
+		try{
+			byte type = m_decoder.readByte();
+			if( type == FrameCompression.DEFLATED_TYPE ){
+				//read the message from its decompressed bytes instead
+				m_decoder.setBuffer( m_decoder.inflate() );
+				type = m_decoder.readByte();
+			}
 			
+			header = MessageHeader.fromTypeCode( type );
+			if( m_user == null ){
+				if( header != MessageHeader.LOGIN ){
+					throw new IOException("Expected a login frame");
+				}
+				readLogIn( m_decoder.readLength() );
+			}
+			else{
+				handleMessage( header );
+			}
+		}
+		catch( MessageDecoder.IncompleteMessageException e ){
+			throw new IOException("Message " + header 
+					+ " is longer than its frame");
+		}
+		finally{
+			//continue after the frame, whatever the message read of it
+			m_decoder.setBuffer( buffer );
+			buffer.limit( limit );
+			buffer.position( end );
+		}
 	}
 	
 	// *********************************************************
@@ -219,36 +608,220 @@ public class UserHandler extends Thread{
 		return m_user;
 	}
 	
+	/**
+	 * Check if the user's client accepts logins and logouts announced
+	 * together, agreed on during login.
+	 * @return <code>boolean</code> - <code>true</code> if it accepts 
+	 * 	presence messages, <code>false</code> if it needs a notice for each
+	 * 	user
+	 * @author Andrzej Brynczka
+	 */
+	public boolean acceptsPresenceBatches(){
+		return m_presenceBatches;
+	}
+	
+	/**
+	 * Check if the user's client accepts files of 2GB and over, agreed on
+	 * during login.
+	 * @return <code>boolean</code> - <code>true</code> if it reads their
+	 * 	sizes as longs, <code>false</code> otherwise
+	 * @see LargeFiles
+	 */
+	public boolean acceptsLargeFiles(){
+		return m_largeFiles;
+	}
+	
+	/**
+	 * Get the number of messages waiting to be sent to this handler's user.
+	 * @return <code>int</code>, the number of messages
+	 * @author Andrzej Brynczka
+	 */
+	public int getQueuedMessages(){
+		return m_outbound.size();
+	}
+	
+	/**
+	 * Get the total size of the messages waiting to be sent to this 
+	 * handler's user.
+	 * @return <code>long</code>, the number of bytes
+	 * @author Andrzej Brynczka
+	 */
+	public long getQueuedBytes(){
+		return m_outbound.getBytes();
+	}
+	
+	/**
+	 * Get the queue of messages waiting to be sent to this handler's user.
+	 * @return <code>OutboundQueue</code>, the queue
+	 * @author Andrzej Brynczka
+	 */
+	OutboundQueue getOutboundQueue(){
+		return m_outbound;
+	}
+	
+	/**
+	 * Describe this handler's client for the server's metrics and log.
+	 * @return <code>String</code>, the user's name, or the client's IP 
+	 * 	address if it has not logged in
+	 * @author Andrzej Brynczka
+	 */
+	String describe(){
+		User user = m_user;
+		if( user != null ){
+			return user.getUserName();
+		}
+		return m_socket.getInetAddress().getHostAddress();
+	}
+	
+	/**
+	 * Get the number of file transfers this handler's user is sending data
+	 * 	for.
+	 * @return <code>int</code>, the number of transfers
+	 * @author Andrzej Brynczka
+	 */
+	public int getActiveTransfers(){
+		return m_activeTransfers.size();
+	}
+	
 	// *********************************************************
 	// ******************** Mutators ***************************
 	// *********************************************************
 	/**
-	 * Add a message to this thread's queue, ensuring that it gets sent to
-	 * this thread's user.
+	 * Add a message to this handler's queue, ensuring that it gets sent to
+	 * this handler's user. The writer is woken up right away.
+	 * <p>
+	 * If the queue is full, the server's slow consumer policy decides 
+	 * whether waiting chat is dropped or the user is disconnected.
+	 * <p>
+	 * Synchronized so that a group of messages queued while holding this
+	 * handler's lock reaches the user without others in between.
 	 * @param a_msg Message, the message to send to this user
 	 */
 	public synchronized void addMessageToQueue(Message a_msg){
-		m_messagesToReceive.add( a_msg );
+		boolean queued;
+		try {
+			queued = m_outbound.offer( a_msg );
+		} catch (IOException e) {
+			System.out.println("Failed to queue message for " 
+					+ m_socket.getInetAddress().getHostAddress());
+			return;
+		}
+		
+		if( !queued ){
+			disconnectSlowConsumer();
+			return;
+		}
+		
+		//the event loop writes the message once the channel is writable
+		if( m_connection != null ){
+			m_connection.outputQueued();
+		}
+	}
+	
+	/**
+	 * Add a frame relayed from another user, already encoded in this 
+	 * handler's wire format, to this handler's queue, as 
+	 * <code>addMessageToQueue</code> does for messages.
+	 * @param a_frame <code>MessageFrame</code>, the frame to send to this
+	 * 	user
+	 * @param a_header <code>MessageHeader</code>, the frame's header
+	 */
+	synchronized void addFrameToQueue(MessageFrame a_frame, 
+			MessageHeader a_header){
+		if( !m_outbound.offerFrame( a_frame, a_header ) ){
+			a_frame.release();
+			disconnectSlowConsumer();
+			return;
+		}
+		
+		if( m_connection != null ){
+			m_connection.outputQueued();
+		}
 	}
 		
 	// *********************************************************
 	// ******************** Utility Methods ********************
 	// *********************************************************
 	/**
-	 * Sends the given message to this client.
+	 * Disconnect a user whose queue is full, as it is not reading its 
+	 * messages as fast as they are sent to it. The waiting messages are 
+	 * discarded so that the error message reaches the user right away.
+	 * @author Andrzej Brynczka
+	 */
+	private void disconnectSlowConsumer(){
+		System.out.println("Disconnecting slow client " 
+				+ m_socket.getInetAddress().getHostAddress() + " with " 
+				+ m_outbound.size() + " messages (" + m_outbound.getBytes() 
+				+ " bytes) waiting");
+		m_server.getMetrics().recordSlowConsumerDisconnect();
+		m_outbound.clear();
+		
+		ServerMessage errorMsg = new ServerMessage(MessageHeader.SERVER_Error);
+		errorMsg.setMessage("Disconnected: messages were not being read fast "
+				+ "enough.");
+		terminateConnection( errorMsg );
+	}
+	
+	/**
+	 * Pause reading from this user while the queue of the user it is sending
+	 * file data to is full, if the slow consumer policy allows it. Reading
+	 * resumes once the receiver's queue has drained to half of its limits.
+	 * <p>
+	 * In the <code>THREAD</code> connection mode the reading thread waits,
+	 * while in the <code>NIO</code> mode the channel's read interest is 
+	 * removed until the queue has room.
 	 * 
-	 * @param a_msg <code>Message</code>, the message to send to the client
-	 * @throws IOException if an error occurs during writing to the socket
+	 * @param a_queue <code>OutboundQueue</code>, the receiver's queue
+	 * @param a_receiver <code>String</code>, the receiver's username
 	 * @author Andrzej Brynczka
 	 */
-	private void sendMessage(Message a_msg) throws IOException{
-		a_msg.sendMessage( m_socket.getOutputStream() );
-		m_socket.getOutputStream().flush();
+	private void pauseForReceiver(OutboundQueue a_queue, String a_receiver){
+		final OutboundQueue queue = a_queue;
+		if( !queue.shouldPauseSenders() ){
+			return;
+		}
+		if( m_connection != null && m_connection.isReadPaused() ){
+			//already waiting for a receiver
+			return;
+		}
+		
+		System.out.println("Pausing file data from " + m_user.getUserName()
+				+ " until " + a_receiver + " catches up");
+		m_server.getMetrics().recordPausedSender();
+		
+		if( m_connection != null ){
+			m_connection.pauseReading();
+			queue.whenSpace(new Runnable(){
+				@Override
+				public void run(){
+					m_connection.resumeReading();
+				}
+			});
+			return;
+		}
+		
+		final CountDownLatch resumed = new CountDownLatch( 1 );
+		queue.whenSpace(new Runnable(){
+			@Override
+			public void run(){
+				resumed.countDown();
+			}
+		});
+		try {
+			while( !resumed.await( 1, TimeUnit.SECONDS ) 
+					&& !m_terminated.get() ){
+				//keep waiting while the connection is alive
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 	
 	/**
 	 * Creates a <code>UserListMessage</code>, to be sent to this thread's
-	 * user, that contains the entire list of connected users.
+	 * user, that contains the entire list of connected users. The list 
+	 * holds the users announced so far, as later logins and logouts reach
+	 * the user through their own announcements, and the user itself.
 	 * @return <code>UserListMessage</code> containing the list of connected
 	 * users
 	 * @author Andrzej Brynczka
@@ -259,41 +832,95 @@ public class UserHandler extends Thread{
 				MessageHeader.SERVER_UserList, m_user.getUserName());
 		
 		//add the list of users
-		ulMsg.addUsers( m_dispatcher.getUserCollection() );
+		Collection<String> users = m_dispatcher.getAnnouncedUserCollection();
+		if( !users.contains( m_user.getUserName() ) ){
+			ulMsg.addUser( m_user.getUserName() );
+		}
+		ulMsg.addUsers( users );
 		return ulMsg;
 	}
 	
 	/**
-	 * Terminate the connection by removing this thread from the dispatcher's
-	 * 	user collection and killing this thread.
+	 * Terminate the connection by removing this handler from the dispatcher's
+	 * 	user collection and stopping it. Only the first call has any effect.
 	 * 
 	 * @param a_fileMessage Message, a final message to send to this user
 	 * 	before termination( set to null if no message is to be sent)
 	 * @author Andrzej Brynczka
 	 */
 	protected void terminateConnection(Message a_finalMessage){
+		if( !m_terminated.compareAndSet( false, true ) ){
+			//already terminated
+			return;
+		}
+		
 		System.out.println("Terminating connection to " 
 				+ m_socket.getInetAddress().getHostAddress());
 		
-		//send a final message, if provided
+		//send a final message, if provided, then accept no more
 		if( a_finalMessage != null){
-			try{
-				sendMessage(a_finalMessage);
-			}catch(IOException e){
-				System.out.println("Failed to send final message to "
+			try {
+				m_outbound.add( a_finalMessage );
+			} catch (IOException e) {
+				System.out.println("Failed to queue final message for " 
 						+ m_socket.getInetAddress().getHostAddress());
 			}
 		}
+		m_outbound.close();
 		
-		//remove the user from the dispatcher's table, if it exists
+		//remove the user from the dispatcher's table, if it exists, and 
+		//the requests to send it files that it can no longer answer
 		if( m_user != null ){
-			m_dispatcher.removeUser( m_user.getUserName() );
+			m_dispatcher.removeUser( m_user.getUserName(), this );
+			dropOffersToUser();
 		}
+		m_server.handlerTerminated( this );
 		
-		//kill the thread
-		this.interrupt();
+		//let the event loop close the channel once the final message is out
+		if( m_connection != null ){
+			m_connection.shutdown();
+			return;
+		}
 		
-		//close the connection
+		//the writer closes the socket once the final message is out, stop
+		//any read in progress
+		try {
+			m_socket.shutdownInput();
+		} catch (IOException e) {
+			//the writer closes the connection in any case
+		}
+	}
+	
+	/**
+	 * Drop the requests of other users to send this user a file, once this
+	 * 	user has logged out.
+	 * @author Andrzej Brynczka
+	 */
+	private void dropOffersToUser(){
+		for( String senderName : m_offerSenders ){
+			UserHandler senderHandler = 
+					m_dispatcher.getUserHandler( senderName );
+			if( senderHandler == null ){
+				continue;
+			}
+			
+			Iterator<FileTransRequestMessage> offers = 
+					senderHandler.m_transferOffers.values().iterator();
+			while( offers.hasNext() ){
+				if( offers.next().getReceiverName()
+						.equals( m_user.getUserName() ) ){
+					offers.remove();
+				}
+			}
+		}
+		m_offerSenders.clear();
+	}
+	
+	/**
+	 * Close the client's socket.
+	 * @author Andrzej Brynczka
+	 */
+	private void closeSocket(){
 		try {
 			m_socket.close();
 		} catch (IOException e) {
@@ -302,16 +929,51 @@ public class UserHandler extends Thread{
 	}
 	
 	/**
-	 * Handle the this user's attempt to login. If the login is successful,
-	 * the user receives a login message and a list of connected users.
-	 * Otherwise, an appropriate login message is sent back with information
-	 * on the failure.
-	 * @param a_inStream InputStream, the stream from which to read the user's
-	 * 	login message containing the login details
-	 * @throws IOException if an error occurs when reading from the stream
+	 * Handle the this user's attempt to login, recording how long it took
+	 * in the server's metrics once it has been answered.
+	 * @throws IOException if the login has not fully arrived, or is invalid
+	 * @see #readLogIn(int)
+	 * @author Andrzej Brynczka
+	 */
+	private void handleLogIn() throws IOException{
+		m_loginReadNanos = 0;
+		m_loginCheckNanos = 0;
+		
+		//a V1 login starts with the username's size, while a client asking
+		//for V2 sends its magic number and then a V2 login frame
+		int size = m_decoder.readLength();
+		if( size == ProtocolVersion.V2_MAGIC ){
+			int length = m_decoder.readFrameLength();
+			m_decoder.require( length );
+			
+			//every message from now on is a V2 frame, both ways
+			m_decoder.setProtocol( ProtocolVersion.V2 );
+			m_outbound.setProtocol( ProtocolVersion.V2 );
+			handleFrame( length );
+		}
+		else{
+			readLogIn( size );
+		}
+		
+		//time waiting on the socket, up to the last of the login's bytes
+		long readNanos = 
+				m_loginReadNanos != 0 ? m_loginReadNanos : System.nanoTime();
+		m_server.getMetrics().recordLogin( m_connectedNanos, 
+				readNanos - m_connectedNanos, m_loginCheckNanos,
+				m_user != null && !m_terminated.get() );
+	}
+	
+	/**
+	 * Read and act on this user's attempt to login. If the login is 
+	 * successful, the user receives a login message and a list of connected
+	 * users, unless it fetches the list in pages. Otherwise, an appropriate
+	 * login message is sent back with information on the failure.
+	 * @param a_nameSize int, the size of the username, already read from
+	 * 	the login
+	 * @throws IOException if the login has not fully arrived, or is invalid
 	 * @author Andrzej Brynczka
 	 */
-	private void handleLogIn(InputStream a_inStream) throws IOException{
+	private void readLogIn(int a_nameSize) throws IOException{
 		//create a basic login message, ready to be modified and sent
 		//to the user upon an error during login
 		LoginMessage loginMsg = new LoginMessage(
@@ -336,8 +998,7 @@ public class UserHandler extends Thread{
 		//Accept client's username
 		//********************************************************
 		//get the size of the client's username
-		System.out.println("Reading size of username...");
-		int size = readInt( a_inStream );
+		int size = a_nameSize;
 		System.out.println("Size of username: " + size);
 		
 		//check that the size of the username is valid
@@ -351,7 +1012,7 @@ public class UserHandler extends Thread{
 		
 		//get the client's username
 		System.out.println("Reading username...");
-		String userName = readString( a_inStream, size );
+		String userName = m_decoder.readString( size );
 		System.out.println("Username: " + userName);
 		
 		//check that the name has no spaces
@@ -359,6 +1020,7 @@ public class UserHandler extends Thread{
 			loginMsg.setCondition( 
 					LoginCondition.FAILURE_UsernameInvalidCharacters );
 			terminateConnection( loginMsg );
+			return;
 		}
 			
 		//check if a connected user already has the given username
@@ -374,7 +1036,7 @@ public class UserHandler extends Thread{
 		//********************************************************
 		//get the size of the password
 		System.out.println("Reading size of server password...");
-		size = readInt( a_inStream );
+		size = m_decoder.readLength();
 		System.out.println("Size of password: " + size);
 	
 		//check that the size is valid
@@ -388,9 +1050,17 @@ public class UserHandler extends Thread{
 		
 		//Read the password
 		System.out.println("Reading server password...");
-		String serverPassword = readString( a_inStream, size );
+		String serverPassword = m_decoder.readString( size );
 		System.out.println("Server password: " + serverPassword);
 		
+		//a V2 client lists the capabilities it supports after the password
+		int capabilities = 0;
+		if( m_decoder.getProtocol() == ProtocolVersion.V2 
+				&& m_decoder.hasRemaining() ){
+			capabilities = m_decoder.readLength();
+		}
+		m_loginReadNanos = System.nanoTime();
+		
 		//Check that the password is correct
 		if( !serverPassword.equals((String) m_server.getServerPass()) ){
 			//incorrect server password provided
@@ -400,94 +1070,109 @@ public class UserHandler extends Thread{
 			return;
 		}
 
-		//********************************************************
-		//Check if the client has any prior punishment still in effect
-		//********************************************************
-		
-		//check client's ban status
-		try {
-			System.out.println("Checking ban status...");
-			if( m_server.isBanned( m_socket.getInetAddress() ) ){
-				//This IP is banned
-				System.out.println(m_socket.getInetAddress().getHostAddress() 
-						+ " is banned.");
-				
-				loginMsg.setCondition( LoginCondition.FAILURE_IPBanned );
-				terminateConnection( loginMsg );
-				return;
-			}
+		//********************************************************
+		//Check if the client has any prior punishment still in effect
+		//********************************************************
+		
+		//check client's ban status, kept in memory by the server
+		long checkStart = System.nanoTime();
+		if( m_server.isBanned( m_socket.getInetAddress() ) ){
+			//This IP is banned
+			System.out.println(m_socket.getInetAddress().getHostAddress() 
+					+ " is banned.");
 			
-		} catch (SQLException | NullPointerException e) {
-			System.out.println( e.getMessage() );
-			System.out.println("Unable to determine ban status of client:"
-					+ m_socket.getInetAddress().getHostAddress() );
-			System.out.println("Client was provided access to server.");
+			m_loginCheckNanos = System.nanoTime() - checkStart;
+			loginMsg.setCondition( LoginCondition.FAILURE_IPBanned );
+			terminateConnection( loginMsg );
+			return;
 		}
 		
 		//check client's mute status
 		boolean muted = false;
-		try{
-			System.out.println("Checking mute status...");
-			if( m_server.isMuted( m_socket.getInetAddress() ) ){
-				//This IP is muted
-				System.out.println(m_socket.getInetAddress().getHostAddress() 
-						+ " is muted.");
-				muted = true;
-				
-				//let the client know it is muted
-				loginMsg.setCondition( LoginCondition.SUCCESS_Muted );
-			}
-		} catch (SQLException | NullPointerException e) {
-			System.out.println( e.getMessage() );
-			System.out.println("Unable to determine mute status of client:"
-					+ m_socket.getInetAddress().getHostAddress() );
-			System.out.println("Client will be free to speak.");
+		if( m_server.isMuted( m_socket.getInetAddress() ) ){
+			//This IP is muted
+			System.out.println(m_socket.getInetAddress().getHostAddress() 
+					+ " is muted.");
+			muted = true;
+			
+			//let the client know it is muted
+			loginMsg.setCondition( LoginCondition.SUCCESS_Muted );
 		}
+		m_loginCheckNanos = System.nanoTime() - checkStart;
 		
 		//********************************************************
 		//Create the new user and add it to the dispatcher's records
 		//********************************************************
 		m_user = new User(userName, m_socket, muted, false);
-		m_dispatcher.addUser(userName, this);
 		
-		//Alert the client that it is now logged-in
-		sendMessage( loginMsg );
+		//compress text-heavy messages both ways if the client supports it
+		int threshold = m_server.getCompressThreshold();
+		if( ( capabilities & FrameCompression.DEFLATE ) != 0 
+				&& threshold > 0 ){
+			m_decoder.setCompression( true );
+			m_outbound.setCompressThreshold( threshold );
+			loginMsg.setCompressThreshold( threshold );
+		}
+		
+		//announce other users in batches if the client accepts them
+		m_presenceBatches = 
+				( capabilities & UserListSyncMessage.PRESENCE ) != 0;
 		
-		//send the list of connected users
-		UserListMessage userListMsg = createUserListMessage();
-		sendMessage( userListMsg );
+		//and pass on files of 2GB and over if the client reads their sizes
+		m_largeFiles = ( capabilities & LargeFiles.CAPABILITY ) != 0;
+		
+		//hold the queue until the login response and user list are on it,
+		//so that no message from the dispatcher gets ahead of them
+		synchronized( this ){
+			if( !m_dispatcher.addUser(userName, this) ){
+				//another client took the name since it was checked
+				loginMsg.setCondition( LoginCondition.FAILURE_UsernameInUse );
+				terminateConnection( loginMsg );
+				return;
+			}
+			
+			//Alert the client that it is now logged-in
+			addMessageToQueue( loginMsg );
+			
+			//send the list of connected users, unless the client asks for
+			//it in pages
+			if( ( capabilities & UserListSyncMessage.PAGED ) == 0 ){
+				UserListMessage userListMsg = createUserListMessage();
+				addMessageToQueue( userListMsg );
+			}
+		}
 	}
 	
 	/**
 	 * Create a <code>RegularChatMessage</code> object from the incoming 
 	 * 	message and send it to the dispatcher.
-	 * @param a_inStream <code>InputStream</code>, the stream to the client's
-	 * 	socket from which the message is to be read
-	 * @throws IOException if an error occurs when reading from the stream
+	 * @throws IOException if the message has not fully arrived, or is
+	 * 	invalid
 	 */
-	private void handleRegChatMessage(InputStream a_inStream) 
-			throws IOException {
+	private void handleRegChatMessage() throws IOException{
 
 		System.out.println("in chat handler");
 		
+		if( m_user.isMuted() ){
+			//user is muted, skip its message without building it
+			m_decoder.skip( m_decoder.readLength() );
+			m_decoder.skip( m_decoder.readLength() );
+			return;
+		}
+		
 		//read the sender name
-		int sizeOfSenderName = readInt( a_inStream );
+		int sizeOfSenderName = m_decoder.readLength();
 		System.out.println("read size of name: " + sizeOfSenderName);
-		String sender = readString( a_inStream, sizeOfSenderName );
+		String sender = m_decoder.readString( sizeOfSenderName );
 		System.out.println("read name:" + sender);
 		
 		//read the int that specifies the size of the message
-		int sizeOfMessage = readInt( a_inStream );
+		int sizeOfMessage = m_decoder.readLength();
 		System.out.println( "read size of message: " + sizeOfMessage);
 		//read the chat message
-		String message = readString( a_inStream, sizeOfMessage );
+		String message = m_decoder.readString( sizeOfMessage );
 		System.out.println("read message: " + message );
 		
-		if( m_user.isMuted() ){
-			//user is muted, don't send its messages
-			return;
-		}
-		
 		//create the new message and provide it to the 
 		//dispatcher to send to others
 		ChatMessage chatMsg = new ChatMessage(
@@ -503,36 +1188,36 @@ public class UserHandler extends Thread{
 	 * Create a <code>PrivateChatMessage</code> object from the incoming
 	 * 	message and sent it to the dispatcher.
 	 * 
-	 * @param a_inStream <code>InputStream</code>, the stream to the client's
-	 * 	socket from which the message is to be read
-	 * @throws IOException if an error occurs when attempting to read from
-	 * 	the stream
+	 * @throws IOException if the message has not fully arrived, or is
+	 * 	invalid
 	 * @author Andrzej Brynczka
 	 */
-	private void handlePrivMessage(InputStream a_inStream) 
-			throws IOException{
+	private void handlePrivMessage() throws IOException{
 
+		if( m_user.isMuted() ){
+			//user is muted, skip its message without building it
+			m_decoder.skip( m_decoder.readLength() );
+			m_decoder.skip( m_decoder.readLength() );
+			m_decoder.skip( m_decoder.readLength() );
+			return;
+		}
+		
 		//read the sender name
-		int size = readInt( a_inStream );
-		String sender = readString( a_inStream, size );
+		int size = m_decoder.readLength();
+		String sender = m_decoder.readString( size );
 		
 		//get receiver name
-		size = readInt( a_inStream );
-		String receiver = readString( a_inStream, size );
+		size = m_decoder.readLength();
+		String receiver = m_decoder.readString( size );
 		
 		//get the message
-		size = readInt( a_inStream );
-		String message = readString( a_inStream, size );
-		
-		if( m_user.isMuted() ){
-			//user is muted, don't send its messages
-			return;
-		}
+		size = m_decoder.readLength();
+		String message = m_decoder.readString( size );
 		
 		//pass this message to the dispatcher, which will aid in sending
 		//it to the receiver
 		PrivateChatMessage privMsg = new PrivateChatMessage(
-				Message.MessageHeader.PRIV_SendChatMess, 
+				MessageHeader.PRIV_SendChatMess, 
 				message, 
 				sender, 
 				receiver);
@@ -541,32 +1226,127 @@ public class UserHandler extends Thread{
 	}
 	
 	
+	/**
+	 * Join or leave the channel named in the incoming message, awaring the
+	 * 	user of the failure if the channel's name is invalid, or the user
+	 * 	is already in, or not in, the channel.
+	 * 
+	 * @param a_header MessageHeader, the message's header, which details
+	 * 	whether the channel is to be joined or left
+	 * @throws IOException if the message has not fully arrived, or is
+	 * 	invalid
+	 * @author Andrzej Brynczka
+	 */
+	private void handleChannelMessage(MessageHeader a_header) 
+			throws IOException{
+		//read the channel's name
+		int size = m_decoder.readLength();
+		String channel = m_decoder.readString( size );
+		
+		//skip the user's name, the user can only join or leave for itself
+		m_decoder.skip( m_decoder.readLength() );
+		
+		String error = null;
+		if( !ChannelMessage.isValidChannel( channel ) ){
+			error = "ERROR: Invalid channel name.";
+		}
+		else if( a_header == MessageHeader.CHANNEL_Join ){
+			if( !m_dispatcher.joinChannel( channel, this ) ){
+				error = "ERROR: Unable to join #" + channel + ", already in "
+						+ "it or in too many channels.";
+			}
+		}
+		else if( !m_dispatcher.leaveChannel( channel, this ) ){
+			error = "ERROR: Not in channel #" + channel + ".";
+		}
+		
+		if( error != null ){
+			ServerMessage servMsg = new ServerMessage(
+					MessageHeader.SERVER_Error);
+			servMsg.setMessage( error );
+			addMessageToQueue( servMsg );
+		}
+	}
+	
+	/**
+	 * Create a <code>ChannelChatMessage</code> object from the incoming
+	 * 	message and send it to the dispatcher, if the user is a member of
+	 * 	the channel.
+	 * 
+	 * @throws IOException if the message has not fully arrived, or is
+	 * 	invalid
+	 * @author Andrzej Brynczka
+	 */
+	private void handleChannelChatMessage() throws IOException{
+		if( m_user.isMuted() ){
+			//user is muted, skip its message without building it
+			m_decoder.skip( m_decoder.readLength() );
+			m_decoder.skip( m_decoder.readLength() );
+			m_decoder.skip( m_decoder.readLength() );
+			return;
+		}
+		
+		//read the channel's name
+		int size = m_decoder.readLength();
+		String channel = m_decoder.readString( size );
+		
+		//skip the sender name, members can only speak for themselves
+		m_decoder.skip( m_decoder.readLength() );
+		
+		//get the message
+		size = m_decoder.readLength();
+		String message = m_decoder.readString( size );
+		
+		if( !m_dispatcher.isChannelMember( channel, this ) ){
+			ServerMessage servMsg = new ServerMessage(
+					MessageHeader.SERVER_Error);
+			servMsg.setMessage( "ERROR: Not in channel #" + channel + "." );
+			addMessageToQueue( servMsg );
+			return;
+		}
+		
+		//pass this message to the dispatcher, which sends it to the
+		//channel's members only
+		ChannelChatMessage chanMsg = new ChannelChatMessage(
+				MessageHeader.CHANNEL_SendChatMess,
+				channel,
+				message,
+				m_user.getUserName());
+		
+		m_dispatcher.addMessage( chanMsg );
+	}
+	
 	/**
 	 * Organizes the handling of all file transfer messages
 	 * 
-	 * @param a_inStream <code>InputStream</code>, the stream to read from
-	 * @throws IOException if an error occurs when reading from the stream
+	 * @throws IOException if the message has not fully arrived, or is
+	 * 	invalid
 	 * @author Andrzej Brynczka
 	 */
-	private void handleFileTransMessage(InputStream a_inStream) 
-			throws IOException { 
+	private void handleFileTransMessage() throws IOException{ 
 		
 		//get the transfer stage to determine the point of transfer
-		byte stage = (byte) a_inStream.read();
+		byte stage = m_decoder.readByte();
 
 		System.out.println("File transmission message, stage: " 
 				+ TransferStage.fromNum(stage).toString());
 		//read the message based on its current stage in the transfer
 		switch( TransferStage.fromNum( stage ) ){
 		case STAGE1_RequestFromSender:
-			_FileTranRequest( a_inStream );
+			_FileTranRequest();
 			break;
 		case STAGE2_ResponseToRequest:
 		case STAGE4_TransEndResponse:
-			_FileTransResponse( a_inStream, TransferStage.fromNum( stage ));
+			_FileTransResponse( TransferStage.fromNum( stage ) );
 			break;
 		case STAGE3_DataTransmission:
-			_FileTransData( a_inStream );
+			_FileTransData();
+			break;
+		case STAGE3_DataCredit:
+			_FileTransCredit();
+			break;
+		case STAGE2_ResumeRequest:
+			_FileTransResume();
 			break;
 		default:
 			break;
@@ -578,36 +1358,45 @@ public class UserHandler extends Thread{
 	 * 	message and sends it to the dispatcher to ensure that the proper
 	 * 	target receives it.
 	 * 
-	 * @param a_inStream <code>InputStream</code>, the stream to the client's
-	 * 	socket from which the message is to be read
-	 * @throws IOException if an error occurs when reading from the stream
+	 * @throws IOException if the message has not fully arrived, or is
+	 * 	invalid
 	 * @author Andrzej Brynczka
 	 */
-	private void _FileTranRequest(InputStream a_inStream) 
-			throws IOException {
+	private void _FileTranRequest() throws IOException{
 
 		System.out.println("in trans request");
 		
 		//read the current file transfer ID( just 0, ID will be generated next )
-		int transferID = readInt( a_inStream );
+		int transferID = m_decoder.readInt();
 		System.out.println(" id " + transferID );
 		
 		//read the receiver's username
-		int size = readInt( a_inStream );
+		int size = m_decoder.readLength();
 		System.out.println(" Size " + size);
 		
-		String receiver = readString( a_inStream, size );
+		String receiver = m_decoder.readString( size );
 		System.out.println(" receiver " + receiver );
 		
 		//read the file name
-		size = readInt( a_inStream );
+		size = m_decoder.readLength();
 		System.out.println(" Size " + size);
 		
-		String fileName = readString( a_inStream, size );
+		String fileName = m_decoder.readString( size );
 		System.out.println(" filename " + fileName );
 		
 		//read the int that specifies size of the file
-		int fileSize = readInt( a_inStream );
+		long fileSize = m_decoder.readInt();
+		
+		//a V2 client may follow with the options it asks for, and the
+		//size of a file too large for the int
+		int options = 0;
+		if( m_decoder.getProtocol() == ProtocolVersion.V2 
+				&& m_decoder.hasRemaining() ){
+			options = m_decoder.readByte();
+			if( ( options & LargeFiles.LARGE ) != 0 ){
+				fileSize = m_decoder.readLong();
+			}
+		}
 		System.out.println(" fileSize " + fileSize);
 		
 		//client cannot send files to itself
@@ -618,6 +1407,37 @@ public class UserHandler extends Thread{
 			addMessageToQueue( servMsg );
 			return;
 		}
+		
+		//nor send large files to clients that cannot read their sizes
+		UserHandler receiverHandler = m_dispatcher.getUserHandler( receiver );
+		if( LargeFiles.isLarge( fileSize ) && receiverHandler != null 
+				&& !receiverHandler.acceptsLargeFiles() ){
+			ServerMessage servMsg = 
+					new ServerMessage(MessageHeader.SERVER_Error);
+			servMsg.setMessage("ERROR: " + receiver 
+					+ " is unable to receive files of 2GB and over.");
+			addMessageToQueue( servMsg );
+			return;
+		}
+		
+		//nor to users that are not logged in, nor while too many of the 
+		//user's requests await an answer
+		if( receiverHandler == null 
+				&& !m_dispatcher.existsUserName( receiver ) ){
+			ServerMessage servMsg = 
+					new ServerMessage(MessageHeader.SERVER_Error);
+			servMsg.setMessage("ERROR: " + receiver + " is not logged in.");
+			addMessageToQueue( servMsg );
+			return;
+		}
+		if( m_transferOffers.size() >= MAX_TRANSFER_OFFERS ){
+			ServerMessage servMsg = 
+					new ServerMessage(MessageHeader.SERVER_Error);
+			servMsg.setMessage("ERROR: Too many of your file requests are "
+					+ "awaiting an answer.");
+			addMessageToQueue( servMsg );
+			return;
+		}
 		System.out.println("got request to: " + receiver + " with " 
 				+ fileName + " size "+ fileSize);
 		
@@ -634,6 +1454,27 @@ public class UserHandler extends Thread{
 					fileName, 
 					fileSize);
 			
+			//offer the receiver a direct transfer, with a token for the 
+			//sender to present once it connects
+			if( ( options & DirectTransfer.DIRECT ) != 0 
+					&& m_server.allowDirectTransfers() ){
+				fileTranMessage.setDirectToken( DirectTransfer.newToken() );
+			}
+			
+			//ask the receiver to grant the sender credits for the data,
+			//and let it resume a transfer it holds part of
+			fileTranMessage.setCredits( 
+					( options & TransferCredits.CREDITS ) != 0 );
+			fileTranMessage.setResume( 
+					( options & TransferResume.RESUME ) != 0 );
+			
+			//a receiver of another node answers through its own node, so
+			//only the requests to this node's users are kept
+			if( receiverHandler != null ){
+				m_transferOffers.put( newTransferID, fileTranMessage );
+				receiverHandler.m_offerSenders.add( m_user.getUserName() );
+			}
+			
 			m_dispatcher.addMessage( fileTranMessage );	
 		} catch (Exception e) {
 			// FILE SIZE INVALID
@@ -658,32 +1499,84 @@ public class UserHandler extends Thread{
 	 * Create a <code>FileTransResponseMessage</code> object for the incoming
 	 * 	message and send it to the dispatcher.
 	 * 
-	 * @param a_inStream <code>InputStream</code>, the stream to the client's
-	 * 	socket from which the message is to be read
-	 * @throws IOException if an error occurs when reading from the stream
+	 * @throws IOException if the message has not fully arrived, or is
+	 * 	invalid
 	 * @author Andrzej Brynczka
 	 */
-	private void _FileTransResponse(InputStream a_inStream, 
-			TransferStage a_stage) throws IOException{
+	private void _FileTransResponse(TransferStage a_stage) 
+			throws IOException{
 	
 		System.out.println("got response");
 		//read the current file transfer ID
-		int transferID = readInt( a_inStream );
+		int transferID = m_decoder.readInt();
 		
 		
 		//read the receiver's username
-		int size = readInt( a_inStream );
-		String receiver = readString( a_inStream, size );
+		int size = m_decoder.readLength();
+		String receiver = m_decoder.readString( size );
 		
 		//get the filename of the file to be transfered
-		size = readInt( a_inStream );
-		String fileName = readString( a_inStream, size );
+		size = m_decoder.readLength();
+		String fileName = m_decoder.readString( size );
 		
 		//read the byte that specifies the response
-		byte response = (byte) a_inStream.read();
-		
+		byte response = m_decoder.readByte();
+		
+		//a V2 receiver accepting a direct transfer follows with the port
+		//it listens on, and one granting credits with the sender's window
+		int directPort = 0;
+		int creditWindow = 0;
+		boolean resume = false;
+		if( a_stage == TransferStage.STAGE2_ResponseToRequest 
+				&& m_decoder.getProtocol() == ProtocolVersion.V2 
+				&& m_decoder.hasRemaining() ){
+			int options = m_decoder.readByte();
+			if( ( options & DirectTransfer.DIRECT ) != 0 ){
+				directPort = m_decoder.readInt();
+			}
+			if( ( options & TransferCredits.CREDITS ) != 0 ){
+				creditWindow = m_decoder.readInt();
+			}
+			resume = ( options & TransferResume.RESUME ) != 0;
+		}
 	
 		System.out.println("response: " + response );
+		FileTransRequestMessage offer = null;
+		if( a_stage == TransferStage.STAGE2_ResponseToRequest ){
+			UserHandler senderHandler = m_dispatcher.getUserHandler( receiver );
+			if( senderHandler != null ){
+				//only the request's own receiver may answer it, so that no
+				//other user can take its options or have its data relayed
+				offer = senderHandler.m_transferOffers.get( transferID );
+				if( offer != null && offer.getReceiverName()
+						.equals( m_user.getUserName() ) ){
+					senderHandler.m_transferOffers.remove( transferID );
+				}
+				else{
+					offer = null;
+				}
+				
+				//relay the sender's data straight to this user from now on,
+				//as the sender falls back to relaying if it cannot connect
+				if( offer != null && MessageResponse.fromByte( response ) 
+						== MessageResponse.Success ){
+					senderHandler.m_relays.put( transferID, this );
+				}
+			}
+		}
+		else if( a_stage == TransferStage.STAGE4_TransEndResponse ){
+			//the transfer has ended for both of its users
+			m_activeTransfers.remove( transferID );
+			m_relays.remove( transferID );
+			m_transferOffers.remove( transferID );
+			UserHandler otherHandler = m_dispatcher.getUserHandler( receiver );
+			if( otherHandler != null ){
+				otherHandler.m_activeTransfers.remove( transferID );
+				otherHandler.m_relays.remove( transferID );
+				otherHandler.m_transferOffers.remove( transferID );
+			}
+		}
+
 		//create the new file message object and give it to the dispatcher
 		FileTransResponseMessage tranMessage = new FileTransResponseMessage(
 				MessageHeader.FILE_Transfer, 
@@ -693,6 +1586,23 @@ public class UserHandler extends Thread{
 				receiver, 
 				fileName, 
 				MessageResponse.fromByte(response) );
+		
+		//pass the sender where to stream the file, at this user's address
+		//as seen by the server, and the window it was granted
+		if( offer != null && MessageResponse.fromByte( response ) 
+				== MessageResponse.Success ){
+			if( offer.getDirectToken() != null 
+					&& directPort > 0 && directPort <= 65535 ){
+				tranMessage.setDirectEndpoint( 
+						m_socket.getInetAddress().getHostAddress(), 
+						directPort, offer.getDirectToken() );
+				m_server.getMetrics().recordDirectTransfer();
+			}
+			if( offer.isCredits() && creditWindow > 0 ){
+				tranMessage.setCreditWindow( creditWindow );
+			}
+			tranMessage.setResume( offer.isResume() && resume );
+		}
 
 		m_dispatcher.addMessage( tranMessage );
 	}
@@ -700,38 +1610,50 @@ public class UserHandler extends Thread{
 	/**
 	 * Creates the <code>FileTransDataMessage</code> object for the incoming 
 	 * 	message and adds it to the message dispatcher's message queue.
+	 * <p>
+	 * Data of a transfer the receiver has accepted is instead relayed 
+	 * 	straight to the receiver by <code>relayFileData</code>, without
+	 * 	a message or the dispatcher.
 	 * 
-	 * @param a_inStream <code>InputStream</code>, the stream to the client's
-	 * 	socket from which the message is to be read
-	 * @throws IOException if an error occurs when reading from the stream
+	 * @throws IOException if the message has not fully arrived, or is
+	 * 	invalid
 	 * @author Andrzej Brynczka
 	 */
-	private void _FileTransData(InputStream a_inStream) 
-			throws IOException{
+	private void _FileTransData() throws IOException{
 		System.out.println("sending data");
 		
 		//read the int that specifies the current file transfer ID
-		int transferID = readInt( a_inStream );
+		int transferID = m_decoder.readInt();
 	
 		//read the receiver's username
-		int size = readInt( a_inStream );
-		String receiver = readString( a_inStream, size );
+		int size = m_decoder.readLength();
+		String receiver = m_decoder.readString( size );
 		
 		//read the file name
-		size = readInt( a_inStream );
-		String fileName = readString( a_inStream, size );
+		size = m_decoder.readLength();
+		String fileName = m_decoder.readString( size );
 			
 		//get the int specifying the number of the current data segment
-		int curSeg = readInt( a_inStream );
+		int curSeg = m_decoder.readInt();
 		
 		//get the int specifying the total number of data segments
-		int totSeg = readInt( a_inStream );
+		int totSeg = m_decoder.readInt();
 		
 		//get the int specifying the size of the current segment
-		int segSize = readInt( a_inStream );
+		int segSize = m_decoder.readLength();
+		
+		//the segment stays in the buffer until it is known where it goes
+		m_decoder.require( segSize );
+		if( !m_activeTransfers.contains( transferID ) ){
+			m_activeTransfers.add( transferID );
+		}
+		if( relayFileData( transferID, receiver, fileName, curSeg, totSeg, 
+				segSize ) ){
+			return;
+		}
 		
 		//get the current data segment
-		byte[] messageData = readBytes( a_inStream, segSize, segSize);
+		byte[] messageData = m_decoder.readBytes( segSize );
 		
 		System.out.println("Server got data segment " + curSeg);
 		System.out.println("receiver : " + receiver +" segSize: " + segSize );
@@ -748,8 +1670,22 @@ public class UserHandler extends Thread{
 					curSeg, totSeg, segSize, 
 					messageData);
 			
+			//let the receiver's queue count the data while it is on its way
+			UserHandler receiverHandler = 
+					m_dispatcher.getUserHandler( receiver );
+			OutboundQueue receiverQueue = null;
+			if( receiverHandler != null ){
+				receiverQueue = receiverHandler.getOutboundQueue();
+				receiverQueue.expect( dataMessage );
+			}
+			
 			System.out.println("sent data");
 			m_dispatcher.addMessage( dataMessage );
+			
+			//hold back further data while the receiver is falling behind
+			if( receiverQueue != null ){
+				pauseForReceiver( receiverQueue, receiver );
+			}
 		} catch (Exception e) {
 			// FILE SEGMENT ERROR
 			
@@ -768,24 +1704,172 @@ public class UserHandler extends Thread{
 		}
 	}
 	
+	/**
+	 * Create a <code>FileTransCreditMessage</code> object for the credits
+	 * 	a file's receiver grants its sender, and send it to the dispatcher.
+	 * 
+	 * @throws IOException if the message has not fully arrived, or is
+	 * 	invalid
+	 * @see TransferCredits
+	 */
+	private void _FileTransCredit() throws IOException{
+		//read the current file transfer ID
+		int transferID = m_decoder.readInt();
+		
+		//read the username of the file's sender, granted the credits
+		int size = m_decoder.readLength();
+		String receiver = m_decoder.readString( size );
+		
+		//read the file name
+		size = m_decoder.readLength();
+		String fileName = m_decoder.readString( size );
+		
+		//read the number of credits granted
+		int credits = m_decoder.readInt();
+		if( credits <= 0 ){
+			return;
+		}
+		
+		m_dispatcher.addMessage( new FileTransCreditMessage(
+				MessageHeader.FILE_Transfer, 
+				transferID, 
+				TransferStage.STAGE3_DataCredit, 
+				m_user.getUserName(), 
+				receiver, 
+				fileName, 
+				credits) );
+	}
+	
+	/**
+	 * Create a <code>FileTransResumeMessage</code> object for the segments
+	 * 	a file's receiver is missing, in a resumed transfer, and send it to 
+	 * 	the dispatcher.
+	 * 
+	 * @throws IOException if the message has not fully arrived, or is
+	 * 	invalid
+	 * @see TransferResume
+	 */
+	private void _FileTransResume() throws IOException{
+		//read the current file transfer ID
+		int transferID = m_decoder.readInt();
+		
+		//read the username of the file's sender
+		int size = m_decoder.readLength();
+		String receiver = m_decoder.readString( size );
+		
+		//read the file name
+		size = m_decoder.readLength();
+		String fileName = m_decoder.readString( size );
+		
+		//read the ranges of missing segments
+		int count = m_decoder.readLength();
+		if( count > TransferResume.MAX_RANGES ){
+			throw new IOException("Too many resume ranges: " + count);
+		}
+		List<int[]> ranges = new ArrayList<int[]>( count );
+		for( int i = 0; i < count; i++ ){
+			int first = m_decoder.readInt();
+			int last = m_decoder.readInt();
+			if( first < 1 || last < first ){
+				throw new IOException("Invalid resume range");
+			}
+			ranges.add( new int[]{ first, last } );
+		}
+		
+		m_dispatcher.addMessage( new FileTransResumeMessage(
+				MessageHeader.FILE_Transfer, 
+				transferID, 
+				TransferStage.STAGE2_ResumeRequest, 
+				m_user.getUserName(), 
+				receiver, 
+				fileName, 
+				ranges) );
+	}
+	
+	/**
+	 * Relay a file data segment straight from the decoder's buffer to the
+	 * 	receiver of a transfer it has accepted. The receiver's frame is built
+	 * 	in an array from the server's pool, with the segment copied into it
+	 * 	once, and added to the receiver's queue without passing through the
+	 * 	dispatcher.
+	 * <p>
+	 * Segments of transfers that are not being relayed, or that are 
+	 * 	invalid, are left in the buffer for the dispatcher's path, which 
+	 * 	also reports any errors to the sender.
+	 * 
+	 * @param a_transferID <code>int</code>, the transfer's ID
+	 * @param a_receiver <code>String</code>, the receiver's username
+	 * @param a_fileName <code>String</code>, the file's name
+	 * @param a_curSeg <code>int</code>, the segment's number
+	 * @param a_totSeg <code>int</code>, the total number of segments
+	 * @param a_segSize <code>int</code>, the segment's size, all of which
+	 * 	has arrived
+	 * @return <code>boolean</code> - <code>true</code> if the segment was
+	 * 	relayed, <code>false</code> if it is left in the buffer
+	 * @throws IOException if the segment cannot be read
+	 * @author Andrzej Brynczka
+	 */
+	private boolean relayFileData(int a_transferID, String a_receiver, 
+			String a_fileName, int a_curSeg, int a_totSeg, int a_segSize) 
+					throws IOException{
+		UserHandler receiverHandler = m_relays.get( a_transferID );
+		if( receiverHandler == null ){
+			return false;
+		}
+		
+		//the receiver must still be the logged in user that accepted
+		if( receiverHandler.m_terminated.get() 
+				|| !receiverHandler.m_user.getUserName().equals( a_receiver )
+				|| m_dispatcher.getUserHandler( a_receiver ) 
+						!= receiverHandler ){
+			m_relays.remove( a_transferID );
+			return false;
+		}
+		
+		//invalid segments are reported through the dispatcher's path
+		if( a_segSize > FileTransDataMessage.MAX_SEGMENT_SIZE 
+				|| a_curSeg < 1 || a_curSeg > a_totSeg ){
+			return false;
+		}
+		
+		//write the fields sent to the receiver, followed by the segment
+		OutboundQueue receiverQueue = receiverHandler.getOutboundQueue();
+		MessageWriter writer = new MessageWriter( receiverQueue.getProtocol() );
+		writer.writeHeader( MessageHeader.FILE_Transfer );
+		writer.writeByte( TransferStage.STAGE3_DataTransmission.getCode() );
+		writer.writeInt( a_transferID );
+		writer.writeString( m_user.getUserName() );
+		writer.writeString( a_fileName );
+		writer.writeInt( a_curSeg );
+		writer.writeInt( a_totSeg );
+		writer.writeLength( a_segSize );
+		MessageFrame frame = writer.toFrame( m_server.getRelayFramePool(), 
+				m_decoder.readSlice( a_segSize ) );
+		
+		receiverHandler.addFrameToQueue( frame, MessageHeader.FILE_Transfer );
+		m_server.getMetrics().recordRelayedSegment();
+		
+		//hold back further data while the receiver is falling behind
+		pauseForReceiver( receiverQueue, a_receiver );
+		return true;
+	}
+	
 	/**
 	 * Handle the user's attempt at logging in as an admin. An 
 	 * AdminLoginMessage is sent back with the results of the attempt.
 	 * 
-	 * @param a_inStream InputStream, the stream from which to read the
-	 * 	user's sent login details.
-	 * @throws IOException if an error occurs when reading from the
-	 *  provided stream
+	 * @throws IOException if the message has not fully arrived, or is
+	 * 	invalid
 	 *  @author Andrzej Brynczka
 	 */
-	private void handleAdminLogin(InputStream a_inStream) throws IOException {
+	private void handleAdminLogin() throws IOException{
 		System.out.println("reading admin login message");
 		
 		//read the password length
-		int size = readInt( a_inStream );
+		int size = m_decoder.readLength();
 		
 		//read the provided password
-		String password = readString( a_inStream, size);
+		String password = m_decoder.readString( size );
 	
 		//determine if the password was valid
 		MessageResponse passwordValidity;
@@ -812,43 +1896,69 @@ public class UserHandler extends Thread{
 		m_dispatcher.addMessage( adLoginMsg );
 	}
 	
+	/**
+	 * Handles the user's request for a page of the user list, or for the 
+	 * changes to it since the version the user last synced to, passing it
+	 * to the dispatcher to be answered.
+	 * 
+	 * @throws IOException if the message has not fully arrived, or is
+	 * 	invalid
+	 * @author Andrzej Brynczka
+	 */
+	private void handleUserListSync() throws IOException{
+		//read the roster and version the user last synced to
+		int rosterID = m_decoder.readInt();
+		int version = m_decoder.readInt();
+		
+		//read the last name of the previous page, if continuing one
+		int size = m_decoder.readLength();
+		String after = m_decoder.readString( size );
+		
+		UserListSyncMessage syncMsg = new UserListSyncMessage(
+				MessageHeader.SERVER_UserListSync,
+				m_user.getUserName(),
+				rosterID,
+				version,
+				after);
+		
+		m_dispatcher.addMessage( syncMsg );
+	}
+	
 	/**
 	 * Handles the user's admin punishment message. Acts out the
 	 * message's punishment if the provided information is valid.
 	 * 
 	 * @param a_header MessageHeader, the message's header, which
 	 * details the type of punishment to be enacted
-	 * @param a_inStream InputStream, the stream from which the 
-	 * 	message details are to be read
-	 * @throws IOException if an error occurs when reading from
-	 * 	the message stream
+	 * @throws IOException if the message has not fully arrived, or is
+	 * 	invalid
 	 * @author Andrzej Brynczka
 	 */
-	private void handleAdminPunish(MessageHeader a_header, 
-			InputStream a_inStream) throws IOException {
+	private void handleAdminPunish(MessageHeader a_header) 
+			throws IOException {
 
 		System.out.println("handling admin punish message");
 		
 		
 		//get the punishment's 4-character reference code
-		String punishCode = readString( a_inStream, 4);
+		String punishCode = m_decoder.readString( 4 );
 			
 		//get the punishment direction's byte-based code
-		byte directionCode = (byte) a_inStream.read();
+		byte directionCode = m_decoder.readByte();
 		
 		//get the name of the name of the admin that requested the punishment
-		int size = readInt( a_inStream );
-		String adminName = readString( a_inStream, size );
+		int size = m_decoder.readLength();
+		String adminName = m_decoder.readString( size );
 		
 		//get the name of the target
-		size = readInt( a_inStream );
-		String targetName = readString( a_inStream, size );
+		size = m_decoder.readLength();
+		String targetName = m_decoder.readString( size );
 		
 		//get the IP of the target if applicable
 		String targetIP = null;
 		if( a_header == MessageHeader.ADMIN_RemovePunishment ){
-			size = readInt( a_inStream );
-			targetIP = readString( a_inStream, size );
+			size = m_decoder.readLength();
+			targetIP = m_decoder.readString( size );
 		}
 		
 		//check if the user sending the request is an admin
@@ -874,8 +1984,15 @@ public class UserHandler extends Thread{
 
 		if( a_header == MessageHeader.ADMIN_PunishUser ){
 			//get the target's ip to check against the database of punishments
-			targetIP = m_dispatcher.getIP( punMsg.getTargetName() )
-							.getHostAddress();
+			InetAddress address = m_dispatcher.getIP( punMsg.getTargetName() );
+			if( address != null ){
+				targetIP = address.getHostAddress();
+			}
+			else if( punishment != Punishment.KICK 
+					&& PunishmentIndex.isAddressRange( targetName ) ){
+				//no such user, the target is an address or range to punish
+				targetIP = targetName;
+			}
 		}
 		
 		//determine if the request can be acted on by checking if the IP
@@ -883,47 +2000,88 @@ public class UserHandler extends Thread{
 		if( targetIP == null ){
 			//target IP address not found, cannot act on the request
 			punMsg.setCommitStatus( false );
+			m_dispatcher.addMessage( punMsg );
+			return;
 		}
-		else{
-			//target IP found, attempt to put the punishment into effect
-			
-			try {	
-				if( punishment == Punishment.BAN ){
-					//set the ban status(auto-kicked from server if being set)
-					m_server.saveBanStatus( targetName, targetIP, direction);
-				}
-				else if( punishment == Punishment.MUTE ){
-					//set the target's MUTE status
-					m_server.saveMuteStatus( targetName, targetIP, direction );
-				}
-				else{
-					//last remaining punishment is KICK, can only be set
-					m_server.kickUser( targetName );
-				}
-				
-				//punishment acted on, modify message to reflect the change
-				punMsg.setCommitStatus( true );
-				
-			} catch (SQLException e) {
-				//error on setting the punishment
-				System.out.println("ERROR: Attempting to set punishment.");
-				System.out.println( e.getMessage() );
+		
+		//target IP found, put the punishment into effect on the server's
+		//database thread, so that no event loop waits on the database
+		final AdminPunishMessage request = punMsg;
+		final String requestIP = targetIP;
+		m_server.runDatabaseTask( new Runnable(){
+			@Override
+			public void run(){
+				commitPunishment( request, requestIP );
+			}
+		});
+	}
+	
+	/**
+	 * Put an admin's punishment into effect, then send back a response
+	 * 	indicating whether or not it was committed. Run on the server's
+	 * 	database thread.
+	 * 
+	 * @param a_punMsg AdminPunishMessage, the admin's request
+	 * @param a_targetIP String, the IP or range to punish
+	 * @author Andrzej Brynczka
+	 */
+	private void commitPunishment(AdminPunishMessage a_punMsg, 
+			String a_targetIP){
+		String targetName = a_punMsg.getTargetName();
+		Direction direction = a_punMsg.getDirection();
+		
+		try {	
+			if( a_punMsg.getPunishment() == Punishment.BAN ){
+				//set the ban status(auto-kicked from server if being set)
+				m_server.saveBanStatus( targetName, a_targetIP, direction);
+			}
+			else if( a_punMsg.getPunishment() == Punishment.MUTE ){
+				//set the target's MUTE status
+				m_server.saveMuteStatus( targetName, a_targetIP, direction );
 			}
+			else{
+				//last remaining punishment is KICK, can only be set
+				m_server.kickUser( targetName );
+			}
+			
+			//punishment acted on, modify message to reflect the change
+			a_punMsg.setCommitStatus( true );
+			
+		} catch (SQLException e) {
+			//error on setting the punishment
+			System.out.println("ERROR: Attempting to set punishment.");
+			System.out.println( e.getMessage() );
 		}
 		
 		//send back a response indicating whether or not the punishment was
 		//committed by the server
-		m_dispatcher.addMessage( punMsg );
+		m_dispatcher.addMessage( a_punMsg );
 	}
 	
 	/**
-	 * Use when the user has requested a list of punished users. Queries
-	 * the server for the list of users and sends it back, or an
-	 * error message indicating the failure.
+	 * Use when the user has requested a list of punished users. The list
+	 * is read on the server's database thread, so that no event loop 
+	 * waits on the database.
 	 * 
 	 * @author Andrzej Brynczka
 	 */
 	private void handleAdminPunishList(){
+		m_server.runDatabaseTask( new Runnable(){
+			@Override
+			public void run(){
+				sendPunishList();
+			}
+		});
+	}
+	
+	/**
+	 * Query the server for the list of punished users and send it back, 
+	 * or an error message indicating the failure. Run on the server's 
+	 * database thread.
+	 * 
+	 * @author Andrzej Brynczka
+	 */
+	private void sendPunishList(){
 		try {
 			//create the message of punished users
 			AdminPunishListMessage aplMsg = new AdminPunishListMessage( 
@@ -942,73 +2100,4 @@ public class UserHandler extends Thread{
 			addMessageToQueue( servMsg );
 		}
 	}
-	
-	/**
-	 * Reads an int from the given stream. 
-	 * 
-	 * @param a_stream <code>InputStream</code>, the stream to read from
-	 * @return <code>int</code>, an int read from the stream
-	 * @throws IOException if an error occurs when reading from the stream
-	 * @author Andrzej Brynczka
-	 */
-	private int readInt(InputStream a_stream) throws IOException{
-		DataInputStream inData = new DataInputStream( a_stream );
-		
-		return inData.readInt();
-	}
-	
-	/**
-	 * Reads a string from the input stream. 
-	 * 
-	 * @param a_stream <code>InputStream</code>, the stream to read from
-	 * @param a_sizeOfString <code>int</code>, the length(# of chars) of 
-	 * 	the string
-	 * @return <code>String</code>, the string read from the stream
-	 * @throws IOException if the stream is closed when attempting to read 
-	 * 	from it, or an error occurs during the read
-	 * @author Andrzej Brynczka
-	 */
-	private String readString(InputStream a_stream, int a_sizeOfString) 
-			throws IOException{
-		
-		byte[] readData = readBytes(a_stream, a_sizeOfString, a_sizeOfString);
-		
-		String readString = new String( readData );
-		return readString;
-	}
-	
-	/**
-	 * Reads an array of bytes from the given stream.
-	 * 
-	 * @param a_stream <code>InputStream</code>, the stream to read from
-	 * @param a_bytesToRead <code>int</code>, the number of bytes to read
-	 * @param a_bufferSize <code>int</code>, the size to set the read buffer
-	 * @return <code>byte[]</code>, the bytes read from the stream
-	 * @throws IOException if an error occurs when reading from the stream or 
-	 *  if the stream is closed when attempting to read from it
-	 * @author Andrzej Brynczka
-	 */
-	private byte[] readBytes(InputStream a_stream, int a_bytesToRead, 
-			int a_bufferSize) throws IOException{
-		byte[] data = new byte[a_bufferSize];//the data read from the stream
-		int totalRead = 0;//number of bytes read in total
-		int currRead = 0;//number of bytes read in current read
-		
-		do{
-			//read the desired number of bytes
-			currRead = a_stream.read(data, 
-					totalRead, a_bytesToRead - totalRead);
-		
-			//check that the read was valid
-			if( currRead == -1 ){
-				throw new IOException("Input stream was closed with EOF");
-			}
-			
-			//update the total number of bytes read
-			totalRead += currRead;
-			
-		}while( totalRead != a_bytesToRead );
-		
-		return data;
-	}
 }
@@ -0,0 +1,404 @@
+package server.framework;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registry of the users logged into the server, used by the
+ * <code>MessageDispatcher</code>.
+ * <p>
+ * Users are looked up by name, and by IP address through a secondary index,
+ * without locking. Every user belongs to one of a fixed number of
+ * partitions, chosen from its name, and each partition keeps an immutable
+ * snapshot of its handlers that is replaced whenever a user logs in or out,
+ * so broadcasts iterate a plain array that can never change underneath
+ * them. Logins and logouts are rare next to the messages sent, which keeps
+ * the copying cheap.
+ * <p>
+ * The usernames also form a versioned roster, whose version is raised by
+ * every login and logout as it is announced to the other users, so that
+ * the roster never shows a change before its announcement is on its way.
+ * Its names are kept sorted, so that clients can
+ * fetch them in pages, and the most recent changes are remembered, so that
+ * a client that synced to an earlier version only needs the names that
+ * changed since. The roster's identity is chosen at random when the server
+ * starts, so versions from another run of the server are never mistaken
+ * for its own.
+ *
+ * @author Andrzej Brynczka
+ */
+public class UserRegistry {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Number of roster changes remembered, a power of 2 */
+	private static final int HISTORY_SIZE = 1024;
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The logged in users' handlers, by username */
+	private final ConcurrentHashMap<String, UserHandler> m_byName;
+
+	/** The logged in users' handlers, by the IP address they connected from */
+	private final ConcurrentHashMap<InetAddress, Set<UserHandler>> m_byAddress;
+
+	/** Snapshot of every partition's handlers, replaced on every change */
+	private final AtomicReferenceArray<UserHandler[]> m_partitions;
+
+	/**
+	 * Snapshot of the logged in usernames, or <code>null</code> if it must
+	 * be rebuilt after a change
+	 */
+	private volatile List<String> m_names;
+
+	/** The announced usernames, in sorted order */
+	private final ConcurrentSkipListSet<String> m_sortedNames;
+
+	/** The identity of this roster, never 0 */
+	private final int m_rosterID;
+
+	/** The roster's version, raised by every announced login and logout */
+	private volatile int m_version;
+
+	/** Names changed by the latest versions, by version */
+	private final String[] m_changedNames;
+
+	/** Whether each of the latest versions added or removed its name */
+	private final boolean[] m_changeAdded;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create an empty registry.
+	 *
+	 * @param a_partitions <code>int</code>, the number of partitions users
+	 * 	are spread over (at least 1)
+	 */
+	UserRegistry(int a_partitions){
+		m_byName = new ConcurrentHashMap<String, UserHandler>();
+		m_byAddress = new ConcurrentHashMap<InetAddress, Set<UserHandler>>();
+		m_partitions = new AtomicReferenceArray<UserHandler[]>( 
+				Math.max( 1, a_partitions ) );
+		for( int i = 0; i < m_partitions.length(); i++ ){
+			m_partitions.set( i, new UserHandler[0] );
+		}
+		m_names = Collections.emptyList();
+		m_sortedNames = new ConcurrentSkipListSet<String>();
+
+		int rosterID = 0;
+		Random random = new Random();
+		while( rosterID == 0 ){
+			rosterID = random.nextInt();
+		}
+		m_rosterID = rosterID;
+		m_version = 0;
+		m_changedNames = new String[HISTORY_SIZE];
+		m_changeAdded = new boolean[HISTORY_SIZE];
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the index of the partition that the given user belongs to.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @return <code>int</code>, the index of the user's partition
+	 */
+	public int partitionOf(String a_userName){
+		return (a_userName.hashCode() & 0x7fffffff) % m_partitions.length();
+	}
+
+	/**
+	 * Get the number of partitions users are spread over.
+	 *
+	 * @return <code>int</code>, the number of partitions
+	 */
+	public int getPartitionCount(){
+		return m_partitions.length();
+	}
+
+	/**
+	 * Get the handler of a logged in user.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @return <code>UserHandler</code> of the user, or <code>null</code> if
+	 * 	no such user is logged in
+	 */
+	public UserHandler get(String a_userName){
+		if( a_userName == null ){
+			return null;
+		}
+		return m_byName.get( a_userName );
+	}
+
+	/**
+	 * Get the handlers of the users within a partition. The returned array
+	 * is a snapshot that is never changed, and must not be changed by the
+	 * caller.
+	 *
+	 * @param a_partition <code>int</code>, the partition's index
+	 * @return <code>UserHandler[]</code>, the partition's handlers
+	 */
+	public UserHandler[] getPartition(int a_partition){
+		return m_partitions.get( a_partition );
+	}
+
+	/**
+	 * Check if any logged in user connected from the given IP address.
+	 *
+	 * @param a_IP <code>InetAddress</code>, the address
+	 * @return <code>boolean</code> - <code>true</code> if a user is logged
+	 * 	in from the address, <code>false</code> otherwise
+	 */
+	public boolean containsAddress(InetAddress a_IP){
+		return m_byAddress.containsKey( a_IP );
+	}
+
+	/**
+	 * Get the handlers of the users logged in from the given IP address.
+	 *
+	 * @param a_IP <code>InetAddress</code>, the address
+	 * @return <code>Collection&lt;UserHandler&gt;</code>, a copy of the
+	 * 	matching handlers, empty if there are none
+	 */
+	public Collection<UserHandler> getByAddress(InetAddress a_IP){
+		Set<UserHandler> handlers = m_byAddress.get( a_IP );
+		if( handlers == null ){
+			return Collections.emptyList();
+		}
+		return new ArrayList<UserHandler>( handlers );
+	}
+
+	/**
+	 * Get the names of every logged in user.
+	 *
+	 * @return <code>List&lt;String&gt;</code>, an immutable snapshot of the
+	 * 	usernames
+	 */
+	public List<String> getNames(){
+		List<String> names = m_names;
+		if( names == null ){
+			synchronized( this ){
+				names = m_names;
+				if( names == null ){
+					names = Collections.unmodifiableList(
+							new ArrayList<String>( m_byName.keySet() ) );
+					m_names = names;
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Get the names of every user whose login has been announced, and whose
+	 * logout has not.
+	 *
+	 * @return <code>List&lt;String&gt;</code>, a copy of the names, in
+	 * 	sorted order
+	 */
+	public List<String> getAnnouncedNames(){
+		return new ArrayList<String>( m_sortedNames );
+	}
+
+	/**
+	 * Get the number of logged in users.
+	 * @return <code>int</code>, the number of users
+	 */
+	public int size(){
+		return m_byName.size();
+	}
+
+	/**
+	 * Get the identity of the roster, which differs between every run of
+	 * the server.
+	 * @return <code>int</code>, the roster's identity, never 0
+	 */
+	public int getRosterID(){
+		return m_rosterID;
+	}
+
+	/**
+	 * Get the roster's current version.
+	 * @return <code>int</code>, the version
+	 */
+	public int getVersion(){
+		return m_version;
+	}
+
+	/**
+	 * Get a page of the announced usernames, in sorted order. Names that
+	 * are announced while the page is collected may or may not be included.
+	 *
+	 * @param a_after <code>String</code>, the last name of the previous
+	 * 	page, or an empty string for the first page
+	 * @param a_size <code>int</code>, the most names in the page
+	 * @param a_page <code>List&lt;String&gt;</code>, the list to add the
+	 * 	page's names to
+	 * @return <code>boolean</code> - <code>true</code> if more names follow
+	 * 	the page, <code>false</code> if it is the last
+	 */
+	public boolean getPage(String a_after, int a_size, List<String> a_page){
+		Iterator<String> names = a_after.isEmpty()
+				? m_sortedNames.iterator()
+				: m_sortedNames.tailSet( a_after, false ).iterator();
+		while( names.hasNext() && a_page.size() < a_size ){
+			a_page.add( names.next() );
+		}
+		return names.hasNext();
+	}
+
+	/**
+	 * Get the names announced as logging in or out since the given version,
+	 * each with the last change made to it.
+	 *
+	 * @param a_version <code>int</code>, the version to start from
+	 * @param a_max <code>int</code>, the most names to return
+	 * @return <code>Map&lt;String, Boolean&gt;</code>, every changed name,
+	 * 	mapped to <code>true</code> if it is logged in, or <code>null</code>
+	 * 	if the version is no longer remembered, or more names changed
+	 */
+	public synchronized Map<String, Boolean> getChangesSince(int a_version,
+			int a_max){
+		int changes = m_version - a_version;
+		if( changes < 0 || changes > HISTORY_SIZE ){
+			return null;
+		}
+
+		Map<String, Boolean> changed = new LinkedHashMap<String, Boolean>();
+		for( int version = a_version + 1; version <= m_version; version++ ){
+			int index = version & ( HISTORY_SIZE - 1 );
+			changed.put( m_changedNames[index], m_changeAdded[index] );
+		}
+		if( changed.size() > a_max ){
+			return null;
+		}
+		return changed;
+	}
+
+	// *********************************************************
+	// ******************** Mutators ***************************
+	// *********************************************************
+	/**
+	 * Register a logged in user, unless the name is already taken.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_handler <code>UserHandler</code>, the user's handler, whose
+	 * 	<code>User</code> must already be set
+	 * @return <code>boolean</code> - <code>true</code> if registered,
+	 * 	<code>false</code> if the name belongs to another user
+	 */
+	public synchronized boolean add(String a_userName, UserHandler a_handler){
+		if( m_byName.putIfAbsent( a_userName, a_handler ) != null ){
+			return false;
+		}
+
+		InetAddress address = a_handler.getUser().getIP();
+		Set<UserHandler> handlers = m_byAddress.get( address );
+		if( handlers == null ){
+			handlers = Collections.newSetFromMap(
+					new ConcurrentHashMap<UserHandler, Boolean>() );
+			m_byAddress.put( address, handlers );
+		}
+		handlers.add( a_handler );
+
+		//replace the partition's snapshot with a copy holding the new user
+		int partition = partitionOf( a_userName );
+		UserHandler[] current = m_partitions.get( partition );
+		UserHandler[] updated = Arrays.copyOf( current, current.length + 1 );
+		updated[ current.length ] = a_handler;
+		m_partitions.set( partition, updated );
+		m_names = null;
+		return true;
+	}
+
+	/**
+	 * Remove a user, if the name is still registered to the given handler.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_handler <code>UserHandler</code>, the user's handler
+	 * @return <code>boolean</code> - <code>true</code> if removed,
+	 * 	<code>false</code> if the name was not registered to the handler
+	 */
+	public synchronized boolean remove(String a_userName, UserHandler a_handler){
+		if( !m_byName.remove( a_userName, a_handler ) ){
+			return false;
+		}
+
+		InetAddress address = a_handler.getUser().getIP();
+		Set<UserHandler> handlers = m_byAddress.get( address );
+		if( handlers != null ){
+			handlers.remove( a_handler );
+			if( handlers.isEmpty() ){
+				m_byAddress.remove( address );
+			}
+		}
+
+		//replace the partition's snapshot with a copy without the user
+		int partition = partitionOf( a_userName );
+		UserHandler[] current = m_partitions.get( partition );
+		UserHandler[] updated = new UserHandler[ current.length - 1 ];
+		int next = 0;
+		for( UserHandler handler : current ){
+			if( handler != a_handler ){
+				updated[ next++ ] = handler;
+			}
+		}
+		m_partitions.set( partition, updated );
+
+		m_names = null;
+		return true;
+	}
+
+	/**
+	 * Add announced logins and logouts to the roster, raising its version
+	 * once for every name that changed.
+	 *
+	 * @param a_changes <code>Map&lt;String, Boolean&gt;</code>, the names
+	 * 	that logged in or out, mapped to <code>true</code> if they logged in
+	 */
+	public synchronized void publish(Map<String, Boolean> a_changes){
+		for( Map.Entry<String, Boolean> change : a_changes.entrySet() ){
+			String name = change.getKey();
+			boolean changed = change.getValue()
+					? m_sortedNames.add( name )
+					: m_sortedNames.remove( name );
+			if( changed ){
+				recordChange( name, change.getValue() );
+			}
+		}
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Raise the roster's version for a name that logged in or out,
+	 * remembering the change in place of the oldest one.
+	 *
+	 * @param a_userName <code>String</code>, the user's name
+	 * @param a_added <code>boolean</code>, true if the user logged in
+	 */
+	private void recordChange(String a_userName, boolean a_added){
+		int version = m_version + 1;
+		int index = version & ( HISTORY_SIZE - 1 );
+		m_changedNames[index] = a_userName;
+		m_changeAdded[index] = a_added;
+		m_version = version;
+	}
+}
@@ -1,7 +1,10 @@
 package server.messages;
 
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
 
 /**
  * Message containing information sent via a message attempting to login 
@@ -140,20 +143,19 @@ public class AdminLoginMessage extends Message {
 	// ******************** Utility Methods ********************
 	// *********************************************************
 	/**
-	 * Send the response to the admin login attempt to the given stream.
+	 * Send the response to the admin login attempt to the given writer.
 	 * Included are:
 	 * </br>the message header
 	 * </br>the login response byte
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {		
+	protected boolean encode(MessageWriter a_writer) throws IOException {		
 		//write the header code
-		a_stream.write( m_header.getHeaderCode().getBytes() );
+		a_writer.writeHeader( m_header );
 		
 		//write the response byte
-		a_stream.write ( m_passValidity.getCode() );	
+		a_writer.writeByte( m_passValidity.getCode() );	
 		
-		a_stream.flush();
 		return true;
 	}
 
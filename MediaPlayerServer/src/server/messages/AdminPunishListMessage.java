@@ -1,11 +1,12 @@
 package server.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
 import server.messages.PunishmentInfo.Punishment;
 
 /**
@@ -92,7 +93,16 @@ public class AdminPunishListMessage extends Message{
 	// *********************************************************
 	
 	/**
-	 * Send the AdminPunishList to the given stream, providing a client 
+	 * The list of punished users and addresses is compressed for
+	 * clients accepting compressed frames.
+	 */
+	@Override
+	protected boolean isCompressible(){
+		return true;
+	}
+	
+	/**
+	 * Send the AdminPunishList to the given writer, providing a client 
 	 * with the list of punished users and their punishments.
 	 * Included are:
 	 * </br>the header
@@ -104,31 +114,26 @@ public class AdminPunishListMessage extends Message{
 	 * 		</br>the 4 character punishment code
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {
-		DataOutputStream outData = new DataOutputStream( a_stream );
-		
+	protected boolean encode(MessageWriter a_writer) throws IOException {
 		//write the header
-		a_stream.write( m_header.getHeaderCode().getBytes() );
+		a_writer.writeHeader( m_header );
 		
 		//write the number of users
-		outData.writeInt( m_punishedUsers.size() );
+		a_writer.writeInt( m_punishedUsers.size() );
 		
 		//write each user's information
 		for( int i = 0; i < m_punishedUsers.size(); i++ ){
 			//size of username and the username
-			outData.writeInt( m_punishedUsers.get(i).getTargetName().length() );
-			a_stream.write( m_punishedUsers.get(i).getTargetName().getBytes() );
+			a_writer.writeString( m_punishedUsers.get(i).getTargetName() );
 			
 			//size of ip and the ip
-			outData.writeInt( m_punishedUsers.get(i).getTargetIP().length() );
-			a_stream.write( m_punishedUsers.get(i).getTargetIP().getBytes() );
+			a_writer.writeString( m_punishedUsers.get(i).getTargetIP() );
 			
 			//the punishment code
-			a_stream.write( 
+			a_writer.writeRaw( 
 					m_punishedUsers.get(i)
 						.getPunishment().getCode().getBytes() );
 			
-			a_stream.flush();
 		}
 		
 		return true;
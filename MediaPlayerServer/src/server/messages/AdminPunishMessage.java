@@ -1,10 +1,11 @@
 package server.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 
 
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
 import server.messages.PunishmentInfo;
 import server.messages.PunishmentInfo.Direction;
 import server.messages.PunishmentInfo.Punishment;
@@ -218,7 +219,7 @@ public class AdminPunishMessage extends Message {
 	// ******************** Utility Methods ********************
 	// *********************************************************
 	/**
-	 * Send the AdminPunish response to the given stream, indicating the
+	 * Send the AdminPunish response to the given writer, indicating the
 	 * success or failure of the punishment's enactment. 
 	 * Included are:
 	 * </br>the message header
@@ -230,42 +231,37 @@ public class AdminPunishMessage extends Message {
 	 * </br>the 1 byte indicating the status of the punishment request
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {
-		DataOutputStream outData = new DataOutputStream( a_stream );
-		
+	protected boolean encode(MessageWriter a_writer) throws IOException {
 		//write the header code
-		a_stream.write( m_header.getHeaderCode().getBytes() );
+		a_writer.writeHeader( m_header );
 		
 		//write the punishment's reference code
-		a_stream.write( m_punishmentInfo.getPunishment().getCode().getBytes() );
+		a_writer.writeRaw( 
+				m_punishmentInfo.getPunishment().getCode().getBytes() );
 		
 		//write the direction's code
-		a_stream.write( m_punishmentInfo.getDirection().getCode() );
+		a_writer.writeByte( m_punishmentInfo.getDirection().getCode() );
 				
 		//write the name of the admin that made the request
-		outData.writeInt( m_adminName.length() );
-		a_stream.write( m_adminName.getBytes() );
+		a_writer.writeString( m_adminName );
 		
 		//write the name of the user to be punished
-		outData.writeInt( m_punishmentInfo.getTargetName().length() );
-		a_stream.write( m_punishmentInfo.getTargetName().getBytes() );
+		a_writer.writeString( m_punishmentInfo.getTargetName() );
 		
 		//write the target's IP if the message requires it
 		if( m_header == MessageHeader.ADMIN_RemovePunishment ){
-			outData.writeInt( m_punishmentInfo.getTargetIP().length() );
-			a_stream.write( m_punishmentInfo.getTargetIP().getBytes() );
+			a_writer.writeString( m_punishmentInfo.getTargetIP() );
 		}
 		
 		//write the status of the punishment request, indicating 
 		//success or failure
 		if( m_committed == true ){
-			a_stream.write( Message.MessageResponse.Success.getCode() );
+			a_writer.writeByte( Message.MessageResponse.Success.getCode() );
 		}
 		else{
-			a_stream.write( Message.MessageResponse.Failure.getCode() );
+			a_writer.writeByte( Message.MessageResponse.Failure.getCode() );
 		}	
 		
-		a_stream.flush();
 		return true;
 	}
 }
@@ -1,8 +1,10 @@
 package server.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
 
 /**
  * Message class used to aware a client of a user connecting or disconnecting
@@ -70,23 +72,19 @@ public class ConnectedUserMessage extends Message {
 	// ******************** Utility Methods ********************
 	// *********************************************************
 	/**
-	 * Send the ConnectedUser information to the given stream.
+	 * Send the ConnectedUser information to the given writer.
 	 * Included are:
 	 * </br>the header code(indicating either connection or disconnection)
 	 * </br>the size of the client's name and the name itself
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {
-		DataOutputStream outData = new DataOutputStream( a_stream );
-		
+	protected boolean encode(MessageWriter a_writer) throws IOException {
 		//write the header code
-		a_stream.write( m_header.getHeaderCode().getBytes() );
+		a_writer.writeHeader( m_header );
 		
 		//write the user's name 
-		outData.writeInt( m_user.length() );
-		a_stream.write( m_user.getBytes() );
+		a_writer.writeString( m_user );
 		
-		a_stream.flush();
 		return true;
 	}
 
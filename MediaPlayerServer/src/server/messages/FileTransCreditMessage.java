@@ -0,0 +1,94 @@
+package server.messages;
+
+import java.io.IOException;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.ProtocolVersion;
+import protocol.TransferCredits;
+
+/**
+ * Message carrying the credits a file's receiver grants its sender, in a
+ * transfer using credits. Sent from the receiver, through the server, to
+ * the sender, which may send one data segment per credit.
+ *
+ * @author Andrzej Brynczka
+ * @see TransferCredits
+ */
+public class FileTransCreditMessage extends FileTransferMessage {
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The number of data segments the sender may send */
+	private final int m_credits;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create the credit message, ready to be sent.
+	 *
+	 * @param a_header <code>MessageHeader</code>, the message header
+	 * @param a_transferID <code>int</code>, the transfer ID for the current
+	 * 	series of file transfer messages
+	 * @param a_stage <code>TransferStage</code>, the stage of the transfer
+	 * @param a_sender <code>String</code>, the user name of the user
+	 * 	granting the credits
+	 * @param a_receiver <code>String</code>, the user name of the user
+	 * 	granted the credits
+	 * @param a_fileName <code>String</code>, the name of the file being sent
+	 * @param a_credits <code>int</code>, the number of credits granted
+	 */
+	public FileTransCreditMessage(MessageHeader a_header, int a_transferID,
+			TransferStage a_stage, String a_sender, String a_receiver,
+			String a_fileName, int a_credits) {
+
+		super(a_header, a_transferID, a_stage,
+				a_sender, a_receiver, a_fileName);
+		m_credits = a_credits;
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the number of credits granted.
+	 * @return <code>int</code> - the number of data segments the sender
+	 * 	may send
+	 */
+	public int getCredits(){
+		return m_credits;
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Send the FileTransCredit message to the given writer.
+	 * Included are:
+	 * </br>the message header
+	 * </br>the transfer stage byte-based code
+	 * </br>the transfer ID integer
+	 * </br>the size of the granting user's name and the name
+	 * </br>the size of the file name and the file name
+	 * </br>the number of credits granted
+	 *
+	 * @return <code>boolean</code> - <code>false</code> for V1 clients,
+	 * 	which never ask for credits, <code>true</code> otherwise
+	 */
+	@Override
+	protected boolean encode(MessageWriter a_writer) throws IOException{
+		if( a_writer.getProtocol() != ProtocolVersion.V2 ){
+			return false;
+		}
+
+		//write the header, transfer stage, transferID and sender's name
+		super.encode( a_writer );
+
+		//write the file name and the credits
+		a_writer.writeString( m_fileName );
+		a_writer.writeInt( m_credits );
+
+		return true;
+	}
+}
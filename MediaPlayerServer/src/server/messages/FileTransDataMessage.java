@@ -1,8 +1,9 @@
 package server.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
 
 /**
  * Class containing information on the messages sending the file data
@@ -205,28 +206,23 @@ public class FileTransDataMessage extends FileTransferMessage {
 	 * </br>the data segment containing the file data
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException{
+	protected boolean encode(MessageWriter a_writer) throws IOException{
 		//write the header, transfer stage, transferID, and sender name
-		super.sendMessage( a_stream );
-		
-		DataOutputStream outData = new DataOutputStream( a_stream );
+		super.encode( a_writer );
 		
 		//write the file name
-		outData.writeInt( m_fileName.length() );
-		a_stream.write( m_fileName.getBytes() );
+		a_writer.writeString( m_fileName );
 		
 		//write the # of the current data segment
 		//and the number of total segments
-		outData.writeInt( m_currentDataSegment );
-		outData.writeInt( m_totalDataSegments );
+		a_writer.writeInt( m_currentDataSegment );
+		a_writer.writeInt( m_totalDataSegments );
 		
 		//write the size of the current segment and the segment itself
-		outData.writeInt( m_sizeOfCurSeg );
-		a_stream.flush();
+		a_writer.writeLength( m_sizeOfCurSeg );
 		
 		//write the data segment
-		a_stream.write( m_dataSegment, 0, m_sizeOfCurSeg );
-		a_stream.flush();
+		a_writer.writeRaw( m_dataSegment, 0, m_sizeOfCurSeg );
 		
 		return true;
 	}
@@ -1,8 +1,9 @@
 package server.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
 
 /**
  * An error message containing specialized file transfer information, allowing
@@ -82,7 +83,7 @@ public class FileTransErrorMessage extends FileTransferMessage {
 	// ******************** Utility Methods ********************
 	// *********************************************************
 	/**
-	 * Send the FileTransError message to the given stream, indicating an
+	 * Send the FileTransError message to the given writer, indicating an
 	 * issue within the current file transfer stage.
 	 * Included are:
 	 * </br>the message header
@@ -95,28 +96,22 @@ public class FileTransErrorMessage extends FileTransferMessage {
 	 * 	is not set, <code>true</code> otherwise
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException{
+	protected boolean encode(MessageWriter a_writer) throws IOException{
 		if( m_errorMsg == null ){
 			return false;
 		}
 
-		DataOutputStream outData = new DataOutputStream( a_stream );
-		
 		//write the header, transfer stage, and transferID
-		a_stream.write( m_header.getHeaderCode().getBytes() );
-		a_stream.write( m_transferStage.getCode() );
-		outData.writeInt( m_transferID );
+		a_writer.writeHeader( m_header );
+		a_writer.writeByte( m_transferStage.getCode() );
+		a_writer.writeInt( m_transferID );
 		
 		//write the size of the filename, and the name
-		outData.writeInt( m_fileName.length() );
-		a_stream.write( m_fileName.getBytes() );
-		a_stream.flush();
+		a_writer.writeString( m_fileName );
 		
 		//write the message size and the message
-		outData.writeInt( m_errorMsg.length() );
-		a_stream.write( m_errorMsg.getBytes() );
+		a_writer.writeString( m_errorMsg );
 		
-		a_stream.flush();
 		return true;
 	}
 }
@@ -1,8 +1,14 @@
 package server.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.DirectTransfer;
+import protocol.LargeFiles;
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.ProtocolVersion;
+import protocol.TransferCredits;
+import protocol.TransferResume;
 
 
 /**
@@ -17,7 +23,19 @@ public class FileTransRequestMessage extends FileTransferMessage {
 	// ******************** Class Variables ********************
 	// *********************************************************
 	/** The size of the file being requested, in bytes */
-	private int m_sizeOfFile;
+	private long m_sizeOfFile;
+	
+	/** 
+	 * Token of a direct transfer offered to the receiver, or 
+	 * 	<code>null</code> if the file is relayed through the server 
+	 */
+	private byte[] m_directToken;
+	
+	/** Set if the sender asked the receiver to grant it credits */
+	private boolean m_credits;
+	
+	/** Set if the sender is able to resume the transfer */
+	private boolean m_resume;
 	
 	// *********************************************************
 	// ******************** Constructors ***********************
@@ -37,7 +55,7 @@ public class FileTransRequestMessage extends FileTransferMessage {
 	 * 			recieving the file
 	 * @param a_fileName <code>String</code>, the name of the file to be 
 	 * 			transfered
-	 * @param a_sizeOfFile <code>int</code>, the size of the file to be 
+	 * @param a_sizeOfFile <code>long</code>, the size of the file to be 
 	 * 			transfered
 	 * @throws Exception if provided size of file is invalid
 	 */
@@ -50,6 +68,9 @@ public class FileTransRequestMessage extends FileTransferMessage {
 		if( !setSizeOfFile( a_sizeOfFile ) ){
 			throw new Exception("Invalid file size");
 		}
+		m_directToken = null;
+		m_credits = false;
+		m_resume = false;
 	}		
 	
 	// *********************************************************
@@ -57,34 +78,96 @@ public class FileTransRequestMessage extends FileTransferMessage {
 	// *********************************************************
 	/**
 	 * Get the size of the file being transfered
-	 * @return <code>int</code> - the size of the file, in bytes
+	 * @return <code>long</code> - the size of the file, in bytes
 	 */
-	public int getFileSize(){
+	public long getFileSize(){
 		return m_sizeOfFile;
 	}
+	
+	/**
+	 * Get the token of the direct transfer offered to the receiver.
+	 * @return <code>byte[]</code> - the token, or <code>null</code> if the 
+	 * 	file is relayed through the server
+	 * @see DirectTransfer
+	 */
+	public byte[] getDirectToken(){
+		return m_directToken;
+	}
+	
+	/**
+	 * Check whether the sender asked for credits.
+	 * @return <code>boolean</code> - <code>true</code> if the receiver is 
+	 * 	to grant credits for the file's data, <code>false</code> otherwise
+	 * @see TransferCredits
+	 */
+	public boolean isCredits(){
+		return m_credits;
+	}
+	
+	/**
+	 * Check whether the sender is able to resume the transfer.
+	 * @return <code>boolean</code> - <code>true</code> if the receiver may
+	 * 	ask for only the segments it is missing, <code>false</code> otherwise
+	 * @see TransferResume
+	 */
+	public boolean isResume(){
+		return m_resume;
+	}
 	// *********************************************************
 	// ******************** Mutators ***************************
 	// *********************************************************
 	/**
 	 * Set the size(in bytes) of the file being transfered
-	 * @param a_size <code>int</code>, the size of the file
+	 * @param a_size <code>long</code>, the size of the file
 	 * @return <code>boolean</code> - <code>true</code> if the size is valid
 	 * 	<code>false</code> otherwise
 	 */
 	private boolean setSizeOfFile(long a_size){
-		if( a_size < 0 || a_size > Integer.MAX_VALUE){
+		if( a_size < 0 ){
 			return false;
 		}
 		
-		m_sizeOfFile = (int) a_size;
+		m_sizeOfFile = a_size;
 		return true;
 	}
 	
+	/**
+	 * Offer the receiver a direct transfer with the given token, sent only
+	 * 	to V2 receivers.
+	 * @param a_token <code>byte[]</code>, the transfer's token, or 
+	 * 	<code>null</code> to relay the file through the server
+	 * @see DirectTransfer
+	 */
+	public void setDirectToken(byte[] a_token){
+		m_directToken = a_token;
+	}
+	
+	/**
+	 * Pass on the sender's asking for credits, sent only to V2 receivers.
+	 * @param a_credits <code>boolean</code>, <code>true</code> if the 
+	 * 	receiver is to grant credits
+	 * @see TransferCredits
+	 */
+	public void setCredits(boolean a_credits){
+		m_credits = a_credits;
+	}
+	
+	/**
+	 * Pass on the sender's being able to resume the transfer, sent only to
+	 * 	V2 receivers.
+	 * @param a_resume <code>boolean</code>, <code>true</code> if the 
+	 * 	receiver may resume the transfer
+	 * @see TransferResume
+	 */
+	public void setResume(boolean a_resume){
+		m_resume = a_resume;
+	}
+	
 	// *********************************************************
 	// ******************** Utility Methods ********************
 	// *********************************************************
 	/**
-	 * Send the FileTransRequest information to the given stream(the receiver
+	 * Send the FileTransRequest information to the given writer(the receiver
 	 * 	of the request). 
 	 * Included are:
 	 * </br>the message header
@@ -92,23 +175,51 @@ public class FileTransRequestMessage extends FileTransferMessage {
 	 * </br>the transfer ID integer
 	 * </br>the size of the sender's user name and the sender's name
 	 * </br>the size of the file's name and the file's name
-	 * </br>the file's size
+	 * </br>the file's size, or <code>MAX_INT_SIZE</code> for a large file
+	 * </br>in V2, if a direct transfer is offered, credits are asked 
+	 * 	for, the transfer may be resumed or the file is large, the 
+	 * 	options byte, followed by the 
+	 * 	transfer's token for <code>DIRECT</code>, then the file's size as
+	 * 	a long for <code>LARGE</code>
+	 * 
+	 * @return <code>boolean</code> - <code>false</code> for a large file
+	 * 	and a V1 client, which cannot be told its size, <code>true</code> 
+	 * 	otherwise
+	 * @see LargeFiles
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {
-		DataOutputStream outData = new DataOutputStream( a_stream );
+	protected boolean encode(MessageWriter a_writer) throws IOException {
+		boolean large = LargeFiles.isLarge( m_sizeOfFile );
+		if( large && a_writer.getProtocol() != ProtocolVersion.V2 ){
+			return false;
+		}
 		
 		//write the header, transfer stage, transfer ID and sender's name
-		super.sendMessage( a_stream );
+		super.encode( a_writer );
 		
 		//write file name
-		outData.writeInt( m_fileName.length() );
-		a_stream.write( m_fileName.getBytes() );
+		a_writer.writeString( m_fileName );
 		
 		//write the file size
-		outData.writeInt( m_sizeOfFile );
+		a_writer.writeInt( LargeFiles.intSize( m_sizeOfFile ) );
+		
+		//offer V2 receivers a direct transfer and credits, if the sender 
+		//asked for them, and the size of a file too large for the int
+		int options = ( m_directToken != null ? DirectTransfer.DIRECT : 0 ) 
+				| ( m_credits ? TransferCredits.CREDITS : 0 )
+				| ( large ? LargeFiles.LARGE : 0 )
+				| ( m_resume ? TransferResume.RESUME : 0 );
+		if( a_writer.getProtocol() == ProtocolVersion.V2 && options != 0 ){
+			a_writer.writeByte( options );
+			if( m_directToken != null ){
+				a_writer.writeLength( m_directToken.length );
+				a_writer.writeRaw( m_directToken );
+			}
+			if( large ){
+				a_writer.writeLong( m_sizeOfFile );
+			}
+		}
 
-		a_stream.flush();
 		return true;
 	}
 }
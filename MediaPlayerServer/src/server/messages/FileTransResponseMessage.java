@@ -1,8 +1,13 @@
 package server.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.DirectTransfer;
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.ProtocolVersion;
+import protocol.TransferCredits;
+import protocol.TransferResume;
 
 
 /**
@@ -21,6 +26,27 @@ public class FileTransResponseMessage extends FileTransferMessage {
 	/** The response to send to a client through this message */
 	private MessageResponse m_response;
 	
+	/** Address the receiver listens on for a direct transfer */
+	private String m_directHost;
+	
+	/** Port the receiver listens on for a direct transfer */
+	private int m_directPort;
+	
+	/** 
+	 * Token of the direct transfer accepted by the receiver, or 
+	 * 	<code>null</code> if the file is relayed through the server 
+	 */
+	private byte[] m_directToken;
+	
+	/** 
+	 * Window of credits the receiver grants the sender, or 0 if the 
+	 * 	transfer does not use credits 
+	 */
+	private int m_creditWindow;
+	
+	/** Set if the receiver resumes the transfer, and asks for its segments */
+	private boolean m_resume;
+	
 	// *********************************************************
 	// ******************** Constructors ***********************
 	// *********************************************************
@@ -46,6 +72,11 @@ public class FileTransResponseMessage extends FileTransferMessage {
 				a_sender, a_receiver, a_fileName);
 		
 		m_response = a_response;
+		m_directHost = null;
+		m_directPort = 0;
+		m_directToken = null;
+		m_creditWindow = 0;
+		m_resume = false;
 	}
 
 	// *********************************************************
@@ -60,6 +91,39 @@ public class FileTransResponseMessage extends FileTransferMessage {
 		return m_response;
 	}
 	
+	/**
+	 * Check whether the receiver accepted a direct transfer, whose 
+	 * 	endpoint is passed on to the sender.
+	 * @return <code>boolean</code> - <code>true</code> if the sender is to
+	 * 	connect to the receiver, <code>false</code> otherwise
+	 * @see DirectTransfer
+	 */
+	public boolean isDirect(){
+		return m_directToken != null;
+	}
+	
+	/**
+	 * Get the window of credits the receiver grants the sender.
+	 * @return <code>int</code> - the number of data segments the sender
+	 * 	may send before it is granted more, or 0 if the transfer does not 
+	 * 	use credits
+	 * @see TransferCredits
+	 */
+	public int getCreditWindow(){
+		return m_creditWindow;
+	}
+	
+	/**
+	 * Check whether the receiver resumes the transfer.
+	 * @return <code>boolean</code> - <code>true</code> if the sender is to
+	 * 	wait for the segments the receiver is missing, <code>false</code> 
+	 * 	otherwise
+	 * @see TransferResume
+	 */
+	public boolean isResume(){
+		return m_resume;
+	}
+	
 	// *********************************************************
 	// ******************** Mutators ***************************
 	// *********************************************************
@@ -77,6 +141,42 @@ public class FileTransResponseMessage extends FileTransferMessage {
 		return true;
 	}	
 	
+	/**
+	 * Pass the sender the endpoint of a direct transfer accepted by the
+	 * 	receiver, sent only to V2 senders.
+	 * @param a_host <code>String</code>, the receiver's address
+	 * @param a_port <code>int</code>, the port the receiver listens on
+	 * @param a_token <code>byte[]</code>, the transfer's token
+	 * @see DirectTransfer
+	 */
+	public void setDirectEndpoint(String a_host, int a_port, byte[] a_token){
+		m_directHost = a_host;
+		m_directPort = a_port;
+		m_directToken = a_token;
+	}
+	
+	/**
+	 * Pass the sender the window of credits the receiver grants it, sent
+	 * 	only to V2 senders.
+	 * @param a_window <code>int</code>, the number of data segments the 
+	 * 	sender may send before it is granted more, or 0 for none
+	 * @see TransferCredits
+	 */
+	public void setCreditWindow(int a_window){
+		m_creditWindow = a_window;
+	}
+	
+	/**
+	 * Tell the sender that the receiver resumes the transfer, sent only to
+	 * 	V2 senders.
+	 * @param a_resume <code>boolean</code>, <code>true</code> if the sender
+	 * 	is to wait for the segments the receiver is missing
+	 * @see TransferResume
+	 */
+	public void setResume(boolean a_resume){
+		m_resume = a_resume;
+	}
+	
 	// *********************************************************
 	// ******************** Utility Methods ********************
 	// *********************************************************
@@ -91,22 +191,40 @@ public class FileTransResponseMessage extends FileTransferMessage {
 	 * </br>the size of the sender's user name and the sender's name
 	 * </br>the size of the file name and the file name
 	 * </br>the byte-based response code
+	 * </br>in V2, if a direct transfer was accepted, credits granted or
+	 * 	the transfer resumed, the options byte, followed by the receiver's
+	 * 	address and port and the transfer's token for <code>DIRECT</code>,
+	 * 	and the window for <code>CREDITS</code>
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException{
+	protected boolean encode(MessageWriter a_writer) throws IOException{
 		//send header, transfer stage, transferID, and sender's name
-		super.sendMessage(a_stream);
-		
-		DataOutputStream outData = new DataOutputStream( a_stream );
+		super.encode( a_writer );
 		
 		//send filename
-		outData.writeInt( m_fileName.length() );
-		a_stream.write( m_fileName.getBytes() );
+		a_writer.writeString( m_fileName );
 		
 		//send message response
-		a_stream.write( m_response.getCode() );
+		a_writer.writeByte( m_response.getCode() );
+		
+		//tell V2 senders where to stream the file, and their window, if 
+		//the receiver agreed
+		int options = ( m_directToken != null ? DirectTransfer.DIRECT : 0 ) 
+				| ( m_creditWindow > 0 ? TransferCredits.CREDITS : 0 )
+				| ( m_resume ? TransferResume.RESUME : 0 );
+		if( a_writer.getProtocol() == ProtocolVersion.V2 && options != 0 ){
+			a_writer.writeByte( options );
+			if( m_directToken != null ){
+				a_writer.writeString( m_directHost );
+				a_writer.writeInt( m_directPort );
+				a_writer.writeLength( m_directToken.length );
+				a_writer.writeRaw( m_directToken );
+			}
+			if( m_creditWindow > 0 ){
+				a_writer.writeInt( m_creditWindow );
+			}
+		}
 		
-		a_stream.flush();
 		return true;
 	}
 	
@@ -0,0 +1,101 @@
+package server.messages;
+
+import java.io.IOException;
+import java.util.List;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.ProtocolVersion;
+import protocol.TransferResume;
+
+/**
+ * Message carrying the ranges of data segments a file's receiver is still
+ * missing, in a resumed transfer. Sent from the receiver, through the
+ * server, to the sender, which sends only those segments.
+ *
+ * @author Andrzej Brynczka
+ * @see TransferResume
+ */
+public class FileTransResumeMessage extends FileTransferMessage {
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The missing ranges, each holding its first and last segment */
+	private final List<int[]> m_ranges;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create the resume message, ready to be sent.
+	 *
+	 * @param a_header <code>MessageHeader</code>, the message header
+	 * @param a_transferID <code>int</code>, the transfer ID for the current
+	 * 	series of file transfer messages
+	 * @param a_stage <code>TransferStage</code>, the stage of the transfer
+	 * @param a_sender <code>String</code>, the user name of the user
+	 * 	resuming the transfer
+	 * @param a_receiver <code>String</code>, the user name of the file's
+	 * 	sender
+	 * @param a_fileName <code>String</code>, the name of the file being sent
+	 * @param a_ranges <code>List</code>, the missing ranges, each an array
+	 * 	of its first and last segment number
+	 */
+	public FileTransResumeMessage(MessageHeader a_header, int a_transferID,
+			TransferStage a_stage, String a_sender, String a_receiver,
+			String a_fileName, List<int[]> a_ranges) {
+
+		super(a_header, a_transferID, a_stage,
+				a_sender, a_receiver, a_fileName);
+		m_ranges = a_ranges;
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the ranges of segments still missing.
+	 * @return <code>List</code> - the ranges, each an array of its first
+	 * 	and last segment number
+	 */
+	public List<int[]> getRanges(){
+		return m_ranges;
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Send the FileTransResume message to the given writer.
+	 * Included are:
+	 * </br>the message header
+	 * </br>the transfer stage byte-based code
+	 * </br>the transfer ID integer
+	 * </br>the size of the resuming user's name and the name
+	 * </br>the size of the file name and the file name
+	 * </br>the number of ranges, followed by each range's first and last
+	 * 	segment number
+	 *
+	 * @return <code>boolean</code> - <code>false</code> for V1 clients,
+	 * 	which never resume transfers, <code>true</code> otherwise
+	 */
+	@Override
+	protected boolean encode(MessageWriter a_writer) throws IOException{
+		if( a_writer.getProtocol() != ProtocolVersion.V2 ){
+			return false;
+		}
+
+		//write the header, transfer stage, transferID and sender's name
+		super.encode( a_writer );
+
+		//write the file name and the missing ranges
+		a_writer.writeString( m_fileName );
+		a_writer.writeLength( m_ranges.size() );
+		for( int[] range : m_ranges ){
+			a_writer.writeInt( range[0] );
+			a_writer.writeInt( range[1] );
+		}
+
+		return true;
+	}
+}
@@ -1,8 +1,10 @@
 package server.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
 
 /**
  * The base message class for all file transfer based messages.
@@ -50,6 +52,18 @@ public abstract class FileTransferMessage extends Message {
 		 */
 		STAGE5_Done( (byte) 5),
 		
+		/**
+		 * Stage 3 - Credits the receiver grants the sender, to send further
+		 * file data in a transfer using credits.
+		 */
+		STAGE3_DataCredit( (byte) 6),
+		
+		/**
+		 * Stage 2 - The segments the receiver is still missing, sent after
+		 * its acceptance of a resumed transfer.
+		 */
+		STAGE2_ResumeRequest( (byte) 7),
+		
 		ERROR( (byte) -1 );
 				
 		/** The byte-based code associated with the transfer stage */
@@ -85,6 +99,10 @@ public abstract class FileTransferMessage extends Message {
 				return STAGE4_TransEndResponse;
 			case 5:
 				return STAGE5_Done;
+			case 6:
+				return STAGE3_DataCredit;
+			case 7:
+				return STAGE2_ResumeRequest;
 			default:
 				return ERROR;			
 			}
@@ -115,6 +133,15 @@ public abstract class FileTransferMessage extends Message {
 	 *  */
 	private static int m_TransferIDGenerationCounter = 1;
 
+	/**
+	 * Set the first transfer ID to generate, so that the nodes of a 
+	 * cluster each generate IDs from their own range.
+	 * @param a_base <code>int</code>, the first ID, greater than 0
+	 */
+	public static void setTransferIDBase(int a_base){
+		m_TransferIDGenerationCounter = Math.max( 1, a_base );
+	}
+
 	/** The generator of transfer IDs. Ensures uniqueness of each ID */
 	public static int generateTransferID(){
 		return m_TransferIDGenerationCounter == Integer.MAX_VALUE ? 
@@ -197,7 +224,7 @@ public abstract class FileTransferMessage extends Message {
 	// ******************** Utility Methods ********************
 	// *********************************************************
 	/**
-	 * Send the FileTransfer information to the given stream.
+	 * Send the FileTransfer information to the given writer.
 	 * Included are:
 	 * </br>the message header
 	 * </br>the transfer stage byte-based code
@@ -205,19 +232,15 @@ public abstract class FileTransferMessage extends Message {
 	 * </br>the size of the sender's username and the sender's name
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException{		
-		DataOutputStream outData = new DataOutputStream( a_stream );
-		
+	protected boolean encode(MessageWriter a_writer) throws IOException{		
 		//write the header, transfer stage, and transferID
-		a_stream.write( m_header.getHeaderCode().getBytes() );
-		a_stream.write( m_transferStage.getCode() );
-		outData.writeInt( m_transferID );
+		a_writer.writeHeader( m_header );
+		a_writer.writeByte( m_transferStage.getCode() );
+		a_writer.writeInt( m_transferID );
 		
 		//write the sender's username
-		outData.writeInt( m_senderName.length() );
-		a_stream.write( m_senderName.getBytes() );
+		a_writer.writeString( m_senderName );
 		
-		a_stream.flush();
 		return true;
 	}
 }
@@ -1,7 +1,12 @@
 package server.messages;
 
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.LargeFiles;
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.ProtocolVersion;
+import protocol.messages.Message;
 
 public class LoginMessage extends Message {
 	// *********************************************************
@@ -85,6 +90,12 @@ public class LoginMessage extends Message {
 	/** The client's success at attempting to login to the server */
 	private LoginCondition m_condition;
 	
+	/** 
+	 * Size above which frames sent to the client are compressed, or 0 if
+	 * compression is not used 
+	 */
+	private int m_compressThreshold;
+	
 	// *********************************************************
 	// ******************** Constructors ***********************
 	// *********************************************************
@@ -99,7 +110,7 @@ public class LoginMessage extends Message {
 	public LoginMessage(MessageHeader a_header, LoginCondition a_condition) {
 		super(a_header);
 		m_condition = a_condition;
-		
+		m_compressThreshold = 0;
 	}
 	
 	// *********************************************************
@@ -133,6 +144,17 @@ public class LoginMessage extends Message {
 		m_condition = a_condition;
 		return true;
 	}
+	
+	/**
+	 * Set the size above which frames sent to the client are compressed,
+	 * as told to V2 clients that accept compressed frames.
+	 * @param a_threshold <code>int</code>, the size in bytes, or 0 if
+	 * 	compression is not used
+	 * @see FrameCompression
+	 */
+	public void setCompressThreshold(int a_threshold){
+		m_compressThreshold = a_threshold;
+	}
 	// *********************************************************
 	// ******************** Utility Methods ********************
 	// *********************************************************
@@ -142,17 +164,26 @@ public class LoginMessage extends Message {
 	 * Included are:
 	 * </br>the message header
 	 * </br>the login condition byte
+	 * </br>in V2, the compression threshold
+	 * </br>in V2, the capabilities of this server
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {
+	protected boolean encode(MessageWriter a_writer) throws IOException {
 		
 		//write the header
-		a_stream.write( m_header.getHeaderCode().getBytes() );
+		a_writer.writeHeader( m_header );
 		
 		//write the login condition
-		a_stream.write( m_condition.getCode() );
+		a_writer.writeByte( m_condition.getCode() );
+		
+		//tell V2 clients whether their frames may be compressed
+		if( a_writer.getProtocol() == ProtocolVersion.V2 ){
+			a_writer.writeLength( m_compressThreshold );
+			
+			//and that files of 2GB and over are passed on
+			a_writer.writeLength( LargeFiles.CAPABILITY );
+		}
 		
-		a_stream.flush();
 		return true;
 	}
 
@@ -1,7 +1,10 @@
 package server.messages;
 
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
 //NOT BEING USED CURRENTLY
 /**
  * The message received from a client when the client wishes to
@@ -33,7 +36,7 @@ public class LogoutMessage extends Message {
 	 * received by the server from the client.
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {
+	protected boolean encode(MessageWriter a_writer) throws IOException {
 		return false;
 	}
 
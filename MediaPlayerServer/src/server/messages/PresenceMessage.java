@@ -0,0 +1,131 @@
+package server.messages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
+
+/**
+ * Message class used to announce every user that logged in or out of the
+ * server over a short window, in place of a <code>ConnectedUserMessage</code>
+ * for each of them.
+ * <p>
+ * It is sent whole to clients that accept it. Other clients are sent its
+ * <code>ConnectedUserMessage</code> notices instead, which are created once
+ * and shared by all of them.
+ * @author Andrzej Brynczka
+ *
+ */
+public class PresenceMessage extends Message {
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The names of the users that logged in */
+	private final List<String> m_joined;
+
+	/** The names of the users that logged out */
+	private final List<String> m_left;
+
+	/** The same changes as single notices, for clients without batches */
+	private final List<ConnectedUserMessage> m_notices;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create a message announcing the given logins and logouts.
+	 *
+	 * @param a_header <code>MessageHeader</code>, the header for this message
+	 * @param a_joined <code>Collection&lt;String&gt;</code>, the names of
+	 * 	the users that logged in
+	 * @param a_left <code>Collection&lt;String&gt;</code>, the names of the
+	 * 	users that logged out
+	 */
+	public PresenceMessage(MessageHeader a_header,
+			Collection<String> a_joined, Collection<String> a_left){
+		super( a_header );
+		m_joined = new ArrayList<String>( a_joined );
+		m_left = new ArrayList<String>( a_left );
+
+		m_notices = new ArrayList<ConnectedUserMessage>(
+				m_joined.size() + m_left.size() );
+		for( String name : m_left ){
+			m_notices.add( new ConnectedUserMessage(
+					MessageHeader.SERVER_RemoveUser, name ) );
+		}
+		for( String name : m_joined ){
+			m_notices.add( new ConnectedUserMessage(
+					MessageHeader.SERVER_AddNewUser, name ) );
+		}
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the names of the users that logged in
+	 * @return <code>List&lt;String&gt;</code>, the names
+	 */
+	public List<String> getJoined(){
+		return m_joined;
+	}
+
+	/**
+	 * Get the names of the users that logged out
+	 * @return <code>List&lt;String&gt;</code>, the names
+	 */
+	public List<String> getLeft(){
+		return m_left;
+	}
+
+	/**
+	 * Get the announced changes as a notice for each user, to be sent to
+	 * clients that do not accept presence messages
+	 * @return <code>List&lt;ConnectedUserMessage&gt;</code>, the notices
+	 */
+	public List<ConnectedUserMessage> getNotices(){
+		return m_notices;
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * The names are compressed for clients accepting compressed frames.
+	 */
+	@Override
+	protected boolean isCompressible(){
+		return true;
+	}
+
+	/**
+	 * Send the PresenceMessage information to the given writer.
+	 * Included are:
+	 * </br>the message header
+	 * </br>the number of users that logged in, and their names
+	 * </br>the number of users that logged out, and their names
+	 */
+	@Override
+	protected boolean encode(MessageWriter a_writer) throws IOException{
+		//write the header code
+		a_writer.writeHeader( m_header );
+
+		//write the users that logged in
+		a_writer.writeLength( m_joined.size() );
+		for( String name : m_joined ){
+			a_writer.writeString( name );
+		}
+
+		//write the users that logged out
+		a_writer.writeLength( m_left.size() );
+		for( String name : m_left ){
+			a_writer.writeString( name );
+		}
+
+		return true;
+	}
+}
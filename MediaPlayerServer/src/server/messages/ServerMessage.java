@@ -1,8 +1,10 @@
 package server.messages;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
 
 
 /**
@@ -100,7 +102,7 @@ public class ServerMessage extends Message {
 	// ******************** Utility Methods ********************
 	// *********************************************************
 	/**
-	 * Send the ServerError information to the given stream.
+	 * Send the ServerError information to the given writer.
 	 * Included are:
 	 * </br>the message header
 	 * </br>the size of the error message and the message itself
@@ -110,22 +112,17 @@ public class ServerMessage extends Message {
 	 *  <code>true</code> otherwise
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException {
+	protected boolean encode(MessageWriter a_writer) throws IOException {
 		if( m_errorMessage == null ){
 			return false;
 		}
 	
-		DataOutputStream outData = new DataOutputStream( a_stream );
-		
 		//write the header code
-		a_stream.write( m_header.getHeaderCode().getBytes() );
-		a_stream.flush();
+		a_writer.writeHeader( m_header );
 
 		//write the size of the message and the message itself
-		outData.writeInt( m_errorMessage.length() );
-		a_stream.write( m_errorMessage.getBytes() );
+		a_writer.writeString( m_errorMessage );
 
-		a_stream.flush();
 		return true;
 	}
 
@@ -1,12 +1,14 @@
 package server.messages;
 
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.Collection;
 import java.util.Vector;
 
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
+
 /**
  * Message class used to contain the list of clients connected to the server,
  * to be sent to a client.
@@ -126,29 +128,34 @@ public class UserListMessage extends Message {
 	// *********************************************************
 	// ******************** Utility Methods ********************
 	// *********************************************************
-	/**
-	 * Send the UserListMessage information to the given stream.
+		/**
+	 * The list of usernames is compressed for clients accepting
+	 * compressed frames.
+	 */
+	@Override
+	protected boolean isCompressible(){
+		return true;
+	}
+	
+/**
+	 * Send the UserListMessage information to the given writer.
 	 * Included are:
 	 * </br>the message header
 	 * </br>the number of users
 	 * </br>the list of users(size of name and name, for each user)
 	 */
 	@Override
-	public boolean sendMessage(OutputStream a_stream) throws IOException{
-		DataOutputStream outData = new DataOutputStream( a_stream );
-		
+	protected boolean encode(MessageWriter a_writer) throws IOException{
 		//write the header code
-		a_stream.write( m_header.getHeaderCode().getBytes() );
+		a_writer.writeHeader( m_header );
 		
 		//write the total number of users in the list
-		outData.writeInt( m_numOfUsers );
+		a_writer.writeInt( m_numOfUsers );
 		
 		//write the usernames
 		for( int i = 0; i < m_numOfUsers; i++ ){
 			//write the size of the name first, then the name
-			outData.writeInt( m_users.get( i ).length() );	
-			a_stream.write( m_users.get( i ).getBytes() );
-			a_stream.flush();
+			a_writer.writeString( m_users.get( i ) );
 		}
 		
 		return true;
@@ -0,0 +1,219 @@
+package server.messages;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+import protocol.MessageHeader;
+import protocol.MessageWriter;
+import protocol.messages.Message;
+
+/**
+ * Message class used to keep a client's list of connected users in step
+ * with the server's versioned roster, for clients that fetch the list in
+ * pages rather than receiving it whole at login.
+ * <p>
+ * From the client, it asks for the changes since the roster version the
+ * client last synced to, or for the page of usernames that follows the
+ * last name of the previous page. From the server, it carries either a
+ * page of usernames, in sorted order, or the names added to and removed
+ * from the roster since the requested version, along with the roster's
+ * current version.
+ * @author Andrzej Brynczka
+ *
+ */
+public class UserListSyncMessage extends Message {
+	// *********************************************************
+	// ******************** Class Constants ********************
+	// *********************************************************
+	/** Capability bit of a client that fetches the user list in pages */
+	public static final int PAGED = 0x02;
+
+	/**
+	 * Capability bit of a client that accepts logins and logouts announced
+	 * together, as a single presence message
+	 */
+	public static final int PRESENCE = 0x04;
+
+	/**
+	 * Flag of the first page of a full list: names the client knows of
+	 * that are not in any of the list's pages have left
+	 */
+	public static final byte RESET = 0x01;
+
+	/** Flag of a page that is followed by more names */
+	public static final byte MORE = 0x02;
+
+	// *********************************************************
+	// ******************** Class Variables ********************
+	// *********************************************************
+	/** The name of the user that requested, and receives, this message */
+	private final String m_receiver;
+
+	/** The identity of the server's roster, 0 if the client has none */
+	private final int m_rosterID;
+
+	/** The roster's version, as known by the client or at the server */
+	private final int m_version;
+
+	/**
+	 * The last name of the page before the one requested, or an empty
+	 * string if no page is being continued
+	 */
+	private final String m_after;
+
+	/** The <code>RESET</code> and <code>MORE</code> flags of a response */
+	private final byte m_flags;
+
+	/** The usernames in the page, or those added since the version */
+	private final Collection<String> m_added;
+
+	/** The usernames removed since the version */
+	private final Collection<String> m_removed;
+
+	// *********************************************************
+	// ******************** Constructors ***********************
+	// *********************************************************
+	/**
+	 * Create a request from a client, to be answered by the dispatcher.
+	 *
+	 * @param a_header <code>MessageHeader</code>, the header for this message
+	 * @param a_receiver <code>String</code>, the user that sent the request
+	 * @param a_rosterID <code>int</code>, the roster the client last synced
+	 * 	to, or 0
+	 * @param a_version <code>int</code>, the version the client last synced
+	 * 	to
+	 * @param a_after <code>String</code>, the last name of the previous
+	 * 	page, or an empty string
+	 */
+	public UserListSyncMessage(MessageHeader a_header, String a_receiver,
+			int a_rosterID, int a_version, String a_after){
+		super( a_header );
+		m_receiver = a_receiver;
+		m_rosterID = a_rosterID;
+		m_version = a_version;
+		m_after = a_after;
+		m_flags = 0;
+		m_added = Collections.emptyList();
+		m_removed = Collections.emptyList();
+	}
+
+	/**
+	 * Create a response holding a page of the roster, or the changes to it,
+	 * ready to be sent to a client.
+	 *
+	 * @param a_header <code>MessageHeader</code>, the header for this message
+	 * @param a_receiver <code>String</code>, the user to receive this message
+	 * @param a_rosterID <code>int</code>, the server's roster
+	 * @param a_version <code>int</code>, the roster's version
+	 * @param a_flags <code>byte</code>, the <code>RESET</code> and
+	 * 	<code>MORE</code> flags
+	 * @param a_added <code>Collection&lt;String&gt;</code>, the names in the
+	 * 	page, or added since the requested version
+	 * @param a_removed <code>Collection&lt;String&gt;</code>, the names
+	 * 	removed since the requested version
+	 */
+	public UserListSyncMessage(MessageHeader a_header, String a_receiver,
+			int a_rosterID, int a_version, byte a_flags,
+			Collection<String> a_added, Collection<String> a_removed){
+		super( a_header );
+		m_receiver = a_receiver;
+		m_rosterID = a_rosterID;
+		m_version = a_version;
+		m_after = "";
+		m_flags = a_flags;
+		m_added = a_added;
+		m_removed = a_removed;
+	}
+
+	// *********************************************************
+	// ******************** Selectors **************************
+	// *********************************************************
+	/**
+	 * Get the name of the user that this message will be sent to
+	 * @return <code>String</code>, the user's name
+	 */
+	public String getReceiverName(){
+		return m_receiver;
+	}
+
+	/**
+	 * Get the identity of the roster
+	 * @return <code>int</code>, the roster's identity, or 0 if the client
+	 * 	has none
+	 */
+	public int getRosterID(){
+		return m_rosterID;
+	}
+
+	/**
+	 * Get the roster's version
+	 * @return <code>int</code>, the version
+	 */
+	public int getVersion(){
+		return m_version;
+	}
+
+	/**
+	 * Get the last name of the page before the requested one
+	 * @return <code>String</code>, the name, or an empty string if no page
+	 * 	is being continued
+	 */
+	public String getAfter(){
+		return m_after;
+	}
+
+	/**
+	 * Get the number of usernames carried by this message
+	 * @return <code>int</code>, the number of names added and removed
+	 */
+	public int getNumOfUsers(){
+		return m_added.size() + m_removed.size();
+	}
+
+	// *********************************************************
+	// ******************** Utility Methods ********************
+	// *********************************************************
+	/**
+	 * Pages of usernames are compressed for clients accepting compressed
+	 * frames.
+	 */
+	@Override
+	protected boolean isCompressible(){
+		return true;
+	}
+
+	/**
+	 * Send the UserListSyncMessage response to the given writer.
+	 * Included are:
+	 * </br>the message header
+	 * </br>the roster's identity and version
+	 * </br>the flags
+	 * </br>the number of names added, and the names
+	 * </br>the number of names removed, and the names
+	 */
+	@Override
+	protected boolean encode(MessageWriter a_writer) throws IOException{
+		//write the header code
+		a_writer.writeHeader( m_header );
+
+		//write the roster the names belong to
+		a_writer.writeInt( m_rosterID );
+		a_writer.writeInt( m_version );
+		a_writer.writeByte( m_flags );
+
+		//write the names in the page, or added since the version
+		a_writer.writeLength( m_added.size() );
+		for( String name : m_added ){
+			a_writer.writeString( name );
+		}
+
+		//write the names removed since the version
+		a_writer.writeLength( m_removed.size() );
+		for( String name : m_removed ){
+			a_writer.writeString( name );
+		}
+
+		return true;
+	}
+}